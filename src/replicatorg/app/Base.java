@@ -345,6 +345,14 @@ public class Base {
 	}
 	private static NotificationHandler notificationHandler = null;
 
+	/**
+	 * Send notifications to the given handler rather than showing them, as
+	 * the command line does.
+	 */
+	public static void setNotificationHandler(NotificationHandler handler) {
+		notificationHandler = handler;
+	}
+
 	private static final String[] supportedExtensions = {
 			"gcode", "ngc",
 			"stl", "dae", "obj"
@@ -371,6 +379,11 @@ public class Base {
 
 	static public void main(String args[]) {
 
+		// Commands run without the window, before anything starts up AWT.
+		if (args.length > 0 && CommandLine.isCommand(args[0])) {
+			System.exit(CommandLine.run(args));
+		}
+
 		// make sure that this is running on java 1.5 or better.
 		if (Base.javaVersion < 1.5f) {
 			Base.quitWithError("Need to install Java 1.5",
@@ -425,6 +438,7 @@ public class Base {
 				}
 			} else if(args[i].startsWith("-")){
 				System.out.println("Usage: ./replicatorg [--debug DEBUGLEVEL] [--alternate-prefs ALTERNATE_PREFS_NAME] [--clean-prefs] [filename.stl]");
+				System.out.println("       ./replicatorg estimate|compile-to-s3g|analyze-s3g|slice|build [options] FILE");
 				System.exit(1);
 			} else if (supportedExtension(args[i])) {
 				// grab any opened file from the command line
@@ -0,0 +1,461 @@
+package replicatorg.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.ui.NotificationHandler;
+import replicatorg.drivers.gen3.MotherboardCommandCode;
+import replicatorg.drivers.gen3.S3GAnalyzer;
+import replicatorg.drivers.gen3.ToolCommandCode;
+import replicatorg.machine.BuildEstimator;
+import replicatorg.machine.JobAnalysis;
+import replicatorg.machine.JobResume;
+import replicatorg.machine.Machine;
+import replicatorg.machine.MachineCallbackHandler;
+import replicatorg.machine.MachineFactory;
+import replicatorg.machine.MachineListener;
+import replicatorg.machine.MachineProgressEvent;
+import replicatorg.machine.MachineState;
+import replicatorg.machine.MachineStateChangeEvent;
+import replicatorg.machine.MachineToolStatusEvent;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.Build;
+import replicatorg.model.BuildCode;
+import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.MappedGCodeSource;
+import replicatorg.plugin.toolpath.ToolpathGenerator;
+import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
+import replicatorg.plugin.toolpath.ToolpathGeneratorFactory.ToolpathGeneratorDescriptor;
+import replicatorg.plugin.toolpath.skeinforge.SkeinforgeGenerator;
+
+/**
+ * Runs a job from the command line, without the main window, for scripts
+ * and print farms. Base.main hands over to this when its first argument is
+ * one of the commands:
+ *
+ * <pre>
+ * estimate [--machine NAME] FILE.gcode
+ * compile-to-s3g [--machine NAME] [--output FILE.s3g] FILE.gcode
+ * analyze-s3g FILE.s3g
+ * slice [--generator NAME] [--profile NAME] FILE.stl
+ * build [--machine NAME] [--port PORT] [--from-line N | --from-layer N] FILE.gcode
+ * </pre>
+ *
+ * The machine and port default to the ones last used in the main window,
+ * and the generator and profile to the ones last used to generate code.
+ * A build can be resumed from a line or layer, counting from 1, after the
+ * machine is readied as the lines before it would have left it; see
+ * JobResume.
+ *
+ * Nothing here starts AWT, so it runs without a display; warnings that would
+ * have been shown in a dialog are written as error records, and drivers
+ * don't check for newer firmware. Results and
+ * progress are written to stdout one record a line: the record's name,
+ * then space-separated key=value fields, or for "state", "slice" and
+ * "error", a word and then free text. Logging goes to stderr as usual. The
+ * exit status is 0 if the command succeeded.
+ */
+public class CommandLine {
+	private static final String[] COMMANDS = {
+		"estimate", "compile-to-s3g", "analyze-s3g", "slice", "build"
+	};
+
+	// Progress is reported at most this often, in milliseconds
+	private static final long PROGRESS_INTERVAL = 1000;
+
+	private final PrintStream out = System.out;
+	private String command;
+	private String file;
+	private final Map<String,String> options = new HashMap<String,String>();
+
+	/** @return true if the argument names a command this can run */
+	public static boolean isCommand(String arg) {
+		for (String c : COMMANDS) {
+			if (c.equals(arg)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Run the command given by the arguments.
+	 * @return the exit status
+	 */
+	public static int run(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+		final CommandLine cl = new CommandLine();
+		// Anything that would have been put in front of the user is an error
+		// record here.
+		Base.setNotificationHandler(new NotificationHandler() {
+			public void showMessage(String title, String message) {
+				Base.logger.info(title + ": " + message);
+			}
+			public void showWarning(String title, String message, Throwable e) {
+				cl.error("warning", oneLine(title, message));
+			}
+			public void showError(String title, String message, Throwable e) {
+				cl.error("fatal", oneLine(title, message));
+			}
+		});
+		if (!cl.parse(args)) {
+			usage();
+			return 2;
+		}
+		try {
+			return cl.run() ? 0 : 1;
+		} catch (IOException e) {
+			cl.error("io", e.getMessage());
+			return 1;
+		}
+	}
+
+	private static void usage() {
+		System.err.println("Usage: ./replicatorg estimate [--machine NAME] FILE.gcode");
+		System.err.println("       ./replicatorg compile-to-s3g [--machine NAME] [--output FILE.s3g] FILE.gcode");
+		System.err.println("       ./replicatorg analyze-s3g FILE.s3g");
+		System.err.println("       ./replicatorg slice [--generator NAME] [--profile NAME] FILE.stl");
+		System.err.println("       ./replicatorg build [--machine NAME] [--port PORT] [--from-line N | --from-layer N] FILE.gcode");
+		System.err.println("Options: [--debug DEBUGLEVEL]");
+	}
+
+	private boolean parse(String[] args) {
+		command = args[0];
+		for (int i = 1; i < args.length; i++) {
+			String arg = args[i];
+			if (arg.startsWith("--")) {
+				if (i + 1 >= args.length) return false;
+				options.put(arg.substring(2), args[++i]);
+			} else if (file == null) {
+				file = arg;
+			} else {
+				return false;
+			}
+		}
+		if (options.containsKey("debug")) {
+			try {
+				int level = Integer.parseInt(options.get("debug"));
+				Level[] levels = { Level.INFO, Level.FINE, Level.FINER, Level.FINEST, Level.ALL };
+				Base.logger.setLevel(levels[Math.max(0, Math.min(level, levels.length - 1))]);
+			} catch (NumberFormatException e) {
+				return false;
+			}
+		}
+		return file != null;
+	}
+
+	private boolean run() throws IOException {
+		if (!new File(file).isFile()) {
+			error("file", "No such file: " + file);
+			return false;
+		}
+		if (command.equals("estimate")) return estimate();
+		if (command.equals("compile-to-s3g")) return compile();
+		if (command.equals("analyze-s3g")) return analyze();
+		if (command.equals("slice")) return slice();
+		if (command.equals("build")) return build();
+		return false;
+	}
+
+	private void record(String s) {
+		out.println(s);
+		out.flush();
+	}
+
+	private void error(String kind, String message) {
+		record("error " + kind + " " + message);
+	}
+
+	// A notification's title and message, as one line of a record
+	private static String oneLine(String title, String message) {
+		String text = (message == null) ? "" : message.replaceAll("\\s+", " ").trim();
+		return (title == null) ? text : title + ": " + text;
+	}
+
+	private Node machineNode() {
+		String name = options.get("machine");
+		if (name == null) {
+			name = Base.preferences.get("machine.name", null);
+		}
+		Node node = (name == null) ? null : MachineFactory.getMachineNode(name);
+		if (node == null) {
+			error("machine", "No machine named " + name);
+		}
+		return node;
+	}
+
+	private boolean estimate() throws IOException {
+		Node node = machineNode();
+		if (node == null) return false;
+		long start = System.currentTimeMillis();
+		MachineModel model = new MachineModel();
+		model.loadXML(node);
+		boolean safetyChecks = Base.preferences.getBoolean("build.safetyChecks", true);
+		JobAnalysis analysis = BuildEstimator.analyze(new MappedGCodeSource(new File(file)), model, safetyChecks);
+		record("estimate build_time_ms=" + Math.round(analysis.getBuildTime())
+				+ " layers=" + analysis.getLayerCount()
+				+ " errors=" + analysis.getNumErrors()
+				+ " warnings=" + analysis.getNumWarnings()
+				+ " elapsed_ms=" + (System.currentTimeMillis() - start));
+		return true;
+	}
+
+	private boolean compile() throws IOException {
+		Node node = machineNode();
+		if (node == null) return false;
+		String output = options.get("output");
+		if (output == null) {
+			int dot = file.lastIndexOf('.');
+			output = ((dot > file.lastIndexOf(File.separatorChar)) ? file.substring(0, dot) : file) + ".s3g";
+		}
+		long start = System.currentTimeMillis();
+		MachineCallbackHandler callbacks = new MachineCallbackHandler();
+		Machine machine = new Machine(node, callbacks);
+		try {
+			if (!machine.buildToFile(new MappedGCodeSource(new File(file)), output)) {
+				error("compile", "Couldn't compile " + file + " for " + machine.getMachineName());
+				return false;
+			}
+		} finally {
+			machine.dispose();
+		}
+		record("compile-to-s3g bytes=" + new File(output).length()
+				+ " elapsed_ms=" + (System.currentTimeMillis() - start));
+		return true;
+	}
+
+	private boolean analyze() throws IOException {
+		long start = System.currentTimeMillis();
+		S3GAnalyzer analyzer = new S3GAnalyzer();
+		analyzer.analyze(new File(file));
+		StringBuilder sb = new StringBuilder("analyze-s3g");
+		sb.append(" build_time_ms=").append(Math.round(analyzer.getBuildTime()));
+		sb.append(" commands=").append(analyzer.getCommandCount());
+		sb.append(" bytes=").append(analyzer.getByteCount());
+		sb.append(" layers=").append(analyzer.getLayerCount());
+		if (analyzer.hasBounds()) {
+			sb.append(" min_steps=");
+			for (int i = 0; i < 5; i++) sb.append(i > 0 ? "," : "").append(analyzer.getMinSteps(i));
+			sb.append(" max_steps=");
+			for (int i = 0; i < 5; i++) sb.append(i > 0 ? "," : "").append(analyzer.getMaxSteps(i));
+		}
+		sb.append(" elapsed_ms=").append(System.currentTimeMillis() - start);
+		record(sb.toString());
+		for (MotherboardCommandCode code : MotherboardCommandCode.values()) {
+			if (analyzer.getCommandCount(code) > 0) {
+				record("count command=" + code + " n=" + analyzer.getCommandCount(code));
+			}
+		}
+		for (ToolCommandCode code : ToolCommandCode.values()) {
+			if (analyzer.getToolCommandCount(code) > 0) {
+				record("count tool_command=" + code + " n=" + analyzer.getToolCommandCount(code));
+			}
+		}
+		return true;
+	}
+
+	private boolean slice() throws IOException {
+		Build build = new Build(new File(file).getAbsolutePath());
+		BuildModel model = build.getModel();
+		if (model == null) {
+			error("slice", "No model in " + file);
+			return false;
+		}
+		String name = options.get("generator");
+		ToolpathGenerator generator = null;
+		if (name == null) {
+			generator = ToolpathGeneratorFactory.createSelectedGenerator();
+		} else {
+			for (ToolpathGeneratorDescriptor tgd : ToolpathGeneratorFactory.getGeneratorList()) {
+				if (name.equals(tgd.name)) { generator = tgd.instantiate(); break; }
+			}
+		}
+		if (generator == null) {
+			error("slice", "No toolpath generator named " + (name != null ? name : ToolpathGeneratorFactory.getSelectedName()));
+			return false;
+		}
+		generator.setModel(model);
+		boolean configured = (generator instanceof SkeinforgeGenerator)
+				? ((SkeinforgeGenerator)generator).configureProfile(options.get("profile"))
+				: generator.nonvisualConfigure();
+		if (!configured) {
+			error("slice", "Couldn't configure the toolpath generator");
+			return false;
+		}
+		generator.addListener(new ToolpathGenerator.GeneratorListener() {
+			public void updateGenerator(String message) {
+				// Skeinforge moves the cursor up a line before each layer.
+				if (message.startsWith("\033[1A")) message = message.substring(4);
+				if (message.trim().length() > 0) record("slice message " + message.trim());
+			}
+			public void generationComplete(Completion completion, Object details) {
+			}
+		});
+		long start = System.currentTimeMillis();
+		Base.logger.info("Beginning toolpath generation.");
+		BuildCode code = generator.generateToolpath();
+		if (code == null) {
+			error("slice", "Toolpath generation failed");
+			return false;
+		}
+		record("slice done elapsed_ms=" + (System.currentTimeMillis() - start) + " file=" + code.file.getPath());
+		return true;
+	}
+
+	private boolean build() throws IOException {
+		Node node = machineNode();
+		if (node == null) return false;
+		String port = options.get("port");
+		if (port == null) {
+			port = Base.preferences.get("serial.last_selected", null);
+		}
+		GCodeSource source = new MappedGCodeSource(new File(file));
+		int from = 0;
+		boolean fromLayer = options.containsKey("from-layer");
+		if (fromLayer || options.containsKey("from-line")) {
+			try {
+				from = Integer.parseInt(options.get(fromLayer ? "from-layer" : "from-line"));
+			} catch (NumberFormatException e) {
+				error("resume", "Not a number: " + options.get(fromLayer ? "from-layer" : "from-line"));
+				return false;
+			}
+		}
+		MachineCallbackHandler callbacks = new MachineCallbackHandler();
+		BuildListener listener = new BuildListener();
+		callbacks.addMachineListener(listener);
+		callbacks.start();
+		final Machine machine = new Machine(node, callbacks);
+		Thread stopper = new Thread("Stop build") {
+			public void run() {
+				if (machine.getMachineState().isBuilding()) {
+					machine.stopAll();
+				}
+				machine.dispose();
+			}
+		};
+		Runtime.getRuntime().addShutdownHook(stopper);
+		try {
+			machine.connect(port);
+			MachineState.State state = listener.waitUntilLeft(MachineState.State.CONNECTING);
+			if (state != MachineState.State.READY) {
+				error("connect", "Couldn't connect to " + machine.getMachineName() + " on " + port);
+				return false;
+			}
+			if (from > 0) {
+				source = resume(source, machine.getModel(), from, fromLayer);
+				if (source == null) {
+					return false;
+				}
+			}
+			if (!machine.buildDirect(source)) {
+				error("build", "The job didn't pass the pre-run check");
+				return false;
+			}
+			state = listener.waitUntilLeft(MachineState.State.BUILDING, MachineState.State.PAUSED);
+			if (state != MachineState.State.READY) {
+				error("build", "The build ended with the machine " + state);
+				return false;
+			}
+			record("build done");
+			return true;
+		} catch (InterruptedException e) {
+			return false;
+		} finally {
+			Runtime.getRuntime().removeShutdownHook(stopper);
+			machine.dispose();
+			callbacks.interrupt();
+		}
+	}
+
+	// The code to build to resume a job from a line or layer, counting from 1
+	private GCodeSource resume(GCodeSource source, MachineModel model, int from, boolean layer) {
+		boolean safetyChecks = Base.preferences.getBoolean("build.safetyChecks", true);
+		JobAnalysis analysis = BuildEstimator.analyze(source, model, safetyChecks);
+		GCodeSource resumed;
+		int line;
+		if (layer) {
+			resumed = JobResume.fromLayer(source, analysis, model, from - 1);
+			if (resumed == null) {
+				error("resume", "No layer " + from + "; the job has " + analysis.getLayerCount());
+				return null;
+			}
+			line = analysis.getLayerLine(from - 1) + 1;
+		} else {
+			resumed = JobResume.fromLine(source, analysis, model, from - 1);
+			if (resumed == null) {
+				error("resume", "No line " + from + "; the job has " + source.getLineCount());
+				return null;
+			}
+			line = from;
+		}
+		record("resume line=" + line);
+		return resumed;
+	}
+
+	/**
+	 * Reports the machine's state and progress, and lets the build wait for
+	 * the state to change.
+	 */
+	private class BuildListener implements MachineListener {
+		private MachineState.State state = MachineState.State.NOT_ATTACHED;
+		// Every state the machine has been in; events may come in faster than
+		// the build looks at them.
+		private final Set<MachineState.State> seen = EnumSet.noneOf(MachineState.State.class);
+		private MachineProgressEvent progress = null;
+		private long lastProgress = 0;
+
+		public synchronized void machineStateChanged(MachineStateChangeEvent evt) {
+			flushProgress();
+			state = evt.getState().getState();
+			seen.add(state);
+			String message = evt.getMessage();
+			record("state " + state + ((message != null) ? " " + message : ""));
+			notifyAll();
+		}
+
+		public synchronized void machineProgress(MachineProgressEvent event) {
+			progress = event;
+			long now = System.currentTimeMillis();
+			if (now - lastProgress >= PROGRESS_INTERVAL) {
+				flushProgress();
+				lastProgress = now;
+			}
+		}
+
+		public void toolStatusChanged(MachineToolStatusEvent event) {
+		}
+
+		synchronized void flushProgress() {
+			if (progress == null) return;
+			MachineProgressEvent p = progress;
+			double proportion = (p.getTotalLines() > 0) ? (double)p.getLines() / p.getTotalLines() : 0;
+			record("progress lines=" + p.getLines()
+					+ " total=" + p.getTotalLines()
+					+ " elapsed_ms=" + Math.round(p.getElapsed())
+					+ " remaining_ms=" + Math.round(p.getEstimated() * (1.0 - proportion)));
+			progress = null;
+		}
+
+		/**
+		 * Wait until the machine has been in the first of the given states,
+		 * and is now in none of them.
+		 * @return the state it's in
+		 */
+		synchronized MachineState.State waitUntilLeft(MachineState.State... states) throws InterruptedException {
+			while (true) {
+				if (seen.contains(states[0]) && !Arrays.asList(states).contains(state)) {
+					return state;
+				}
+				wait();
+			}
+		}
+	}
+}
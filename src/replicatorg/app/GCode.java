@@ -1,123 +1,274 @@
 package replicatorg.app;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
+/**
+ * A single parsed line of GCode.
+ *
+ * The line is tokenized in a single pass: the comment is located and every
+ * letter code we understand is recorded, along with its value, in tables
+ * indexed by letter. Lookups are constant time, and the command and comment
+ * strings are only built if someone asks for them.
+ *
+ * A GCode object can be reused for many lines by calling parse(); this is
+ * what the parser, estimator and plugin engine do so that running a job
+ * doesn't allocate an object per line.
+ */
 public class GCode {
 
 	// These are the letter codes that we understand
-	static protected char[] codes = { 
+	static protected char[] codes = {
 		'A', 'B', 'D', 'E', 'F', 'G', 'H', 'I', 'J', 'K', 'L',
 		'M', 'P', 'Q', 'R', 'S', 'T', 'X', 'Y', 'Z' };
-	
-	// pattern matchers.
-	static Pattern parenPattern  = Pattern.compile("\\((.*)\\)");
-	static Pattern semiPattern = Pattern.compile(";(.*)");
-	static Pattern deleteBlockPattern = Pattern.compile("^(\\.*)");
-	
-	
-	// The actual GCode command string
-	private String command;
-
-	// Parsed out comment
-	private String comment = new String();
-
-	private class gCodeParameter {
-		final public char code;
-		final public Double value;
-		gCodeParameter(char code, Double value) {
-			this.code = code;
-			this.value = value;
+
+	// Lookup table of understood codes, indexed by (letter - 'A')
+	static private final boolean[] understood = new boolean[26];
+	static {
+		for (char code : codes) {
+			understood[code - 'A'] = true;
 		}
 	}
-	
-	// The set of parameters in this GCode
-	private List<gCodeParameter> parameters;
+
+	// Exact powers of ten, for converting decimal mantissas without rounding error
+	static private final double[] powersOfTen = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+	// Largest mantissa that can be represented exactly in a double
+	static private final long maxExactMantissa = 1L << 53;
+
+	// The line we are currently looking at
+	private CharSequence line = "";
+
+	// Extent of the parenthesized comment, or -1 if there isn't one
+	private int parenStart = -1;
+	private int parenEnd = -1;
+
+	// Start of the semicolon comment that ends the command, or -1 if there isn't one
+	private int semiStart = -1;
+
+	// Start of the semicolon comment in the raw line; this is what is reported
+	// by getComment(), even when it falls inside a parenthesized comment.
+	private int commentSemiStart = -1;
+
+	// Lazily built command and comment strings
+	private String command = null;
+	private String comment = null;
+
+	// The set of parameters in this GCode, indexed by (letter - 'A')
+	private final boolean[] present = new boolean[26];
+	private final boolean[] valued = new boolean[26];
+	private final double[] values = new double[26];
+
+	/**
+	 * Create an empty GCode object, to be filled in by parse().
+	 */
+	public GCode() {
+	}
 
 	public GCode(String command) {
-		// Copy over the command
-		this.command = new String(command);
-		
-		// Initialize the present and value tables
-		this.parameters = new ArrayList<gCodeParameter>();
-		
+		parse(command);
+	}
+
+	/**
+	 * Parse a new line into this object, discarding anything that was parsed
+	 * previously. The line is not copied, so it should not be modified while
+	 * this object is in use.
+	 * @param line the line of GCode to parse
+	 * @return this object, for convenience
+	 */
+	public GCode parse(CharSequence line) {
+		this.line = line;
+		command = null;
+		comment = null;
+		for (int i = 0; i < present.length; i++) {
+			present[i] = false;
+			valued[i] = false;
+			values[i] = 0;
+		}
+
 		// Parse (and strip) any comments out into a comment string
 		parseComments();
 
 		// Parse any codes out into the code tables
 		parseCodes();
-	}
-	
-	// Find any comments, store them, then remove them from the command 
-	private void parseComments() {
-		Matcher parenMatcher = parenPattern.matcher(command);
-		Matcher semiMatcher = semiPattern.matcher(command);
 
-		// Note that we only support one style of comments, and only one comment per row. 
-		if (parenMatcher.find())
-			comment = parenMatcher.group(1);
+		return this;
+	}
 
-		if (semiMatcher.find())
-			comment = semiMatcher.group(1);
+	// Find any comments. Note that we only support one style of comments,
+	// and only one comment per row; a parenthesized comment runs from the
+	// first open paren to the last close paren.
+	private void parseComments() {
+		final int length = line.length();
+		parenStart = -1;
+		parenEnd = -1;
+		semiStart = -1;
 
-		// clean it up.
-		comment = comment.trim();
-		comment = comment.replace('|', '\n');
+		for (int i = 0; i < length; i++) {
+			char c = line.charAt(i);
+			if (c == '(' && parenStart == -1) {
+				parenStart = i;
+			} else if (c == ')' && parenStart != -1) {
+				parenEnd = i;
+			} else if (c == ';' && semiStart == -1) {
+				semiStart = i;
+			}
+		}
+		// Parens after the semicolon are just part of the semicolon comment
+		if (parenEnd == -1 || (semiStart != -1 && semiStart < parenStart)) {
+			parenStart = -1;
+			parenEnd = -1;
+		}
+		// A semicolon inside the parenthesized comment doesn't start another
+		// comment once the parens have been stripped; look for one after them.
+		if (parenStart != -1 && semiStart > parenStart && semiStart < parenEnd) {
+			commentSemiStart = semiStart;
+			semiStart = -1;
+			for (int i = parenEnd + 1; i < length; i++) {
+				if (line.charAt(i) == ';') {
+					semiStart = i;
+					break;
+				}
+			}
+		} else {
+			commentSemiStart = semiStart;
+		}
+	}
 
-		// Finally, remove the comments from the command string
-		command = parenMatcher.replaceAll("");
-		
-		semiMatcher = semiPattern.matcher(command);
-		command = semiMatcher.replaceAll("");
+	// Is the given position part of the command (and not a comment)?
+	private boolean inCommand(int i) {
+		if (parenStart != -1 && i >= parenStart && i <= parenEnd) {
+			return false;
+		}
+		return semiStart == -1 || i < semiStart;
 	}
 
 	// Find any codes, and store them
 	private void parseCodes() {
-		for (char code : codes) {
-			Pattern myPattern = Pattern.compile(code + "([0-9.+-]+)");
-			Matcher myMatcher = myPattern.matcher(command);
-
-			if (command.indexOf(code) >= 0) {
-				double value = 0;
-				
-				if (myMatcher.find()) {
-					String match = myMatcher.group(1);
-					value = Double.parseDouble(match);
+		final int length = line.length();
+		int i = 0;
+		while (i < length) {
+			if (!inCommand(i)) {
+				// skip the comment
+				if (i == parenStart) {
+					i = parenEnd + 1;
+					continue;
 				}
-				
-				parameters.add(new gCodeParameter(code, value));
+				break;
+			}
+
+			char c = line.charAt(i++);
+			int idx = c - 'A';
+			if (idx < 0 || idx >= 26 || !understood[idx]) {
+				continue;
+			}
+			present[idx] = true;
+
+			// Find the run of number characters following the code
+			int start = i;
+			while (i < length && inCommand(i) && isNumberChar(line.charAt(i))) {
+				i++;
+			}
+			// Only the first value given for a code is used
+			if (i > start && !valued[idx]) {
+				values[idx] = parseValue(start, i);
+				valued[idx] = true;
 			}
 		}
 	}
 
+	private static boolean isNumberChar(char c) {
+		return (c >= '0' && c <= '9') || c == '.' || c == '+' || c == '-';
+	}
+
+	// Convert a run of number characters to a double. Well formed decimal
+	// numbers are handled in place; anything else goes through Double.parseDouble
+	// so that it is rounded (or rejected) exactly as it always has been.
+	private double parseValue(int start, int end) {
+		int i = start;
+		boolean negative = false;
+		char c = line.charAt(i);
+		if (c == '+' || c == '-') {
+			negative = (c == '-');
+			i++;
+		}
+
+		long mantissa = 0;
+		int digits = 0;
+		int fractionDigits = 0;
+		boolean seenPoint = false;
+		for (; i < end; i++) {
+			c = line.charAt(i);
+			if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (seenPoint) {
+					fractionDigits++;
+				}
+				if (mantissa >= maxExactMantissa) {
+					return slowParseValue(start, end);
+				}
+			} else if (c == '.' && !seenPoint) {
+				seenPoint = true;
+			} else {
+				return slowParseValue(start, end);
+			}
+		}
+		if (digits == 0 || fractionDigits >= powersOfTen.length) {
+			return slowParseValue(start, end);
+		}
+
+		double value = (double)mantissa / powersOfTen[fractionDigits];
+		return negative ? -value : value;
+	}
+
+	private double slowParseValue(int start, int end) {
+		return Double.parseDouble(line.subSequence(start, end).toString());
+	}
+
+	/**
+	 * @return the line with any comments removed
+	 */
 	public String getCommand() {
 		// TODO: Note that this is the command minus any comments.
-		return new String(command);
+		if (command == null) {
+			StringBuilder sb = new StringBuilder(line.length());
+			int end = (semiStart == -1) ? line.length() : semiStart;
+			if (parenStart != -1) {
+				sb.append(line, 0, parenStart);
+				sb.append(line, parenEnd + 1, end);
+			} else {
+				sb.append(line, 0, end);
+			}
+			command = sb.toString();
+		}
+		return command;
 	}
-	
+
 	public String getComment() {
-		return new String(comment);
-	}
-	
-	public boolean hasCode(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return true;
+		if (comment == null) {
+			if (commentSemiStart != -1) {
+				comment = line.subSequence(commentSemiStart + 1, line.length()).toString();
+			} else if (parenStart != -1) {
+				comment = line.subSequence(parenStart + 1, parenEnd).toString();
+			} else {
+				comment = "";
 			}
+			// clean it up.
+			comment = comment.trim().replace('|', '\n');
 		}
-		
-		return false;
+		return comment;
+	}
+
+	public boolean hasCode(char searchCode) {
+		int idx = searchCode - 'A';
+		return idx >= 0 && idx < 26 && present[idx];
 	}
 
 	public double getCodeValue(char searchCode) {
-		for (gCodeParameter parameter : parameters) {
-			if (parameter.code == searchCode) {
-				return parameter.value;
-			}
+		if (hasCode(searchCode)) {
+			return values[searchCode - 'A'];
 		}
-		
+
 		return -1;	// TODO: What do we return if there is no code?
 	}
-}
\ No newline at end of file
+}
@@ -117,9 +117,26 @@ public enum GCodeEnumeration {
 				
 			});
 	
+	// The same codes indexed by letter and then number, so that looking up a
+	// parsed line doesn't have to build a string
+	private static final GCodeEnumeration[][] byLetter = new GCodeEnumeration[26][];
+	
 	static {
 		for(GCodeEnumeration e : EnumSet.allOf(GCodeEnumeration.class))
 			lookup.put(e.letter + e.number, e);
+		
+		for(GCodeEnumeration e : EnumSet.allOf(GCodeEnumeration.class))
+		{
+			int l = e.letter.charAt(0) - 'A';
+			if(byLetter[l] == null || byLetter[l].length <= e.number)
+			{
+				GCodeEnumeration[] codes = new GCodeEnumeration[e.number + 1];
+				if(byLetter[l] != null)
+					System.arraycopy(byLetter[l], 0, codes, 0, byLetter[l].length);
+				byLetter[l] = codes;
+			}
+			byLetter[l][e.number] = e;
+		}
 	}
 	
 	public final String documentation;
@@ -153,6 +170,25 @@ public enum GCodeEnumeration {
 	
 	public static GCodeEnumeration getGCode(String letter, Integer number)
 	{
+		if(letter.length() == 1 && number != null)
+			return getGCode(letter.charAt(0), number);
 		return lookup.get(letter + number);
 	}
+	
+	/**
+	 * Look up a code by its letter and number, as they come from a parsed line.
+	 * @return the code, or null if it isn't supported
+	 */
+	public static GCodeEnumeration getGCode(char letter, int number)
+	{
+		if(letter >= 'A' && letter <= 'Z')
+		{
+			GCodeEnumeration[] codes = byLetter[letter - 'A'];
+			if(codes == null)
+				return null;
+			if(number >= 0 && number < codes.length)
+				return codes[number];
+		}
+		return lookup.get(String.valueOf(letter) + number);
+	}
 }
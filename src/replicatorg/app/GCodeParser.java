@@ -49,7 +49,6 @@
 package replicatorg.app;
 
 import java.util.EnumSet;
-import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
@@ -58,6 +57,7 @@ import javax.vecmath.Point3d;
 import replicatorg.app.exceptions.GCodeException;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.commands.CommandBatch;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.drivers.commands.DriverCommand.LinearDirection;
 import replicatorg.machine.model.AxisId;
@@ -172,13 +172,30 @@ public class GCodeParser {
 		}
 	}
 
+	// Add a move to the queue. A CommandBatch keeps just the coordinates.
+	private static void queuePoint(Queue< DriverCommand > commands, Point5d p) {
+		if (commands instanceof CommandBatch) {
+			((CommandBatch)commands).addPoint(p);
+		} else {
+			commands.add(new replicatorg.drivers.commands.QueuePoint(p));
+		}
+	}
+
+	private static void setFeedrate(Queue< DriverCommand > commands, double feedrate) {
+		if (commands instanceof CommandBatch) {
+			((CommandBatch)commands).addFeedrate(feedrate);
+		} else {
+			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
+		}
+	}
+
 	// Arc drawing routine
 	// Note: 5D is not supported
-	Queue< DriverCommand > drawArc(Point5d center, Point5d endpoint, boolean clockwise) {
+	void drawArc(Point5d center, Point5d endpoint, boolean clockwise, Queue< DriverCommand > points) {
 		// System.out.println("Arc from " + current.toString() + " to " +
 		// endpoint.toString() + " with center " + center);
 
-		Queue< DriverCommand > points = new LinkedList< DriverCommand >();
+		CommandBatch batch = (points instanceof CommandBatch) ? (CommandBatch)points : null;
 		
 		// angle variables.
 		double angleA;
@@ -232,7 +249,6 @@ public class GCodeParser {
 		steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
 
 		// this is the real draw action.
-		Point5d newPoint = new Point5d(current);
 		double arcStartZ = current.z();
 		for (s = 1; s <= steps; s++) {
 			// Forwards for CCW, backwards for CW
@@ -242,17 +258,44 @@ public class GCodeParser {
 				step = steps - s;
 
 			// calculate our waypoint.
-			newPoint.setX(center.x() + radius * Math.cos(angleA + angle * ((double) step / steps)));
-			newPoint.setY(center.y() + radius * Math.sin(angleA + angle * ((double) step / steps)));
-			newPoint.setZ(arcStartZ + (endpoint.z() - arcStartZ) * s / steps);
+			double x = center.x() + radius * Math.cos(angleA + angle * ((double) step / steps));
+			double y = center.y() + radius * Math.sin(angleA + angle * ((double) step / steps));
+			double z = arcStartZ + (endpoint.z() - arcStartZ) * s / steps;
 
-			// start the move
-			points.add(new replicatorg.drivers.commands.QueuePoint(newPoint));
+			// start the move. Each segment needs its own point, as the
+			// commands are only run after they have all been made.
+			if (batch != null) {
+				batch.addPoint(x, y, z, current.a(), current.b());
+			} else {
+				points.add(new replicatorg.drivers.commands.QueuePoint(new Point5d(x, y, z, current.a(), current.b())));
+			}
 		}
-		
-		return points;
 	}
 	
+	// Commands that don't take any arguments don't hold any state either, so
+	// every line that needs one gets the same one.
+	private static final DriverCommand CLOSE_COLLET = new replicatorg.drivers.commands.CloseCollet();
+	private static final DriverCommand CLOSE_VALVE = new replicatorg.drivers.commands.CloseValve();
+	private static final DriverCommand DISABLE_DRIVES = new replicatorg.drivers.commands.DisableDrives();
+	private static final DriverCommand DISABLE_FAN = new replicatorg.drivers.commands.DisableFan();
+	private static final DriverCommand DISABLE_FLOOD_COOLANT = new replicatorg.drivers.commands.DisableFloodCoolant();
+	private static final DriverCommand DISABLE_MIST_COOLANT = new replicatorg.drivers.commands.DisableMistCoolant();
+	private static final DriverCommand DISABLE_MOTOR = new replicatorg.drivers.commands.DisableMotor();
+	private static final DriverCommand DISABLE_SPINDLE = new replicatorg.drivers.commands.DisableSpindle();
+	private static final DriverCommand ENABLE_DRIVES = new replicatorg.drivers.commands.EnableDrives();
+	private static final DriverCommand ENABLE_FAN = new replicatorg.drivers.commands.EnableFan();
+	private static final DriverCommand ENABLE_FLOOD_COOLANT = new replicatorg.drivers.commands.EnableFloodCoolant();
+	private static final DriverCommand ENABLE_MIST_COOLANT = new replicatorg.drivers.commands.EnableMistCoolant();
+	private static final DriverCommand ENABLE_MOTOR = new replicatorg.drivers.commands.EnableMotor();
+	private static final DriverCommand ENABLE_SPINDLE = new replicatorg.drivers.commands.EnableSpindle();
+	private static final DriverCommand GET_POSITION = new replicatorg.drivers.commands.GetPosition();
+	private static final DriverCommand INITIALIZE = new replicatorg.drivers.commands.Initialize();
+	private static final DriverCommand OPEN_COLLET = new replicatorg.drivers.commands.OpenCollet();
+	private static final DriverCommand OPEN_VALVE = new replicatorg.drivers.commands.OpenValve();
+	private static final DriverCommand READ_TEMPERATURE = new replicatorg.drivers.commands.ReadTemperature();
+	private static final DriverCommand STOP_DATA_CAPTURE = new replicatorg.drivers.commands.StopDataCapture();
+	private static final DriverCommand WAIT_UNTIL_BUFFER_EMPTY = new replicatorg.drivers.commands.WaitUntilBufferEmpty();
+
 	// our curve section variables.
 	public static double curveSectionMM = Base.preferences.getDouble("replicatorg.parser.curve_segment_mm", 1.0);
 	public static double curveSectionInches = curveSectionMM / 25.4;
@@ -261,6 +304,7 @@ public class GCodeParser {
 
 	// our offset variables 0 = master, 1-6 = offsets 1-6
 	protected Point3d currentOffset;
+	protected int coordinateSystem = 0;
 
 	// false = incremental; true = absolute
 	boolean absoluteMode = false;
@@ -280,6 +324,9 @@ public class GCodeParser {
 	public static int UNITS_INCHES = 1;
 
 	protected int units;
+
+	// Reused for every line we parse, to avoid allocating an object per line
+	private final GCode gcode = new GCode();
 	
 	/**
 	 * Creates the driver object.
@@ -313,10 +360,46 @@ public class GCodeParser {
 		
 		// init our offset variables
 		currentOffset = driver.getOffset(0);
+		coordinateSystem = 0;
 		
 		drillCycle = new DrillCycle();
 	}
 
+	// The parser's modal settings carry over from one line to the next. With
+	// the driver's position and feedrate they are everything a line depends
+	// on, so a parser can be set up to pick up part way through a file.
+
+	/** @return true if positions are absolute, false if they are relative */
+	public boolean isAbsoluteMode() { return absoluteMode; }
+
+	public void setAbsoluteMode(boolean absoluteMode) { this.absoluteMode = absoluteMode; }
+
+	/** @return the last feedrate given, in mm/minute */
+	public double getFeedrate() { return feedrate; }
+
+	public void setFeedrate(double feedrate) { this.feedrate = feedrate; }
+
+	/** @return UNITS_MM or UNITS_INCHES */
+	public int getUnits() { return units; }
+
+	public void setUnits(int units) {
+		this.units = units;
+		curveSection = (units == UNITS_INCHES) ? curveSectionInches : curveSectionMM;
+	}
+
+	/** @return the selected tool, or -1 if none has been */
+	public int getTool() { return tool; }
+
+	public void setTool(int tool) { this.tool = tool; }
+
+	/** @return the coordinate system in use: 0 for the machine's, 1-6 for G54-G59 */
+	public int getCoordinateSystem() { return coordinateSystem; }
+
+	public void setCoordinateSystem(int coordinateSystem) {
+		this.coordinateSystem = coordinateSystem;
+		currentOffset = driver.getOffset(coordinateSystem);
+	}
+
 	/**
 	 * Parses a line of GCode, sets up the variables, etc.
 	 * 
@@ -325,8 +408,14 @@ public class GCodeParser {
 	public boolean parse(String cmd, Queue< DriverCommand > commandQueue) {
 		
 		// First, parse the GCode string into an object we can query.
-		GCode gcode = new GCode(cmd);
+		return parse(gcode.parse(cmd), commandQueue);
+	}
 
+	/**
+	 * Turns a line that has already been parsed into driver commands, so that
+	 * a caller that looks at the line itself doesn't have to parse it twice.
+	 */
+	public boolean parse(GCode gcode, Queue< DriverCommand > commandQueue) {
 		// Now, convert the GCode instruction into a series of driver commands,
 		// that will be executed by execute()
 		
@@ -386,46 +475,46 @@ public class GCodeParser {
 		}
 		
 		// handle unrecognised GCode
-		if(GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M')) == null)
+		if(GCodeEnumeration.getGCode('M', (int)gcode.getCodeValue('M')) == null)
 		{
 			String message = "Unrecognized MCode! M" + (int)gcode.getCodeValue('M');
 			Base.logger.log(Level.SEVERE, message);
 			throw new GCodeException(message);
 		}
 		
-		switch (GCodeEnumeration.getGCode("M", (int)gcode.getCodeValue('M'))) {
+		switch (GCodeEnumeration.getGCode('M', (int)gcode.getCodeValue('M'))) {
 		case M0:
 			// M0 == unconditional halt
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.UnconditionalHalt(gcode.getComment()));
 			break;
 		case M1:
 			// M1 == optional halt
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.OptionalHalt(gcode.getComment()));
 			break;
 		case M2:
 			// M2 == program end
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.ProgramEnd(gcode.getComment()));
 			break;
 		case M30:
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.ProgramRewind(gcode.getComment()));
 			break;
 		// spindle on, CW
 		case M3:
 			commands.add(new replicatorg.drivers.commands.SetSpindleDirection(DriverCommand.AxialDirection.CLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableSpindle());
+			commands.add(ENABLE_SPINDLE);
 			break;
 		// spindle on, CCW
 		case M4:
 			commands.add(new replicatorg.drivers.commands.SetSpindleDirection(DriverCommand.AxialDirection.COUNTERCLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableSpindle());
+			commands.add(ENABLE_SPINDLE);
 			break;
 		// spindle off
 		case M5:
-			commands.add(new replicatorg.drivers.commands.DisableSpindle());
+			commands.add(DISABLE_SPINDLE);
 			break;
 		// tool change.
 		case M6:
@@ -442,16 +531,16 @@ public class GCodeParser {
 			break;
 		// coolant A on (flood coolant)
 		case M7:
-			commands.add(new replicatorg.drivers.commands.EnableFloodCoolant());
+			commands.add(ENABLE_FLOOD_COOLANT);
 			break;
 		// coolant B on (mist coolant)
 		case M8:
-			commands.add(new replicatorg.drivers.commands.EnableMistCoolant());
+			commands.add(ENABLE_MIST_COOLANT);
 			break;
 		// all coolants off
 		case M9:
-			commands.add(new replicatorg.drivers.commands.DisableFloodCoolant());
-			commands.add(new replicatorg.drivers.commands.DisableMistCoolant());
+			commands.add(DISABLE_FLOOD_COOLANT);
+			commands.add(DISABLE_MIST_COOLANT);
 			break;
 		// close clamp
 		case M10:
@@ -472,21 +561,21 @@ public class GCodeParser {
 		// spindle CW and coolant A on
 		case M13:
 			commands.add(new replicatorg.drivers.commands.SetSpindleDirection(DriverCommand.AxialDirection.CLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableSpindle());
-			commands.add(new replicatorg.drivers.commands.EnableFloodCoolant());
+			commands.add(ENABLE_SPINDLE);
+			commands.add(ENABLE_FLOOD_COOLANT);
 			break;
 		// spindle CCW and coolant A on
 		case M14:
 			commands.add(new replicatorg.drivers.commands.SetSpindleDirection(DriverCommand.AxialDirection.COUNTERCLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableSpindle());
-			commands.add(new replicatorg.drivers.commands.EnableFloodCoolant());
+			commands.add(ENABLE_SPINDLE);
+			commands.add(ENABLE_FLOOD_COOLANT);
 			break;
 		// enable drives
 		case M17:
 			{ //these braces provide a new level of scope to avoid name clash on axes
 				EnumSet<AxisId> axes = getAxes(gcode);
 				if (axes.isEmpty()) {
-					commands.add(new replicatorg.drivers.commands.EnableDrives());
+					commands.add(ENABLE_DRIVES);
 				} else {
 					commands.add(new replicatorg.drivers.commands.EnableAxes(axes));
 				}
@@ -497,7 +586,7 @@ public class GCodeParser {
 			{ //these braces provide a new level of scope to avoid name clash on axes
 				EnumSet<AxisId> axes = getAxes(gcode);
 				if (axes.isEmpty()) {
-					commands.add(new replicatorg.drivers.commands.DisableDrives());
+					commands.add(DISABLE_DRIVES);
 				} else {
 					commands.add(new replicatorg.drivers.commands.DisableAxes(axes));
 				}
@@ -505,11 +594,11 @@ public class GCodeParser {
 			break;
 		// open collet
 		case M21:
-			commands.add(new replicatorg.drivers.commands.OpenCollet());
+			commands.add(OPEN_COLLET);
 			break;
 			// open collet
 		case M22:
-			commands.add(new replicatorg.drivers.commands.CloseCollet());
+			commands.add(CLOSE_COLLET);
 			break;
 			// M40-M46 = change gear ratios
 		case M40:
@@ -541,16 +630,16 @@ public class GCodeParser {
 			// turn extruder on, forward
 		case M101:
 			commands.add(new replicatorg.drivers.commands.SetMotorDirection(DriverCommand.AxialDirection.CLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableMotor());
+			commands.add(ENABLE_MOTOR);
 			break;
 		// turn extruder on, reverse
 		case M102:
 			commands.add(new replicatorg.drivers.commands.SetMotorDirection(DriverCommand.AxialDirection.COUNTERCLOCKWISE));
-			commands.add(new replicatorg.drivers.commands.EnableMotor());
+			commands.add(ENABLE_MOTOR);
 			break;
 		// turn extruder off
 		case M103:
-			commands.add(new replicatorg.drivers.commands.DisableMotor());
+			commands.add(DISABLE_MOTOR);
 			break;
 		// custom code for temperature control
 		case M104:
@@ -561,21 +650,21 @@ public class GCodeParser {
 		// TODO: This command seems like a hack, it would be better for the driver to poll temperature rather than
 		//       have the gcode ask for it.
 		case M105:
-			commands.add(new replicatorg.drivers.commands.ReadTemperature());
+			commands.add(READ_TEMPERATURE);
 			break;
 		// turn AutomatedBuildPlatform on
 		case M106:
 			if(driver.hasAutomatedBuildPlatform())
 				commands.add(new replicatorg.drivers.commands.ToggleAutomatedBuildPlatform(true));
 			else
-				commands.add(new replicatorg.drivers.commands.EnableFan());
+				commands.add(ENABLE_FAN);
 			break;
 		// turn AutomatedBuildPlatform off
 		case M107:
 			if(driver.hasAutomatedBuildPlatform())
 				commands.add(new replicatorg.drivers.commands.ToggleAutomatedBuildPlatform(false));
 			else
-				commands.add(new replicatorg.drivers.commands.DisableFan());
+				commands.add(DISABLE_FAN);
 			break;
 		// set max extruder speed, RPM
 		case M108:
@@ -596,15 +685,15 @@ public class GCodeParser {
 			break;
 		// valve open
 		case M126:
-			commands.add(new replicatorg.drivers.commands.OpenValve());
+			commands.add(OPEN_VALVE);
 			break;
 		// valve close
 		case M127:
-			commands.add(new replicatorg.drivers.commands.CloseValve());
+			commands.add(CLOSE_VALVE);
 			break;
 		// where are we?
 		case M128:
-			commands.add(new replicatorg.drivers.commands.GetPosition());
+			commands.add(GET_POSITION);
 			break;
 		// Instruct the machine to store it's current position to EEPROM
 		case M131:
@@ -618,7 +707,7 @@ public class GCodeParser {
 			{ //these braces provide a new level of scope to avoid name clash on axes
 				EnumSet<AxisId> axes = getAxes(gcode);
 				commands.add(new replicatorg.drivers.commands.RecallHomePositions(axes));
-				commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+				commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			}
 			break;
 		//Silently ignore these
@@ -628,7 +717,7 @@ public class GCodeParser {
 		
 		// initialize to default state.
 		case M200:
-			commands.add(new replicatorg.drivers.commands.Initialize());
+			commands.add(INITIALIZE);
 			break;
 		// set servo 1 position
 		case M300:
@@ -644,19 +733,19 @@ public class GCodeParser {
 			break;
 		// Start data capture
 		case M310:
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.StartDataCapture(gcode.getComment()));
 			break;
 			
 		// Stop data capture
 		case M311:
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
-			commands.add(new replicatorg.drivers.commands.StopDataCapture());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
+			commands.add(STOP_DATA_CAPTURE);
 			break;
 
 		// Log a note to the data capture store
 		case M312:
-			commands.add(new replicatorg.drivers.commands.WaitUntilBufferEmpty());
+			commands.add(WAIT_UNTIL_BUFFER_EMPTY);
 			commands.add(new replicatorg.drivers.commands.DataCaptureNote(gcode.getComment()));
 			break;
 		default:
@@ -743,11 +832,11 @@ public class GCodeParser {
 			feedrate = gcode.getCodeValue('F');
 			
 			// TODO: Why do we do this here, and not in individual commands?
-			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
+			setFeedrate(commands, feedrate);
 		}
 		
 
-		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode("G", (int)gcode.getCodeValue('G'));
+		GCodeEnumeration codeEnum = GCodeEnumeration.getGCode('G', (int)gcode.getCodeValue('G'));
 
 		// handle unrecognised GCode
 		if(codeEnum == null)
@@ -763,36 +852,19 @@ public class GCodeParser {
 		case G0:
 			if (gcode.hasCode('F')) {
 				// Allow user to explicitly override G0 feedrate if they so desire.
-				commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
+				setFeedrate(commands, feedrate);
 			} else {
-				// Compute the most rapid possible rate for this move.
-				Point5d diff = driver.getCurrentPosition(false);
-				diff.sub(temp);
-				diff.absolute();
-				double length = diff.length();
-				double selectedFR = Double.MAX_VALUE;
-				Point5d maxFR = driver.getMaximumFeedrates();
-				// Compute the feedrate using assuming maximum feed along each axis, and select
-				// the slowest option.
-				for (int idx = 0; idx < 3; idx++) {
-					double axisMove = diff.get(idx);
-					if (axisMove == 0) { continue; }
-					double candidate = maxFR.get(idx)*length/axisMove;
-					if (candidate < selectedFR) {
-						selectedFR = candidate;
-					}
-				}
-				// Add a sane default for the null move, just in case.
-				if (selectedFR == Double.MAX_VALUE) { selectedFR = maxFR.get(0); }  
-				commands.add(new replicatorg.drivers.commands.SetFeedrate(selectedFR));
+				// Compute the most rapid possible rate for this move, from
+				// wherever the machine is when it gets to it.
+				commands.add(new replicatorg.drivers.commands.SetRapidFeedrate(temp));
 			}				
-			commands.add(new replicatorg.drivers.commands.QueuePoint(temp));
+			queuePoint(commands, temp);
 			break;
 		// Linear Interpolation
 		case G1:
 			// set our target.
-			commands.add(new replicatorg.drivers.commands.SetFeedrate(feedrate));
-			commands.add(new replicatorg.drivers.commands.QueuePoint(temp));
+			setFeedrate(commands, feedrate);
+			queuePoint(commands, temp);
 			break;
 		// Clockwise arc
 		case G2:
@@ -809,9 +881,9 @@ public class GCodeParser {
 
 				// Get the points for the arc
 				if (codeEnum == GCodeEnumeration.G2)
-					commands.addAll(drawArc(center, temp, true));
+					drawArc(center, temp, true, commands);
 				else
-					commands.addAll(drawArc(center, temp, false));
+					drawArc(center, temp, false, commands);
 			}
 			// or we want a radius based one
 			else if (gcode.hasCode('R')) {
@@ -894,31 +966,31 @@ public class GCodeParser {
 			break;
 		// master offset
 		case G53:
-			currentOffset = driver.getOffset(0);
+			setCoordinateSystem(0);
 			break;
 		// fixture offset 1
 		case G54:
-			currentOffset = driver.getOffset(1);
+			setCoordinateSystem(1);
 			break;
 		// fixture offset 2
 		case G55:
-			currentOffset = driver.getOffset(2);
+			setCoordinateSystem(2);
 			break;
 		// fixture offset 3
 		case G56:
-			currentOffset = driver.getOffset(3);
+			setCoordinateSystem(3);
 			break;
 		// fixture offset 4
 		case G57:
-			currentOffset = driver.getOffset(4);
+			setCoordinateSystem(4);
 			break;
 		// fixture offset 5
 		case G58:
-			currentOffset = driver.getOffset(5);
+			setCoordinateSystem(5);
 			break;
 		// fixture offset 6
 		case G59:
-			currentOffset = driver.getOffset(6);
+			setCoordinateSystem(6);
 			break;
 		// Absolute Positioning
 		case G90:
@@ -6,6 +6,23 @@ package replicatorg.app.tools;
  */
 public class IButtonCrc {
 
+	// The CRC of every single byte value, starting from a zero CRC. Since the
+	// CRC is only 8 bits wide, updating it with a byte is a single lookup.
+	private static final byte[] table = new byte[256];
+	static {
+		for (int i = 0; i < 256; i++) {
+			int crc = i;
+			for (int j = 0; j < 8; j++) {
+				if ((crc & 0x01) != 0) {
+					crc = (crc >>> 1) ^ 0x8c;
+				} else {
+					crc = crc >>> 1;
+				}
+			}
+			table[i] = (byte) crc;
+		}
+	}
+
 	private int crc = 0;
 
 	/**
@@ -24,14 +41,18 @@ public class IButtonCrc {
 	 *            a byte of new data to be added to the crc.
 	 */
 	public void update(byte data) {
-		crc = (crc ^ data) & 0xff; // i loathe java's promotion rules
-		for (int i = 0; i < 8; i++) {
-			if ((crc & 0x01) != 0) {
-				crc = ((crc >>> 1) ^ 0x8c) & 0xff;
-			} else {
-				crc = (crc >>> 1) & 0xff;
-			}
+		crc = table[(crc ^ data) & 0xff] & 0xff; // i loathe java's promotion rules
+	}
+
+	/**
+	 * Update the CRC with a run of sequential data.
+	 */
+	public void update(byte[] data, int offset, int length) {
+		int c = crc;
+		for (int i = offset; i < offset + length; i++) {
+			c = table[(c ^ data[i]) & 0xff] & 0xff;
 		}
+		crc = c;
 	}
 
 	/**
@@ -93,6 +93,8 @@ public class InfoPanel extends JFrame {
 			info += "  Number of packets sent over the RS485 interface that were not responded to:" + stats.packetFailureCount + "\n";
 			info += "  Number of packet retries attempted:" + stats.packetRetryCount + "\n";
 			info += "  Number of bytes received over the RS485 interface that were discarded as noise:" + stats.noiseByteCount + "\n";
+			info += "  Number of commands rejected because the command buffer was full:" + stats.rejectedPacketCount + "\n";
+			info += "  Time spent waiting for room in the command buffer:" + stats.bufferWaitMillis + "ms over " + stats.bufferWaitCount + " waits\n";
 		}
 		// EEPROM dump
 		
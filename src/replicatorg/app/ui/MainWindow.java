@@ -126,6 +126,7 @@ import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RealtimeControl;
 import replicatorg.drivers.SDCardCapture;
 import replicatorg.dualstrusion.DualStrusionWorker;
+import replicatorg.machine.JobAnalysis;
 import replicatorg.machine.MachineFactory;
 import replicatorg.machine.MachineInterface;
 import replicatorg.machine.MachineListener;
@@ -138,6 +139,7 @@ import replicatorg.model.Build;
 import replicatorg.model.BuildCode;
 import replicatorg.model.BuildElement;
 import replicatorg.model.BuildModel;
+import replicatorg.model.GCodeSource;
 import replicatorg.model.JEditTextAreaSource;
 import replicatorg.plugin.toolpath.ToolpathGenerator;
 import replicatorg.plugin.toolpath.ToolpathGeneratorFactory;
@@ -1807,10 +1809,29 @@ ToolpathGenerator.GeneratorListener
 		// update the document object that's in use
 		textarea.setDocument(code.document, code.selectionStart,
 				code.selectionStop, code.scrollPosition);
+		textarea.setEditable(!code.isLargeFile() && !building && !simulating);
 
 		textarea.requestFocus(); // get the caret blinking
 	}
 
+	/**
+	 * @return the code to build: what's in the editor, or the file itself if
+	 * it's too large to edit
+	 */
+	GCodeSource getGCodeSource() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		if (code != null && code.isLargeFile()) {
+			return code.getLargeFileSource();
+		}
+		return new JEditTextAreaSource(textarea);
+	}
+
+	// Large files are shown in the editor as a note, which can't be edited.
+	private boolean isCodeEditable() {
+		BuildCode code = (build == null) ? null : build.getCode();
+		return code == null || !code.isLargeFile();
+	}
+
 	public void setModel(BuildModel model) {
 		if (model != null) {
 			getPreviewPanel().setModel(model);
@@ -1982,7 +2003,7 @@ ToolpathGenerator.GeneratorListener
 			buildStart = new Date();
 			
 			//doing this check allows us to recover from pre-build stuff
-			if(machineLoader.getMachine().buildDirect(new JEditTextAreaSource(textarea)) == false)
+			if(machineLoader.getMachine().buildDirect(getGCodeSource()) == false)
 			{
 				buildStart = null;
 				setEditorBusy(false);
@@ -2017,7 +2038,7 @@ ToolpathGenerator.GeneratorListener
 
 			message("Uploading...");
 			buildStart = new Date();
-			machineLoader.getMachine().upload(new JEditTextAreaSource(textarea), path);
+			machineLoader.getMachine().upload(getGCodeSource(), path);
 		}
 	}
 
@@ -2084,6 +2105,8 @@ ToolpathGenerator.GeneratorListener
 			return;
 		if (simulating)
 			return;
+		if (compileThread != null)
+			return;
 		if (!machineLoader.isLoaded()) {
 			String name = Base.preferences.get("machine.name", null);
 			if ( name != null ) {
@@ -2099,15 +2122,13 @@ ToolpathGenerator.GeneratorListener
 		String sourceName = build.getName() + ".s3g";
 		String path = selectOutputFile(sourceName);
 		if (path != null) {
-			// build specific stuff
-			building = true;
-			//buttons.activate(MainButtonPanel.BUILD);
-
+			// The job is compiled on a thread of its own, leaving the machine free.
 			setEditorBusy(true);
 
-			// start our building thread.
+			message("Building to file...");
 			buildStart = new Date();
-			machineLoader.getMachine().buildToFile(new JEditTextAreaSource(textarea), path);
+			compileThread = new CompileThread(path);
+			compileThread.start();
 		}
 	}
 
@@ -2275,7 +2296,7 @@ ToolpathGenerator.GeneratorListener
 		// prepare editor window.
 		setVisible(true);
 		textarea.setEnabled(!isBusy);
-		textarea.setEditable(!isBusy);
+		textarea.setEditable(!isBusy && isCodeEditable());
 		
 		setDualStrusionGUI(isBusy);
 		
@@ -2349,7 +2370,7 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Simulating...");
-			machineLoader.getMachine().simulate(new JEditTextAreaSource(textarea));
+			machineLoader.getMachine().simulate(getGCodeSource());
 			EventQueue.invokeLater(new Runnable() {
 				public void run() {
 					simulationOver();
@@ -2368,6 +2389,41 @@ ToolpathGenerator.GeneratorListener
 		setEditorBusy(false);
 	}
 
+	private CompileThread compileThread = null;
+
+	/**
+	 * Compiles the job to a file, then tells the user how it went.
+	 */
+	class CompileThread extends Thread {
+		final String path;
+
+		public CompileThread(String path) {
+			super("Compile Thread");
+
+			this.path = path;
+		}
+
+		public void run() {
+			boolean compiled = false;
+			try {
+				compiled = machineLoader.getMachine().buildToFile(getGCodeSource(), path);
+			} finally {
+				// Whatever happened, let the user build again.
+				final boolean finished = compiled;
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						compileThread = null;
+						if (finished) {
+							notifyBuildComplete(buildStart, new Date());
+						}
+						message("Done building.");
+						setEditorBusy(false);
+					}
+				});
+			}
+		}
+	}
+
 	class EstimationThread extends Thread {
 		MainWindow editor;
 
@@ -2379,11 +2435,29 @@ ToolpathGenerator.GeneratorListener
 
 		public void run() {
 			message("Estimating...");
-			machineLoader.getMachine().estimate(new JEditTextAreaSource(textarea));
+			machineLoader.getMachine().estimate(getGCodeSource());
 			editor.estimationOver();
 		}
 	}
 
+	/**
+	 * Shows the estimate for the opened job, if it has been estimated for
+	 * this machine before.
+	 */
+	class SavedEstimateThread extends Thread {
+		public SavedEstimateThread() {
+			super("Saved Estimate Thread");
+		}
+
+		public void run() {
+			JobAnalysis analysis = machineLoader.getMachine().getSavedAnalysis(getGCodeSource());
+			if (analysis != null) {
+				message("Estimated build time is: "
+						+ EstimationDriver.getBuildTimeString(analysis.getBuildTime()));
+			}
+		}
+	}
+
 	public void handleDualStrusion()
 	{
 		if(getBuild().getCode() != null && getBuild().getCode().isModified())
@@ -2437,6 +2511,9 @@ ToolpathGenerator.GeneratorListener
 	 *  Disables pre-heating, and sets building values to false/off
 	 */
 	public void doStop() {
+		if (compileThread != null) {
+			compileThread.interrupt();
+		}
 		if (machineLoader.isLoaded()) {
 			machineLoader.getMachine().stopAll();
 		}
@@ -2764,6 +2841,11 @@ ToolpathGenerator.GeneratorListener
 				mruList.update(path);
 				reloadMruMenu();
 			}
+			String lowercasePath = (path == null) ? "" : path.toLowerCase();
+			if (machineLoader.isLoaded() &&
+					(lowercasePath.endsWith(".gcode") || lowercasePath.endsWith(".ngc"))) {
+				new SavedEstimateThread().start();
+			}
 			if (Base.preferences.getBoolean("console.auto_clear",false)) {
 				console.clear();
 			}
@@ -2,6 +2,7 @@ package replicatorg.app.ui;
 
 import java.awt.AWTException;
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.Image;
 import java.awt.MenuItem;
 import java.awt.PopupMenu;
@@ -10,6 +11,7 @@ import java.awt.TrayIcon;
 import java.awt.TrayIcon.MessageType;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
+import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
 
@@ -22,7 +24,7 @@ import replicatorg.app.Base;
  * not available falls back to JOptionPane.
  * 
  * Note - Errors <em>always</em> use a popup, since user probably doesn't want a
- * fleeting notification
+ * fleeting notification. Without a display, notifications are logged instead.
  * 
  * @author sw1nn
  * 
@@ -39,6 +41,9 @@ public interface NotificationHandler {
 		private Factory() { throw new AssertionError(); }
 		
 		public static NotificationHandler getHandler(MainWindow editor, boolean preferSystray) {
+			if (GraphicsEnvironment.isHeadless()) {
+				return new LoggingNotificationHandler();
+			}
 			if (preferSystray && SystemTray.isSupported()) {
 				return new SystemTrayNotifactionHandler(editor);
 			} else {
@@ -89,6 +94,30 @@ public interface NotificationHandler {
 
 	}
 
+	/**
+	 * Logs notifications, for when there's no display to show them on.
+	 */
+	static class LoggingNotificationHandler implements NotificationHandler {
+
+		private LoggingNotificationHandler() {
+		}
+
+		@Override
+		public void showMessage(String title, String message) {
+			Base.logger.info(title + ": " + message);
+		}
+
+		@Override
+		public void showWarning(String title, String message, Throwable e) {
+			Base.logger.log(Level.WARNING, title + ": " + message, e);
+		}
+
+		@Override
+		public void showError(String title, String message, Throwable e) {
+			Base.logger.log(Level.SEVERE, title + ": " + message, e);
+		}
+	}
+
 	static class JOptionPaneNotificationHandler extends BaseNotificationHandler {
 
 		private JOptionPaneNotificationHandler() {
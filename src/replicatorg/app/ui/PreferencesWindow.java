@@ -304,6 +304,35 @@ public class PreferencesWindow extends JFrame implements GuiConstants {
 			});
 		}
 		
+		{
+			JLabel lookaheadLabel = new JLabel("Build lookahead (lines): ");
+			content.add(lookaheadLabel,"split");
+			int value = Base.preferences.getInt("build.lookahead_lines", 0);
+			JFormattedTextField lookaheadField = new JFormattedTextField(Base.getLocalFormat());
+			lookaheadField.setValue(Integer.valueOf(value));
+			content.add(lookaheadField,"wrap 10px, growx");
+			String lookaheadHelp = "<html><small><em>" +
+				"The number of lines of gcode that will be read and parsed ahead of the machine<br>" +
+				"while building, on a separate thread. 0 turns lookahead off." +
+				"</em></small></html>";
+			lookaheadField.setToolTipText(lookaheadHelp);
+			lookaheadLabel.setToolTipText(lookaheadHelp);
+			lookaheadField.setColumns(10);
+			lookaheadField.addPropertyChangeListener(new PropertyChangeListener() {
+				public void propertyChange(PropertyChangeEvent evt) {
+					if (evt.getPropertyName() == "value") {
+						try {
+							Number v = (Number)evt.getNewValue();
+							if (v == null) return;
+							Base.preferences.putInt("build.lookahead_lines", Math.max(0, v.intValue()));
+						} catch (ClassCastException cce) {
+							Base.logger.warning("Unexpected value type: "+evt.getNewValue().getClass().toString());
+						}
+					}
+				}
+			});
+		}
+		
 		{
 			content.add(new JLabel("Debugging level (default INFO):"),"split");
 			content.add(makeDebugLevelDropdown(), "wrap");
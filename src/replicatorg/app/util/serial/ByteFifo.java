@@ -1,39 +1,119 @@
 package replicatorg.app.util.serial;
 
 /**
- * Non-growable FIFO.  In theory we only need enough space for a single
- * packet.  Currently set at 1K.
+ * Growable FIFO for bytes received from a serial port. It starts at 1K, which
+ * is ordinarily enough for a packet or a line, and doubles in size when it
+ * fills, up to a limit. Past the limit, incoming bytes are dropped and counted
+ * rather than silently overwriting unread data.
+ *
+ * Bytes can be moved in and out in bulk, so that a whole chunk from the port
+ * or a whole frame for a reader is handled in one call.
  * @author phooky
  *
  */
 public class ByteFifo {
 	final static int INITIAL_FIFO_SIZE = 1 * 1024; // 1 K
+	final static int MAX_FIFO_SIZE = 1024 * 1024; // 1 M
+	// Returned by dequeueLine when there isn't a whole line; it is empty, so it can be shared.
+	private final static byte[] NO_LINE = new byte[0];
 	private byte[] buffer = new byte[INITIAL_FIFO_SIZE];
-	private int head = 0; 
+	private int head = 0;
 	private int tail = 0;
 	/** the point our last new line search ended or the head if it has moved past that point. */
 	private int newLineSearchHead = head;
+	/** the number of bytes dropped because the fifo was full */
+	private long droppedCount = 0;
 
 	final private int moduloLength(int value) {
 		if (value < 0) value += buffer.length;
 		value = value % buffer.length;
 		return value;
 	}
+
+	// Make room for the given number of bytes, if we are allowed to.
+	private boolean ensureFree(int count) {
+		int needed = size() + count + 1; // one slot is always left empty
+		if (needed <= buffer.length) return true;
+		int newLength = buffer.length;
+		while (newLength < needed && newLength < MAX_FIFO_SIZE) newLength *= 2;
+		if (newLength < needed) return false;
+
+		byte[] newBuffer = new byte[newLength];
+		int size = size();
+		int searched = moduloLength(newLineSearchHead - head);
+		copyOut(newBuffer, 0, size);
+		buffer = newBuffer;
+		head = 0;
+		tail = size;
+		newLineSearchHead = searched;
+		return true;
+	}
+
+	// Copy bytes from the head of the fifo, without removing them.
+	private void copyOut(byte[] dest, int offset, int count) {
+		int first = Math.min(count, buffer.length - head);
+		System.arraycopy(buffer, head, dest, offset, first);
+		System.arraycopy(buffer, 0, dest, offset + first, count - first);
+	}
+
 	public void enqueue(byte b) {
+		if (!ensureFree(1)) {
+			droppedCount++;
+			return;
+		}
 		buffer[tail++] = b;
 		tail = moduloLength(tail);
 	}
-	public void clear() { head = tail = 0; }
+
+	/**
+	 * Add a run of bytes to the fifo.
+	 * @return the number of bytes added; fewer than requested if the fifo
+	 * has reached its maximum size.
+	 */
+	public int enqueue(byte[] bytes, int offset, int length) {
+		if (!ensureFree(length)) {
+			int room = buffer.length - 1 - size();
+			droppedCount += length - room;
+			length = room;
+		}
+		int first = Math.min(length, buffer.length - tail);
+		System.arraycopy(bytes, offset, buffer, tail, first);
+		System.arraycopy(bytes, offset + first, buffer, 0, length - first);
+		tail = moduloLength(tail + length);
+		return length;
+	}
+
+	public void clear() { head = tail = newLineSearchHead = 0; }
 	public int size() { return moduloLength(tail-head); }
 	public byte dequeue() {
 		int nextHead = moduloLength(head+1);
 		if (newLineSearchHead == head) newLineSearchHead = nextHead;
-		
+
 		byte b = buffer[head];
 		head = nextHead;
 		return b;
 	}
-	
+
+	/**
+	 * Remove up to length bytes from the fifo.
+	 * @return the number of bytes removed
+	 */
+	public int dequeue(byte[] dest, int offset, int length) {
+		int count = Math.min(length, size());
+		copyOut(dest, offset, count);
+		if (moduloLength(newLineSearchHead - head) < count) {
+			newLineSearchHead = moduloLength(head + count);
+		}
+		head = moduloLength(head + count);
+		return count;
+	}
+
+	/**
+	 * @return the number of bytes that have been dropped because the fifo
+	 * was full.
+	 */
+	public long getDroppedCount() { return droppedCount; }
+
 	/**
 	 * deques the byte array up to and including the first instance of a newline (\n) 
 	 * byte. If the \n character is not in the fifo a empty byte array is returned.
@@ -58,6 +138,6 @@ public class ByteFifo {
 			i = moduloLength(i+1);
 		}
 		newLineSearchHead = i;
-		return new byte[0];
+		return NO_LINE;
 	}
 }
\ No newline at end of file
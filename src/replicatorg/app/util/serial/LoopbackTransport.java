@@ -0,0 +1,202 @@
+package replicatorg.app.util.serial;
+
+import java.io.IOException;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * One end of an in-memory connection. Whatever is written to one end of a
+ * pair is received by the other, after the time it would take to cross a
+ * link of the given bandwidth and latency. Faults can be injected by
+ * corrupting or dropping every Nth byte.
+ *
+ * Loopback pairs are used to run drivers against emulated machines, and to
+ * measure the host side of a protocol without a machine attached.
+ */
+public class LoopbackTransport implements Transport {
+
+	// A chunk of data on its way across the link.
+	private static class Delivery implements Delayed {
+		final byte[] bytes;
+		final long due;
+		final long sequence;
+
+		Delivery(byte[] bytes, long due, long sequence) {
+			this.bytes = bytes;
+			this.due = due;
+			this.sequence = sequence;
+		}
+
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(due - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		public int compareTo(Delayed o) {
+			Delivery d = (Delivery)o;
+			if (due != d.due) return (due < d.due) ? -1 : 1;
+			return (sequence < d.sequence) ? -1 : ((sequence == d.sequence) ? 0 : 1);
+		}
+	}
+
+	// The shared state of a pair: link timing and faults apply to both directions.
+	private static class Link {
+		long byteNanos = 0;
+		long latencyNanos = 0;
+		int corruptEvery = 0;
+		int dropEvery = 0;
+		long byteCount = 0;
+		// When each direction's link is next free, and the idle time when neither carried data
+		long[] free = new long[2];
+		long lastActive = -1;
+		long idleNanos = 0;
+	}
+
+	private final String name;
+	private final Link link;
+	private final int direction;
+	private LoopbackTransport peer;
+
+	private final DelayQueue<Delivery> incoming = new DelayQueue<Delivery>();
+	private long sequence = 0;
+	private Thread deliveryThread = null;
+
+	private LoopbackTransport(String name, Link link, int direction) {
+		this.name = name;
+		this.link = link;
+		this.direction = direction;
+	}
+
+	/**
+	 * Create a connected pair of loopback transports.
+	 * @param name the name of the connection
+	 * @return the two ends of the connection
+	 */
+	public static LoopbackTransport[] createPair(String name) {
+		Link link = new Link();
+		LoopbackTransport a = new LoopbackTransport(name, link, 0);
+		LoopbackTransport b = new LoopbackTransport(name, link, 1);
+		a.peer = b;
+		b.peer = a;
+		return new LoopbackTransport[] { a, b };
+	}
+
+	/**
+	 * Set the bandwidth of the link, as the time taken to send each byte.
+	 */
+	public void setByteTime(long nanos) {
+		synchronized (link) { link.byteNanos = Math.max(0, nanos); }
+	}
+
+	/**
+	 * Set the bandwidth of the link from a serial baud rate, counting a start
+	 * and stop bit for each byte.
+	 */
+	public void setBaudRate(int baudRate) {
+		setByteTime((baudRate > 0) ? (10L * 1000000000L / baudRate) : 0);
+	}
+
+	/**
+	 * Set the time each byte takes to arrive, in addition to the time it
+	 * takes to send.
+	 */
+	public void setLatency(long nanos) {
+		synchronized (link) { link.latencyNanos = Math.max(0, nanos); }
+	}
+
+	/** Flip the low bit of every Nth byte sent; 0 to disable. */
+	public void setCorruptEvery(int n) {
+		synchronized (link) { link.corruptEvery = Math.max(0, n); }
+	}
+
+	/** Lose every Nth byte sent; 0 to disable. */
+	public void setDropEvery(int n) {
+		synchronized (link) { link.dropEvery = Math.max(0, n); }
+	}
+
+	/**
+	 * @return the time, in nanoseconds, that neither direction of the link
+	 * has been carrying data, since the first write.
+	 */
+	public long getIdleNanos() {
+		synchronized (link) { return link.idleNanos; }
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public synchronized void open(final Receiver receiver) throws SerialException {
+		if (deliveryThread != null) {
+			throw new SerialException("Loopback " + name + " is already open.");
+		}
+		deliveryThread = new Thread("Loopback " + name + " " + direction) {
+			public void run() {
+				try {
+					while (true) {
+						Delivery d = incoming.take();
+						receiver.received(d.bytes, 0, d.bytes.length);
+					}
+				} catch (InterruptedException e) {
+					// Closed; drop anything still in flight.
+				}
+			}
+		};
+		deliveryThread.setDaemon(true);
+		deliveryThread.start();
+	}
+
+	public synchronized void close() {
+		if (deliveryThread != null) {
+			deliveryThread.interrupt();
+			deliveryThread = null;
+		}
+		incoming.clear();
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		if (length == 0) return;
+		byte[] chunk = new byte[length];
+		int count = 0;
+		long due;
+		synchronized (link) {
+			for (int i = 0; i < length; i++) {
+				link.byteCount++;
+				if (link.dropEvery > 0 && (link.byteCount % link.dropEvery) == 0) {
+					continue;
+				}
+				byte b = bytes[offset + i];
+				if (link.corruptEvery > 0 && (link.byteCount % link.corruptEvery) == 0) {
+					b ^= 0x01;
+				}
+				chunk[count++] = b;
+			}
+
+			long now = System.nanoTime();
+			long start = Math.max(now, link.free[direction]);
+			long busy = Math.max(link.free[0], link.free[1]);
+			if (link.lastActive != -1 && now > busy) {
+				link.idleNanos += now - busy;
+			}
+			link.lastActive = now;
+			link.free[direction] = start + length * link.byteNanos;
+			due = link.free[direction] + link.latencyNanos;
+		}
+		if (count < length) {
+			byte[] kept = new byte[count];
+			System.arraycopy(chunk, 0, kept, 0, count);
+			chunk = kept;
+		}
+		if (count > 0) {
+			synchronized (peer.incoming) {
+				peer.incoming.add(new Delivery(chunk, due, peer.sequence++));
+			}
+		}
+	}
+
+	public void pulseRTSLow() {
+		// There's nothing on the other end to reset.
+	}
+}
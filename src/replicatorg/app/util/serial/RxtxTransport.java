@@ -0,0 +1,203 @@
+package replicatorg.app.util.serial;
+
+import gnu.io.CommPortIdentifier;
+import gnu.io.PortInUseException;
+import gnu.io.SerialPort;
+import gnu.io.SerialPortEvent;
+import gnu.io.SerialPortEventListener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.exceptions.UnknownSerialPortException;
+
+/**
+ * A transport over a local serial port, using RXTX.
+ */
+public class RxtxTransport implements Transport, SerialPortEventListener {
+	/**
+	 * We maintain our own set of ports in current use, because RXTX can't be trusted.
+	 * (NB: may be obsoleted at some point on some platforms?)
+	 */
+	private static Set<String> portsInUse = new HashSet<String>();
+
+	// Properties can be passed in for default values.
+	// Otherwise, we default to 9600 N81
+	private SerialPort port;
+	private final String name;
+	private final int rate;
+	private int parity;
+	private int data;
+	private int stop;
+
+	private InputStream input;
+	private OutputStream output;
+
+	private Receiver receiver;
+
+	/** Bytes read from the port, before they are handed on. Only used by the port's event thread. */
+	private final byte[] receiveBuffer = new byte[4096];
+
+	public RxtxTransport(String name, int rate, char parity, int data, float stop) {
+		// Prepare parameters
+		this.name = name;
+		this.rate = rate;
+		this.parity = SerialPort.PARITY_NONE;
+		if (parity == 'E')
+			this.parity = SerialPort.PARITY_EVEN;
+		if (parity == 'O')
+			this.parity = SerialPort.PARITY_ODD;
+		this.data = data;
+		this.stop = (int)stop;
+		if (stop == 1.5f)
+			this.stop = SerialPort.STOPBITS_1_5;
+		if (stop == 2)
+			this.stop = SerialPort.STOPBITS_2;
+	}
+
+	/**
+	 * @return the names of the ports we currently have open.
+	 */
+	static synchronized Set<String> getPortsInUse() {
+		return new HashSet<String>(portsInUse);
+	}
+
+	public String getName() { return name; }
+
+	private CommPortIdentifier findPortIdentifier(String name) {
+		Enumeration<?> portList = CommPortIdentifier.getPortIdentifiers();
+		while (portList.hasMoreElements()) {
+			CommPortIdentifier id = (CommPortIdentifier)portList.nextElement();
+			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL &&
+					id.getName().equals(name)) {
+				return id;
+			}
+		}
+		return null;
+	}
+
+	public void open(Receiver receiver) throws SerialException {
+		this.receiver = receiver;
+		// Attempt to find the port identifier for the designated name
+		CommPortIdentifier portId = findPortIdentifier(name);
+		if (portId == null) {
+			throw new UnknownSerialPortException(name);
+		}
+		// Attempt to open the given port
+		try {
+			port = (SerialPort)portId.open("replicatorG", 2000);
+			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
+
+			input = port.getInputStream();
+			output = port.getOutputStream();
+			port.addEventListener(this);
+			port.notifyOnDataAvailable(true);
+		} catch (PortInUseException e) {
+			throw new SerialException(
+					"Serial port '"
+					+ name
+					+ "' already in use.  Try quiting any programs that may be using it.");
+		} catch (Exception e) {
+			throw new SerialException("Error opening serial port '" + name
+					+ "'.", e);
+		}
+		synchronized (RxtxTransport.class) {
+			portsInUse.add(name);
+		}
+	}
+
+	/**
+	 * Unregister and close the port.
+	 */
+	public synchronized void close() {
+		if (port != null) {
+			port.removeEventListener();
+		}
+
+		if (input != null) {
+			try {
+				input.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			input = null;
+		}
+
+		if (output != null) {
+			try {
+				output.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			output = null;
+		}
+
+		if (port != null) {
+			port.close();
+			port = null;
+			synchronized (RxtxTransport.class) {
+				portsInUse.remove(name);
+			}
+		}
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		OutputStream out = output;
+		if (out == null) {
+			throw new IOException("Port " + name + " is closed");
+		}
+		out.write(bytes, offset, length);
+		out.flush(); // Reconsider?
+	}
+
+	/**
+	 * Briefly pulse the RTS line low.  On most arduino-based boards, this will hard reset the
+	 * device.
+	 */
+	public void pulseRTSLow() {
+		SerialPort p = port;
+		if (p == null) return;
+		p.setDTR(false);
+		p.setRTS(false);
+		try {
+			Thread.sleep(100);
+		} catch (java.lang.InterruptedException ie) {
+		}
+		p.setDTR(true);
+		p.setRTS(true);
+	}
+
+	public void serialEvent(SerialPortEvent event) {
+		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
+		// Read everything that's available in bulk.
+		InputStream in = input;
+		if (in == null) return;
+		try {
+			while (true) {
+				int available = in.available();
+				if (available == 0) {
+					return;
+				}
+
+				int count = in.read(receiveBuffer, 0, Math.min(available, receiveBuffer.length));
+				if (count > 0) {
+					receiver.received(receiveBuffer, 0, count);
+				}
+			}
+		} catch (IOException e) {
+			// Error condition
+			// e.printStackTrace();
+			// An unplugged connection will just flood the console with
+			// stack traces, and give us zero useful information.  Until
+			// we have a plan for how to respond to the user when the
+			// connection drops, we'll just let this silently fail, and set
+			// a fail bit.
+			receiver.lost("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
+		}
+	}
+}
@@ -22,21 +22,14 @@
  Boston, MA  02111-1307  USA
  */
 
+
 package replicatorg.app.util.serial;
 
 import gnu.io.CommPortIdentifier;
-import gnu.io.PortInUseException;
-import gnu.io.SerialPort;
-import gnu.io.SerialPortEvent;
-import gnu.io.SerialPortEventListener;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Set;
 import java.util.Vector;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -45,26 +38,18 @@ import java.util.regex.Pattern;
 
 import replicatorg.app.Base;
 import replicatorg.app.exceptions.SerialException;
-import replicatorg.app.exceptions.UnknownSerialPortException;
-
-public class Serial implements SerialPortEventListener {
-	/**
-	 * We maintain our own set of ports in current use, because RXTX can't be trusted.
-	 * (NB: may be obsoleted at some point on some platforms?)
-	 */
-	private static Set<Serial> portsInUse = new HashSet<Serial>();
 
+/**
+ * A connection to a machine. Serial buffers what the machine sends and
+ * provides the blocking, timed reads drivers rely on; the bytes themselves
+ * are carried by a Transport, which is an RXTX serial port unless another
+ * transport is given.
+ */
+public class Serial implements Transport.Receiver {
 	/** True if the device is connected **/
 	private AtomicBoolean connected = new AtomicBoolean(false);
 	
-	// Properties can be passed in for default values.
-	// Otherwise, we default to 9600 N81
-	private SerialPort port;
-	private String name;
-	private int rate;
-	private int parity;
-	private int data;
-	private int stop;
+	private final Transport transport;
 	
 	/**
 	 * The amount of time we're willing to wait for a read to timeout.  Defaults to 500ms.
@@ -76,9 +61,6 @@ public class Serial implements SerialPortEventListener {
 	public final AtomicReference<SerialFifoEventListener> listener =
 		new AtomicReference<SerialFifoEventListener>();
 	
-	private InputStream input;
-	private OutputStream output;
-	
 	/**
 	 * Scan the port ids for a list of potential serial ports that we can use.
 	 * @return A vector of serial port names and availability information.
@@ -102,8 +84,8 @@ public class Serial implements SerialPortEventListener {
 		// In-use ports may not end up in the enumeration (thanks, RXTX), so
 		// we'll scan for them, and insert them if necessary.  (The app wants
 		// to display in-use ports to reduce user confusion.)
-		for (Serial port: portsInUse) {
-			Name n = new Name(port.getName(),false);
+		for (String portName: RxtxTransport.getPortsInUse()) {
+			Name n = new Name(portName,false);
 			boolean contains = false;
 			for (Name vi : v) { // vector.contains doesn't use comparable.
 				if (vi.compareTo(n) == 0) {
@@ -139,105 +121,35 @@ public class Serial implements SerialPortEventListener {
 	}
 
 	public Serial(String portName, int baudRate, char parity, int dataBits, int stopBits) throws SerialException {
-		init(portName, baudRate, parity, dataBits, stopBits);
+		this(new RxtxTransport(portName, baudRate, parity, dataBits, stopBits));
 	}
 	
 	public Serial(String name) throws SerialException {
-		init(name,38400,'N',8,1);
+		this(name,38400,'N',8,1);
 	}
 	
-	public String getName() { return name; }
-	
-
-	private CommPortIdentifier findPortIdentifier(String name) {
-		Enumeration<?> portList = CommPortIdentifier.getPortIdentifiers();
-		while (portList.hasMoreElements()) {
-			CommPortIdentifier id = (CommPortIdentifier)portList.nextElement();
-			if (id.getPortType() == CommPortIdentifier.PORT_SERIAL && 
-					id.getName().equals(name)) {
-				return id;
-			}
-		}
-		return null;
-	}
-
-	private void init(String name, int rate, char parity, int data, float stop) throws SerialException {
-		// Prepare parameters
-		this.name = name;
-		this.rate = rate;
-		this.parity = SerialPort.PARITY_NONE;
-		if (parity == 'E')
-			this.parity = SerialPort.PARITY_EVEN;
-		if (parity == 'O')
-			this.parity = SerialPort.PARITY_ODD;
-		this.data = data;
-		this.stop = (int)stop;
-		if (stop == 1.5f)
-			this.stop = SerialPort.STOPBITS_1_5;
-		if (stop == 2)
-			this.stop = SerialPort.STOPBITS_2;
-		// Attempt to find the port identifier for the designated name
-		CommPortIdentifier portId = findPortIdentifier(name);
-		if (portId == null) {
-			throw new UnknownSerialPortException(name);
-		}
-		// Attempt to open the given port
-		try {
-			port = (SerialPort)portId.open("replicatorG", 2000);
-			port.setSerialPortParams(this.rate, this.data, this.stop, this.parity);
-
-			input = port.getInputStream();
-			output = port.getOutputStream();
-			port.addEventListener(this);
-			port.notifyOnDataAvailable(true);
-		} catch (PortInUseException e) {
-			throw new SerialException(
-					"Serial port '"
-					+ name
-					+ "' already in use.  Try quiting any programs that may be using it.");
-		} catch (Exception e) {
-			throw new SerialException("Error opening serial port '" + name
-					+ "'.", e);
-		}
-		portsInUse.add(this);
-		
+	/**
+	 * Open a connection over the given transport.
+	 */
+	public Serial(Transport transport) throws SerialException {
+		this.transport = transport;
+		transport.open(this);
 		connected.set(true);
 	}
+	
+	public String getName() { return transport.getName(); }
+	
+	/**
+	 * @return the transport this connection runs over.
+	 */
+	public Transport getTransport() { return transport; }
 
 	/**
 	 * Unregister and close the port.
 	 */
 	public synchronized void dispose() {
 		connected.set(false);
-		
-		if (port != null) {
-			port.removeEventListener();
-		}
-		
-		if (input != null) {
-			try {
-				input.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			input = null;
-		}
-		
-		if (output != null) {
-			try {
-				output.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			output = null;
-		}
-		
-		if (port != null) {
-			port.close();
-			port = null;
-		}
-		
-		portsInUse.remove(this);
+		transport.close();
 	}
 
 	/**
@@ -245,44 +157,34 @@ public class Serial implements SerialPortEventListener {
 	 * device.
 	 */
 	public void pulseRTSLow() {
-		port.setDTR(false);
-		port.setRTS(false);
-		try {
-			Thread.sleep(100);
-		} catch (java.lang.InterruptedException ie) {
-		}
-		port.setDTR(true);
-		port.setRTS(true);
+		transport.pulseRTSLow();
 	}
 	
 	/**
-	 * polls the readFifo for new bytes. If numberOfBytes bytes are received or the 
-	 * wait times out the method returns zero. If a interrupt exception is thrown 
-	 * the method returns -1.
-	 * @param numberOfBytes
-	 * @return
+	 * Wait, holding the readFifo's lock, until the fifo holds numberOfBytes
+	 * bytes or the wait times out. Returns false if the wait was interrupted.
 	 */
-	private int waitForBytes(int numberOfBytes)
+	private boolean waitForBytes(int numberOfBytes, int timeoutMillis)
 	{
 		try {
 			long to = System.currentTimeMillis() + timeoutMillis;
-			while (System.currentTimeMillis() < to && readFifo.size() < numberOfBytes)
+			while (readFifo.size() < numberOfBytes)
 			{
+				long remaining = to - System.currentTimeMillis();
+				if (remaining <= 0) break;
 				/*
-				 * Wait until we timeout or a byte is received (which will notify this 
-				 * method). readFifo notifies for each byte received.
+				 * Wait until we timeout or data is received (which will notify this 
+				 * method). readFifo is notified once for each chunk received.
 				 */
-				synchronized (readFifo) {
-					readFifo.wait(timeoutMillis);
-				}
+				readFifo.wait(remaining);
 			}
 		} catch (InterruptedException e) {
 			// We are most likely amidst a shutdown.  Propagate the interrupt
 			// status.
 			Thread.currentThread().interrupt();
-			return -1;
+			return false;
 		}
-		return 0;
+		return true;
 	}
 	
 	/**
@@ -290,10 +192,10 @@ public class Serial implements SerialPortEventListener {
 	 * @return the byte read, or -1 to indicate a timeout.
 	 */
 	public int read() {
- 		//wait for the fifo to fill
-		if (waitForBytes(1) == -1) return -1;
-		//read the fifo
 		synchronized(readFifo) {
+	 		//wait for the fifo to fill
+			if (!waitForBytes(1, timeoutMillis)) return -1;
+			//read the fifo
 			if (readFifo.size() > 0) {
 				byte b = readFifo.dequeue();
 				return b & 0xff; 
@@ -313,28 +215,45 @@ public class Serial implements SerialPortEventListener {
 	 * @return the number of characters read.
 	 */
  	public int read(byte bytes[]) {
- 		//wait for the fifo to fill
-		if (waitForBytes(bytes.length) == -1) return -1;
-		//read the fifo
+		return read(bytes, 0, bytes.length, timeoutMillis);
+	}
+
+	/**
+	 * Read length bytes, waiting no longer than the connection's timeout.
+	 * @see #read(byte[], int, int, int)
+	 */
+	public int read(byte bytes[], int offset, int length) {
+		return read(bytes, offset, length, timeoutMillis);
+	}
+
+	/**
+	 * Read a run of bytes, such as a whole frame or line, in one go. Blocks
+	 * until length bytes have arrived or the timeout has passed.
+	 * @return the number of bytes read, which is less than length if the read
+	 * timed out, or -1 if the read was interrupted.
+	 */
+	public int read(byte bytes[], int offset, int length, int timeoutMillis) {
 		synchronized(readFifo) {
-			int idx = 0;
-			while (readFifo.size() > 0 && idx < bytes.length) {
-				bytes[idx++] = readFifo.dequeue();
-			}
-			return idx;
+			if (!waitForBytes(length, timeoutMillis)) return -1;
+			return readFifo.dequeue(bytes, offset, length);
 		}
 	}
 
 	public void write(byte bytes[]) {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Write part of a buffer to the output, without copying it.
+	 */
+	public void write(byte bytes[], int offset, int length) {
 		if (!connected.get()) {
 			Base.logger.severe("serial disconnected");
 			return;
 		}
 		
 		try {
-			output.write(bytes);
-			output.flush(); // Reconsider?
-
+			transport.write(bytes, offset, length);
 		} catch (Exception e) { // null pointer or serial port dead
 			Base.logger.severe( "serial error: \n" + e.getMessage() );
 		}
@@ -371,22 +290,20 @@ public class Serial implements SerialPortEventListener {
 			// connection.
 			int maxEats = 255;
 			
+			// Whatever has already been received is simply dropped; only what
+			// is still arriving counts against the limit.
+			readFifo.clear();
 			try {
-				while (input.available() > 0 && maxEats > 0) {
-					input.read();
-					Thread.sleep(1);
-					maxEats--;
+				// Keep discarding for as long as data is still arriving.
+				while (maxEats > 0) {
+					readFifo.wait(1);
+					int arrived = readFifo.size();
+					if (arrived == 0) break;
+					maxEats -= Math.min(maxEats, arrived);
+					readFifo.clear();
 				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				connected.set(false);
 			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
 			}
 			readFifo.clear();
 			readFifo.notifyAll();
@@ -401,44 +318,44 @@ public class Serial implements SerialPortEventListener {
 	 */
 	public boolean isConnected() { return (connected.get()); }
 
-	public void serialEvent(SerialPortEvent event) {
-		if (event.getEventType() != SerialPortEvent.DATA_AVAILABLE) return;
+	/**
+	 * Pass received data to the given listener from now on, starting with
+	 * anything that arrived before it was set; a board that resets when the
+	 * port opens may have announced itself already.
+	 */
+	public void setListener(SerialFifoEventListener l) {
 		synchronized (readFifo) {
-			try {
-				while (true) {
-					synchronized(input)
-					{
-						if (input.available() == 0)
-						{
-							return;
-						}
-					}
+			listener.set(l);
+			if (l != null && readFifo.size() > 0)
+				l.serialByteReceivedEvent(readFifo);
+		}
+	}
 
-					int b = input.read();
-					if (b >= 0) {
-						readFifo.enqueue((byte)b);
-						//notify each byte received
-						readFifo.notifyAll();
-						SerialFifoEventListener l = listener.get();
-						if (l != null)
-							l.serialByteReceivedEvent(readFifo);
-					}
-				}
-			} catch (IOException e) {
-				// Error condition
-				// e.printStackTrace();
-				// An unplugged connection will just flood the console with
-				// stack traces, and give us zero useful information.  Until
-				// we have a plan for how to respond to the user when the
-				// connection drops, we'll just let this silently fail, and set
-				// a fail bit.
-				if (connected.get()) {
-					Base.logger.severe("Serial IO exception:" + event.toString() + ". Printer communication may be disrupted.");
-//					connected.set(false);
-					// TODO: How do we tell rxtx that we're done using this port?
-					dispose();
-				}
+	/**
+	 * Queue bytes from the transport for readers.
+	 */
+	public void received(byte[] bytes, int offset, int length) {
+		synchronized (readFifo) {
+			int queued = readFifo.enqueue(bytes, offset, length);
+			if (queued < length) {
+				Base.logger.severe("Serial receive buffer full; dropped " + (length - queued) + " bytes");
 			}
+			// notify once per chunk received
+			readFifo.notifyAll();
+			SerialFifoEventListener l = listener.get();
+			if (l != null)
+				l.serialByteReceivedEvent(readFifo);
+		}
+	}
+
+	public void lost(String reason) {
+		// An unplugged connection will just flood the console with
+		// stack traces, and give us zero useful information.  Until
+		// we have a plan for how to respond to the user when the
+		// connection drops, we'll just log it and close the transport.
+		if (connected.get()) {
+			Base.logger.severe(reason);
+			dispose();
 		}
 	}
 }
@@ -0,0 +1,119 @@
+package replicatorg.app.util.serial;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A transport over a raw TCP connection, for machines behind a network
+ * serial bridge such as ser2net. The bridge passes bytes through untouched,
+ * so the machine sees exactly what it would see over USB.
+ *
+ * Nagle's algorithm is turned off, so that each packet or line goes out as
+ * soon as it is written instead of waiting to be coalesced with the next
+ * one; the protocols we speak are request/response, and would otherwise wait
+ * on the delayed ack for every command.
+ */
+public class TcpTransport implements Transport {
+	private final String host;
+	private final int port;
+	private final int connectTimeoutMillis;
+
+	private SocketChannel channel;
+	private Thread readThread;
+
+	// Reused for every write; only touched while holding the write lock.
+	private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(4096);
+	private final Object writeLock = new Object();
+
+	public TcpTransport(String host, int port, int connectTimeoutMillis) {
+		this.host = host;
+		this.port = port;
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public String getName() {
+		return "tcp://" + host + ":" + port;
+	}
+
+	public synchronized void open(final Receiver receiver) throws SerialException {
+		try {
+			channel = SocketChannel.open();
+			channel.socket().setTcpNoDelay(true);
+			channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+		} catch (IOException e) {
+			close();
+			throw new SerialException("Error connecting to " + getName() + ".", e);
+		}
+
+		final SocketChannel c = channel;
+		readThread = new Thread("TCP transport " + host + ":" + port) {
+			public void run() {
+				ByteBuffer readBuffer = ByteBuffer.allocateDirect(4096);
+				byte[] chunk = new byte[readBuffer.capacity()];
+				try {
+					while (true) {
+						readBuffer.clear();
+						int count = c.read(readBuffer);
+						if (count < 0) {
+							receiver.lost("Connection to " + getName() + " closed by remote end.");
+							return;
+						}
+						readBuffer.flip();
+						readBuffer.get(chunk, 0, count);
+						receiver.received(chunk, 0, count);
+					}
+				} catch (IOException e) {
+					// Closing the channel is how we stop this thread, so
+					// that's not worth reporting.
+					if (c.isOpen()) {
+						receiver.lost("Connection to " + getName() + " failed: " + e.getMessage());
+					}
+				}
+			}
+		};
+		readThread.setDaemon(true);
+		readThread.start();
+	}
+
+	public synchronized void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				Base.logger.fine("Error closing " + getName() + ": " + e.getMessage());
+			}
+			channel = null;
+		}
+		readThread = null;
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		SocketChannel c = channel;
+		if (c == null) {
+			throw new IOException(getName() + " is closed");
+		}
+		synchronized (writeLock) {
+			while (length > 0) {
+				int count = Math.min(length, writeBuffer.capacity());
+				writeBuffer.clear();
+				writeBuffer.put(bytes, offset, count);
+				writeBuffer.flip();
+				while (writeBuffer.hasRemaining()) {
+					c.write(writeBuffer);
+				}
+				offset += count;
+				length -= count;
+			}
+		}
+	}
+
+	public void pulseRTSLow() {
+		// A raw TCP bridge has no way to reach the RTS line.
+		Base.logger.fine("Can't pulse RTS over " + getName());
+	}
+}
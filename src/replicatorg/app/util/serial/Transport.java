@@ -0,0 +1,59 @@
+package replicatorg.app.util.serial;
+
+import java.io.IOException;
+
+import replicatorg.app.exceptions.SerialException;
+
+/**
+ * A byte pipe to a machine. Serial does the buffering, timeouts and line
+ * handling that drivers rely on, on top of a transport that only has to move
+ * bytes: an RXTX serial port, a TCP connection to a serial bridge, or an
+ * in-memory loopback.
+ *
+ * Received data is pushed to the transport's receiver as it arrives, in
+ * chunks, from whatever thread the transport reads on.
+ */
+public interface Transport {
+
+	/**
+	 * Takes the data a transport receives.
+	 */
+	public interface Receiver {
+		/**
+		 * Called with each chunk of data received.
+		 */
+		public void received(byte[] bytes, int offset, int length);
+
+		/**
+		 * Called if the connection is lost.
+		 */
+		public void lost(String reason);
+	}
+
+	/**
+	 * Open the connection, and start handing received data to the receiver.
+	 */
+	public void open(Receiver receiver) throws SerialException;
+
+	/**
+	 * Close the connection. Closing a closed transport does nothing.
+	 */
+	public void close();
+
+	/**
+	 * Write a run of bytes. This may return before the bytes have reached the
+	 * machine.
+	 */
+	public void write(byte[] bytes, int offset, int length) throws IOException;
+
+	/**
+	 * Briefly pulse the RTS line low, to reset the machine. Transports
+	 * without an RTS line ignore this.
+	 */
+	public void pulseRTSLow();
+
+	/**
+	 * @return a name for the connection, such as the port name.
+	 */
+	public String getName();
+}
@@ -0,0 +1,90 @@
+package replicatorg.app.util.serial;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.tools.XML;
+
+/**
+ * Creates the transport a driver's connection runs over, from the optional
+ * transport node in the driver configuration:
+ * <pre>
+ * &lt;transport type="tcp" host="192.168.1.20" port="2000" timeout="5000"/&gt;
+ * </pre>
+ * The type is "rxtx" (the default, a local serial port) or "tcp" (a raw
+ * connection to a network serial bridge; timeout is the connect timeout in
+ * milliseconds).
+ *
+ * Loopback transports aren't made here. One end of a loopback pair is only
+ * any use to whoever holds the other end, so pairs are made in code, with
+ * LoopbackTransport.createPair: the emulators hold the far end of theirs,
+ * and are chosen with the driver's emulator node instead.
+ */
+public class TransportFactory {
+	/** Default connect timeout for network transports, in milliseconds */
+	public static final int DEFAULT_TIMEOUT = 5000;
+
+	/**
+	 * @return true if the described transport connects to a fixed address,
+	 * rather than a serial port chosen by the user.
+	 */
+	public static boolean hasFixedAddress(Node transportXml) {
+		return transportXml != null && "tcp".equals(getType(transportXml));
+	}
+
+	/**
+	 * @return the name the described transport will have once created.
+	 */
+	public static String getName(Node transportXml, String portName) {
+		if (hasFixedAddress(transportXml)) {
+			return createTcp(transportXml).getName();
+		}
+		return portName;
+	}
+
+	/**
+	 * Create a transport.
+	 * @param transportXml the transport node, or null for a serial port
+	 * @param portName the serial port to use, if the transport is a serial port
+	 */
+	public static Transport create(Node transportXml, String portName, int rate,
+			char parity, int dataBits, int stopBits) throws SerialException {
+		String type = (transportXml == null) ? "rxtx" : getType(transportXml);
+		if ("rxtx".equals(type)) {
+			return new RxtxTransport(portName, rate, parity, dataBits, stopBits);
+		} else if ("tcp".equals(type)) {
+			if (XML.getAttributeValue(transportXml, "host") == null ||
+					XML.getAttributeValue(transportXml, "port") == null) {
+				throw new SerialException("A tcp transport needs a host and a port.");
+			}
+			return createTcp(transportXml);
+		} else if ("loopback".equals(type)) {
+			throw new SerialException("A loopback transport needs something on its other end; "
+					+ "use an emulator node to talk to an emulated machine.");
+		}
+		throw new SerialException("Unknown transport type '" + type + "'.");
+	}
+
+	private static String getType(Node transportXml) {
+		String type = XML.getAttributeValue(transportXml, "type");
+		return (type == null) ? "rxtx" : type.trim().toLowerCase();
+	}
+
+	private static TcpTransport createTcp(Node transportXml) {
+		String host = XML.getAttributeValue(transportXml, "host");
+		int port = parseInt(XML.getAttributeValue(transportXml, "port"), 0);
+		int timeout = parseInt(XML.getAttributeValue(transportXml, "timeout"), DEFAULT_TIMEOUT);
+		return new TcpTransport((host == null) ? "localhost" : host.trim(), port, timeout);
+	}
+
+	private static int parseInt(String value, int defaultValue) {
+		if (value == null) return defaultValue;
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException nfe) {
+			Base.logger.warning("Invalid transport setting: " + value);
+			return defaultValue;
+		}
+	}
+}
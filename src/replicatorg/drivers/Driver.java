@@ -192,6 +192,19 @@ public interface Driver {
 	 */
 	public void queuePoint(Point5d p) throws RetryException;
 
+	/**
+	 * Queue a run of points, as though each were passed to queuePoint() in
+	 * turn. Drivers that can send several moves more cheaply than one at a
+	 * time should override this.
+	 * @param xyzab the points, in mm, five coordinates to a point
+	 * @param first the index of the first point to queue
+	 * @param count the number of points to queue
+	 * @return the number of points queued; fewer than count if the driver
+	 * asked for a retry part way through
+	 * @throws RetryException if not even the first point could be queued
+	 */
+	public int queuePoints(double[] xyzab, int first, int count) throws RetryException;
+
 	public Point3d getOffset(int i);
 
 	public void setOffsetX(int i, double j);
@@ -235,9 +235,14 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 
 	protected final AtomicReference<Point5d> currentPosition =
 		new AtomicReference<Point5d>(null);
+
+	// What currentPosition refers to once a position has been set. Points
+	// given to us are copied into it, so that a caller changing its point
+	// afterwards can't move us, and a move doesn't have to make a new one.
+	private final Point5d position = new Point5d();
 	
 	public void setCurrentPosition(Point5d p) throws RetryException {
-		currentPosition.set(p);
+		setInternalPosition(p);
 	}
 
 	/**
@@ -273,6 +278,19 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	 * Side effects: currentPosition will be updated with the current position if the machine position is successfully polled.
 	 */
 	public Point5d getCurrentPosition(boolean forceUpdate) {
+		return copyCurrentPosition(forceUpdate, new Point5d());
+	}
+
+	/**
+	 * Copy the current machine position into the given point, as
+	 * getCurrentPosition(false) would return it.
+	 * @return into
+	 */
+	protected Point5d copyCurrentPosition(Point5d into) {
+		return copyCurrentPosition(false, into);
+	}
+
+	private Point5d copyCurrentPosition(boolean forceUpdate, Point5d into) {
 		synchronized(currentPosition)
 		{
 			// If we are lost, or an explicit update has been requested, poll the machine for it's state. 
@@ -288,11 +306,15 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 			}
 			
 			// If we are still lost, just return a zero position.
-			if (positionLost()) {
-				return new Point5d();
+			Point5d current = currentPosition.get();
+			if (current == null) {
+				for (int i = 0; i < 5; i++) {
+					into.set(i, 0d);
+				}
+			} else {
+				into.set(current);
 			}
-			
-			return new Point5d(currentPosition.get());
+			return into;
 		}
 	}
 
@@ -309,8 +331,37 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 		setInternalPosition(p);
 	}
 
-	protected void setInternalPosition(Point5d position) {
-		currentPosition.set(position);
+	// Each point of a run is passed to queuePoint() in this, which drivers
+	// copy rather than keep.
+	private final Point5d batchPoint = new Point5d();
+
+	public int queuePoints(double[] xyzab, int first, int count) throws RetryException {
+		for (int i = 0; i < count; i++) {
+			int p = (first + i) * 5;
+			for (int axis = 0; axis < 5; axis++) {
+				batchPoint.set(axis, xyzab[p + axis]);
+			}
+			try {
+				queuePoint(batchPoint);
+			} catch (RetryException e) {
+				if (i == 0) {
+					throw e;
+				}
+				return i;
+			}
+		}
+		return count;
+	}
+
+	protected void setInternalPosition(Point5d p) {
+		synchronized(currentPosition) {
+			if (p == null) {
+				currentPosition.set(null);
+			} else {
+				position.set(p);
+				currentPosition.set(position);
+			}
+		}
 	}
 	
 	/**
@@ -370,10 +421,18 @@ public class DriverBaseImplementation implements Driver, DriverQueryInterface{
 	}
 
 	public Point5d getDelta(Point5d p) {
-		Point5d delta = new Point5d();
-		Point5d current = getCurrentPosition(false);
+		return getDelta(p, new Point5d());
+	}
+
+	/**
+	 * Work out the distance to p along each axis, as getDelta(p) does,
+	 * writing it into delta.
+	 * @return delta
+	 */
+	protected Point5d getDelta(Point5d p, Point5d delta) {
+		copyCurrentPosition(delta);
 
-		delta.sub(p, current); // delta = p - current
+		delta.sub(p, delta); // delta = p - current
 		delta.absolute(); // absolute value of each component
 
 		return delta;
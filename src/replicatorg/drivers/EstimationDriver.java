@@ -25,11 +25,12 @@ package replicatorg.drivers;
 
 import java.awt.geom.Rectangle2D;
 
-import javax.vecmath.Point3d;
-
 import replicatorg.util.Point5d;
 
 public class EstimationDriver extends DriverBaseImplementation {
+	/** How many moves ahead the machine is assumed to plan its acceleration */
+	public static final int LOOKAHEAD = 16;
+
 	// build time in milliseconds
 	private double buildTime = 0.0;
 
@@ -37,6 +38,19 @@ public class EstimationDriver extends DriverBaseImplementation {
 	private double moveLength = 0.0;
 	
 	private Rectangle2D.Double bounds = new Rectangle2D.Double();
+
+	// Moves whose speeds at either end aren't settled yet, oldest first, in a
+	// ring of LOOKAHEAD entries. Each has its length (mm), cruising speed
+	// (mm/s), acceleration (mm/s/s), the fastest it may be entered at, the
+	// speed it is planned to be entered at, and its direction.
+	private final double[] distance = new double[LOOKAHEAD];
+	private final double[] nominalSpeed = new double[LOOKAHEAD];
+	private final double[] acceleration = new double[LOOKAHEAD];
+	private final double[] maxEntrySpeed = new double[LOOKAHEAD];
+	private final double[] entrySpeed = new double[LOOKAHEAD];
+	private final double[][] unit = new double[LOOKAHEAD][3];
+	private int first = 0;
+	private int planned = 0;
 	
 	public EstimationDriver() {
 		super();
@@ -47,7 +61,17 @@ public class EstimationDriver extends DriverBaseImplementation {
 	public Rectangle2D.Double getBounds() { return bounds; }
 	
 	public void delay(long millis) {
-		buildTime += (double) millis / 1000;
+		// The machine finishes its moves before it waits.
+		finishMoves();
+		buildTime += (double) millis;
+	}
+
+	// Estimating doesn't switch the machine's tool, which other estimates may
+	// be looking at.
+	public void requestToolChange(int toolIndex, int timeout) {
+	}
+
+	public void selectTool(int toolIndex) {
 	}
 
 	protected Point5d reconcilePosition() {
@@ -55,37 +79,146 @@ public class EstimationDriver extends DriverBaseImplementation {
 		return new Point5d();
 	}
 
+	// Scratch points for queuePoint, so that estimating doesn't allocate a
+	// point per move.
+	private final Point5d moveCurrent = new Point5d();
+	private final Point5d moveDelta = new Point5d();
+
 	/**
 	 * Queue the given point.
 	 * @param p The point, in mm.
 	 * @throws RetryException 
 	 */
 	public void queuePoint(Point5d p) throws RetryException {
-		Point5d delta = getDelta(p);
+		Point5d current = copyCurrentPosition(moveCurrent);
+		Point5d delta = getDelta(p, moveDelta);
 
 		// add to the total length
-		moveLength = delta.get3D().distance(new Point3d());
+		moveLength = delta.length3D();
 
 		// Calculate the feedrate. This is the speed that the toolhead will
 		// be traveling at.
 		double feedrate = getSafeFeedrate(delta);
 
-		// mostly for estimation driver.
-		
-		double millis = moveLength / feedrate * 60000.0;
-
 		bounds.add(p.x(),p.y());
 		
-		// add it in!
-		if (millis > 0) {
-			buildTime = buildTime + millis;
-//			System.out.println(moveLength + "mm at " + feedrate + " takes " + Math.round(millis) + " millis (" + buildTime + "	total).");
+		if (moveLength > 0) {
+			Point5d accel = machine.getAccelerations();
+			double a = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < 3; i++) {
+				double u = delta.get(i) / moveLength;
+				if (u > 1e-9 && accel.get(i) > 0) {
+					a = Math.min(a, accel.get(i) / u);
+				}
+			}
+			if (Double.isInfinite(a)) {
+				// No limit on how fast the machine can get up to speed
+				finishMoves();
+				buildTime += moveLength / feedrate * 60000.0;
+			} else {
+				plan(current, p, feedrate / 60.0, a);
+			}
 		}
 		
 		setInternalPosition(p);
 	}
 
+	// Add a move to the look-ahead, settling the oldest move if it's full.
+	private void plan(Point5d from, Point5d to, double speed, double a) {
+		if (planned == LOOKAHEAD) {
+			settleOldest();
+		}
+		int b = (first + planned) % LOOKAHEAD;
+		distance[b] = moveLength;
+		nominalSpeed[b] = speed;
+		acceleration[b] = a;
+		for (int i = 0; i < 3; i++) {
+			unit[b][i] = (to.get(i) - from.get(i)) / moveLength;
+		}
+		maxEntrySpeed[b] = 0;
+		if (planned > 0) {
+			// The fastest the corner from the last move can be taken at, so
+			// that the path stays within the junction deviation of the corner.
+			int prev = (b + LOOKAHEAD - 1) % LOOKAHEAD;
+			double cosTheta = 0;
+			for (int i = 0; i < 3; i++) {
+				cosTheta -= unit[prev][i] * unit[b][i];
+			}
+			double limit = Math.min(nominalSpeed[prev], speed);
+			double junctionA = Math.min(acceleration[prev], a);
+			if (cosTheta < -0.999999) {
+				maxEntrySpeed[b] = limit;
+			} else if (cosTheta <= 0.999999) {
+				double sinHalfTheta = Math.sqrt(0.5 * (1.0 - cosTheta));
+				maxEntrySpeed[b] = Math.min(limit, Math.sqrt(junctionA
+						* machine.getJunctionDeviation() * sinHalfTheta / (1.0 - sinHalfTheta)));
+			}
+		}
+		planned++;
+		replan();
+	}
+
+	// Work out entry speeds: backwards from a stop at the end of the
+	// look-ahead, so every move can slow down in time, then forwards from the
+	// oldest move's entry speed, so every move can get up to speed.
+	private void replan() {
+		double exit = 0;
+		for (int j = planned - 1; j > 0; j--) {
+			int b = (first + j) % LOOKAHEAD;
+			entrySpeed[b] = Math.min(maxEntrySpeed[b],
+					Math.sqrt(exit * exit + 2 * acceleration[b] * distance[b]));
+			exit = entrySpeed[b];
+		}
+		for (int j = 1; j < planned; j++) {
+			int prev = (first + j - 1) % LOOKAHEAD;
+			int b = (first + j) % LOOKAHEAD;
+			double reachable = Math.sqrt(entrySpeed[prev] * entrySpeed[prev]
+					+ 2 * acceleration[prev] * distance[prev]);
+			entrySpeed[b] = Math.min(entrySpeed[b], reachable);
+		}
+	}
+
+	// Count the time of the oldest move, which runs from its entry speed to
+	// the entry speed of the next.
+	private void settleOldest() {
+		double exit = (planned > 1) ? entrySpeed[(first + 1) % LOOKAHEAD] : 0;
+		buildTime += 1000.0 * moveSeconds(distance[first], entrySpeed[first], exit,
+				nominalSpeed[first], acceleration[first]);
+		first = (first + 1) % LOOKAHEAD;
+		planned--;
+	}
+
+	// Settle every planned move, the last one ending at a stop.
+	private void finishMoves() {
+		while (planned > 0) {
+			settleOldest();
+		}
+	}
+
+	/**
+	 * @return the time, in seconds, to cover a distance that starts and ends
+	 * at the given speeds, speeding up and slowing down at the given
+	 * acceleration and going no faster than the given speed in between.
+	 */
+	static double moveSeconds(double distance, double entry, double exit, double speed, double acceleration) {
+		double accelDist = Math.max(0, (speed * speed - entry * entry) / (2 * acceleration));
+		double decelDist = Math.max(0, (speed * speed - exit * exit) / (2 * acceleration));
+		if (accelDist + decelDist <= distance) {
+			return (speed - entry) / acceleration + (speed - exit) / acceleration
+					+ (distance - accelDist - decelDist) / speed;
+		}
+		// Too short to get up to speed
+		double peak = Math.sqrt((2 * acceleration * distance + entry * entry + exit * exit) / 2);
+		peak = Math.max(peak, Math.max(entry, exit));
+		return (peak - entry) / acceleration + (peak - exit) / acceleration;
+	}
+
+	/**
+	 * @return the estimated build time, in milliseconds. Moves still being
+	 * planned are counted as ending at a stop.
+	 */
 	public double getBuildTime() {
+		finishMoves();
 		return buildTime;
 	}
 
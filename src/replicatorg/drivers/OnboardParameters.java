@@ -131,6 +131,11 @@ public interface OnboardParameters {
 		public int packetFailureCount;
 		public int packetRetryCount;
 		public int noiseByteCount;
+		// Host side: commands the machine had no room for, and how long we
+		// waited for it to make room.
+		public long rejectedPacketCount;
+		public long bufferWaitCount;
+		public long bufferWaitMillis;
 	}
 	
 	CommunicationStatistics getCommunicationStatistics();
@@ -13,6 +13,8 @@ import replicatorg.app.exceptions.SerialException;
 import replicatorg.app.tools.XML;
 import replicatorg.app.util.serial.Serial;
 import replicatorg.app.util.serial.SerialFifoEventListener;
+import replicatorg.app.util.serial.Transport;
+import replicatorg.app.util.serial.TransportFactory;
 
 /**
  * @author phooky
@@ -29,6 +31,12 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
     private int stopbits;
 
     private boolean explicit = false;
+    
+    // The transport to connect over, if not the serial port
+    private Node transportXml = null;
+
+    // The emulator to talk to in place of the machine, if any
+    private Node emulatorXml = null;
 	
     /** Lock for multi-threaded access to this driver's serial port. */
 	private final ReentrantReadWriteLock serialLock = new ReentrantReadWriteLock();
@@ -64,18 +72,23 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
                 databits = Integer.parseInt(XML.getChildNodeValue(xml, "databits"));
         if (XML.hasChildNode(xml, "stopbits"))
                 stopbits = Integer.parseInt(XML.getChildNodeValue(xml, "stopbits"));
+        // Optional: connect over something other than a local serial port.
+        transportXml = XML.getChildNodeByName(xml, "transport");
+        if (TransportFactory.hasFixedAddress(transportXml)) {
+                portName = TransportFactory.getName(transportXml, portName);
+                explicit = true;
+        }
+        // Optional: talk to an in-process emulator instead of the machine.
+        emulatorXml = XML.getChildNodeByName(xml, "emulator");
 	}
 	
 	public synchronized void openSerial(String portName) {
-		// Grab a lock
-		serialLock.writeLock().lock();
-		
 		// Now, try to create the new serial device
 		Serial newConnection = null;
 		try {
 
 			Base.logger.info("Connecting to machine using serial port: " + portName);
-			newConnection = new Serial(portName, rate, parity, databits, stopbits);
+			newConnection = createSerial(portName);
 		} catch (SerialException e) {
 			String msg = e.getMessage();
 			Base.logger.severe("Connection error: " + msg);
@@ -83,25 +96,60 @@ public class SerialDriver extends DriverBaseImplementation implements UsesSerial
 		}
 
 		if (newConnection != null) {
-			// TODO: Do we need to explicitly dispose this?
-			if (this.serial != null) {
-				synchronized(this.serial) {
-					this.serial.dispose();
-					this.serial = null;
-				}
-			}
-			
-			// Finally, set the new serial port
-			setInitialized(false);
-			this.serial = newConnection;
-
-			// asynch option: the serial port forwards all received data in FIFO format via 
-			// serialByteReceivedEvent if the driver implements SerialFifoEventListener.
-			if (this instanceof SerialFifoEventListener && serial != null) {
-				serial.listener.set( (SerialFifoEventListener) this );
+			openSerial(newConnection);
+		}
+	}
+
+	/**
+	 * Create the connection to talk to the machine over. This is the
+	 * driver's emulator if the configuration has an emulator node, and
+	 * otherwise the configured transport, which is the named serial port
+	 * unless the configuration says otherwise.
+	 */
+	protected Serial createSerial(String portName) throws SerialException {
+		if (emulatorXml != null) {
+			return new Serial(createEmulator(emulatorXml));
+		}
+		return new Serial(TransportFactory.create(transportXml, portName, rate, parity, databits, stopbits));
+	}
+
+	/**
+	 * Create an in-process emulator of the machine, for a configuration with
+	 * an emulator node. Each protocol family overrides this with its own
+	 * emulator; drivers without one refuse.
+	 * @param xml the emulator node
+	 */
+	protected Transport createEmulator(Node xml) throws SerialException {
+		throw new SerialException(getDriverName() + " has no emulator");
+	}
+
+	/**
+	 * Talk to the machine over the given connection, replacing any connection
+	 * we already have.
+	 */
+	public synchronized void openSerial(Serial newConnection) {
+		// Grab a lock
+		serialLock.writeLock().lock();
+
+		// TODO: Do we need to explicitly dispose this?
+		if (this.serial != null) {
+			synchronized(this.serial) {
+				this.serial.dispose();
+				this.serial = null;
 			}
 		}
+
+		// Finally, set the new serial port
+		setInitialized(false);
+		this.serial = newConnection;
+
 		serialLock.writeLock().unlock();
+
+		// asynch option: the serial port forwards all received data in FIFO format via 
+		// serialByteReceivedEvent if the driver implements SerialFifoEventListener.
+		if (this instanceof SerialFifoEventListener && newConnection != null) {
+			newConnection.setListener( (SerialFifoEventListener) this );
+		}
 	}
 	
 	// TODO: Move all of this to a new object that causes this when it is destroyed.
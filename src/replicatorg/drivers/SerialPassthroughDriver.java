@@ -35,6 +35,8 @@ import java.util.Queue;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.util.serial.Transport;
+import replicatorg.drivers.reprap.RepRapEmulator;
 import replicatorg.machine.model.AxisId;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.util.Point5d;
@@ -80,6 +82,11 @@ public class SerialPassthroughDriver extends SerialDriver {
 		super.loadXML(xml);
 	}
 
+	@Override
+	protected Transport createEmulator(Node xml) {
+		return new RepRapEmulator(xml, getRate());
+	}
+
 	public void initialize() {
 		// declare our serial guy.
 		if (serial == null) {
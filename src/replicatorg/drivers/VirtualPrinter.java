@@ -200,6 +200,15 @@ public class VirtualPrinter implements Driver, DriverQueryInterface {
 		currentPosition = p;
 	}
 
+	@Override
+	public int queuePoints(double[] xyzab, int first, int count) throws RetryException {
+		if (count > 0) {
+			int p = (first + count - 1) * 5;
+			currentPosition = new Point5d(xyzab[p], xyzab[p + 1], xyzab[p + 2], xyzab[p + 3], xyzab[p + 4]);
+		}
+		return count;
+	}
+
 	@Override
 	public Point3d getOffset(int i) {
 		return currentOffset[i];
@@ -0,0 +1,272 @@
+package replicatorg.drivers.commands;
+
+import java.util.AbstractQueue;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.util.Point5d;
+
+/**
+ * A queue of driver commands that keeps moves and feedrates in arrays of
+ * doubles, instead of as a QueuePoint or SetFeedrate object each. Any other
+ * command is kept as it is.
+ *
+ * Nearly every line of a build is a move, so a batch that the parser fills
+ * and the builder empties again, line after line, saves making two commands
+ * and two list nodes for each of them. Runs of moves are handed to the
+ * driver in one call, with Driver.queuePoints().
+ *
+ * Anything that reads the batch as an ordinary Queue gets QueuePoint and
+ * SetFeedrate objects made for it as it goes.
+ *
+ * Not safe to use from more than one thread at a time.
+ */
+public class CommandBatch extends AbstractQueue<DriverCommand> {
+	private static final byte POINT = 0;
+	private static final byte FEEDRATE = 1;
+	private static final byte COMMAND = 2;
+
+	private static final int INITIAL_SIZE = 16;
+
+	// The kind of each entry, in order
+	private byte[] kinds = new byte[INITIAL_SIZE];
+	// Where each entry is kept: the index of its point, feedrate or command
+	private int[] index = new int[INITIAL_SIZE];
+	// The entries still to run are those from head up to tail.
+	private int head = 0;
+	private int tail = 0;
+
+	// Five coordinates to a point, in mm. The points of consecutive entries
+	// are next to each other, so that a run of them can be sent as is.
+	private double[] points = new double[INITIAL_SIZE * 5];
+	private int pointCount = 0;
+	private double[] feedrates = new double[INITIAL_SIZE];
+	private int feedrateCount = 0;
+	private DriverCommand[] commands = new DriverCommand[INITIAL_SIZE];
+	private int commandCount = 0;
+
+	/** Add a move to the given point, in mm. */
+	public void addPoint(double x, double y, double z, double a, double b) {
+		if ((pointCount + 1) * 5 > points.length) {
+			double[] p = new double[points.length * 2];
+			System.arraycopy(points, 0, p, 0, pointCount * 5);
+			points = p;
+		}
+		int i = pointCount * 5;
+		points[i] = x;
+		points[i + 1] = y;
+		points[i + 2] = z;
+		points[i + 3] = a;
+		points[i + 4] = b;
+		addEntry(POINT, pointCount++);
+	}
+
+	/** Add a move to the given point, in mm; the point isn't kept. */
+	public void addPoint(Point5d p) {
+		addPoint(p.x(), p.y(), p.z(), p.a(), p.b());
+	}
+
+	/** Add a change of feedrate, in mm/minute. */
+	public void addFeedrate(double feedrate) {
+		if (feedrateCount == feedrates.length) {
+			double[] f = new double[feedrates.length * 2];
+			System.arraycopy(feedrates, 0, f, 0, feedrateCount);
+			feedrates = f;
+		}
+		feedrates[feedrateCount] = feedrate;
+		addEntry(FEEDRATE, feedrateCount++);
+	}
+
+	public boolean offer(DriverCommand command) {
+		if (command == null) {
+			throw new NullPointerException();
+		}
+		if (command instanceof QueuePoint) {
+			addPoint(((QueuePoint)command).getDestination());
+		} else if (command instanceof SetFeedrate) {
+			addFeedrate(((SetFeedrate)command).feedrate);
+		} else {
+			if (commandCount == commands.length) {
+				DriverCommand[] c = new DriverCommand[commands.length * 2];
+				System.arraycopy(commands, 0, c, 0, commandCount);
+				commands = c;
+			}
+			commands[commandCount] = command;
+			addEntry(COMMAND, commandCount++);
+		}
+		return true;
+	}
+
+	private void addEntry(byte kind, int i) {
+		if (tail == kinds.length) {
+			byte[] k = new byte[kinds.length * 2];
+			int[] n = new int[kinds.length * 2];
+			System.arraycopy(kinds, 0, k, 0, tail);
+			System.arraycopy(index, 0, n, 0, tail);
+			kinds = k;
+			index = n;
+		}
+		kinds[tail] = kind;
+		index[tail] = i;
+		tail++;
+	}
+
+	public int size() {
+		return tail - head;
+	}
+
+	public boolean isEmpty() {
+		return head == tail;
+	}
+
+	/**
+	 * @return true if the entry the given distance from the head of the
+	 * queue is a move
+	 */
+	public boolean isPoint(int i) {
+		return kinds[head + i] == POINT;
+	}
+
+	/**
+	 * Copy the point of a move into the given point.
+	 * @param i the distance of the move from the head of the queue
+	 * @return into
+	 */
+	public Point5d getPoint(int i, Point5d into) {
+		int p = index[head + i] * 5;
+		for (int axis = 0; axis < 5; axis++) {
+			into.set(axis, points[p + axis]);
+		}
+		return into;
+	}
+
+	/**
+	 * @return true if the entry the given distance from the head of the
+	 * queue is a change of feedrate
+	 */
+	public boolean isFeedrate(int i) {
+		return kinds[head + i] == FEEDRATE;
+	}
+
+	/**
+	 * @param i the distance of a change of feedrate from the head of the queue
+	 * @return its feedrate, in mm/minute
+	 */
+	public double getFeedrate(int i) {
+		return feedrates[index[head + i]];
+	}
+
+	/**
+	 * @return the entry the given distance from the head of the queue, if
+	 * it is kept as a command; null for a move or a feedrate
+	 */
+	public DriverCommand getCommand(int i) {
+		return kinds[head + i] == COMMAND ? commands[index[head + i]] : null;
+	}
+
+	// Make a command for an entry, for anything that reads us as a Queue.
+	private DriverCommand get(int entry) {
+		int i = index[entry];
+		switch (kinds[entry]) {
+		case POINT:
+			return new QueuePoint(new Point5d(points[i * 5], points[i * 5 + 1],
+					points[i * 5 + 2], points[i * 5 + 3], points[i * 5 + 4]));
+		case FEEDRATE:
+			return new SetFeedrate(feedrates[i]);
+		default:
+			return commands[i];
+		}
+	}
+
+	public DriverCommand peek() {
+		return (head == tail) ? null : get(head);
+	}
+
+	public DriverCommand poll() {
+		if (head == tail) {
+			return null;
+		}
+		DriverCommand command = get(head);
+		drop(1);
+		return command;
+	}
+
+	// Remove entries from the head of the queue.
+	private void drop(int n) {
+		for (int i = head; i < head + n; i++) {
+			if (kinds[i] == COMMAND) {
+				commands[index[i]] = null;
+			}
+		}
+		head += n;
+		if (head == tail) {
+			clear();
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < commandCount; i++) {
+			commands[i] = null;
+		}
+		head = tail = 0;
+		pointCount = feedrateCount = commandCount = 0;
+	}
+
+	/**
+	 * Run the commands on the driver, in order, removing each once the
+	 * driver has taken it. Runs of moves are sent with Driver.queuePoints().
+	 * If the driver asks for a retry or a stop, the command it turned down
+	 * is left at the head of the queue, just as though each command had been
+	 * run with peek().run() and only then removed.
+	 */
+	public void run(Driver driver) throws RetryException, StopException {
+		while (head != tail) {
+			switch (kinds[head]) {
+			case POINT: {
+				int n = 1;
+				while (head + n < tail && kinds[head + n] == POINT) {
+					n++;
+				}
+				int sent = driver.queuePoints(points, index[head], n);
+				drop(sent);
+				if (sent < n) {
+					throw new RetryException();
+				}
+				break;
+			}
+			case FEEDRATE:
+				driver.setFeedrate(feedrates[index[head]]);
+				drop(1);
+				break;
+			default:
+				commands[index[head]].run(driver);
+				drop(1);
+				break;
+			}
+		}
+	}
+
+	public Iterator<DriverCommand> iterator() {
+		return new Iterator<DriverCommand>() {
+			private int next = head;
+
+			public boolean hasNext() {
+				return next < tail;
+			}
+
+			public DriverCommand next() {
+				if (next >= tail) {
+					throw new NoSuchElementException();
+				}
+				return get(next++);
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+}
@@ -0,0 +1,311 @@
+package replicatorg.drivers.commands;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+
+import replicatorg.drivers.commands.DriverCommand.AxialDirection;
+import replicatorg.drivers.commands.DriverCommand.LinearDirection;
+import replicatorg.machine.model.AxisId;
+import replicatorg.util.Point5d;
+
+/**
+ * Writes driver commands in the binary form compiled jobs keep them in, and
+ * reads them back.
+ *
+ * Each command is an opcode byte followed by its arguments, big-endian.
+ * Opcodes below FIRST_OPCODE are left for the format of the job itself (moves,
+ * positions, the ends of lines), which is why moves, feedrates and
+ * SetCurrentPosition aren't handled here. Commands that depend on something
+ * other than their own arguments, such as a passthrough string for the
+ * machine or an axis offset, have no form at all: a job that uses them can't
+ * be compiled.
+ */
+public class CommandCodec {
+	/** The lowest opcode used for a command */
+	public static final int FIRST_OPCODE = 16;
+
+	private static final byte SIMPLE = 16;
+	private static final byte SET_TEMPERATURE = 17;
+	private static final byte SET_PLATFORM_TEMPERATURE = 18;
+	private static final byte SET_CHAMBER_TEMPERATURE = 19;
+	private static final byte SELECT_TOOL = 20;
+	private static final byte REQUEST_TOOL_CHANGE = 21;
+	private static final byte DELAY = 22;
+	private static final byte HOME_AXES = 23;
+	private static final byte RECALL_HOME_POSITIONS = 24;
+	private static final byte STORE_HOME_POSITIONS = 25;
+	private static final byte ENABLE_AXES = 26;
+	private static final byte DISABLE_AXES = 27;
+	private static final byte SET_MOTOR_DIRECTION = 28;
+	private static final byte SET_MOTOR_SPEED_RPM = 29;
+	private static final byte SET_MOTOR_SPEED_PWM = 30;
+	private static final byte SET_SPINDLE_DIRECTION = 31;
+	private static final byte SET_SPINDLE_RPM = 32;
+	private static final byte TOGGLE_AUTOMATED_BUILD_PLATFORM = 33;
+	private static final byte OPEN_CLAMP = 34;
+	private static final byte CLOSE_CLAMP = 35;
+	private static final byte CHANGE_GEAR_RATIO = 36;
+	private static final byte SET_SERVO = 37;
+	private static final byte OPTIONAL_HALT = 38;
+	private static final byte UNCONDITIONAL_HALT = 39;
+	private static final byte PROGRAM_END = 40;
+	private static final byte PROGRAM_REWIND = 41;
+	private static final byte SET_RAPID_FEEDRATE = 42;
+
+	// Commands without arguments, written as SIMPLE and their index here.
+	// Only ever add to the end of this list, or change CompiledJob's version.
+	private static final DriverCommand[] SIMPLE_COMMANDS = {
+		new CloseCollet(),
+		new CloseValve(),
+		new DisableDrives(),
+		new DisableFan(),
+		new DisableFloodCoolant(),
+		new DisableMistCoolant(),
+		new DisableMotor(),
+		new DisableSpindle(),
+		new EnableDrives(),
+		new EnableFan(),
+		new EnableFloodCoolant(),
+		new EnableMistCoolant(),
+		new EnableMotor(),
+		new EnableSpindle(),
+		new GetPosition(),
+		new Initialize(),
+		new InvalidatePosition(),
+		new OpenCollet(),
+		new OpenValve(),
+		new ReadTemperature(),
+		new StopDataCapture(),
+		new WaitUntilBufferEmpty(),
+	};
+
+	private static final AxisId[] AXES = AxisId.values();
+
+	/**
+	 * Write a command.
+	 * @return false, having written nothing, if the command has no form
+	 */
+	public static boolean write(DriverCommand command, DataOutput out) throws IOException {
+		for (int i = 0; i < SIMPLE_COMMANDS.length; i++) {
+			if (command.getClass() == SIMPLE_COMMANDS[i].getClass()) {
+				out.writeByte(SIMPLE);
+				out.writeByte(i);
+				return true;
+			}
+		}
+		if (command instanceof SetTemperature) {
+			out.writeByte(SET_TEMPERATURE);
+			out.writeDouble(((SetTemperature)command).temperature);
+		} else if (command instanceof SetPlatformTemperature) {
+			out.writeByte(SET_PLATFORM_TEMPERATURE);
+			out.writeDouble(((SetPlatformTemperature)command).temperature);
+		} else if (command instanceof SetChamberTemperature) {
+			out.writeByte(SET_CHAMBER_TEMPERATURE);
+			out.writeDouble(((SetChamberTemperature)command).temperature);
+		} else if (command instanceof SelectTool) {
+			out.writeByte(SELECT_TOOL);
+			out.writeInt(((SelectTool)command).toolNumber);
+		} else if (command instanceof RequestToolChange) {
+			RequestToolChange change = (RequestToolChange)command;
+			out.writeByte(REQUEST_TOOL_CHANGE);
+			out.writeInt(change.toolIndex);
+			out.writeInt(change.timeout);
+		} else if (command instanceof Delay) {
+			out.writeByte(DELAY);
+			out.writeLong(((Delay)command).delay);
+		} else if (command instanceof HomeAxes) {
+			HomeAxes home = (HomeAxes)command;
+			out.writeByte(HOME_AXES);
+			writeAxes(home.axes, out);
+			out.writeByte(home.direction.ordinal());
+			out.writeDouble(home.feedrate);
+		} else if (command instanceof RecallHomePositions) {
+			out.writeByte(RECALL_HOME_POSITIONS);
+			writeAxes(((RecallHomePositions)command).axes, out);
+		} else if (command instanceof StoreHomePositions) {
+			out.writeByte(STORE_HOME_POSITIONS);
+			writeAxes(((StoreHomePositions)command).axes, out);
+		} else if (command instanceof EnableAxes) {
+			out.writeByte(ENABLE_AXES);
+			writeAxes(((EnableAxes)command).axes, out);
+		} else if (command instanceof DisableAxes) {
+			out.writeByte(DISABLE_AXES);
+			writeAxes(((DisableAxes)command).axes, out);
+		} else if (command instanceof SetMotorDirection) {
+			out.writeByte(SET_MOTOR_DIRECTION);
+			out.writeByte(((SetMotorDirection)command).direction.ordinal());
+		} else if (command instanceof SetMotorSpeedRPM) {
+			out.writeByte(SET_MOTOR_SPEED_RPM);
+			out.writeDouble(((SetMotorSpeedRPM)command).rpm);
+		} else if (command instanceof SetMotorSpeedPWM) {
+			out.writeByte(SET_MOTOR_SPEED_PWM);
+			out.writeInt(((SetMotorSpeedPWM)command).pwm);
+		} else if (command instanceof SetSpindleDirection) {
+			out.writeByte(SET_SPINDLE_DIRECTION);
+			out.writeByte(((SetSpindleDirection)command).direction.ordinal());
+		} else if (command instanceof SetSpindleRPM) {
+			out.writeByte(SET_SPINDLE_RPM);
+			out.writeDouble(((SetSpindleRPM)command).rpm);
+		} else if (command instanceof ToggleAutomatedBuildPlatform) {
+			out.writeByte(TOGGLE_AUTOMATED_BUILD_PLATFORM);
+			out.writeBoolean(((ToggleAutomatedBuildPlatform)command).state);
+		} else if (command instanceof OpenClamp) {
+			out.writeByte(OPEN_CLAMP);
+			out.writeInt(((OpenClamp)command).clampIndex);
+		} else if (command instanceof CloseClamp) {
+			out.writeByte(CLOSE_CLAMP);
+			out.writeInt(((CloseClamp)command).clampIndex);
+		} else if (command instanceof ChangeGearRatio) {
+			out.writeByte(CHANGE_GEAR_RATIO);
+			out.writeInt(((ChangeGearRatio)command).gearRatio);
+		} else if (command instanceof SetServo) {
+			SetServo servo = (SetServo)command;
+			out.writeByte(SET_SERVO);
+			out.writeInt(servo.servoIndex);
+			out.writeDouble(servo.position);
+		} else if (command instanceof OptionalHalt) {
+			out.writeByte(OPTIONAL_HALT);
+			writeString(((OptionalHalt)command).message, out);
+		} else if (command instanceof UnconditionalHalt) {
+			out.writeByte(UNCONDITIONAL_HALT);
+			writeString(((UnconditionalHalt)command).message, out);
+		} else if (command instanceof ProgramEnd) {
+			out.writeByte(PROGRAM_END);
+			writeString(((ProgramEnd)command).message, out);
+		} else if (command instanceof ProgramRewind) {
+			out.writeByte(PROGRAM_REWIND);
+			writeString(((ProgramRewind)command).message, out);
+		} else if (command instanceof SetRapidFeedrate) {
+			Point5d destination = ((SetRapidFeedrate)command).destination;
+			out.writeByte(SET_RAPID_FEEDRATE);
+			for (int axis = 0; axis < 5; axis++) {
+				out.writeDouble(destination.get(axis));
+			}
+		} else {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read the command with the given opcode, whose arguments follow.
+	 * Commands without arguments are shared, rather than made anew.
+	 * @throws IllegalArgumentException if the opcode isn't one we write
+	 */
+	public static DriverCommand read(byte opcode, ByteBuffer in) {
+		switch (opcode) {
+		case SIMPLE:
+			return SIMPLE_COMMANDS[in.get()];
+		case SET_TEMPERATURE:
+			return new SetTemperature(in.getDouble());
+		case SET_PLATFORM_TEMPERATURE:
+			return new SetPlatformTemperature(in.getDouble());
+		case SET_CHAMBER_TEMPERATURE:
+			return new SetChamberTemperature(in.getDouble());
+		case SELECT_TOOL:
+			return new SelectTool(in.getInt());
+		case REQUEST_TOOL_CHANGE: {
+			int toolIndex = in.getInt();
+			return new RequestToolChange(toolIndex, in.getInt());
+		}
+		case DELAY:
+			return new Delay(in.getLong());
+		case HOME_AXES: {
+			EnumSet<AxisId> axes = readAxes(in);
+			LinearDirection direction = LinearDirection.values()[in.get()];
+			return new HomeAxes(axes, direction, in.getDouble());
+		}
+		case RECALL_HOME_POSITIONS:
+			return new RecallHomePositions(readAxes(in));
+		case STORE_HOME_POSITIONS:
+			return new StoreHomePositions(readAxes(in));
+		case ENABLE_AXES:
+			return new EnableAxes(readAxes(in));
+		case DISABLE_AXES:
+			return new DisableAxes(readAxes(in));
+		case SET_MOTOR_DIRECTION:
+			return new SetMotorDirection(AxialDirection.values()[in.get()]);
+		case SET_MOTOR_SPEED_RPM:
+			return new SetMotorSpeedRPM(in.getDouble());
+		case SET_MOTOR_SPEED_PWM:
+			return new SetMotorSpeedPWM(in.getInt());
+		case SET_SPINDLE_DIRECTION:
+			return new SetSpindleDirection(AxialDirection.values()[in.get()]);
+		case SET_SPINDLE_RPM:
+			return new SetSpindleRPM(in.getDouble());
+		case TOGGLE_AUTOMATED_BUILD_PLATFORM:
+			return new ToggleAutomatedBuildPlatform(in.get() != 0);
+		case OPEN_CLAMP:
+			return new OpenClamp(in.getInt());
+		case CLOSE_CLAMP:
+			return new CloseClamp(in.getInt());
+		case CHANGE_GEAR_RATIO:
+			return new ChangeGearRatio(in.getInt());
+		case SET_SERVO: {
+			int servoIndex = in.getInt();
+			return new SetServo(servoIndex, in.getDouble());
+		}
+		case OPTIONAL_HALT:
+			return new OptionalHalt(readString(in));
+		case UNCONDITIONAL_HALT:
+			return new UnconditionalHalt(readString(in));
+		case PROGRAM_END:
+			return new ProgramEnd(readString(in));
+		case PROGRAM_REWIND:
+			return new ProgramRewind(readString(in));
+		case SET_RAPID_FEEDRATE:
+			return new SetRapidFeedrate(new Point5d(in.getDouble(), in.getDouble(),
+					in.getDouble(), in.getDouble(), in.getDouble()));
+		default:
+			throw new IllegalArgumentException("Unknown opcode " + opcode);
+		}
+	}
+
+	private static void writeAxes(EnumSet<AxisId> axes, DataOutput out) throws IOException {
+		int mask = 0;
+		for (AxisId axis : axes) {
+			mask |= 1 << axis.ordinal();
+		}
+		out.writeShort(mask);
+	}
+
+	private static EnumSet<AxisId> readAxes(ByteBuffer in) {
+		int mask = in.getShort();
+		EnumSet<AxisId> axes = EnumSet.noneOf(AxisId.class);
+		for (int i = 0; i < AXES.length; i++) {
+			if ((mask & (1 << i)) != 0) {
+				axes.add(AXES[i]);
+			}
+		}
+		return axes;
+	}
+
+	/** Write a string as its length in bytes and its UTF-8 encoding; -1 for null. */
+	public static void writeString(String s, DataOutput out) throws IOException {
+		if (s == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = s.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/** Read a string written by writeString(). */
+	public static String readString(ByteBuffer in) {
+		int length = in.getInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -11,6 +11,10 @@ public class QueuePoint implements DriverCommand {
 		this.destination = destination;
 	}
 	
+	public Point5d getDestination() {
+		return destination;
+	}
+	
 	@Override
 	public void run(Driver driver) throws RetryException {
 		driver.queuePoint(destination);
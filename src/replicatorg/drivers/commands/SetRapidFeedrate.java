@@ -0,0 +1,51 @@
+package replicatorg.drivers.commands;
+
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.util.Point5d;
+
+/**
+ * Set the feedrate for a rapid (G0) move to the given point: as fast as the
+ * slowest axis along the move can go.
+ *
+ * The rate is worked out when the command runs, from where the driver says
+ * the machine is. A parser running ahead of the machine only knows where the
+ * moves it made were going, and a driver can end up somewhere slightly
+ * different, such as when a move is too short to take a step.
+ */
+public class SetRapidFeedrate implements DriverCommand {
+
+	Point5d destination;
+
+	public SetRapidFeedrate(Point5d destination) {
+		this.destination = new Point5d(destination);
+	}
+
+	public Point5d getDestination() {
+		return destination;
+	}
+
+	@Override
+	public void run(Driver driver) throws RetryException {
+		Point5d diff = driver.getCurrentPosition(false);
+		diff.sub(destination);
+		diff.absolute();
+		double length = diff.length();
+		double selectedFR = Double.MAX_VALUE;
+		Point5d maxFR = ((DriverQueryInterface)driver).getMaximumFeedrates();
+		// Compute the feedrate using assuming maximum feed along each axis, and select
+		// the slowest option.
+		for (int idx = 0; idx < 3; idx++) {
+			double axisMove = diff.get(idx);
+			if (axisMove == 0) { continue; }
+			double candidate = maxFR.get(idx)*length/axisMove;
+			if (candidate < selectedFR) {
+				selectedFR = candidate;
+			}
+		}
+		// Add a sane default for the null move, just in case.
+		if (selectedFR == Double.MAX_VALUE) { selectedFR = maxFR.get(0); }
+		driver.setFeedrate(selectedFR);
+	}
+}
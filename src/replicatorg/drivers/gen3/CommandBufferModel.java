@@ -0,0 +1,171 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * The host's idea of how much room is left in the machine's command buffer.
+ *
+ * The estimate only ever errs on the low side: it is reduced by every
+ * buffered command we send, and only raised when the machine tells us how
+ * much room it has (GET_BUFFER_SIZE) or that it has run everything it was
+ * given (IS_FINISHED). Buffered commands are held back while the estimate
+ * says they won't fit, instead of being sent to be rejected.
+ *
+ * When the machine does reject a command, or can't report its free space,
+ * we back off before trying again. The backoff doubles with each rejection
+ * and halves with each command accepted, so that a machine that is slowly
+ * working through long moves isn't polled any faster than it frees up space.
+ */
+class CommandBufferModel {
+	// Backoff limits, in milliseconds
+	static final int MIN_BACKOFF = 1;
+	static final int MAX_BACKOFF = 128;
+
+	// Size of the machine's command buffer, in bytes
+	private long capacity = 0;
+	// Bytes we know to be free
+	private long free = 0;
+	// True if free was last set from capacity, rather than by the machine
+	private boolean estimated = false;
+	// False if the firmware can't report how much room it has
+	private boolean measurable = true;
+	private int backoffMillis = 0;
+
+	// Statistics
+	private long rejectedCount = 0;
+	private long queryCount = 0;
+	private long backoffCount = 0;
+	private long waitNanos = 0;
+
+	/**
+	 * Set the size of the machine's buffer, as reported for or measured from
+	 * the firmware.
+	 */
+	synchronized void setCapacity(long capacity) {
+		this.capacity = capacity;
+	}
+
+	synchronized long getCapacity() { return capacity; }
+
+	synchronized boolean hasRoom(int length) {
+		return length <= free;
+	}
+
+	/**
+	 * @return true if the machine itself said it has room for a command of
+	 * the given length, on top of everything sent since. The capacity we
+	 * start from is only a guess from the firmware version.
+	 */
+	synchronized boolean hasMeasuredRoom(int length) {
+		return !estimated && length <= free;
+	}
+
+	synchronized boolean isMeasurable() { return measurable; }
+
+	/**
+	 * Record that the firmware can't report its free space; from here on we
+	 * only learn about it through rejections and IS_FINISHED.
+	 */
+	synchronized void setUnmeasurable() {
+		measurable = false;
+	}
+
+	/** Record a reply to GET_BUFFER_SIZE. */
+	synchronized void measured(long freeBytes) {
+		queryCount++;
+		free = freeBytes;
+		estimated = false;
+		// The buffer is at least as big as the most room it has ever had.
+		if (freeBytes > capacity) {
+			capacity = freeBytes;
+		}
+	}
+
+	/** Record that the machine has run everything it was sent. */
+	synchronized void emptied() {
+		if (capacity > free) {
+			free = capacity;
+			estimated = true;
+		}
+	}
+
+	/** Record that a command of the given length went into the buffer. */
+	synchronized void sent(int length) {
+		free = Math.max(0, free - length);
+		backoffMillis /= 2;
+	}
+
+	/** Record that the machine rejected a command because its buffer was full. */
+	synchronized void rejected() {
+		rejectedCount++;
+		free = 0;
+		backoffMillis = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoffMillis * 2));
+	}
+
+	/** Forget everything we know about the buffer's contents. */
+	synchronized void reset() {
+		free = 0;
+		estimated = false;
+		backoffMillis = 0;
+	}
+
+	/**
+	 * Wait for the current backoff interval, giving the machine time to make
+	 * room. Grows the interval for next time.
+	 */
+	void backoff() {
+		int millis;
+		synchronized (this) {
+			backoffMillis = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoffMillis * 2));
+			millis = backoffMillis;
+			backoffCount++;
+		}
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			waitNanos += System.nanoTime() - start;
+		}
+	}
+
+	/**
+	 * Wait for the current backoff interval, if there is one, without
+	 * growing it.
+	 */
+	void pause() {
+		int millis;
+		synchronized (this) {
+			millis = backoffMillis;
+		}
+		if (millis == 0) return;
+		long start = System.nanoTime();
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (this) {
+			backoffCount++;
+			waitNanos += System.nanoTime() - start;
+		}
+	}
+
+	/** @return the number of commands the machine rejected with BUFFER_OVERFLOW */
+	synchronized long getRejectedCount() { return rejectedCount; }
+
+	/** @return the number of times we asked the machine for its free space */
+	synchronized long getQueryCount() { return queryCount; }
+
+	/** @return the number of times we waited for the machine to make room */
+	synchronized long getBackoffCount() { return backoffCount; }
+
+	/** @return the time, in milliseconds, spent waiting for the machine to make room */
+	synchronized long getWaitMillis() { return waitNanos / 1000000; }
+
+	public synchronized String toString() {
+		return "Command buffer: " + free + "/" + capacity + " bytes free; "
+			+ rejectedCount + " rejected, " + queryCount + " queries, "
+			+ backoffCount + " waits totalling " + getWaitMillis() + "ms";
+	}
+}
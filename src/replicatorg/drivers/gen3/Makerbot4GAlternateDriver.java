@@ -5,8 +5,6 @@ import java.util.Map;
 import java.util.Vector;
 import java.util.logging.Level;
 
-import javax.vecmath.Point3d;
-
 import org.w3c.dom.Element;
 
 import replicatorg.app.Base;
@@ -33,7 +31,16 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 	}
 	
 	/** The excess, in steps, from previous operations. */ 
-	private Point5d stepExcess = new Point5d();
+	private final Point5d stepExcess = new Point5d();
+
+	// Reused by queuePoint for every move, like the ones in Sanguino3GDriver.
+	private final Point5d moveTarget = new Point5d();
+	private final Point5d moveFiltered = new Point5d();
+	private final Point5d moveCurrent = new Point5d();
+	private final Point5d moveDelta = new Point5d();
+	private final Point5d moveSteps = new Point5d();
+	private final Point5d moveExcess = new Point5d();
+	private final Point5d moveExtrusion = new Point5d();
 	
 	/**
 	 * Overloaded to manage a hijacked axis and run this axis in relative mode instead of the extruder DC motor
@@ -72,7 +79,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 			Point5d excess = new Point5d(stepExcess);
 			queueAbsolutePoint(machine.mmToSteps(filteredPoint, excess), longestDDA);
 			// Only update excess if no retry was thrown.
-			stepExcess = excess;
+			stepExcess.set(excess);
 			// Finally, recored the position, and mark it as valid.
 			setInternalPosition(filteredPoint);
 		} else {
@@ -80,8 +87,9 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 			// This is necessary to avoid taking deltas into account where we 
 			// compare the relative p coordinate (usually 0) with the absolute 
 			// currentPosition (which we get from the Motherboard).
-			Point5d filteredpoint = new Point5d(p);
-			Point5d filteredcurrent = new Point5d(getCurrentPosition(false));
+			Point5d filteredpoint = moveFiltered;
+			filteredpoint.set(p);
+			Point5d filteredcurrent = copyCurrentPosition(moveCurrent);
 			int relative = 0;
 			for (AxisId axis : getAllHijackedAxes()) {
 				filteredpoint.setAxis(axis, 0d);
@@ -90,28 +98,41 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 			}
 		
 			// is this point even step-worthy? Only compute nonzero moves
-			Point5d deltaSteps = getAbsDeltaSteps(filteredcurrent, filteredpoint);
+			Point5d deltaSteps = getAbsDeltaSteps(filteredcurrent, filteredpoint, moveSteps);
 			if (deltaSteps.length() > 0.0) {
-				Point5d delta = new Point5d();
+				Point5d delta = moveDelta;
 				delta.sub(filteredpoint, filteredcurrent); // delta = p - current
 				delta.absolute(); // absolute value of each component
 				
-				Point5d axesmovement = calcHijackedAxesMovement(delta);
+				Point5d axesmovement = calcHijackedAxesMovement(delta, moveExtrusion);
+				Point5d target = moveTarget;
+				target.set(filteredpoint);
 				delta.add(axesmovement);
 				filteredpoint.add(axesmovement);
 				
-				Point5d excess = new Point5d(stepExcess);
+				Point5d excess = moveExcess;
+				excess.set(stepExcess);
 				// Calculate time for move in usec
-				Point5d steps = machine.mmToSteps(filteredpoint,excess);		
+				Point5d steps = machine.mmToSteps(filteredpoint, excess, moveSteps);
 	
 				// okay, send it off!
 				// The 4. and 5. dimensions doesn't have a spatial interpretation. Calculate time in 3D space
-				double minutes = delta.get3D().distance(new Point3d())/ getSafeFeedrate(delta);
+				double feedrate = getSafeFeedrate(delta);
+				double minutes = delta.length3D() / feedrate;
+				long us = (long) (60 * 1000 * 1000 * minutes);
 				
-				queueNewPoint(steps, (long) (60 * 1000 * 1000 * minutes), relative);
+				// Merged moves have to extrude at the same rate along the way.
+				Point5d extrusion = axesmovement;
+				double travel = filteredcurrent.distance(target);
+				for (int i = 0; i < 5; i++) {
+					extrusion.set(i, extrusion.get(i) / travel);
+				}
+				if (!coalesce(filteredcurrent, target, steps, us, feedrate, extrusion, relative)) {
+					queueNewPoint(steps, us, relative);
+				}
 
 				// Only update excess if no retry was thrown.
-				stepExcess = excess;
+				stepExcess.set(excess);
 
 				setInternalPosition(filteredpoint);
 			}
@@ -137,31 +158,39 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		}
 	}
 	
+	// The hijacked axes of the tool they were last looked up for; every move
+	// asks, and the tool rarely changes.
+	private ToolModel hijackedAxesTool = null;
+	private AxisId[] hijackedAxes = null;
+	private AxisId[] allHijackedAxes = null;
+
 	/** 
 	 * Returns the hijacked axes for the current tool.
 	 */
-	private Iterable<AxisId> getHijackedAxes() {
-		Vector<AxisId> axes = new Vector<AxisId>();
-		for ( Map.Entry<AxisId,ToolModel> entry : stepExtruderMap.entrySet()) {
-			ToolModel curTool = machine.currentTool();
-			AxisId axis = entry.getKey();
-			if (curTool.equals(entry.getValue())) {
-				axes.add(axis);
+	private AxisId[] getHijackedAxes() {
+		ToolModel curTool = machine.currentTool();
+		if (hijackedAxes == null || curTool != hijackedAxesTool) {
+			Vector<AxisId> axes = new Vector<AxisId>();
+			for ( Map.Entry<AxisId,ToolModel> entry : stepExtruderMap.entrySet()) {
+				AxisId axis = entry.getKey();
+				if (curTool.equals(entry.getValue())) {
+					axes.add(axis);
+				}
 			}
+			hijackedAxes = axes.toArray(new AxisId[axes.size()]);
+			hijackedAxesTool = curTool;
 		}
-		return axes;
+		return hijackedAxes;
 	}
 
 	/** 
 	 * Returns the hijacked axes for all tools.
 	 */
-	private Iterable<AxisId> getAllHijackedAxes() {
-		Vector<AxisId> axes = new Vector<AxisId>();
-		for ( Map.Entry<AxisId,ToolModel> entry : stepExtruderMap.entrySet()) {
-			AxisId axis = entry.getKey();
-			axes.add(axis);
+	private AxisId[] getAllHijackedAxes() {
+		if (allHijackedAxes == null) {
+			allHijackedAxes = stepExtruderMap.keySet().toArray(new AxisId[stepExtruderMap.size()]);
 		}
-		return axes;
+		return allHijackedAxes;
 	}
 	
 	/**
@@ -169,11 +198,14 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 	 * The returned movement is in mm of incoming filament (corresponding to mm in machines.xml)
 	 * If the extruder is off, the hijacked axes are not moved.
 	 * @param delta relative XYZ movement.
+	 * @param movement where to put the movement
 	 * @return The relative movement (in mm) of the hijacked axes
 	 */
-	private Point5d calcHijackedAxesMovement(Point5d delta) {
+	private Point5d calcHijackedAxesMovement(Point5d delta, Point5d movement) {
 
-		Point5d movement = new Point5d();
+		for (int i = 0; i < 5; i++) {
+			movement.set(i, 0d);
+		}
 		double minutes = delta.length() / getCurrentFeedrate();
 
 		for (AxisId axis : getHijackedAxes()) {
@@ -224,6 +256,14 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		super.stop(abort);
 	}
 
+	/**
+	 * Overridden to send merged moves as new-style points, with the hijacked
+	 * axes moving relatively.
+	 */
+	protected void sendCoalesced(MotionCoalescer c) throws RetryException {
+		queueNewPoint(c.getSteps(), Math.round(c.getMicros()), c.getRelative());
+	}
+
 	protected void queueNewPoint(Point5d steps, long us, int relative) throws RetryException {
 
 		// Turn on fan if necessary
@@ -232,7 +272,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				enableStepperExtruderFan(true);
 			}
 		}
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_NEW.getCode());
+		PacketBuilder pb = motionPacket(MotherboardCommandCode.QUEUE_POINT_NEW);
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued new-style point " + steps + " over "
@@ -248,7 +288,7 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 		pb.add32((int) us);
 		pb.add8((int) relative);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 	
 	/**
@@ -356,6 +396,9 @@ public class Makerbot4GAlternateDriver extends Makerbot4GDriver {
 				}
 			}
 		}
+		// Tools may have claimed different axes.
+		hijackedAxes = null;
+		allHijackedAxes = null;
 	}
 	
 	@Override
@@ -42,19 +42,28 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		super.stop(abort);
 	}
 	
+	// The hijacked axes of the tool they were last looked up for; every move
+	// asks, and the tool rarely changes.
+	private ToolModel hijackedAxesTool = null;
+	private AxisId[] hijackedAxes = null;
+
 	/** 
 	 * Returns the hijacked axes for the current tool.
 	 */
-	private Iterable<AxisId> getHijackedAxes() {
-		Vector<AxisId> axes = new Vector<AxisId>();
-		for ( Map.Entry<AxisId,ToolModel> entry : stepExtruderMap.entrySet()) {
-			ToolModel curTool = machine.currentTool();
-			AxisId axis = entry.getKey();
-			if (curTool.equals(entry.getValue())) {
-				axes.add(axis);
+	private AxisId[] getHijackedAxes() {
+		ToolModel curTool = machine.currentTool();
+		if (hijackedAxes == null || curTool != hijackedAxesTool) {
+			Vector<AxisId> axes = new Vector<AxisId>();
+			for ( Map.Entry<AxisId,ToolModel> entry : stepExtruderMap.entrySet()) {
+				AxisId axis = entry.getKey();
+				if (curTool.equals(entry.getValue())) {
+					axes.add(axis);
+				}
 			}
+			hijackedAxes = axes.toArray(new AxisId[axes.size()]);
+			hijackedAxesTool = curTool;
 		}
-		return axes;
+		return hijackedAxes;
 	}
 
 	/** 
@@ -77,7 +86,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 			}
 		}
 
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_EXT.getCode());
+		PacketBuilder pb = motionPacket(MotherboardCommandCode.QUEUE_POINT_EXT);
 
 		if (Base.logger.isLoggable(Level.FINE)) {
 			Base.logger.log(Level.FINE,"Queued absolute point " + steps + " at "
@@ -92,7 +101,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		pb.add32((int) steps.b());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -111,7 +120,7 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 		runCommand(pb.getPacket());
 	
 		// Set the current position explicitly instead of calling the super, to avoid sending the current position command twice.
-		currentPosition.set(p);
+		setInternalPosition(p);
 //		super.setCurrentPosition(p);
 	}
 
@@ -241,6 +250,8 @@ public class Makerbot4GDriver extends Sanguino3GDriver {
 				}
 			}
 		}
+		// Tools may have claimed different axes.
+		hijackedAxes = null;
 	}
 
 }
@@ -57,4 +57,16 @@ public enum MotherboardCommandCode {
 		this.code = code;
 	}
 	int getCode() { return code; }
+
+	private static final MotherboardCommandCode[] byCode = new MotherboardCommandCode[256];
+	static {
+		for (MotherboardCommandCode c : values()) {
+			byCode[c.code] = c;
+		}
+	}
+
+	/** @return the command with the given code, or null if there isn't one */
+	static MotherboardCommandCode forCode(int code) {
+		return (code >= 0 && code < byCode.length) ? byCode[code] : null;
+	}
 }
\ No newline at end of file
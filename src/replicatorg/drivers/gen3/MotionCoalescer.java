@@ -0,0 +1,202 @@
+package replicatorg.drivers.gen3;
+
+import replicatorg.app.Base;
+import replicatorg.util.Point5d;
+
+/**
+ * Merges runs of short, collinear moves into single moves before they are
+ * sent to the machine. Curved perimeters are often sliced into thousands of
+ * tiny segments that lie along the same line; sending each one as its own
+ * packet costs a round trip per segment for no change in the path.
+ *
+ * A move is held back until the next one arrives. If the next move carries
+ * on in the same direction at the same feedrate and extrusion rate, and
+ * every corner in the run stays within the tolerance of the combined line,
+ * the two are merged. Otherwise the held move is sent and the new one is
+ * held in its place. Targets are kept in whole steps exactly as they would
+ * have been sent, so merging never changes where the machine ends up.
+ */
+class MotionCoalescer {
+	/** Most moves merged into one */
+	static final int MAX_MERGED = 32;
+
+	// How close, in mm, each corner must be to the merged line
+	private final double tolerance;
+
+	// The move being held back, if any
+	private boolean pending = false;
+	private final Point5d start = new Point5d();
+	private final Point5d end = new Point5d();
+	private final Point5d steps = new Point5d();
+	private final Point5d extrusion = new Point5d();
+	private double micros;
+	private double feedrate;
+	private int relative;
+	// The end points of every move merged so far, except the last
+	private final Point5d[] corners = new Point5d[MAX_MERGED];
+	private int cornerCount = 0;
+
+	// Statistics, since the last report
+	private long movesIn = 0;
+	private long movesOut = 0;
+
+	MotionCoalescer(double tolerance) {
+		this.tolerance = tolerance;
+		for (int i = 0; i < corners.length; i++) {
+			corners[i] = new Point5d();
+		}
+	}
+
+	double getTolerance() { return tolerance; }
+
+	boolean hasPending() { return pending; }
+
+	/** @return where the held move starts, in mm */
+	Point5d getStart() { return start; }
+
+	/** @return where the held move ends, in mm */
+	Point5d getEnd() { return end; }
+
+	/**
+	 * @return the target of the held move in steps; absolute for every axis
+	 * but the relative ones, which hold the total steps to take.
+	 */
+	Point5d getSteps() { return steps; }
+
+	/** @return how long the held move takes, in microseconds */
+	double getMicros() { return micros; }
+
+	/** @return the feedrate of the held move */
+	double getFeedrate() { return feedrate; }
+
+	/** @return a bitmask of the axes that move relatively */
+	int getRelative() { return relative; }
+
+	/**
+	 * Add a move. It is merged with the held move if it can be; otherwise the
+	 * held move must be sent with sent() before hold() is called for this one.
+	 * @param from where the move starts, in mm
+	 * @param to where the move ends, in mm; relative axes should be zero
+	 * @param target the move's target in steps
+	 * @param micros how long the move takes
+	 * @param feedrate the feedrate of the move
+	 * @param extrude extrusion per mm of travel on each relative axis, or null
+	 * @param relative a bitmask of the axes that move relatively
+	 * @return true if the move was merged with the held move
+	 */
+	boolean merge(Point5d from, Point5d to, Point5d target, double micros,
+			double feedrate, Point5d extrude, int relative) {
+		if (!pending || cornerCount + 1 >= MAX_MERGED) return false;
+		if (relative != this.relative) return false;
+		if (!same(feedrate, this.feedrate)) return false;
+		for (int i = 0; i < 5; i++) {
+			double e = (extrude == null) ? 0 : extrude.get(i);
+			if (!same(e, extrusion.get(i))) return false;
+		}
+		if (from.distance(end) > 1e-9) return false;
+
+		// Every corner, including the end of the held move, has to lie along
+		// the new line, in order.
+		if (!onLine(end, start, to)) return false;
+		for (int i = 0; i < cornerCount; i++) {
+			if (!onLine(corners[i], start, to)) return false;
+		}
+
+		copy(end, corners[cornerCount++]);
+		copy(to, end);
+		for (int i = 0; i < 5; i++) {
+			if ((relative & (1 << i)) != 0) {
+				steps.set(i, steps.get(i) + target.get(i));
+			} else {
+				steps.set(i, target.get(i));
+			}
+		}
+		this.micros += micros;
+		movesIn++;
+		return true;
+	}
+
+	/**
+	 * Hold back a move that couldn't be merged. Any held move must have been
+	 * sent first.
+	 */
+	void hold(Point5d from, Point5d to, Point5d target, double micros,
+			double feedrate, Point5d extrude, int relative) {
+		copy(from, start);
+		copy(to, end);
+		copy(target, steps);
+		for (int i = 0; i < 5; i++) {
+			extrusion.set(i, (extrude == null) ? 0 : extrude.get(i));
+		}
+		this.micros = micros;
+		this.feedrate = feedrate;
+		this.relative = relative;
+		cornerCount = 0;
+		pending = true;
+		movesIn++;
+	}
+
+	/** Record that the held move has been sent. */
+	void sent() {
+		pending = false;
+		cornerCount = 0;
+		movesOut++;
+	}
+
+	/** Forget the held move without sending it. */
+	void discard() {
+		if (pending) {
+			pending = false;
+			cornerCount = 0;
+			movesIn = Math.max(0, movesIn - 1);
+		}
+	}
+
+	/**
+	 * Log how many moves were merged since the last report, and start
+	 * counting again.
+	 */
+	void report() {
+		if (movesIn == 0 || pending) return;
+		Base.logger.info("Merged " + movesIn + " moves into " + movesOut + " packets ("
+				+ Math.round(100.0 * (movesIn - movesOut) / movesIn) + "% fewer)");
+		movesIn = 0;
+		movesOut = 0;
+	}
+
+	/** @return the number of moves added since the last report */
+	long getMovesIn() { return movesIn; }
+
+	/** @return the number of moves sent since the last report */
+	long getMovesOut() { return movesOut; }
+
+	// True if p lies within the tolerance of the line from a to b, strictly
+	// between the two.
+	private boolean onLine(Point5d p, Point5d a, Point5d b) {
+		double lengthSq = 0, dot = 0;
+		for (int i = 0; i < 5; i++) {
+			double d = b.get(i) - a.get(i);
+			lengthSq += d * d;
+			dot += (p.get(i) - a.get(i)) * d;
+		}
+		if (lengthSq == 0) return false;
+		double t = dot / lengthSq;
+		if (t <= 0 || t >= 1) return false;
+		double distSq = 0;
+		for (int i = 0; i < 5; i++) {
+			double d = p.get(i) - (a.get(i) + t * (b.get(i) - a.get(i)));
+			distSq += d * d;
+		}
+		return distSq <= tolerance * tolerance;
+	}
+
+	private static boolean same(double a, double b) {
+		return Math.abs(a - b) <= 1e-6 * Math.max(Math.abs(a), Math.abs(b));
+	}
+
+	private static void copy(Point5d from, Point5d to) {
+		for (int i = 0; i < 5; i++) {
+			to.set(i, from.get(i));
+		}
+	}
+}
@@ -0,0 +1,337 @@
+package replicatorg.drivers.gen3;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import replicatorg.app.Base;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.util.Point5d;
+
+/**
+ * Plans acceleration across a window of queued moves, so that the machine
+ * speeds up and slows down smoothly instead of starting and stopping every
+ * move at full speed.
+ *
+ * The firmware runs each QUEUE_POINT packet at one constant step rate. The
+ * planner works out a trapezoidal speed profile for each move, limited by
+ * the acceleration of every axis that moves and by how sharp the corner is
+ * into the next move, and then splits the ramps into short constant-speed
+ * pieces. Each piece is sent as an ordinary point with its own step rate.
+ *
+ * Moves are kept in the window until it is full, since a move can only be
+ * planned once we know what comes after it. The last move in the window is
+ * always planned to end at a stop, so the machine is never left going faster
+ * than it can stop from if no more moves arrive.
+ *
+ * The speed jump between one piece and the next is kept below the speed the
+ * machine may take a right-angle corner at, which is the same limit the
+ * planner uses for the corners themselves.
+ */
+class MotionPlanner {
+	/** Most pieces a single ramp is split into */
+	static final int MAX_RAMP_PIECES = 8;
+	/** Fewest steps, on the longest axis, in a piece */
+	static final int MIN_PIECE_STEPS = 8;
+
+	/** A constant-speed part of a move, ready to be sent */
+	static class Piece {
+		/** The target, in absolute steps */
+		final Point5d steps = new Point5d();
+		/** The time between steps on the longest axis, in microseconds */
+		long micros;
+	}
+
+	private static class Block {
+		final Point5d startSteps = new Point5d();
+		final Point5d endSteps = new Point5d();
+		final double[] unit = new double[5];
+		double distance;      // mm
+		double nominalSpeed;  // mm/s
+		double acceleration;  // mm/s/s; infinite if no moving axis is limited
+		double maxEntrySpeed; // mm/s
+		double entrySpeed;    // mm/s
+		boolean entryFixed = false;
+		ArrayList<Piece> pieces = null; // set once the block is committed
+		int sent = 0;
+	}
+
+	private final MachineModel machine;
+	private final int lookahead;
+	private final LinkedList<Block> blocks = new LinkedList<Block>();
+
+	// Statistics, since the last report
+	private long blockCount = 0;
+	private long pieceCount = 0;
+	private double plannedSeconds = 0;
+	private double nominalSeconds = 0;
+
+	MotionPlanner(MachineModel machine, int lookahead) {
+		this.machine = machine;
+		this.lookahead = Math.max(2, lookahead);
+	}
+
+	/** @return true if any axis of the machine has an acceleration limit */
+	static boolean canPlan(MachineModel machine) {
+		Point5d a = machine.getAccelerations();
+		for (int i = 0; i < 5; i++) {
+			if (a.get(i) > 0) return true;
+		}
+		return false;
+	}
+
+	int getLookahead() { return lookahead; }
+
+	boolean isEmpty() { return blocks.isEmpty(); }
+
+	/** @return true if the oldest move has to be sent before another is added */
+	boolean isFull() { return blocks.size() >= lookahead; }
+
+	/**
+	 * Add a move to the window. The window must not be full.
+	 * @param from where the move starts, in mm
+	 * @param to where the move ends, in mm
+	 * @param fromSteps where the move starts, in absolute steps
+	 * @param toSteps where the move ends, in absolute steps
+	 * @param feedrate the feedrate of the move, in mm/min
+	 */
+	void add(Point5d from, Point5d to, Point5d fromSteps, Point5d toSteps, double feedrate) {
+		Block b = new Block();
+		copy(fromSteps, b.startSteps);
+		copy(toSteps, b.endSteps);
+		double distSq = 0;
+		for (int i = 0; i < 5; i++) {
+			double d = to.get(i) - from.get(i);
+			b.unit[i] = d;
+			distSq += d * d;
+		}
+		b.distance = Math.sqrt(distSq);
+		if (b.distance > 0) {
+			for (int i = 0; i < 5; i++) {
+				b.unit[i] /= b.distance;
+			}
+		}
+		b.nominalSpeed = feedrate / 60.0;
+
+		// The move can accelerate no faster than its most limited axis allows.
+		Point5d accel = machine.getAccelerations();
+		b.acceleration = Double.POSITIVE_INFINITY;
+		for (int i = 0; i < 5; i++) {
+			double u = Math.abs(b.unit[i]);
+			if (u > 1e-9 && accel.get(i) > 0) {
+				b.acceleration = Math.min(b.acceleration, accel.get(i) / u);
+			}
+		}
+
+		b.maxEntrySpeed = blocks.isEmpty() ? 0 : junctionSpeed(blocks.getLast(), b);
+		blocks.addLast(b);
+		nominalSeconds += b.distance / b.nominalSpeed;
+		replan();
+	}
+
+	/**
+	 * @return the next piece to send, committing the oldest move if it hasn't
+	 * been already; null if the window is empty. The piece isn't removed until
+	 * pieceSent() is called, so it can be sent again after a RetryException.
+	 */
+	Piece nextPiece() {
+		if (blocks.isEmpty()) return null;
+		Block b = blocks.getFirst();
+		if (b.pieces == null) {
+			commit(b);
+		}
+		return b.pieces.get(b.sent);
+	}
+
+	/** Record that the piece returned by nextPiece() was sent. */
+	void pieceSent() {
+		Block b = blocks.getFirst();
+		b.sent++;
+		pieceCount++;
+		if (b.sent >= b.pieces.size()) {
+			blocks.removeFirst();
+			blockCount++;
+		}
+	}
+
+	/** Forget every move in the window without sending it. */
+	void clear() {
+		blocks.clear();
+	}
+
+	/**
+	 * Log how the moves planned since the last report were sent, and start
+	 * counting again.
+	 */
+	void report() {
+		if (blockCount == 0 || !blocks.isEmpty()) return;
+		Base.logger.info("Planned " + blockCount + " moves as " + pieceCount + " packets; "
+				+ Math.round(100.0 * nominalSeconds / plannedSeconds) + "% of nominal speed");
+		blockCount = 0;
+		pieceCount = 0;
+		plannedSeconds = 0;
+		nominalSeconds = 0;
+	}
+
+	// The fastest the machine may go through the corner between two moves,
+	// so that the path stays within the junction deviation of the corner
+	// when taken at a constant centripetal acceleration.
+	private double junctionSpeed(Block prev, Block next) {
+		double limit = Math.min(prev.nominalSpeed, next.nominalSpeed);
+		double a = Math.min(prev.acceleration, next.acceleration);
+		if (Double.isInfinite(a)) return limit;
+		double cosTheta = 0;
+		for (int i = 0; i < 5; i++) {
+			cosTheta -= prev.unit[i] * next.unit[i];
+		}
+		if (cosTheta > 0.999999) return 0; // reversal
+		if (cosTheta < -0.999999) return limit; // straight on
+		return Math.min(limit, cornerSpeed(a, cosTheta));
+	}
+
+	private double cornerSpeed(double acceleration, double cosTheta) {
+		double sinHalfTheta = Math.sqrt(0.5 * (1.0 - cosTheta));
+		return Math.sqrt(acceleration * machine.getJunctionDeviation()
+				* sinHalfTheta / (1.0 - sinHalfTheta));
+	}
+
+	// Recompute the entry speed of every move that hasn't been committed:
+	// backwards from a stop at the end of the window, so every move can slow
+	// down in time, then forwards, so every move can get up to speed.
+	private void replan() {
+		int n = blocks.size();
+		double exitSpeed = 0;
+		for (int i = n - 1; i >= 0; i--) {
+			Block b = blocks.get(i);
+			if (b.entryFixed) break;
+			b.entrySpeed = Math.min(b.maxEntrySpeed,
+					Math.sqrt(exitSpeed * exitSpeed + 2 * b.acceleration * b.distance));
+			exitSpeed = b.entrySpeed;
+		}
+		for (int i = 1; i < n; i++) {
+			Block prev = blocks.get(i - 1);
+			Block b = blocks.get(i);
+			if (b.entryFixed) continue;
+			double reachable = Math.sqrt(prev.entrySpeed * prev.entrySpeed
+					+ 2 * prev.acceleration * prev.distance);
+			b.entrySpeed = Math.min(b.entrySpeed, reachable);
+		}
+	}
+
+	// Fix the oldest move's speeds and split it into pieces.
+	private void commit(Block b) {
+		b.entryFixed = true;
+		double exitSpeed = 0;
+		if (blocks.size() > 1) {
+			Block next = blocks.get(1);
+			next.entryFixed = true;
+			exitSpeed = next.entrySpeed;
+		}
+
+		// Lengths and durations of the constant-speed pieces, in order
+		double[] lengths = new double[2 * MAX_RAMP_PIECES + 1];
+		double[] seconds = new double[lengths.length];
+		int count = 0;
+
+		double v0 = b.entrySpeed, v1 = exitSpeed, vn = b.nominalSpeed;
+		double a = b.acceleration;
+		if (Double.isInfinite(a)) {
+			lengths[count] = b.distance;
+			seconds[count++] = b.distance / vn;
+		} else {
+			double accelDist = Math.max(0, (vn * vn - v0 * v0) / (2 * a));
+			double decelDist = Math.max(0, (vn * vn - v1 * v1) / (2 * a));
+			double peak = vn;
+			if (accelDist + decelDist > b.distance) {
+				// Too short to reach full speed
+				peak = Math.sqrt((2 * a * b.distance + v0 * v0 + v1 * v1) / 2);
+				peak = Math.max(peak, Math.max(v0, v1));
+				accelDist = Math.max(0, Math.min(b.distance, (peak * peak - v0 * v0) / (2 * a)));
+				decelDist = b.distance - accelDist;
+			}
+			double cruiseDist = Math.max(0, b.distance - accelDist - decelDist);
+			double jump = cornerSpeed(a, 0);
+
+			count = ramp(v0, peak, accelDist, a, jump, lengths, seconds, count);
+			if (cruiseDist > 0) {
+				lengths[count] = cruiseDist;
+				seconds[count++] = cruiseDist / peak;
+			}
+			count = ramp(peak, v1, decelDist, a, jump, lengths, seconds, count);
+		}
+
+		// Turn the pieces into step targets. Short pieces are run together
+		// with the next one, and the last always ends exactly on the target.
+		b.pieces = new ArrayList<Piece>(count);
+		Point5d from = b.startSteps;
+		Point5d target = new Point5d();
+		double travelled = 0, time = 0;
+		for (int j = 0; j < count; j++) {
+			travelled += lengths[j];
+			time += seconds[j];
+			boolean last = (j == count - 1);
+			if (last) {
+				copy(b.endSteps, target);
+			} else {
+				double f = travelled / b.distance;
+				for (int i = 0; i < 5; i++) {
+					double s = b.startSteps.get(i);
+					target.set(i, Math.round(s + f * (b.endSteps.get(i) - s)));
+				}
+			}
+			double masterSteps = longest(from, target);
+			if (masterSteps < MIN_PIECE_STEPS && !last) continue;
+			if (masterSteps == 0 && !b.pieces.isEmpty()) {
+				// Nothing left to move; give the time to the piece before.
+				Piece p = b.pieces.get(b.pieces.size() - 1);
+				double prevSteps = longest(b.pieces.size() > 1 ?
+						b.pieces.get(b.pieces.size() - 2).steps : b.startSteps, p.steps);
+				p.micros += Math.round(time * 1000000.0 / prevSteps);
+				break;
+			}
+			Piece p = new Piece();
+			copy(target, p.steps);
+			p.micros = Math.round(time * 1000000.0 / Math.max(1, masterSteps));
+			b.pieces.add(p);
+			from = p.steps;
+			plannedSeconds += time;
+			time = 0;
+		}
+		plannedSeconds += time;
+	}
+
+	// Split a ramp from one speed to another into constant-speed pieces
+	// whose speeds differ by no more than the given jump.
+	private static int ramp(double from, double to, double length, double acceleration,
+			double jump, double[] lengths, double[] seconds, int count) {
+		if (length <= 0) return count;
+		int n = (int)Math.ceil(Math.abs(to - from) / jump);
+		n = Math.max(1, Math.min(MAX_RAMP_PIECES, n));
+		double remaining = length;
+		for (int k = 0; k < n; k++) {
+			double va = from + (to - from) * k / n;
+			double vb = from + (to - from) * (k + 1) / n;
+			double l = (k == n - 1) ? remaining
+					: Math.abs(vb * vb - va * va) / (2 * acceleration);
+			l = Math.min(l, remaining);
+			remaining -= l;
+			lengths[count] = l;
+			// At constant acceleration the average speed is the mean of the two.
+			seconds[count++] = l / Math.max(1e-6, (va + vb) / 2);
+		}
+		return count;
+	}
+
+	private static double longest(Point5d from, Point5d to) {
+		double max = 0;
+		for (int i = 0; i < 5; i++) {
+			max = Math.max(max, Math.abs(to.get(i) - from.get(i)));
+		}
+		return max;
+	}
+
+	private static void copy(Point5d from, Point5d to) {
+		for (int i = 0; i < 5; i++) {
+			to.set(i, from.get(i));
+		}
+	}
+}
@@ -26,10 +26,25 @@ public class PacketBuilder implements PacketConstants {
 	 *            the command identifier for this packet.
 	 */
 	PacketBuilder(int command) {
+		reset(command);
+	}
+
+	/**
+	 * Throw away the packet being built, and start building a new command
+	 * packet in the same buffer. This lets a driver use one builder for every
+	 * packet it sends.
+	 * 
+	 * @param command
+	 *            the command identifier for this packet.
+	 * @return this builder
+	 */
+	PacketBuilder reset(int command) {
 		idx = 2;
+		crc.reset();
 		data[0] = START_BYTE;
 		// data[1] = length; // just to avoid confusion
 		add8((byte) command);
+		return this;
 	}
 
 	/**
@@ -71,11 +86,30 @@ public class PacketBuilder implements PacketConstants {
 	 * @return a byte array representing the completed packet.
 	 */
 	byte[] getPacket() {
+		int length = finish();
+		byte[] rv = new byte[length];
+		System.arraycopy(data, 0, rv, 0, length);
+		return rv;
+	}
+
+	/**
+	 * Complete the packet in place, without copying it. The packet is valid
+	 * until the builder is reset.
+	 * 
+	 * @return the length of the completed packet, which starts at the
+	 * beginning of getBuffer().
+	 */
+	int finish() {
 		data[idx] = crc.getCrc();
 		data[1] = (byte) (idx - 2); // len does not count packet header
-		byte[] rv = new byte[idx + 1];
-		System.arraycopy(data, 0, rv, 0, idx + 1);
-		return rv;
+		return idx + 1;
+	}
+
+	/**
+	 * @return the buffer the packet is built in.
+	 */
+	byte[] getBuffer() {
+		return data;
 	}
 
 }
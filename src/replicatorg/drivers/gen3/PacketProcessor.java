@@ -34,30 +34,64 @@ public class PacketProcessor implements PacketConstants {
 
 	int payloadIdx = 0;
 
-	byte[] payload;
+	// Payloads are received into this buffer, which is reused for every packet.
+	byte[] payload = new byte[256];
 
 	byte targetCrc = 0;
 
-	IButtonCrc crc;
+	IButtonCrc crc = new IButtonCrc();
 
 	/**
-	 * Reset the packet's state. (The crc is (re-)generated on the length byte
-	 * and thus doesn't need to be reset.(
+	 * Reset the packet's state, so that another packet can be received. (The
+	 * crc and payload index are reset on the length byte.)
 	 */
 	public void reset() {
 		packetState = PacketState.START;
 	}
 
 	/**
-	 * Create a PacketResponse object that contains this packet's payload.
+	 * @return the number of bytes that can be processed next without running
+	 * past the end of the packet: the rest of the payload and the crc once the
+	 * length is known, or a single byte otherwise.
+	 */
+	public int bytesNeeded() {
+		if (packetState == PacketState.PAYLOAD) {
+			return payloadLength - payloadIdx + 1;
+		}
+		return 1;
+	}
+
+	/**
+	 * Create a PacketResponse object that contains a copy of this packet's
+	 * payload.
 	 * 
 	 * @return A valid PacketResponse object
 	 */
 	public PacketResponse getResponse() {
-		PacketResponse pr = new PacketResponse(payload);
+		byte[] p = new byte[payloadLength];
+		System.arraycopy(payload, 0, p, 0, payloadLength);
+		PacketResponse pr = new PacketResponse(p);
 		return pr;
 	}
 
+	/**
+	 * Point the given response at this packet's payload, without copying it.
+	 * The response is only valid until the next packet is processed.
+	 * 
+	 * @return the given response
+	 */
+	public PacketResponse getResponse(PacketResponse pr) {
+		return pr.wrap(payload, payloadLength);
+	}
+
+	/**
+	 * Get the shared response for this packet's response code, for a
+	 * buffered command whose response carries nothing else.
+	 */
+	PacketResponse getCommandResponse() {
+		return PacketResponse.commandResponse((payloadLength > 0) ? payload[0] : 0);
+	}
+
 	/**
 	 * Process the next byte in an incoming packet.
 	 * 
@@ -91,8 +125,8 @@ public class PacketProcessor implements PacketConstants {
 			}
 
 			payloadLength = ((int) b) & 0xFF;
-			payload = new byte[payloadLength];
-			crc = new IButtonCrc();
+			payloadIdx = 0;
+			crc.reset();
 			packetState = (payloadLength > 0) ? PacketState.PAYLOAD : PacketState.CRC;
 			break;
 
@@ -116,6 +150,8 @@ public class PacketProcessor implements PacketConstants {
 						+ " - expected CRC: "
 						+ Integer.toHexString((int) crc.getCrc() & 0xff));
 			}
+			// Either way, the next byte starts a new packet.
+			packetState = PacketState.START;
 			if (crc.getCrc() != targetCrc) {
 				throw new CRCException(crc.getCrc(), targetCrc);
 			}
@@ -64,6 +64,10 @@ public class PacketResponse {
 
 	byte[] payload;
 
+	// Number of valid bytes in the payload; a response that wraps a receive
+	// buffer in place may have a payload array longer than this.
+	int length = 0;
+
 	int readPoint = 1;
 
 	public PacketResponse() {
@@ -72,6 +76,18 @@ public class PacketResponse {
 
 	public PacketResponse(byte[] p) {
 		payload = p;
+		length = (p == null) ? 0 : p.length;
+	}
+
+	/**
+	 * Point this response at a new payload, without copying it, and start
+	 * reading it from the beginning.
+	 */
+	PacketResponse wrap(byte[] p, int length) {
+		payload = p;
+		this.length = length;
+		readPoint = 1;
+		return this;
 	}
 
 	public boolean isEmpty() {
@@ -92,9 +108,9 @@ public class PacketResponse {
 		if (Base.logger.isLoggable(level)) {
 			Base.logger.log(level,"Packet response code: " + msg);
 			StringBuffer buf = new StringBuffer("Packet payload: ");
-			if (payload.length <= 1) {
+			if (length <= 1) {
 				buf.append("empty");
-			} else for (int i = 1; i < payload.length; i++) {
+			} else for (int i = 1; i < length; i++) {
 				buf.append(Integer.toHexString(payload[i] & 0xff));
 				buf.append(" ");
 			}
@@ -108,6 +124,11 @@ public class PacketResponse {
 	 * @return an array of bytes representing the payload.
 	 */
 	public byte[] getPayload() {
+		if (payload != null && payload.length != length) {
+			byte[] p = new byte[length];
+			System.arraycopy(payload, 0, p, 0, length);
+			return p;
+		}
 		return payload;
 	}
 
@@ -115,7 +136,7 @@ public class PacketResponse {
 	 * Get the next 8-bit value from the packet payload.
 	 */
 	int get8() {
-		if (payload.length > readPoint)
+		if (length > readPoint)
 			return ((int) payload[readPoint++]) & 0xff;
 		else {
 			Base.logger.fine("Error: payload not big enough.");
@@ -145,11 +166,29 @@ public class PacketResponse {
 	}
 
 	public ResponseCode getResponseCode() {
-		if (payload != null && payload.length > 0)
+		if (payload != null && length > 0)
 			return ResponseCode.fromInt(payload[0] & 0xff);
 		else return ResponseCode.GENERIC_ERROR;
 	}
 
+	// One response for each code a buffered command can be answered with.
+	private static final PacketResponse[] COMMAND_RESPONSES = new PacketResponse[256];
+	static {
+		for (int i = 0; i < COMMAND_RESPONSES.length; i++) {
+			COMMAND_RESPONSES[i] = new PacketResponse(new byte[] { (byte)i });
+		}
+	}
+
+	/**
+	 * The response to a buffered command that was answered with the given
+	 * code. Those responses carry nothing but the code, so there is nothing
+	 * to read from them, and one shared response per code is safe to hand
+	 * to any thread.
+	 */
+	static PacketResponse commandResponse(int code) {
+		return COMMAND_RESPONSES[code & 0xff];
+	}
+
 	public static PacketResponse okResponse() {
 		final byte[] okPayload = {1,1,1,1,1,1,1,1}; // repeated 1s to fake out queries
 		return new PacketResponse(okPayload);
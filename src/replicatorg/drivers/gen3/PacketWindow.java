@@ -0,0 +1,104 @@
+package replicatorg.drivers.gen3;
+
+/**
+ * The command packets the driver is keeping hold of while it pipelines them:
+ * those that have been sent but not answered yet, oldest first, followed by
+ * those that have to be sent again, in the order they must go out.
+ *
+ * Packets are copied into a fixed ring of slots, so nothing is allocated for
+ * each packet sent.
+ */
+class PacketWindow {
+	private final byte[][] slots;
+	private final int[] lengths;
+	// Slot holding the oldest packet
+	private int head = 0;
+	// Number of packets sent and not answered yet
+	private int sent = 0;
+	// Number of packets held in all
+	private int count = 0;
+
+	PacketWindow(int capacity) {
+		slots = new byte[capacity][PacketBuilder.MAX_PACKET_LENGTH];
+		lengths = new int[capacity];
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+	/** @return the number of packets sent and not answered yet. */
+	int inFlight() {
+		return sent;
+	}
+
+	/** @return true if there are packets waiting to be sent again. */
+	boolean hasWaiting() {
+		return count > sent;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	/**
+	 * Copy the first length bytes of a packet into the window, to be sent
+	 * after any others that are waiting.
+	 */
+	void add(byte[] packet, int length) {
+		if (count == slots.length) {
+			throw new IllegalStateException("Packet window is full");
+		}
+		int slot = slot(count++);
+		System.arraycopy(packet, 0, slots[slot], 0, length);
+		lengths[slot] = length;
+	}
+
+	/** @return the slot of the oldest packet waiting to be sent. */
+	int nextWaiting() {
+		return slot(sent);
+	}
+
+	/** Note that the oldest packet waiting has been sent. */
+	void markSent() {
+		sent++;
+	}
+
+	/** @return the slot of the oldest packet in flight. */
+	int oldest() {
+		return head;
+	}
+
+	byte[] packet(int slot) {
+		return slots[slot];
+	}
+
+	int length(int slot) {
+		return lengths[slot];
+	}
+
+	/** Forget the oldest packet; it has been answered, or given up on. */
+	void removeOldest() {
+		head = slot(1);
+		count--;
+		if (sent > 0) {
+			sent--;
+		}
+	}
+
+	/** Mark every packet in flight as waiting to be sent again. */
+	void rewind() {
+		sent = 0;
+	}
+
+	/** Forget every packet, sent or not. */
+	void clear() {
+		head = 0;
+		sent = 0;
+		count = 0;
+	}
+
+	private int slot(int index) {
+		return (head + index) % slots.length;
+	}
+}
@@ -0,0 +1,255 @@
+package replicatorg.drivers.gen3;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Works out what an .s3g file will do, reading it once from start to end:
+ * how long it will take to build, the range of steps each axis moves over,
+ * how many of each command it has, and where each layer starts and what's
+ * in it.
+ *
+ * The build time is that of the moves, each taking its step interval times
+ * the steps on the axis that moves furthest (or the time given, for
+ * QUEUE_POINT_NEW), plus any delays. The machine is taken to move at a
+ * constant speed, as the DDA does; waiting for tools to heat up and homing
+ * aren't counted.
+ *
+ * A layer starts with the first move at a new height that builds something:
+ * one that drives the A or B axis forwards, or that moves in X or Y with a
+ * tool's extruder motor turned on.
+ */
+public class S3GAnalyzer {
+	private long commandCount;
+	private long byteCount;
+	private final long[] counts = new long[256];
+	private final long[] toolCounts = new long[256];
+	private double micros;
+
+	// Where the machine is, in steps
+	private final int[] position = new int[5];
+	private final int[] target = new int[5];
+	// False after homing, until the position is set again
+	private boolean positionKnown;
+	private boolean moved;
+	private final int[] min = new int[5];
+	private final int[] max = new int[5];
+	// A bit for each tool whose extruder motor is turned on
+	private long motorsOn;
+
+	private int layerCount;
+	private int[] layerZ;
+	private long[] layerStart;
+	private long[] layerCommands;
+	private long[] layerMoves;
+	private double[] layerMicros;
+
+	public S3GAnalyzer() {
+		reset();
+	}
+
+	private void reset() {
+		commandCount = 0;
+		byteCount = 0;
+		Arrays.fill(counts, 0);
+		Arrays.fill(toolCounts, 0);
+		micros = 0;
+		Arrays.fill(position, 0);
+		// Capturing starts from wherever the machine is, which it takes to be 0.
+		positionKnown = true;
+		moved = false;
+		motorsOn = 0;
+		layerCount = 0;
+		layerZ = new int[64];
+		layerStart = new long[64];
+		layerCommands = new long[64];
+		layerMoves = new long[64];
+		layerMicros = new double[64];
+	}
+
+	/**
+	 * Analyze an .s3g file, replacing the results of any earlier analysis.
+	 */
+	public void analyze(File file) throws IOException {
+		S3GDecoder decoder = new S3GDecoder(file);
+		try {
+			analyze(decoder);
+		} finally {
+			decoder.close();
+		}
+	}
+
+	/**
+	 * Analyze the commands a decoder has yet to read, replacing the results
+	 * of any earlier analysis.
+	 */
+	public void analyze(S3GDecoder decoder) throws IOException {
+		reset();
+		S3GCommand command = new S3GCommand();
+		while (decoder.next(command)) {
+			add(command);
+		}
+	}
+
+	private void add(S3GCommand c) {
+		MotherboardCommandCode code = c.getCode();
+		counts[code.getCode()]++;
+		byteCount += c.getLength();
+		commandCount++;
+		double time = 0;
+		boolean isMove = false;
+
+		switch (code) {
+		case QUEUE_POINT_ABS:
+		case QUEUE_POINT_EXT:
+		case QUEUE_POINT_NEW:
+			isMove = true;
+			time = move(c);
+			break;
+		case SET_POSITION:
+		case SET_POSITION_EXT:
+			for (int i = 0; i < c.getAxisCount(); i++) {
+				position[i] = c.getSteps(i);
+			}
+			positionKnown = true;
+			break;
+		case FIND_AXES_MINIMUM:
+		case FIND_AXES_MAXIMUM:
+		case RECALL_HOME_POSITIONS:
+			positionKnown = false;
+			break;
+		case DELAY:
+			time = c.getMillis() * 1000.0;
+			break;
+		case TOOL_COMMAND:
+			toolCounts[c.getToolCodeValue()]++;
+			if (c.getToolCode() == ToolCommandCode.TOGGLE_MOTOR_1 && c.getTool() < 64) {
+				if ((c.getToolValue() & 1) != 0) {
+					motorsOn |= 1L << c.getTool();
+				} else {
+					motorsOn &= ~(1L << c.getTool());
+				}
+			}
+			break;
+		default:
+			break;
+		}
+
+		micros += time;
+		if (layerCount > 0) {
+			int layer = layerCount - 1;
+			layerCommands[layer]++;
+			layerMicros[layer] += time;
+			if (isMove) layerMoves[layer]++;
+		}
+	}
+
+	// Follow a move, starting a new layer if it builds at a new height.
+	// Returns how long it takes, in microseconds.
+	private double move(S3GCommand c) {
+		boolean relative = c.getCode() == MotherboardCommandCode.QUEUE_POINT_NEW;
+		int axes = c.getAxisCount();
+		long longest = 0;
+		boolean builds = false;
+		for (int i = 0; i < 5; i++) {
+			int t = position[i];
+			if (i < axes) {
+				t = (relative && (c.getFlags() & (1 << i)) != 0) ? position[i] + c.getSteps(i) : c.getSteps(i);
+			}
+			long delta = (long)t - position[i];
+			if (i >= 3 && delta > 0) builds = true;
+			longest = Math.max(longest, Math.abs(delta));
+			target[i] = t;
+		}
+		boolean movesXY = target[0] != position[0] || target[1] != position[1];
+		if (motorsOn != 0 && movesXY) builds = true;
+
+		double time = 0;
+		if (positionKnown) {
+			time = relative ? c.getMicros() : longest * (double)c.getMicros();
+		}
+		if (builds && (layerCount == 0 || target[2] != layerZ[layerCount - 1])) {
+			addLayer(target[2]);
+		}
+
+		for (int i = 0; i < 5; i++) {
+			position[i] = target[i];
+			if (!moved || position[i] < min[i]) min[i] = position[i];
+			if (!moved || position[i] > max[i]) max[i] = position[i];
+		}
+		moved = true;
+		positionKnown = true;
+		return time;
+	}
+
+	private void addLayer(int z) {
+		if (layerCount == layerZ.length) {
+			int n = layerCount * 2;
+			int[] zs = new int[n];
+			long[] starts = new long[n];
+			long[] commands = new long[n];
+			long[] moves = new long[n];
+			double[] times = new double[n];
+			System.arraycopy(layerZ, 0, zs, 0, layerCount);
+			System.arraycopy(layerStart, 0, starts, 0, layerCount);
+			System.arraycopy(layerCommands, 0, commands, 0, layerCount);
+			System.arraycopy(layerMoves, 0, moves, 0, layerCount);
+			System.arraycopy(layerMicros, 0, times, 0, layerCount);
+			layerZ = zs;
+			layerStart = starts;
+			layerCommands = commands;
+			layerMoves = moves;
+			layerMicros = times;
+		}
+		layerZ[layerCount] = z;
+		// The move that starts the layer hasn't been counted yet.
+		layerStart[layerCount] = commandCount - 1;
+		layerCommands[layerCount] = 0;
+		layerMoves[layerCount] = 0;
+		layerMicros[layerCount] = 0;
+		layerCount++;
+	}
+
+	/** @return the estimated build time, in milliseconds */
+	public double getBuildTime() { return micros / 1000.0; }
+
+	/** @return the number of commands in the file */
+	public long getCommandCount() { return commandCount; }
+
+	/** @return the number of bytes of commands in the file */
+	public long getByteCount() { return byteCount; }
+
+	/** @return the number of commands of the given kind */
+	public long getCommandCount(MotherboardCommandCode code) { return counts[code.getCode()]; }
+
+	/** @return the number of TOOL_COMMANDs that send the tool the given command */
+	public long getToolCommandCount(ToolCommandCode code) { return toolCounts[code.getCode()]; }
+
+	/** @return true if anything moves, so that there are bounds */
+	public boolean hasBounds() { return moved; }
+
+	/** @return the lowest position an axis moves to, in steps */
+	public int getMinSteps(int axis) { return min[axis]; }
+
+	/** @return the highest position an axis moves to, in steps */
+	public int getMaxSteps(int axis) { return max[axis]; }
+
+	/** @return the number of layers found */
+	public int getLayerCount() { return layerCount; }
+
+	/** @return the height of a layer, in Z steps */
+	public int getLayerZ(int layer) { return layerZ[layer]; }
+
+	/** @return the index of the command a layer starts with, counting from 0 */
+	public long getLayerStart(int layer) { return layerStart[layer]; }
+
+	/** @return the number of commands from the start of a layer to the start of the next */
+	public long getLayerCommandCount(int layer) { return layerCommands[layer]; }
+
+	/** @return the number of moves in a layer */
+	public long getLayerMoveCount(int layer) { return layerMoves[layer]; }
+
+	/** @return how long a layer takes to build, in milliseconds */
+	public double getLayerTime(int layer) { return layerMicros[layer] / 1000.0; }
+}
@@ -0,0 +1,212 @@
+package replicatorg.drivers.gen3;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A command read back out of an .s3g file by an S3GDecoder. The decoder fills
+ * in the same S3GCommand for every command it reads, so only the fields that
+ * go with the current command's code mean anything.
+ */
+public class S3GCommand {
+	private MotherboardCommandCode code;
+	private long offset;
+	private int length;
+
+	// Positions, in steps; three axes or five, depending on the command
+	private final int[] steps = new int[5];
+	private int axisCount;
+	private long micros;
+	private int flags;
+	private long millis;
+	private int tool;
+	private int pingDelay;
+	private int timeout;
+
+	private int toolCodeValue;
+	private ToolCommandCode toolCode;
+	private final byte[] toolPayload = new byte[255];
+	private int toolPayloadLength;
+
+	/** @return the kind of command this is */
+	public MotherboardCommandCode getCode() { return code; }
+
+	/** @return where the command starts in the file, in bytes */
+	public long getOffset() { return offset; }
+
+	/** @return how many bytes the command takes up, counting its code */
+	public int getLength() { return length; }
+
+	/**
+	 * @return the position of an axis, in steps, that a move goes to or the
+	 * position is set to; for QUEUE_POINT_NEW, the steps to move an axis by
+	 * if it's moved relatively
+	 */
+	public int getSteps(int axis) { return steps[axis]; }
+
+	/** @return how many axes getSteps() gives: 3 or 5 */
+	public int getAxisCount() { return axisCount; }
+
+	/**
+	 * @return for QUEUE_POINT_ABS and QUEUE_POINT_EXT, and for homing, the
+	 * microseconds between steps on the axis that moves furthest; for
+	 * QUEUE_POINT_NEW, the microseconds the whole move takes
+	 */
+	public long getMicros() { return micros; }
+
+	/**
+	 * @return the axes moved relatively by QUEUE_POINT_NEW, homed by
+	 * FIND_AXES_MINIMUM or FIND_AXES_MAXIMUM, enabled or disabled by
+	 * ENABLE_AXES, or whose home positions are stored or recalled; one bit
+	 * for each axis, X first
+	 */
+	public int getFlags() { return flags; }
+
+	/** @return how long a DELAY lasts, in milliseconds */
+	public long getMillis() { return millis; }
+
+	/** @return the tool a tool command, tool change or wait is for */
+	public int getTool() { return tool; }
+
+	/** @return how often a wait asks the tool if it's ready, in milliseconds */
+	public int getPingDelay() { return pingDelay; }
+
+	/** @return how long homing or a wait goes on before giving up, in seconds */
+	public int getTimeout() { return timeout; }
+
+	/** @return the command sent to the tool by a TOOL_COMMAND, or null if it's unknown */
+	public ToolCommandCode getToolCode() { return toolCode; }
+
+	/** @return the code of the command sent to the tool by a TOOL_COMMAND */
+	public int getToolCodeValue() { return toolCodeValue; }
+
+	/** @return the number of bytes sent to the tool with its command */
+	public int getToolPayloadLength() { return toolPayloadLength; }
+
+	/** @return a byte sent to the tool with its command */
+	public int getToolPayload(int i) { return toolPayload[i] & 0xff; }
+
+	/**
+	 * @return the bytes sent to the tool with its command, read as one
+	 * unsigned number, least significant byte first
+	 */
+	public long getToolValue() {
+		long v = 0;
+		for (int i = Math.min(toolPayloadLength, 8) - 1; i >= 0; i--) {
+			v = (v << 8) | (toolPayload[i] & 0xff);
+		}
+		return v;
+	}
+
+	// Read a command of the given length from the buffer's position on.
+	void decode(MotherboardCommandCode code, long offset, ByteBuffer b, int length) {
+		int start = b.position();
+		this.code = code;
+		this.offset = offset;
+		this.length = length;
+		b.get();
+		switch (code) {
+		case QUEUE_POINT_ABS:
+			readSteps(b, 3);
+			micros = b.getInt() & 0xffffffffL;
+			break;
+		case SET_POSITION:
+			readSteps(b, 3);
+			break;
+		case QUEUE_POINT_EXT:
+			readSteps(b, 5);
+			micros = b.getInt() & 0xffffffffL;
+			break;
+		case SET_POSITION_EXT:
+			readSteps(b, 5);
+			break;
+		case QUEUE_POINT_NEW:
+			readSteps(b, 5);
+			micros = b.getInt() & 0xffffffffL;
+			flags = b.get() & 0xff;
+			break;
+		case FIND_AXES_MINIMUM:
+		case FIND_AXES_MAXIMUM:
+			flags = b.get() & 0xff;
+			micros = b.getInt() & 0xffffffffL;
+			timeout = b.getShort() & 0xffff;
+			break;
+		case DELAY:
+			millis = b.getInt() & 0xffffffffL;
+			break;
+		case CHANGE_TOOL:
+			tool = b.get() & 0xff;
+			break;
+		case WAIT_FOR_TOOL:
+		case WAIT_FOR_PLATFORM:
+			tool = b.get() & 0xff;
+			pingDelay = b.getShort() & 0xffff;
+			timeout = b.getShort() & 0xffff;
+			break;
+		case TOOL_COMMAND:
+			tool = b.get() & 0xff;
+			toolCodeValue = b.get() & 0xff;
+			toolCode = ToolCommandCode.forCode(toolCodeValue);
+			toolPayloadLength = b.get() & 0xff;
+			b.get(toolPayload, 0, toolPayloadLength);
+			break;
+		case ENABLE_AXES:
+		case STORE_HOME_POSITIONS:
+		case RECALL_HOME_POSITIONS:
+			flags = b.get() & 0xff;
+			break;
+		default:
+			break;
+		}
+		b.position(start + length);
+	}
+
+	private void readSteps(ByteBuffer b, int count) {
+		for (int i = 0; i < count; i++) {
+			steps[i] = b.getInt();
+		}
+		axisCount = count;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(code);
+		switch (code) {
+		case QUEUE_POINT_ABS:
+		case QUEUE_POINT_EXT:
+		case QUEUE_POINT_NEW:
+		case SET_POSITION:
+		case SET_POSITION_EXT:
+			sb.append(" (");
+			for (int i = 0; i < axisCount; i++) {
+				if (i > 0) sb.append(", ");
+				sb.append(steps[i]);
+			}
+			sb.append(')');
+			if (code == MotherboardCommandCode.QUEUE_POINT_NEW) {
+				sb.append(" over ").append(micros).append(" us, relative ").append(flags);
+			} else if (code != MotherboardCommandCode.SET_POSITION && code != MotherboardCommandCode.SET_POSITION_EXT) {
+				sb.append(" at ").append(micros).append(" us");
+			}
+			break;
+		case DELAY:
+			sb.append(' ').append(millis).append(" ms");
+			break;
+		case TOOL_COMMAND:
+			sb.append(' ').append(tool).append(' ');
+			sb.append((toolCode != null) ? toolCode.toString() : Integer.toString(toolCodeValue));
+			for (int i = 0; i < toolPayloadLength; i++) {
+				sb.append(' ').append(toolPayload[i] & 0xff);
+			}
+			break;
+		case CHANGE_TOOL:
+		case WAIT_FOR_TOOL:
+		case WAIT_FOR_PLATFORM:
+			sb.append(' ').append(tool);
+			break;
+		default:
+			sb.append(" 0x").append(Integer.toHexString(flags));
+			break;
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,145 @@
+package replicatorg.drivers.gen3;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the commands back out of an .s3g file, as written by building to a
+ * file or captured to an SD card. The file is the payloads of the command
+ * packets the machine would have been sent, one after another, without their
+ * headers or checksums, so how long each is has to be known from its code.
+ *
+ * Commands are read one at a time into an S3GCommand that can be reused for
+ * every one, so that a file of any size can be read without allocating.
+ * Files are mapped into memory if they aren't too big; anything else is
+ * read through a buffer.
+ */
+public class S3GDecoder {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	// Null if the whole file is mapped into the buffer
+	private final ReadableByteChannel channel;
+	private ByteBuffer buffer;
+	// Where in the file the buffer starts
+	private long bufferStart = 0;
+
+	public S3GDecoder(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		FileChannel fc = in.getChannel();
+		if (fc.size() <= Integer.MAX_VALUE) {
+			try {
+				buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+			} finally {
+				// The mapping stays valid after the channel is closed.
+				in.close();
+			}
+			channel = null;
+		} else {
+			channel = fc;
+			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			buffer.limit(0);
+		}
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public S3GDecoder(InputStream in) {
+		channel = Channels.newChannel(in);
+		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.limit(0);
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+		}
+	}
+
+	/** @return where the next command starts, in bytes from the start of the file */
+	public long getOffset() {
+		return bufferStart + buffer.position();
+	}
+
+	/**
+	 * @return how many bytes a command takes up, counting its code, or -1 if
+	 * it's a command that can't be in a file; a TOOL_COMMAND is 4 bytes
+	 * plus its payload
+	 */
+	static int getLength(MotherboardCommandCode code) {
+		switch (code) {
+		case QUEUE_POINT_ABS: return 17;
+		case SET_POSITION: return 13;
+		case FIND_AXES_MINIMUM: return 8;
+		case FIND_AXES_MAXIMUM: return 8;
+		case DELAY: return 5;
+		case CHANGE_TOOL: return 2;
+		case WAIT_FOR_TOOL: return 6;
+		case TOOL_COMMAND: return 4;
+		case ENABLE_AXES: return 2;
+		case QUEUE_POINT_EXT: return 25;
+		case SET_POSITION_EXT: return 21;
+		case WAIT_FOR_PLATFORM: return 6;
+		case QUEUE_POINT_NEW: return 26;
+		case STORE_HOME_POSITIONS: return 2;
+		case RECALL_HOME_POSITIONS: return 2;
+		default: return -1;
+		}
+	}
+
+	/**
+	 * Read the next command.
+	 * @return false at the end of the file
+	 * @throws IOException if the file can't be read, or doesn't hold s3g
+	 * commands from here on
+	 */
+	public boolean next(S3GCommand command) throws IOException {
+		if (!fill(1)) {
+			return false;
+		}
+		long offset = getOffset();
+		int value = buffer.get(buffer.position()) & 0xff;
+		MotherboardCommandCode code = MotherboardCommandCode.forCode(value);
+		int length = (code == null) ? -1 : getLength(code);
+		if (length < 0) {
+			throw new IOException("Unknown command " + value + " at byte " + offset);
+		}
+		if (code == MotherboardCommandCode.TOOL_COMMAND) {
+			if (!fill(length)) {
+				throw new IOException("The file ends in the middle of a command, at byte " + offset);
+			}
+			length += buffer.get(buffer.position() + 3) & 0xff;
+		}
+		if (!fill(length)) {
+			throw new IOException("The file ends in the middle of a command, at byte " + offset);
+		}
+		command.decode(code, offset, buffer, length);
+		return true;
+	}
+
+	// Make sure there are at least the given number of bytes in the buffer,
+	// if the file has that many left.
+	private boolean fill(int count) throws IOException {
+		if (buffer.remaining() >= count) {
+			return true;
+		}
+		if (channel == null) {
+			return false;
+		}
+		bufferStart += buffer.position();
+		buffer.compact();
+		while (buffer.position() < count) {
+			if (channel.read(buffer) < 0) {
+				break;
+			}
+		}
+		buffer.flip();
+		return buffer.remaining() >= count;
+	}
+}
@@ -23,10 +23,12 @@
 
 package replicatorg.drivers.gen3;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.Arrays;
 import java.util.EnumSet;
@@ -37,6 +39,9 @@ import java.util.logging.Level;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.Serial;
+import replicatorg.app.util.serial.Transport;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.MultiTool;
 import replicatorg.drivers.OnboardParameters;
@@ -47,6 +52,7 @@ import replicatorg.drivers.SerialDriver;
 import replicatorg.drivers.Version;
 import replicatorg.drivers.gen3.PacketProcessor.CRCException;
 import replicatorg.machine.model.AxisId;
+import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.uploader.FirmwareUploader;
 import replicatorg.util.Point5d;
@@ -73,6 +79,51 @@ public class Sanguino3GDriver extends SerialDriver
 	public void loadXML(Node xml) {
 		super.loadXML(xml);
 
+		// Optional: number of command packets to keep in flight. 1 (the default) is stop-and-wait.
+		if (XML.hasChildNode(xml, "window")) {
+			try {
+				windowSize = Math.max(1, Integer.parseInt(XML.getChildNodeValue(xml, "window").trim()));
+				window = new PacketWindow(windowSize);
+			} catch (NumberFormatException nfe) {
+				Base.logger.warning("Invalid packet window size, using stop-and-wait");
+			}
+		}
+
+		// Optional: merge collinear moves that are within this many mm of a straight line.
+		if (XML.hasChildNode(xml, "coalesce")) {
+			try {
+				double tolerance = Double.parseDouble(XML.getChildNodeValue(xml, "coalesce").trim());
+				coalescer = (tolerance > 0) ? new MotionCoalescer(tolerance) : null;
+			} catch (NumberFormatException nfe) {
+				Base.logger.warning("Invalid move coalescing tolerance; not merging moves");
+			}
+		}
+
+		// Optional: plan acceleration over this many moves at a time.
+		if (XML.hasChildNode(xml, "lookahead")) {
+			try {
+				lookahead = Integer.parseInt(XML.getChildNodeValue(xml, "lookahead").trim());
+			} catch (NumberFormatException nfe) {
+				Base.logger.warning("Invalid look-ahead length; not planning acceleration");
+			}
+		}
+	}
+
+	public void setMachine(MachineModel m) {
+		super.setMachine(m);
+		planner = null;
+		if (lookahead > 1) {
+			if (MotionPlanner.canPlan(m)) {
+				planner = new MotionPlanner(m, lookahead);
+			} else {
+				Base.logger.warning("No axis acceleration limits given; not planning acceleration");
+			}
+		}
+	}
+
+	@Override
+	protected Transport createEmulator(Node xml) {
+		return new Sanguino3GEmulator(xml, getRate());
 	}
 
 	public void initialize() {
@@ -186,6 +237,36 @@ public class Sanguino3GDriver extends SerialDriver
 		return runCommand(packet,DEFAULT_RETRIES);
 	}
 
+	/**
+	 * Sends a packet straight out of the builder's buffer, without copying it.
+	 * Used with motionPacket() for the packets sent for every move.
+	 */
+	protected PacketResponse runCommand(PacketBuilder pb) throws RetryException {
+		int length = pb.finish();
+		return runCommand(pb.getBuffer(),length,DEFAULT_RETRIES);
+	}
+
+	// Reused for every motion packet, so that queueing a point doesn't allocate.
+	// Points are only ever queued from the machine thread.
+	private final PacketBuilder motionPacket = new PacketBuilder(0);
+
+	/**
+	 * Start building a motion packet in the driver's reusable builder. The
+	 * packet must be sent with runCommand(PacketBuilder) before another one
+	 * is started. Any move held back for merging is sent first.
+	 */
+	protected PacketBuilder motionPacket(MotherboardCommandCode command) throws RetryException {
+		flushMotion();
+		return motionPacket.reset(command.getCode());
+	}
+
+	// Responses are decoded in place in this processor's buffer.
+	private final PacketProcessor responseProcessor = new PacketProcessor();
+	// Response bytes are read from the port into this buffer, a frame at a time.
+	private final byte[] receiveBuffer = new byte[PacketBuilder.MAX_PACKET_LENGTH];
+	// What buffered commands are answered with while capturing to a file.
+	private static final PacketResponse CAPTURED_RESPONSE = PacketResponse.commandResponse(0x81);
+
 	protected PacketResponse runQuery(byte[] packet, int retries) {
 		try {
 			return runCommand(packet,retries);
@@ -212,9 +293,13 @@ public class Sanguino3GDriver extends SerialDriver
 
 	
 	void printDebugData(String title, byte[] data) {
+		printDebugData(title, data, data.length);
+	}
+
+	void printDebugData(String title, byte[] data, int length) {
 		if (Base.logger.isLoggable(Level.FINER)) {
 			StringBuffer buf = new StringBuffer(title + ": ");
-			for (int i = 0; i < data.length; i++) {
+			for (int i = 0; i < length; i++) {
 				buf.append(Integer
 						.toHexString((int) data[i] & 0xff));
 				buf.append(" ");
@@ -237,39 +322,68 @@ public class Sanguino3GDriver extends SerialDriver
 	 * @throws RetryException
 	 */
 	protected PacketResponse runCommand(byte[] packet, int retries) throws RetryException {
+		return runCommand(packet, (packet == null) ? 0 : packet.length, retries);
+	}
+
+	// Send the first length bytes of the given buffer as a packet.
+	private PacketResponse runCommand(byte[] packet, int length, int retries) throws RetryException {
 		if (retries == 0) {
 			Base.logger.severe("Packet timed out!");
 			return PacketResponse.timeoutResponse();
 		}
-		if (packet == null || packet.length < 4) {
+		if (packet == null || length < 4) {
 			Base.logger.severe("Attempt to send empty or too-small packet");
 			return null; // skip empty commands or broken commands
 		}
 
 		boolean isCommand = (packet[2] & 0x80) != 0;
+		// Anything held back for merging has to go out ahead of any other
+		// buffered command. (Motion packets do this when they're started.)
+		if (isCommand && packet != motionPacket.getBuffer()) {
+			flushMotion();
+		}
 		if (fileCaptureOstream != null) {
 			// capture to file.
 			try {
 				if (isCommand) { // ignore query commands
-					fileCaptureOstream.write(packet,2,packet.length-3);
+					fileCaptureOstream.write(packet,2,length-3);
 				} 
 			} catch (IOException ioe) {
 				// IOE should be very rare and shouldn't have to contaminate
 				// our whole call stack; we'll wrap it in a runtime error.
 				throw new RuntimeException(ioe);
 			}
-			return PacketResponse.okResponse();  // Always pretend that it's all good.
+			// Always pretend that it's all good.
+			if (isCommand) {
+				return CAPTURED_RESPONSE;
+			}
+			return PacketResponse.okResponse();
 		}
 
 		// This can actually happen during shutdown.
 		if (serial == null) return PacketResponse.timeoutResponse();
 		
-		PacketProcessor pp;
-		PacketResponse pr = new PacketResponse();
+		// Hold buffered commands back until the machine has room for them.
+		if (isCommand && retries > 0) {
+			waitForBufferRoom(packet[1] & 0xff);
+		}
+		
+		// Buffered commands can be pipelined; they are answered with an ok
+		// response as soon as they are sent. They also go through the window
+		// while it has packets to send again, so as not to get ahead of them.
+		if (isCommand && retries > 0 && (windowSize > 1 || window.hasWaiting())) {
+			return runWindowed(packet, length);
+		}
+		
+		PacketProcessor pp = responseProcessor;
+		PacketResponse pr;
 
 		assert (serial != null);
 
 		synchronized(serial) {
+			// Anything still in flight has to be answered before this packet's
+			// response can be read.
+			drainWindow();
 
 			// Dump out if interrupted
 			if (Thread.currentThread().isInterrupted()) {
@@ -284,66 +398,554 @@ public class Sanguino3GDriver extends SerialDriver
 				}
 				// Reestablish interrupt
 				Thread.currentThread().interrupt();
-				return pr;
+				return new PacketResponse();
 			}
 
-			pp = new PacketProcessor();
+			pp.reset();
 
 			// Do not allow a stop or reset command to interrupt mid-packet!
-			serial.write(packet);
+			serial.write(packet, 0, length);
 			
-			printDebugData("OUT",packet);
+			printDebugData("OUT",packet,length);
 
 			// Read entire response packet
 			boolean completed = false;
-			while (!completed) {
-				// Dump out if interrupted
-				int b = serial.read();
-				if (b == -1) {
-					if (Thread.currentThread().isInterrupted()) {
-						break;
-					}
-					if (retries > 1) {
-						Base.logger.severe("Read timed out; retries remaining: "+Integer.toString(retries));
-					}
-					if (retries == -1) {
-						// silently return a timeout response
-						return PacketResponse.timeoutResponse();
-					}
-					else if (retries < 0) {
-						return runCommand(packet, retries+1);
-					}
-					return runCommand(packet,retries-1);
+			try {
+				completed = readPacket(pp);
+			} catch (CRCException e) {
+				Base.logger.severe("Bad CRC received; retries remaining: "+Integer.toString(retries));
+				packetFailed();
+				return runCommand(packet, length, retries-1);
+			}
+			// Dump out if interrupted
+			if (!completed && !Thread.currentThread().isInterrupted()) {
+				if (retries > 1) {
+					Base.logger.severe("Read timed out; retries remaining: "+Integer.toString(retries));
 				}
-				try {
-					completed = pp.processByte((byte) b);
-				} catch (CRCException e) {
-					Base.logger.severe("Bad CRC received; retries remaining: "+Integer.toString(retries));
-					return runCommand(packet,retries-1);
+				if (retries == -1) {
+					// silently return a timeout response
+					return PacketResponse.timeoutResponse();
+				}
+				else if (retries < 0) {
+					return runCommand(packet, length, retries+1);
 				}
+				packetFailed();
+				return runCommand(packet, length, retries-1);
 			}
-			pr = pp.getResponse();
+			// Query responses are handed back to the caller to read from, so they
+			// get their own copy. A buffered command's response is just its code,
+			// so it gets the shared response for that code.
+			pr = isCommand ? pp.getCommandResponse() : pp.getResponse();
 
 			if (pr.isOK()) {
 				// okay!
+				if (isCommand) {
+					bufferModel.sent(packet[1] & 0xff);
+				}
 			} else if (pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW) {
+				bufferModel.rejected();
+				packetFailed();
 				throw new RetryException();
 			}
 			else {
 				// Other random error
-				printDebugData("Unknown error sending, retry",packet);
+				printDebugData("Unknown error sending, retry",packet,length);
+				packetFailed();
 				if (retries > 1) {
-					return runCommand(packet,retries-1);
+					return runCommand(packet, length, retries-1);
 				}
 			}
 		}
 		return pr;
 	}
 
+	/***************************************************************************
+	 * Move coalescing
+	 **************************************************************************/
+
+	/**
+	 * Merges runs of collinear moves into single packets. Null unless a
+	 * <coalesce> tolerance is given in the machine's driver configuration.
+	 */
+	protected MotionCoalescer coalescer = null;
+	// True while moves held back by the coalescer or the planner are being sent
+	private boolean sendingHeldMotion = false;
+
+	/**
+	 * Hand a move to the coalescer, sending whatever it was holding if the
+	 * two can't be merged.
+	 * @return false if moves aren't being coalesced, and the caller should
+	 * send the move itself.
+	 */
+	protected boolean coalesce(Point5d from, Point5d to, Point5d steps, double micros,
+			double feedrate, Point5d extrusion, int relative) throws RetryException {
+		if (coalescer == null) {
+			return false;
+		}
+		if (!coalescer.merge(from, to, steps, micros, feedrate, extrusion, relative)) {
+			// If this throws, neither move is lost; the retry tries again.
+			sendHeldMove();
+			coalescer.hold(from, to, steps, micros, feedrate, extrusion, relative);
+		}
+		return true;
+	}
+
+	/**
+	 * Send every move held back by the coalescer and the planner. Does
+	 * nothing while those moves are being sent, so that the commands sent
+	 * along with them (such as turning on a fan) don't try to send them again.
+	 */
+	protected void flushMotion() throws RetryException {
+		if (sendingHeldMotion) {
+			return;
+		}
+		sendHeldMove();
+		if (planner == null || planner.isEmpty()) {
+			return;
+		}
+		sendingHeldMotion = true;
+		try {
+			while (!planner.isEmpty()) {
+				sendPlannedPiece();
+			}
+		} finally {
+			sendingHeldMotion = false;
+		}
+	}
+
+	// Send the move the coalescer is holding back, if there is one.
+	private void sendHeldMove() throws RetryException {
+		if (coalescer == null || !coalescer.hasPending() || sendingHeldMotion) {
+			return;
+		}
+		sendingHeldMotion = true;
+		try {
+			sendCoalesced(coalescer);
+		} finally {
+			sendingHeldMotion = false;
+		}
+		coalescer.sent();
+	}
+
+	// Send pending moves, if we can; used before asking whether the machine is done.
+	private boolean tryFlushMotion() {
+		try {
+			flushMotion();
+			return true;
+		} catch (RetryException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Send a merged move. The coalescer holds the total time the move takes;
+	 * this converts it to the time between steps on the longest axis.
+	 */
+	protected void sendCoalesced(MotionCoalescer c) throws RetryException {
+		if (planner != null) {
+			plan(c.getStart(), c.getEnd(), c.getSteps(), c.getFeedrate());
+			return;
+		}
+		double masterSteps = getLongestLength(getAbsDeltaSteps(c.getStart(), c.getEnd(), coalescedSteps));
+		queueAbsolutePoint(c.getSteps(), Math.round(c.getMicros() / masterSteps));
+	}
+
+	// The steps a merged move takes along each axis, reused for every one.
+	private final Point5d coalescedSteps = new Point5d();
+
+	/***************************************************************************
+	 * Acceleration planning
+	 **************************************************************************/
+
+	// Number of moves to plan acceleration over; set with <lookahead>.
+	private int lookahead = 0;
+
+	/**
+	 * Plans acceleration across moves sent with queueAbsolutePoint. Null
+	 * unless a <lookahead> is given in the machine's driver configuration and
+	 * the machine descriptor gives axis accelerations.
+	 */
+	protected MotionPlanner planner = null;
+
+	/**
+	 * Hand a move to the planner, first sending the oldest move it holds if
+	 * its window is full.
+	 * @param from where the move starts, in mm
+	 * @param to where the move ends, in mm
+	 * @param steps where the move ends, in absolute steps
+	 * @param feedrate the feedrate of the move
+	 */
+	protected void plan(Point5d from, Point5d to, Point5d steps, double feedrate) throws RetryException {
+		boolean nested = sendingHeldMotion;
+		sendingHeldMotion = true;
+		try {
+			// If this throws, the move isn't added; the retry tries again.
+			while (planner.isFull()) {
+				sendPlannedPiece();
+			}
+		} finally {
+			sendingHeldMotion = nested;
+		}
+		planner.add(from, to, machine.mmToSteps(from, null, planFromSteps), steps, feedrate);
+	}
+
+	// Where a planned move starts, in steps; the planner copies it.
+	private final Point5d planFromSteps = new Point5d();
+
+	private void sendPlannedPiece() throws RetryException {
+		MotionPlanner.Piece piece = planner.nextPiece();
+		queueAbsolutePoint(piece.steps, piece.micros);
+		planner.pieceSent();
+	}
+
+	/***************************************************************************
+	 * Flow control
+	 **************************************************************************/
+
+	// How much room we think the machine has for buffered commands.
+	private final CommandBufferModel bufferModel = new CommandBufferModel();
+
+	/**
+	 * Make sure the machine has room for a buffered command of the given
+	 * length before it is sent. If our estimate says it doesn't, ask the
+	 * machine; if it still doesn't, wait a while and throw a RetryException,
+	 * rather than sending a packet we know will be rejected.
+	 */
+	private void waitForBufferRoom(int length) throws RetryException {
+		if (bufferModel.hasRoom(length)) {
+			return;
+		}
+		if (bufferModel.isMeasurable()) {
+			synchronized(serial) {
+				drainWindow();
+				measureBuffer();
+			}
+			if (bufferModel.hasRoom(length) || !bufferModel.isMeasurable()) {
+				return;
+			}
+			bufferModel.backoff();
+			throw new RetryException();
+		}
+		// We can't ask, so give the machine time to recover from any recent
+		// rejections and try anyway.
+		bufferModel.pause();
+	}
+
+	/**
+	 * Ask the machine how much room is left in its command buffer.
+	 */
+	private void measureBuffer() {
+		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.GET_BUFFER_SIZE.getCode());
+		PacketResponse pr = runQuery(pb.getPacket());
+		if (pr.getResponseCode() == PacketResponse.ResponseCode.UNSUPPORTED) {
+			if (windowSize > 1) {
+				Base.logger.warning("Firmware can't report its buffer size; reverting to stop-and-wait.");
+				windowSize = 1;
+			}
+			bufferModel.setUnmeasurable();
+			return;
+		}
+		if (pr.isOK()) {
+			bufferModel.measured(((long)pr.get32()) & 0xffffffffL);
+		}
+	}
+
+	/**
+	 * Set our starting estimate of the machine's buffer size from its
+	 * firmware version. The estimate is raised if the machine ever reports
+	 * more room than this.
+	 */
+	private void seedBufferModel(Version v) {
+		bufferModel.reset();
+		bufferModel.setCapacity(v.atLeast(new Version(2,0)) ? 512 : 256);
+	}
+
+	/**
+	 * @return a summary of how often buffered commands were held back or
+	 * rejected.
+	 */
+	public String getFlowControlStatistics() {
+		return bufferModel.toString();
+	}
+
+	/***************************************************************************
+	 * Windowed packet transmission
+	 **************************************************************************/
+
+	/**
+	 * The maximum number of command packets that can be in flight at once.
+	 * A window of 1 is plain stop-and-wait. Set by the <window> node in the
+	 * machine's driver configuration.
+	 *
+	 * The protocol has no sequence numbers: if a packet fails with others in
+	 * flight behind it, the machine may take those first. So packets are
+	 * only sent into the window when the machine has said it has room for
+	 * them, and the first packet that fails for any reason, in the window or
+	 * out of it, turns windowing off for good.
+	 */
+	protected int windowSize = 1;
+
+	// Command packets that have been sent, but whose responses haven't been
+	// read yet, followed by those that were refused and must be sent again
+	// before anything else.
+	private PacketWindow window = new PacketWindow(1);
+	// Number of failed attempts in a row to get the oldest packet accepted.
+	private int windowFailures = 0;
+
+	// Statistics
+	private long windowedPacketCount = 0;
+	private long windowRewindCount = 0;
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Note that a packet was corrupted, lost or rejected. The link can do
+	 * that, so it isn't safe to have more than one packet in flight on it.
+	 */
+	private void packetFailed() {
+		if (windowSize > 1) {
+			Base.logger.warning("Packet failed; reverting to stop-and-wait.");
+			windowSize = 1;
+		}
+	}
+
+	/**
+	 * Send a command packet without waiting for its response.
+	 *
+	 * The gen3 protocol answers packets in order, so the responses to the
+	 * packets in the window are read back oldest first. Packets are only sent
+	 * while the machine's command buffer is known to have room for them; if
+	 * the buffer is full the new packet is not sent, and a RetryException is
+	 * thrown just as in stop-and-wait mode.
+	 */
+	private PacketResponse runWindowed(byte[] packet, int length) throws RetryException {
+		try {
+			synchronized(serial) {
+				if (window.capacity() < windowSize && window.isEmpty()) {
+					window = new PacketWindow(windowSize);
+				}
+				transmit(packet, length);
+				windowedPacketCount++;
+			}
+		} catch (RetryException e) {
+			// Wait outside the lock, so that queries can still get through.
+			bufferModel.backoff();
+			throw e;
+		}
+		return PacketResponse.commandResponse(0x81);
+	}
+
+	/**
+	 * Write the packets waiting to be sent again, then the given one, to the
+	 * serial port, each once there is room for it in both the window and the
+	 * machine's command buffer. The given packet is copied into the window
+	 * when it is sent; it may be null to send only those waiting.
+	 */
+	private void transmit(byte[] packet, int length) throws RetryException {
+		while (true) {
+			if (window.inFlight() >= Math.min(windowSize, window.capacity())) {
+				completeOldest();
+				continue;
+			}
+			// Reading responses may have put packets back to be sent again,
+			// and those have to go out before the new one.
+			boolean waiting = window.hasWaiting();
+			if (!waiting && packet == null) {
+				return;
+			}
+			int size = waiting ? window.packet(window.nextWaiting())[1] & 0xff : packet[1] & 0xff;
+			if (!bufferModel.hasMeasuredRoom(size) && bufferModel.isMeasurable()) {
+				// An overflow in the window could let later packets in ahead of
+				// this one, so only the machine's own word for the room will do.
+				drainWindow();
+				measureBuffer();
+				if (!bufferModel.hasMeasuredRoom(size) && bufferModel.isMeasurable()) {
+					throw new RetryException();
+				}
+				continue;
+			}
+			if (!waiting) {
+				window.add(packet, length);
+				packet = null;
+			}
+			int slot = window.nextWaiting();
+			serial.write(window.packet(slot), 0, window.length(slot));
+			printDebugData("OUT", window.packet(slot), window.length(slot));
+			window.markSent();
+			bufferModel.sent(size);
+		}
+	}
+
+	/**
+	 * Read the responses to every packet still in flight.
+	 */
+	private void drainWindow() {
+		while (window.inFlight() > 0) {
+			completeOldest();
+		}
+	}
+
+	/**
+	 * Read the response to the oldest packet in flight. If it wasn't
+	 * accepted, windowing is turned off and the rest of the window is read
+	 * back. If the packets behind the failed one were all refused too, they
+	 * are queued to be sent again, in order. If any was accepted, or we can't
+	 * tell, the machine may run it ahead of the failed one; then nothing is
+	 * sent again, and the build is stopped with an error.
+	 */
+	private void completeOldest() {
+		PacketResponse pr = readResponse();
+		if (pr != null && pr.isOK()) {
+			window.removeOldest();
+			windowFailures = 0;
+			return;
+		}
+
+		windowRewindCount++;
+		boolean overflow = (pr != null &&
+				pr.getResponseCode() == PacketResponse.ResponseCode.BUFFER_OVERFLOW);
+		if (overflow) {
+			// Our idea of the free space was wrong; ask again before sending more.
+			bufferModel.rejected();
+		} else {
+			Base.logger.severe("Windowed packet failed (" +
+					(pr == null ? "no valid response" : pr.getResponseCode().getMessage()) +
+					") with " + (window.inFlight() - 1) + " packets behind it");
+		}
+		packetFailed();
+
+		boolean lost = (pr == null);
+		int overtaken = 0;
+		int slot = window.oldest();
+		for (int i = window.inFlight() - 1; i > 0; i--) {
+			slot = (slot + 1) % window.capacity();
+			PacketResponse later = lost ? null : readResponse();
+			if (later == null) {
+				// We can't tell whether the machine took it.
+				lost = true;
+				overtaken++;
+			} else if (later.isOK()) {
+				overtaken++;
+				printDebugData("Overtook a failed packet", window.packet(slot), window.length(slot));
+			}
+		}
+		if (lost) {
+			// Throw away any stragglers, so we don't mistake them for answers to new packets.
+			serial.clear();
+		}
+
+		if (overtaken > 0) {
+			Base.logger.severe(overtaken + " packets may have been accepted ahead of a failed one");
+			window.clear();
+			setError(new DriverError("A command to the machine failed after later ones were sent; " +
+					"stopping rather than run them out of order.", false));
+			return;
+		}
+		// Everything in flight was refused, so it can all be sent again in order.
+		window.rewind();
+		if (!overflow && ++windowFailures >= DEFAULT_RETRIES) {
+			Base.logger.severe("Packet timed out!");
+			slot = window.oldest();
+			printDebugData("Dropped", window.packet(slot), window.length(slot));
+			window.removeOldest();
+			windowFailures = 0;
+		}
+	}
+
+	// Read a single response from the machine. Returns null on a timeout or a
+	// corrupted response.
+	private PacketResponse readResponse() {
+		PacketProcessor pp = responseProcessor;
+		pp.reset();
+		try {
+			if (readPacket(pp)) {
+				return pp.getCommandResponse();
+			}
+			Base.logger.severe("Read timed out waiting for a windowed response");
+		} catch (CRCException e) {
+			Base.logger.severe("Bad CRC received on a windowed response");
+		}
+		return null;
+	}
+
+	/**
+	 * Read a response packet into the processor, taking as much of it from
+	 * the port at once as the processor knows belongs to the packet.
+	 * @return true if a whole packet was read; false on a timeout or interrupt.
+	 */
+	private boolean readPacket(PacketProcessor pp) throws CRCException {
+		while (true) {
+			int needed = pp.bytesNeeded();
+			int count = serial.read(receiveBuffer, 0, needed);
+			for (int i = 0; i < count; i++) {
+				if (pp.processByte(receiveBuffer[i])) {
+					return true;
+				}
+			}
+			if (count < needed) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Send any packets that are waiting to be resent.
+	 * @return true if nothing is left waiting
+	 */
+	private boolean flushUnsent() {
+		if (serial == null || !window.hasWaiting()) {
+			return true;
+		}
+		synchronized(serial) {
+			try {
+				transmit(null, 0);
+			} catch (RetryException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Forget about everything in the window; used when the machine's command
+	 * buffer is being cleared anyway.
+	 */
+	private void discardWindow() {
+		if (serial == null) {
+			return;
+		}
+		synchronized(serial) {
+			for (int i = window.inFlight(); i > 0; i--) {
+				if (readResponse() == null) {
+					serial.clear();
+					break;
+				}
+			}
+			window.clear();
+			bufferModel.reset();
+			if (coalescer != null) {
+				coalescer.discard();
+			}
+			if (planner != null) {
+				planner.clear();
+			}
+			windowFailures = 0;
+		}
+		if (windowedPacketCount > 0) {
+			Base.logger.fine("Windowed packets sent: " + windowedPacketCount +
+					", window rewinds: " + windowRewindCount);
+		}
+		Base.logger.fine(bufferModel.toString());
+	}
+
 	static boolean isNotifiedFinishedFeature = false;
 
 	public boolean isFinished() {
+		if (!tryFlushMotion()) { return false; }
 		if (fileCaptureOstream != null) { return true; }  // always done instantly if writing to file
+		if (!flushUnsent()) { return false; }
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.IS_FINISHED.getCode());
 		PacketResponse pr = runQuery(pb.getPacket());
 		if (!pr.isOK()) { return false; }
@@ -356,12 +958,24 @@ public class Sanguino3GDriver extends SerialDriver
 			return true;
 		}
 		boolean finished = (v != 0);
+		if (finished) {
+			// Everything we sent has been run, so the buffer is empty.
+			bufferModel.emptied();
+			if (coalescer != null) {
+				coalescer.report();
+			}
+			if (planner != null) {
+				planner.report();
+			}
+		}
 		Base.logger.fine("Is finished: " + Boolean.toString(finished));
 		return finished;
 	}
 
 	public boolean isBufferEmpty() {
 		// TODO: Make sure this is right
+		if (!tryFlushMotion()) { return false; }
+		if (!flushUnsent()) { return false; }
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.IS_FINISHED.getCode());
 		PacketResponse pr = runQuery(pb.getPacket());
 		if (!pr.isOK()) { return false; }
@@ -374,6 +988,9 @@ public class Sanguino3GDriver extends SerialDriver
 			return true;
 		}
 		boolean finished = (v != 0);
+		if (finished) {
+			bufferModel.emptied();
+		}
 		Base.logger.fine("Buffer empty: " + Boolean.toString(finished));
 		return finished;
 	}
@@ -413,6 +1030,7 @@ public class Sanguino3GDriver extends SerialDriver
 		}
 		Version v = new Version(versionNum / 100, versionNum % 100);
 		Base.logger.warning("Motherboard firmware v" + v + buildname);
+		seedBufferModel(v);
 
 		final String MB_NAME = "RepRap Motherboard v1.X"; 
 		FirmwareUploader.checkLatestVersion(MB_NAME, v);
@@ -444,6 +1062,9 @@ public class Sanguino3GDriver extends SerialDriver
 		stats.packetRetryCount = pr.get32();
 		stats.noiseByteCount = pr.get32();
 		
+		stats.rejectedPacketCount = bufferModel.getRejectedCount();
+		stats.bufferWaitCount = bufferModel.getBackoffCount();
+		stats.bufferWaitMillis = bufferModel.getWaitMillis();
 		return stats;
 	}
 	
@@ -495,7 +1116,12 @@ public class Sanguino3GDriver extends SerialDriver
 
 	public void sendInit() {
 		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.INIT.getCode());
-		runQuery(pb.getPacket());
+		PacketResponse pr = runQuery(pb.getPacket());
+		if (pr.isOK()) {
+			// Init clears the command buffer.
+			bufferModel.reset();
+			bufferModel.emptied();
+		}
 	}
 
 	/***************************************************************************
@@ -503,31 +1129,50 @@ public class Sanguino3GDriver extends SerialDriver
 	 * @throws RetryException 
 	 **************************************************************************/
 
+	// Scratch points for queuePoint, which is only called from the thread
+	// running the build, so that queueing a move doesn't allocate. Nothing
+	// it hands them to keeps them.
+	private final Point5d moveCurrent = new Point5d();
+	private final Point5d moveDelta = new Point5d();
+	private final Point5d moveDeltaSteps = new Point5d();
+	private final Point5d moveSteps = new Point5d();
+
 	public void queuePoint(Point5d p) throws RetryException {
 		// TODO: check if our current position is valid?
 		
-		Base.logger.fine("Queued point " + p);
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Queued point " + p);
+		}
 
 		// is this point even step-worthy?
-		Point5d deltaSteps = getAbsDeltaSteps(getCurrentPosition(false), p);
+		Point5d current = copyCurrentPosition(moveCurrent);
+		Point5d delta = getAbsDeltaDistance(current, p, moveDelta);
+		Point5d deltaSteps = machine.mmToSteps(delta, null, moveDeltaSteps);
 		double masterSteps = getLongestLength(deltaSteps);
 
 		// okay, we need at least one step.
 		if (masterSteps > 0.0) {
 			// where we going?
-			Point5d steps = machine.mmToSteps(p);
+			Point5d steps = machine.mmToSteps(p, null, moveSteps);
 			
-			Point5d delta = getDelta(p);
 			double feedrate = getSafeFeedrate(delta);
 			
-			// how fast are we doing it?
-			long micros = convertFeedrateToMicros(getCurrentPosition(false),
-					p, feedrate);
-
-			//System.err.println("Steps :"+steps.toString()+" micros "+Long.toString(micros));
-
-			// okay, send it off!
-			queueAbsolutePoint(steps, micros);
+			if (coalescer != null) {
+				// The coalescer works in whole move times, so that merged moves
+				// keep the time they would have taken separately.
+				double micros = delta.magnitude() / feedrate * 60000000.0;
+				coalesce(current, p, steps, micros, feedrate, null, 0);
+			} else if (planner != null) {
+				plan(current, p, steps, feedrate);
+			} else {
+				// how fast are we doing it?
+				long micros = convertFeedrateToMicros(delta, masterSteps, feedrate);
+
+				//System.err.println("Steps :"+steps.toString()+" micros "+Long.toString(micros));
+
+				// okay, send it off!
+				queueAbsolutePoint(steps, micros);
+			}
 
 			super.queuePoint(p);
 		}
@@ -564,10 +1209,12 @@ public class Sanguino3GDriver extends SerialDriver
 	 * //send this segment queueIncrementalPoint(pb, segmentSteps, ticks); } }
 	 */
 	protected void queueAbsolutePoint(Point5d steps, long micros) throws RetryException {
-		PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.QUEUE_POINT_ABS.getCode());
+		PacketBuilder pb = motionPacket(MotherboardCommandCode.QUEUE_POINT_ABS);
 
-		Base.logger.fine("Queued absolute point " + steps + " at "
+		if (Base.logger.isLoggable(Level.FINE)) {
+			Base.logger.fine("Queued absolute point " + steps + " at "
 						+ Long.toString(micros) + " usec.");
+		}
 
 		// just add them in now.
 		pb.add32((int) steps.x());
@@ -575,7 +1222,7 @@ public class Sanguino3GDriver extends SerialDriver
 		pb.add32((int) steps.z());
 		pb.add32((int) micros);
 
-		runCommand(pb.getPacket());
+		runCommand(pb);
 	}
 
 	public void setCurrentPosition(Point5d p) throws RetryException {
@@ -1354,8 +2001,11 @@ public class Sanguino3GDriver extends SerialDriver
 	 **************************************************************************/
 
 	private Point5d getAbsDeltaDistance(Point5d current, Point5d target) {
+		return getAbsDeltaDistance(current, target, new Point5d());
+	}
+
+	private Point5d getAbsDeltaDistance(Point5d current, Point5d target, Point5d delta) {
 		// calculate our deltas.
-		Point5d delta = new Point5d();
 		delta.sub(target, current); // delta = target - current
 		delta.absolute();
 		
@@ -1366,6 +2016,15 @@ public class Sanguino3GDriver extends SerialDriver
 		return machine.mmToSteps(getAbsDeltaDistance(current, target));
 	}
 
+	/**
+	 * Work out the distance to the target in steps along each axis, writing
+	 * it into steps.
+	 * @return steps
+	 */
+	protected Point5d getAbsDeltaSteps(Point5d current, Point5d target, Point5d steps) {
+		return machine.mmToSteps(getAbsDeltaDistance(current, target, steps), null, steps);
+	}
+
 	/**
 	 * 
 	 * @param current
@@ -1377,6 +2036,17 @@ public class Sanguino3GDriver extends SerialDriver
 		Point5d deltaDistance = getAbsDeltaDistance(current, target);
  		Point5d deltaSteps = machine.mmToSteps(deltaDistance);
 		double masterSteps = getLongestLength(deltaSteps);
+		return convertFeedrateToMicros(deltaDistance, masterSteps, feedrate);
+	}
+
+	/**
+	 * @param deltaDistance the distance moved along each axis, in mm
+	 * @param masterSteps the most steps any axis takes
+	 * @param feedrate Feedrate in mm per minute
+	 * @return the time between steps for the axis that takes the most, in
+	 * microseconds
+	 */
+	private long convertFeedrateToMicros(Point5d deltaDistance, double masterSteps, double feedrate) {
 		// how long is our line length?
 		// We calculate this manually, so that we only account for active axes.
 //		double distanceSq = 0.0;
@@ -1425,6 +2095,7 @@ public class Sanguino3GDriver extends SerialDriver
 			pb = new PacketBuilder(MotherboardCommandCode.ABORT.getCode());
 		}
 		Thread.interrupted(); // Clear interrupted status
+		discardWindow();
 		runQuery(pb.getPacket());
 		// invalidate position, force reconciliation.
 		invalidatePosition();
@@ -1449,6 +2120,7 @@ public class Sanguino3GDriver extends SerialDriver
 			// WDT reset introduced in version 1.4 firmware
 			PacketBuilder pb = new PacketBuilder(MotherboardCommandCode.RESET.getCode());
 			Thread.interrupted(); // Clear interrupted status
+			discardWindow();
 			runQuery(pb.getPacket());
 			// invalidate position, force reconciliation.
 			invalidatePosition();
@@ -1888,14 +2560,30 @@ public class Sanguino3GDriver extends SerialDriver
 		return ResponseCode.FAIL_GENERIC;
 	}
 
-	FileOutputStream fileCaptureOstream = null;
+	OutputStream fileCaptureOstream = null;
+	// False when capturing to a stream the caller gave us, which is theirs to close
+	private boolean closeCaptureStream = true;
 	
 	public void beginFileCapture(String path) throws FileNotFoundException {
-		fileCaptureOstream = new FileOutputStream(new File(path));
+		fileCaptureOstream = new BufferedOutputStream(new FileOutputStream(new File(path)), 64 * 1024);
+		closeCaptureStream = true;
+	}
+
+	/**
+	 * Capture commands to the given stream rather than a file, such as when
+	 * compiling a job offline. The stream isn't closed by endFileCapture().
+	 */
+	public void beginFileCapture(OutputStream out) {
+		fileCaptureOstream = out;
+		closeCaptureStream = false;
 	}
 	
 	public void endFileCapture() throws IOException {
-		fileCaptureOstream.close();
+		if (closeCaptureStream) {
+			fileCaptureOstream.close();
+		} else {
+			fileCaptureOstream.flush();
+		}
 		fileCaptureOstream = null;
 	}
 	
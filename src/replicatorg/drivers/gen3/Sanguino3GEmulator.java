@@ -0,0 +1,629 @@
+package replicatorg.drivers.gen3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.LoopbackTransport;
+import replicatorg.app.util.serial.Transport;
+
+/**
+ * An in-process stand-in for a Sanguino3G motherboard and its tools, for
+ * running the gen3 driver without a machine attached.
+ *
+ * The emulator is a transport: it sits on the far end of a loopback link,
+ * which carries bytes at the configured rate. Packets written by the driver
+ * are decoded as the firmware would decode them as they arrive, and replies
+ * are sent back over the link. Buffered commands go into a command buffer of limited
+ * size, and are drained by a motion queue that runs in simulated time, so a
+ * host that sends faster than the machine moves sees BUFFER_OVERFLOW just as
+ * it would from a real board.
+ *
+ * Corrupted packets and line noise can be injected at a fixed rate, and the
+ * emulator keeps the same communication counters as the firmware, along with
+ * the throughput and idle time seen on the link and by the motion queue.
+ *
+ * To use it, add an emulator node to the driver configuration:
+ * <pre>
+ * &lt;emulator buffer="512" bytetime="520" speedup="1" crcerror="0" noise="0"/&gt;
+ * </pre>
+ * buffer is the size of the command buffer in bytes, bytetime is the time
+ * in microseconds to move one byte over the link (by default, the time at the
+ * configured baud rate), speedup scales how fast motion runs, and crcerror and
+ * noise corrupt every Nth packet received and add noise before every Nth
+ * response, respectively (0 to disable).
+ */
+public class Sanguino3GEmulator implements Transport {
+
+	// Response codes, as sent by the firmware
+	private static final int RC_OK = 0x81;
+	private static final int RC_BUFFER_OVERFLOW = 0x82;
+	private static final int RC_CRC_MISMATCH = 0x83;
+	private static final int RC_UNSUPPORTED = 0x85;
+
+	// The firmware version we claim to be
+	private static final int FIRMWARE_VERSION = 300;
+	private static final String BUILD_NAME = "Emulator";
+
+	private static final int EEPROM_SIZE = 4096;
+
+	// Byte injected as line noise; anything but the start byte.
+	private static final byte NOISE_BYTE = 0x55;
+
+	// Lookup table from command codes to commands
+	private static final MotherboardCommandCode[] commands = new MotherboardCommandCode[256];
+	private static final ToolCommandCode[] toolCommands = new ToolCommandCode[256];
+	static {
+		for (MotherboardCommandCode c : MotherboardCommandCode.values()) {
+			commands[c.getCode()] = c;
+		}
+		for (ToolCommandCode c : ToolCommandCode.values()) {
+			toolCommands[c.getCode()] = c;
+		}
+	}
+
+	// A buffered command, waiting in the command buffer.
+	private static class QueuedCommand {
+		final int length;
+		// Simulated time at which the command arrived
+		final long arrival;
+		// Simulated time the command takes to run
+		final long duration;
+		// Position after the command has run, or null if it doesn't move
+		final int[] target;
+
+		QueuedCommand(int length, long arrival, long duration, int[] target) {
+			this.length = length;
+			this.arrival = arrival;
+			this.duration = duration;
+			this.target = target;
+		}
+	}
+
+	// Configuration
+	private int bufferCapacity = 512;
+	private long byteNanos;
+	private double speedup = 1.0;
+	private int crcErrorEvery = 0;
+	private int noiseEvery = 0;
+
+	// The link; the host talks to one end, and we listen on the other.
+	private final LoopbackTransport hostEnd;
+	private final LoopbackTransport deviceEnd;
+
+	// Link state, in real time
+	private final long epoch = System.nanoTime();
+	private long firstPacket = -1;
+	private long lastPacket = -1;
+
+	// Packet decoding
+	private final PacketProcessor processor = new PacketProcessor();
+	private boolean inPacket = false;
+
+	// Machine state, in simulated time
+	private final LinkedList<QueuedCommand> queue = new LinkedList<QueuedCommand>();
+	private int bufferUsed = 0;
+	private long busyUntil = 0;
+	private boolean started = false;
+	private boolean paused = false;
+	private long pausedAt = 0;
+	private final int[] position = new int[5];
+	private final int[] planned = new int[5];
+	private final int[] toolSetpoint = new int[256];
+	private final int[] platformSetpoint = new int[256];
+	private final byte[] eeprom = new byte[EEPROM_SIZE];
+	// Where each command that moved left the machine, in the order they ran;
+	// null unless asked for.
+	private List<int[]> moves = null;
+
+	// Counters
+	private int packetCount = 0;
+	private int sentPacketCount = 0;
+	private int packetFailureCount = 0;
+	private int noiseByteCount = 0;
+	private int overflowCount = 0;
+	private int injectedNoiseCount = 0;
+	private long deviceIdleNanos = 0;
+
+	/**
+	 * Create an emulator with the default configuration.
+	 * @param baudRate the rate the link runs at; this sets the time taken to
+	 * move each byte.
+	 */
+	public Sanguino3GEmulator(int baudRate) {
+		LoopbackTransport[] ends = LoopbackTransport.createPair("Sanguino3G emulator");
+		hostEnd = ends[0];
+		deviceEnd = ends[1];
+		// 8 data bits, a start bit and a stop bit
+		byteNanos = (baudRate > 0) ? (10L * 1000000000L / baudRate) : 0;
+		hostEnd.setByteTime(byteNanos);
+		Arrays.fill(eeprom, (byte)0xff);
+	}
+
+	/**
+	 * Create an emulator configured from an emulator node in the driver's XML.
+	 */
+	public Sanguino3GEmulator(Node xml, int baudRate) {
+		this(baudRate);
+		String value;
+		try {
+			if ((value = XML.getAttributeValue(xml, "buffer")) != null)
+				setBufferCapacity(Integer.parseInt(value));
+			if ((value = XML.getAttributeValue(xml, "bytetime")) != null)
+				setByteTime((long)(Double.parseDouble(value) * 1000));
+			if ((value = XML.getAttributeValue(xml, "speedup")) != null)
+				setSpeedup(Double.parseDouble(value));
+			if ((value = XML.getAttributeValue(xml, "crcerror")) != null)
+				setCrcErrorEvery(Integer.parseInt(value));
+			if ((value = XML.getAttributeValue(xml, "noise")) != null)
+				setNoiseEvery(Integer.parseInt(value));
+		} catch (NumberFormatException nfe) {
+			Base.logger.warning("Invalid emulator setting: " + nfe.getMessage());
+		}
+		Base.logger.info("Emulating Sanguino3G: " + bufferCapacity + " byte buffer, "
+				+ (byteNanos / 1000) + "us per byte, speedup " + speedup);
+	}
+
+	/** Set the size of the command buffer, in bytes. */
+	public synchronized void setBufferCapacity(int bytes) { bufferCapacity = Math.max(1, bytes); }
+
+	/** Set the time taken to move one byte over the link, in nanoseconds. */
+	public synchronized void setByteTime(long nanos) {
+		byteNanos = Math.max(0, nanos);
+		hostEnd.setByteTime(byteNanos);
+	}
+
+	/** Set how many times faster than real time the machine moves. */
+	public synchronized void setSpeedup(double speedup) { this.speedup = (speedup > 0) ? speedup : 1.0; }
+
+	/** Corrupt every Nth packet received from the host; 0 to disable. */
+	public synchronized void setCrcErrorEvery(int n) { crcErrorEvery = Math.max(0, n); }
+
+	/** Add a noise byte before every Nth response; 0 to disable. */
+	public synchronized void setNoiseEvery(int n) { noiseEvery = Math.max(0, n); }
+
+	// Simulated machine time corresponding to the given real time
+	private long simTime(long realNanos) {
+		return (long)((realNanos - epoch) * speedup);
+	}
+
+	public String getName() {
+		return hostEnd.getName();
+	}
+
+	public void open(Receiver receiver) throws SerialException {
+		deviceEnd.open(new Receiver() {
+			public void received(byte[] bytes, int offset, int length) {
+				Sanguino3GEmulator.this.received(bytes, offset, length);
+			}
+			public void lost(String reason) {
+			}
+		});
+		hostEnd.open(receiver);
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		hostEnd.write(bytes, offset, length);
+	}
+
+	public void pulseRTSLow() {
+		// A reset is as good as a power cycle.
+		synchronized (this) {
+			clearQueue();
+			paused = false;
+		}
+	}
+
+	// Bytes from the host, as they come off the link.
+	private synchronized void received(byte[] bytes, int offset, int length) {
+		long arrival = System.nanoTime();
+		for (int i = 0; i < length; i++) {
+			byte b = bytes[offset + i];
+			if (!inPacket && b != PacketConstants.START_BYTE) {
+				noiseByteCount++;
+				continue;
+			}
+			inPacket = true;
+			try {
+				if (processor.processByte(b)) {
+					inPacket = false;
+					packetReceived(processor.getResponse().getPayload(), arrival);
+				}
+			} catch (PacketProcessor.CRCException e) {
+				inPacket = false;
+				packetFailureCount++;
+				respond(new PacketBuilder(RC_CRC_MISMATCH));
+			}
+		}
+	}
+
+	private void packetReceived(byte[] payload, long arrival) {
+		packetCount++;
+		if (firstPacket == -1) firstPacket = arrival;
+		lastPacket = arrival;
+
+		if (crcErrorEvery > 0 && (packetCount % crcErrorEvery) == 0) {
+			packetFailureCount++;
+			respond(new PacketBuilder(RC_CRC_MISMATCH));
+			return;
+		}
+		if (payload.length == 0) {
+			respond(new PacketBuilder(RC_UNSUPPORTED));
+			return;
+		}
+
+		long simArrival = simTime(arrival);
+		advance(simArrival);
+
+		int code = payload[0] & 0xff;
+		PacketBuilder reply;
+		if ((code & 0x80) != 0) {
+			reply = bufferCommand(code, payload, simArrival);
+		} else {
+			reply = runQuery(code, payload, simArrival);
+		}
+		respond(reply);
+	}
+
+	// Send a reply back over the link.
+	private void respond(PacketBuilder reply) {
+		sentPacketCount++;
+		byte[] packet = reply.getPacket();
+		if (noiseEvery > 0 && (sentPacketCount % noiseEvery) == 0) {
+			byte[] noisy = new byte[packet.length + 1];
+			noisy[0] = NOISE_BYTE;
+			System.arraycopy(packet, 0, noisy, 1, packet.length);
+			packet = noisy;
+			injectedNoiseCount++;
+		}
+		try {
+			deviceEnd.write(packet, 0, packet.length);
+		} catch (IOException e) {
+			Base.logger.severe("Emulator couldn't reply: " + e.getMessage());
+		}
+	}
+
+	// Run the motion queue up to the given simulated time.
+	private void advance(long now) {
+		if (paused) return;
+		while (!queue.isEmpty()) {
+			QueuedCommand next = queue.getFirst();
+			long start = Math.max(busyUntil, next.arrival);
+			if (start > now) break;
+			// The machine had nothing to do between the last command and this one.
+			if (started && start > busyUntil) {
+				deviceIdleNanos += start - busyUntil;
+			}
+			started = true;
+			queue.removeFirst();
+			bufferUsed -= next.length;
+			busyUntil = start + next.duration;
+			if (next.target != null) {
+				System.arraycopy(next.target, 0, position, 0, position.length);
+				if (moves != null) {
+					moves.add(next.target);
+				}
+			}
+		}
+	}
+
+	private boolean isFinished(long now) {
+		return queue.isEmpty() && busyUntil <= now && !paused;
+	}
+
+	private void clearQueue() {
+		queue.clear();
+		bufferUsed = 0;
+		System.arraycopy(position, 0, planned, 0, planned.length);
+	}
+
+	private PacketBuilder bufferCommand(int code, byte[] payload, long now) {
+		if (payload.length > bufferCapacity - bufferUsed) {
+			overflowCount++;
+			return new PacketBuilder(RC_BUFFER_OVERFLOW);
+		}
+		MotherboardCommandCode command = commands[code];
+		if (command == null) {
+			return new PacketBuilder(RC_UNSUPPORTED);
+		}
+
+		long duration = 0;
+		int[] target = null;
+		switch (command) {
+		case QUEUE_POINT_ABS:
+			target = moveTarget(payload, 3);
+			duration = stepsTaken(target) * get32(payload, 13) * 1000L;
+			break;
+		case QUEUE_POINT_EXT:
+			target = moveTarget(payload, 5);
+			duration = stepsTaken(target) * get32(payload, 21) * 1000L;
+			break;
+		case QUEUE_POINT_NEW: {
+			int relative = (payload.length > 25) ? payload[25] & 0xff : 0;
+			target = planned.clone();
+			for (int i = 0; i < 5; i++) {
+				int value = get32(payload, 1 + 4 * i);
+				target[i] = ((relative & (1 << i)) != 0) ? planned[i] + value : value;
+			}
+			duration = (get32(payload, 21) & 0xffffffffL) * 1000L;
+			break;
+		}
+		case SET_POSITION:
+			target = moveTarget(payload, 3);
+			break;
+		case SET_POSITION_EXT:
+			target = moveTarget(payload, 5);
+			break;
+		case FIND_AXES_MINIMUM:
+		case FIND_AXES_MAXIMUM:
+		case RECALL_HOME_POSITIONS: {
+			// Homing is instantaneous; the axes end up at zero.
+			int axes = payload[1] & 0xff;
+			target = planned.clone();
+			for (int i = 0; i < 5; i++) {
+				if ((axes & (1 << i)) != 0) target[i] = 0;
+			}
+			break;
+		}
+		case DELAY:
+			duration = (get32(payload, 1) & 0xffffffffL) * 1000000L;
+			break;
+		case TOOL_COMMAND:
+			toolCommand(payload);
+			break;
+		default:
+			// Tool changes, waits, axis enables etc. take no time here.
+			break;
+		}
+
+		if (target != null) {
+			System.arraycopy(target, 0, planned, 0, planned.length);
+		}
+		queue.addLast(new QueuedCommand(payload.length, now, duration, target));
+		bufferUsed += payload.length;
+		// A command that arrives to an idle machine starts right away.
+		advance(now);
+		return new PacketBuilder(RC_OK);
+	}
+
+	// Absolute target of a move or position command with the given number of axes
+	private int[] moveTarget(byte[] payload, int axes) {
+		int[] target = planned.clone();
+		for (int i = 0; i < axes; i++) {
+			target[i] = get32(payload, 1 + 4 * i);
+		}
+		return target;
+	}
+
+	// Number of steps taken by the longest axis of a move to the target
+	private long stepsTaken(int[] target) {
+		long max = 0;
+		for (int i = 0; i < target.length; i++) {
+			max = Math.max(max, Math.abs((long)target[i] - planned[i]));
+		}
+		return max;
+	}
+
+	private void toolCommand(byte[] payload) {
+		int tool = payload[1] & 0xff;
+		ToolCommandCode command = toolCommands[payload[2] & 0xff];
+		if (command == ToolCommandCode.SET_TEMP) {
+			toolSetpoint[tool] = get16(payload, 4);
+		} else if (command == ToolCommandCode.SET_PLATFORM_TEMP) {
+			platformSetpoint[tool] = get16(payload, 4);
+		}
+	}
+
+	private PacketBuilder runQuery(int code, byte[] payload, long now) {
+		MotherboardCommandCode command = commands[code];
+		if (command == null) {
+			return new PacketBuilder(RC_UNSUPPORTED);
+		}
+
+		PacketBuilder reply = new PacketBuilder(RC_OK);
+		switch (command) {
+		case VERSION:
+			reply.add16(FIRMWARE_VERSION);
+			break;
+		case GET_BUILD_NAME:
+			addString(reply, BUILD_NAME);
+			break;
+		case INIT:
+		case CLEAR_BUFFER:
+		case ABORT:
+		case RESET:
+			clearQueue();
+			paused = false;
+			break;
+		case EXTENDED_STOP:
+			clearQueue();
+			reply.add8(0);
+			break;
+		case GET_BUFFER_SIZE:
+			reply.add32(bufferCapacity - bufferUsed);
+			break;
+		case GET_POSITION:
+			for (int i = 0; i < 3; i++) reply.add32(position[i]);
+			reply.add8(0);
+			break;
+		case GET_POSITION_EXT:
+			for (int i = 0; i < 5; i++) reply.add32(position[i]);
+			reply.add16(0);
+			break;
+		case PAUSE:
+			if (paused) {
+				// Everything that was waiting has been held up by the pause.
+				busyUntil += now - pausedAt;
+				paused = false;
+			} else {
+				pausedAt = now;
+				paused = true;
+			}
+			break;
+		case IS_FINISHED:
+			reply.add8(isFinished(now) ? 1 : 0);
+			break;
+		case READ_EEPROM: {
+			int offset = get16(payload, 1);
+			int length = payload[3] & 0xff;
+			for (int i = 0; i < length; i++) {
+				int address = offset + i;
+				reply.add8((address < eeprom.length) ? eeprom[address] : 0xff);
+			}
+			break;
+		}
+		case WRITE_EEPROM: {
+			int offset = get16(payload, 1);
+			int length = payload[3] & 0xff;
+			for (int i = 0; i < length && 4 + i < payload.length; i++) {
+				if (offset + i < eeprom.length) eeprom[offset + i] = payload[4 + i];
+			}
+			reply.add8(length);
+			break;
+		}
+		case TOOL_QUERY:
+			return toolQuery(payload);
+		case GET_COMMUNICATION_STATS:
+			reply.add32(packetCount);
+			reply.add32(sentPacketCount);
+			reply.add32(packetFailureCount);
+			reply.add32(0);
+			reply.add32(noiseByteCount);
+			break;
+		default:
+			return new PacketBuilder(RC_UNSUPPORTED);
+		}
+		return reply;
+	}
+
+	private PacketBuilder toolQuery(byte[] payload) {
+		int tool = payload[1] & 0xff;
+		ToolCommandCode command = toolCommands[payload[2] & 0xff];
+		if (command == null) {
+			return new PacketBuilder(RC_UNSUPPORTED);
+		}
+
+		// Heaters come up to temperature immediately.
+		PacketBuilder reply = new PacketBuilder(RC_OK);
+		switch (command) {
+		case VERSION:
+			reply.add16(FIRMWARE_VERSION);
+			break;
+		case GET_BUILD_NAME:
+			addString(reply, BUILD_NAME);
+			break;
+		case GET_TEMP:
+		case GET_SP:
+			reply.add16(toolSetpoint[tool]);
+			break;
+		case GET_PLATFORM_TEMP:
+		case GET_PLATFORM_SP:
+			reply.add16(platformSetpoint[tool]);
+			break;
+		case IS_TOOL_READY:
+		case IS_PLATFORM_READY:
+		case GET_TOOL_STATUS:
+			reply.add8(1);
+			break;
+		case GET_PID_STATE:
+			for (int i = 0; i < 6; i++) reply.add16(0);
+			break;
+		case GET_MOTOR_1_PWM:
+		case GET_MOTOR_2_PWM:
+			reply.add8(0);
+			break;
+		case GET_MOTOR_1_RPM:
+		case GET_MOTOR_2_RPM:
+			reply.add32(0);
+			break;
+		case READ_FROM_EEPROM: {
+			int length = payload[5] & 0xff;
+			for (int i = 0; i < length; i++) reply.add8(0xff);
+			break;
+		}
+		case WRITE_TO_EEPROM:
+			reply.add8(payload[5] & 0xff);
+			break;
+		default:
+			break;
+		}
+		return reply;
+	}
+
+	private static void addString(PacketBuilder pb, String s) {
+		for (int i = 0; i < s.length(); i++) pb.add8(s.charAt(i));
+		pb.add8(0);
+	}
+
+	private static int get16(byte[] payload, int offset) {
+		if (offset + 1 >= payload.length) return 0;
+		return (payload[offset] & 0xff) | ((payload[offset + 1] & 0xff) << 8);
+	}
+
+	private static int get32(byte[] payload, int offset) {
+		return get16(payload, offset) | (get16(payload, offset + 2) << 16);
+	}
+
+	public void close() {
+		hostEnd.close();
+		deviceEnd.close();
+		Base.logger.info(getStatistics());
+	}
+
+	/** Start keeping the position each command leaves the machine in. */
+	public synchronized void recordMoves() {
+		moves = new ArrayList<int[]>();
+	}
+
+	/**
+	 * @return the positions, in steps, that the commands run since
+	 * recordMoves() left the machine in, in the order they ran
+	 */
+	public synchronized List<int[]> getMoves() {
+		return new ArrayList<int[]>(moves);
+	}
+
+	/** @return the number of packets received from the host */
+	public synchronized int getPacketCount() { return packetCount; }
+
+	/** @return the number of buffered commands rejected with BUFFER_OVERFLOW */
+	public synchronized int getOverflowCount() { return overflowCount; }
+
+	/** @return the number of packets rejected with CRC_MISMATCH, injected or not */
+	public synchronized int getCrcErrorCount() { return packetFailureCount; }
+
+	/** @return the number of noise bytes received from, and sent to, the host */
+	public synchronized int getNoiseByteCount() { return noiseByteCount + injectedNoiseCount; }
+
+	/**
+	 * @return the time, in nanoseconds, that the link sat idle in both
+	 * directions while the emulator waited for the host to send something.
+	 */
+	public long getLinkIdleNanos() { return hostEnd.getIdleNanos(); }
+
+	/**
+	 * @return the simulated time, in nanoseconds, that the motion queue ran
+	 * dry between commands.
+	 */
+	public synchronized long getDeviceIdleNanos() { return deviceIdleNanos; }
+
+	/** @return the number of packets received per second of link time */
+	public synchronized double getPacketsPerSecond() {
+		if (packetCount < 2 || lastPacket <= firstPacket) return 0;
+		return (packetCount - 1) * 1e9 / (lastPacket - firstPacket);
+	}
+
+	public synchronized String getStatistics() {
+		return String.format("Emulator: %d packets (%.1f/s), %d overflows, %d CRC errors, "
+				+ "%d noise bytes; link idle %.3fs, machine idle %.3fs",
+				packetCount, getPacketsPerSecond(), overflowCount, packetFailureCount,
+				getNoiseByteCount(), getLinkIdleNanos() / 1e9, deviceIdleNanos / 1e9);
+	}
+}
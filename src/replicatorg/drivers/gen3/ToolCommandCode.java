@@ -44,4 +44,16 @@ public enum ToolCommandCode {
 		this.code = code;
 	}
 	int getCode() { return code; }
+
+	private static final ToolCommandCode[] byCode = new ToolCommandCode[256];
+	static {
+		for (ToolCommandCode c : values()) {
+			byCode[c.code] = c;
+		}
+	}
+
+	/** @return the command with the given code, or null if there isn't one */
+	static ToolCommandCode forCode(int code) {
+		return (code >= 0 && code < byCode.length) ? byCode[code] : null;
+	}
 }
\ No newline at end of file
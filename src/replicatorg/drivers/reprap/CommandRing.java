@@ -0,0 +1,219 @@
+package replicatorg.drivers.reprap;
+
+/**
+ * The commands sent to RepRap firmware that it hasn't acknowledged yet,
+ * oldest first. Each is kept with its line number and the bytes that went
+ * on the wire, so a resend request is answered by looking the line up and
+ * writing the stored bytes again.
+ *
+ * Line numbers go up by one with each command, so the command numbered N
+ * is found directly from the number of the newest. Only after the firmware's
+ * line number has been reset does a lookup fall back to a scan.
+ *
+ * The ring starts at a fixed capacity, and doubles if it is ever outrun.
+ * Not thread safe; the driver holds its buffer lock.
+ */
+class CommandRing {
+	private String[] commands;
+	private int[] numbers;
+	private byte[][] encoded;
+	private int[] lengths;
+	private int head = 0;
+	private int size = 0;
+
+	CommandRing(int capacity) {
+		int n = 1;
+		while (n < capacity) n <<= 1;
+		commands = new String[n];
+		numbers = new int[n];
+		encoded = new byte[n][];
+		lengths = new int[n];
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Add a command as the newest.
+	 * @param number its line number, or -1 if it hasn't got one
+	 */
+	void add(String command, int number) {
+		if (size == commands.length) grow();
+		store(slot(size), command, number);
+		size++;
+	}
+
+	/**
+	 * Add a command before the one at the given position.
+	 */
+	void insert(int position, String command, int number) {
+		add(command, number);
+		for (int i = size - 1; i > position; i--) {
+			swap(i, i - 1);
+		}
+	}
+
+	/**
+	 * Remove the oldest command, as the firmware acknowledges it.
+	 */
+	String removeOldest() {
+		String command = commands[head];
+		commands[head] = null;
+		head = (head + 1) & (commands.length - 1);
+		size--;
+		return command;
+	}
+
+	/**
+	 * Remove the command at the given position, keeping the rest in order.
+	 */
+	String remove(int position) {
+		for (int i = position; i > 0; i--) {
+			swap(i, i - 1);
+		}
+		return removeOldest();
+	}
+
+	String get(int position) {
+		return commands[slot(position)];
+	}
+
+	/** @return the line number of a command, or -1 if it hasn't got one */
+	int getNumber(int position) {
+		return numbers[slot(position)];
+	}
+
+	/**
+	 * @return the bytes a command takes on the wire, newline included. They
+	 * are the first getLength() bytes of getBytes().
+	 */
+	byte[] getBytes(int position) {
+		return encoded[slot(position)];
+	}
+
+	int getLength(int position) {
+		return lengths[slot(position)];
+	}
+
+	/** @return the bytes taken by the commands from one position up to another */
+	int getLength(int from, int to) {
+		int length = 0;
+		for (int i = from; i < to; i++) {
+			length += lengths[slot(i)];
+		}
+		return length;
+	}
+
+	/**
+	 * Copy the bytes of the commands from one position up to another, so
+	 * they can be written at once.
+	 * @return the number of bytes copied
+	 */
+	int copy(int from, int to, byte[] dest) {
+		int at = 0;
+		for (int i = from; i < to; i++) {
+			int s = slot(i);
+			System.arraycopy(encoded[s], 0, dest, at, lengths[s]);
+			at += lengths[s];
+		}
+		return at;
+	}
+
+	/**
+	 * @return the position of the command numbered lineNumber; failing that,
+	 * of the oldest numbered after it; failing that, size()
+	 */
+	int positionOf(int lineNumber) {
+		if (size == 0) return 0;
+		int newest = numbers[slot(size - 1)];
+		if (newest >= 0) {
+			long position = (long)size - 1 - ((long)newest - lineNumber);
+			if (position >= size) return size;
+			if (position >= 0 && numbers[slot((int)position)] == lineNumber) {
+				return (int)position;
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			if (numbers[slot(i)] >= lineNumber) return i;
+		}
+		return size;
+	}
+
+	private int slot(int position) {
+		return (head + position) & (commands.length - 1);
+	}
+
+	// Encode a command and its newline, reusing the slot's byte array.
+	private void store(int slot, String command, int number) {
+		commands[slot] = command;
+		numbers[slot] = number;
+		int n = command.length();
+		byte[] bytes = encoded[slot];
+		boolean ascii = true;
+		if (bytes == null || bytes.length < n + 1) {
+			bytes = new byte[Math.max(n + 1, 64)];
+			encoded[slot] = bytes;
+		}
+		for (int i = 0; i < n && ascii; i++) {
+			char c = command.charAt(i);
+			if (c > 127) {
+				ascii = false;
+			} else {
+				bytes[i] = (byte)c;
+			}
+		}
+		if (!ascii) {
+			// Encoded as Serial.write(String) would have.
+			byte[] raw = command.getBytes();
+			n = raw.length;
+			if (bytes.length < n + 1) {
+				bytes = new byte[n + 1];
+				encoded[slot] = bytes;
+			}
+			System.arraycopy(raw, 0, bytes, 0, n);
+		}
+		bytes[n] = '\n';
+		lengths[slot] = n + 1;
+	}
+
+	private void swap(int a, int b) {
+		int sa = slot(a), sb = slot(b);
+		String command = commands[sa];
+		commands[sa] = commands[sb];
+		commands[sb] = command;
+		int number = numbers[sa];
+		numbers[sa] = numbers[sb];
+		numbers[sb] = number;
+		byte[] bytes = encoded[sa];
+		encoded[sa] = encoded[sb];
+		encoded[sb] = bytes;
+		int length = lengths[sa];
+		lengths[sa] = lengths[sb];
+		lengths[sb] = length;
+	}
+
+	private void grow() {
+		int n = commands.length * 2;
+		String[] newCommands = new String[n];
+		int[] newNumbers = new int[n];
+		byte[][] newEncoded = new byte[n][];
+		int[] newLengths = new int[n];
+		for (int i = 0; i < size; i++) {
+			int s = slot(i);
+			newCommands[i] = commands[s];
+			newNumbers[i] = numbers[s];
+			newEncoded[i] = encoded[s];
+			newLengths[i] = lengths[s];
+		}
+		commands = newCommands;
+		numbers = newNumbers;
+		encoded = newEncoded;
+		lengths = newLengths;
+		head = 0;
+	}
+}
@@ -0,0 +1,343 @@
+package replicatorg.drivers.reprap;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * Rewrites outgoing lines of GCode for RepRap firmware in a reusable buffer:
+ * strips comments, applies the compatibility fixes the firmware needs, picks
+ * out the F and E values the driver tracks, and adds the line number and
+ * checksum. Every line is sent through here, so none of it uses regular
+ * expressions.
+ *
+ * Not thread safe; lines are rewritten one at a time under the driver's send
+ * lock.
+ */
+class LineRewriter {
+	// Powers of ten that convert exactly to doubles
+	private static final double[] POWERS_OF_TEN = new double[23];
+	static {
+		POWERS_OF_TEN[0] = 1;
+		for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+			POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+		}
+	}
+
+	private char[] buf = new char[128];
+	private int length = 0;
+
+	private boolean hasFeedrate;
+	private double feedrate;
+	private boolean hasExtrusion;
+	private double extrusion;
+
+	private DecimalFormat feedrateFormat = null;
+
+	/**
+	 * Strip comments and surrounding whitespace from a line, and apply the
+	 * fixes older firmware needs: M01 and M101-M103 are dropped, and an F
+	 * code just before a trailing E code is moved after it.
+	 * @return false if nothing is left to send
+	 */
+	boolean rewrite(String line) {
+		length = 0;
+		hasFeedrate = false;
+		hasExtrusion = false;
+		ensureCapacity(line.length());
+
+		int start = 0, end = line.length();
+		while (start < end && line.charAt(start) <= ' ') start++;
+		while (end > start && line.charAt(end - 1) <= ' ') end--;
+
+		for (int i = start; i < end; i++) {
+			char c = line.charAt(i);
+			if (c == ';') {
+				break;
+			}
+			if (c == '(') {
+				int close = line.indexOf(')', i + 1);
+				if (close >= 0 && close < end) {
+					i = close;
+					continue;
+				}
+			}
+			// M01 followed by anything but a digit, and M101-M103, are dropped.
+			if (length >= 3 && buf[length - 3] == 'M' && buf[length - 2] == '0'
+					&& buf[length - 1] == '1' && (c < '0' || c > '9')) {
+				length = 0;
+				return false;
+			}
+			if (length >= 3 && buf[length - 3] == 'M' && buf[length - 2] == '1'
+					&& buf[length - 1] == '0' && c >= '1' && c <= '3') {
+				length = 0;
+				return false;
+			}
+			buf[length++] = c;
+		}
+
+		moveTrailingFeedrate();
+		return length > 0;
+	}
+
+	// "... F1200 E5" becomes "...  E5 F1200": the firmware expects F last.
+	private void moveTrailingFeedrate() {
+		int eDigits = length;
+		while (eDigits > 0 && isUnsigned(buf[eDigits - 1])) eDigits--;
+		int e = eDigits - 1;
+		if (e < 0 || buf[e] != 'E') return;
+		int fEnd = e;
+		if (fEnd > 0 && isSpace(buf[fEnd - 1])) fEnd--;
+		int f = fEnd;
+		while (f > 0 && isUnsigned(buf[f - 1])) f--;
+		f--;
+		if (f < 0 || buf[f] != 'F') return;
+
+		// prefix + " E" + e digits + " " + F code
+		int fLength = fEnd - f;
+		int eLength = length - eDigits;
+		char[] moved = new char[fLength];
+		System.arraycopy(buf, f, moved, 0, fLength);
+		ensureCapacity(length + 3);
+		System.arraycopy(buf, eDigits, buf, f + 2, eLength);
+		buf[f] = ' ';
+		buf[f + 1] = 'E';
+		int at = f + 2 + eLength;
+		buf[at++] = ' ';
+		System.arraycopy(moved, 0, buf, at, fLength);
+		length = at + fLength;
+	}
+
+	/**
+	 * Scale the last F code on the line, for realtime control. Moves that
+	 * don't extrude are scaled by the travel multiplier.
+	 */
+	void scaleFeedrate(double multiply, double travelMultiply, double limit) {
+		int f = lastIndexOf('F');
+		if (f < 0) return;
+		int digits = f + 1;
+		while (digits < length && isUnsigned(buf[digits])) digits++;
+		double value = parse(f + 1, digits);
+		if (Double.isNaN(value)) return;
+		value *= (lastIndexOf('E') < 0) ? travelMultiply : multiply;
+		if (value > limit) value = limit;
+
+		if (feedrateFormat == null) {
+			DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
+			dfs.setDecimalSeparator('.');
+			feedrateFormat = new DecimalFormat("#0.0", dfs);
+		}
+		// prefix + " F" + value + " " + rest
+		String formatted = feedrateFormat.format(value);
+		int restLength = length - digits;
+		char[] rest = new char[restLength];
+		System.arraycopy(buf, digits, rest, 0, restLength);
+		ensureCapacity(f + formatted.length() + restLength + 3);
+		buf[f] = ' ';
+		buf[f + 1] = 'F';
+		formatted.getChars(0, formatted.length(), buf, f + 2);
+		int at = f + 2 + formatted.length();
+		buf[at++] = ' ';
+		System.arraycopy(rest, 0, buf, at, restLength);
+		length = at + restLength;
+	}
+
+	/**
+	 * Find the first F and E values on the line.
+	 */
+	void scanValues() {
+		for (int i = 0; i < length; i++) {
+			char c = buf[i];
+			if ((c == 'F' && !hasFeedrate) || (c == 'E' && !hasExtrusion)) {
+				int end = i + 1;
+				while (end < length && isSigned(buf[end])) end++;
+				if (end == i + 1) continue;
+				double value = parse(i + 1, end);
+				if (Double.isNaN(value)) continue;
+				if (c == 'F') {
+					hasFeedrate = true;
+					feedrate = value;
+				} else {
+					hasExtrusion = true;
+					extrusion = value;
+				}
+			}
+		}
+	}
+
+	boolean hasFeedrate() { return hasFeedrate; }
+	double getFeedrate() { return feedrate; }
+	boolean hasExtrusion() { return hasExtrusion; }
+	double getExtrusion() { return extrusion; }
+
+	/** @return true if the line resets the firmware's line number */
+	boolean isLineNumberReset() {
+		for (int i = 0; i + 3 < length; i++) {
+			if (buf[i] == 'M' && buf[i + 1] == '1' && buf[i + 2] == '1' && buf[i + 3] == '0') {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the line number given by a line that is nothing but one, such
+	 * as "n123"; -1 if it isn't such a line
+	 */
+	int getGivenLineNumber() {
+		if (length < 2 || buf[0] != 'n') return -1;
+		int i = 1;
+		while (i < length && isSpace(buf[i])) i++;
+		if (i == length) return -1;
+		long n = 0;
+		for (; i < length; i++) {
+			char c = buf[i];
+			if (c < '0' || c > '9' || n > Integer.MAX_VALUE / 10) return -1;
+			n = n * 10 + (c - '0');
+		}
+		return (n > Integer.MAX_VALUE) ? -1 : (int)n;
+	}
+
+	/**
+	 * Make the line "N<number> <line> *<checksum>", where the checksum is the
+	 * exclusive or of every byte before the '*'.
+	 */
+	void number(int lineNumber) {
+		int digits = decimalLength(lineNumber);
+		int prefix = digits + 2;
+		ensureCapacity(length + prefix + 5);
+		System.arraycopy(buf, 0, buf, prefix, length);
+		buf[0] = 'N';
+		putDecimal(lineNumber, 1, digits);
+		buf[prefix - 1] = ' ';
+		length += prefix;
+		buf[length++] = ' ';
+		checksum();
+	}
+
+	/**
+	 * Append "*<checksum>" to the line as it stands.
+	 */
+	void checksum() {
+		int checksum = 0;
+		for (int i = 0; i < length; i++) {
+			char c = buf[i];
+			if (c > 127) {
+				// Let the platform encode anything that isn't ASCII.
+				checksum = 0;
+				byte[] bytes = new String(buf, 0, length).getBytes();
+				for (int j = 0; j < bytes.length; j++) {
+					checksum ^= bytes[j];
+				}
+				break;
+			}
+			checksum ^= c;
+		}
+		// Written as a signed byte, as the firmware expects
+		int cs = (byte)checksum;
+		int digits = decimalLength(cs);
+		ensureCapacity(length + digits + 1);
+		buf[length++] = '*';
+		putDecimal(cs, length, digits);
+		length += digits;
+	}
+
+	// The number of characters in v, written in decimal
+	private static int decimalLength(int v) {
+		int n = (v < 0) ? 2 : 1;
+		for (long x = Math.abs((long)v); x >= 10; x /= 10) n++;
+		return n;
+	}
+
+	// Write v in decimal into the given number of characters at the given index
+	private void putDecimal(int v, int at, int digits) {
+		long x = v;
+		if (x < 0) {
+			buf[at] = '-';
+			x = -x;
+		}
+		int i = at + digits;
+		do {
+			buf[--i] = (char)('0' + (x % 10));
+			x /= 10;
+		} while (x > 0);
+	}
+
+	int length() { return length; }
+
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+
+	private int lastIndexOf(char c) {
+		for (int i = length - 1; i >= 0; i--) {
+			if (buf[i] == c) return i;
+		}
+		return -1;
+	}
+
+	private double parse(int start, int end) {
+		return parse(buf, start, end);
+	}
+
+	/**
+	 * Parse a number without allocating. Up to 15 digits are converted
+	 * exactly as Double.parseDouble would; anything else is handed to it.
+	 * @return the number, or NaN if the characters aren't one
+	 */
+	static double parse(char[] buf, int start, int end) {
+		if (start >= end) return Double.NaN;
+		int i = start;
+		boolean negative = false;
+		if (buf[i] == '-') {
+			negative = true;
+			i++;
+		}
+		long mantissa = 0;
+		int digits = 0, scale = 0;
+		boolean point = false;
+		for (; i < end; i++) {
+			char c = buf[i];
+			if (c == '.') {
+				if (point) return Double.NaN;
+				point = true;
+			} else if (c >= '0' && c <= '9') {
+				mantissa = mantissa * 10 + (c - '0');
+				digits++;
+				if (point) scale++;
+			} else {
+				return Double.NaN;
+			}
+		}
+		if (digits == 0) return Double.NaN;
+		if (digits > 15 || scale >= POWERS_OF_TEN.length) {
+			try {
+				return Double.parseDouble(new String(buf, start, end - start));
+			} catch (NumberFormatException e) {
+				return Double.NaN;
+			}
+		}
+		double value = mantissa / POWERS_OF_TEN[scale];
+		return negative ? -value : value;
+	}
+
+	private static boolean isUnsigned(char c) {
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+
+	// What the old regular expressions matched with \s
+	private static boolean isSpace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+
+	private static boolean isSigned(char c) {
+		return isUnsigned(c) || c == '-';
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (capacity > buf.length) {
+			char[] bigger = new char[Math.max(capacity, buf.length * 2)];
+			System.arraycopy(buf, 0, bigger, 0, length);
+			buf = bigger;
+		}
+	}
+}
@@ -27,27 +27,26 @@
  */
 package replicatorg.drivers.reprap;
 
-import java.io.UnsupportedEncodingException;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
-import java.text.NumberFormat;
 import java.util.EnumSet;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.logging.Level;
 
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
 import replicatorg.app.tools.XML;
 import replicatorg.app.util.serial.ByteFifo;
+import replicatorg.app.util.serial.Serial;
 import replicatorg.app.util.serial.SerialFifoEventListener;
+import replicatorg.app.util.serial.Transport;
 import replicatorg.drivers.RealtimeControl;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SerialDriver;
@@ -58,14 +57,16 @@ import replicatorg.util.Point5d;
 
 public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListener, RealtimeControl 
 {
-	private static Pattern gcodeCommentPattern = Pattern.compile("\\([^)]*\\)|;.*");
-	private static Pattern resendLinePattern = Pattern.compile("([0-9]+)");
-	private static Pattern gcodeLineNumberPattern = Pattern.compile("n\\s*([0-9]+)");
-	
 	public final AtomicReference<Double> feedrate = new AtomicReference<Double>(0.0);
 	public final AtomicReference<Double> ePosition = new AtomicReference<Double>(0.0);
 	
 	private final ReentrantLock sendCommandLock = new ReentrantLock();
+
+	/** Rewrites outgoing lines; only used while holding sendCommandLock */
+	private final LineRewriter rewriter = new LineRewriter();
+
+	/** Picks apart incoming lines; only used while holding readResponseLock */
+	private final ResponseScanner responseScanner = new ResponseScanner();
 	
 	/** true if a line containing the start keyword has been received from the firmware*/
 	private final AtomicBoolean startReceived = new AtomicBoolean(false);
@@ -84,7 +85,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	private int introduceNoiseEveryN = -1;
 	private int lineIterator = 0;
 	private int numResends = 0;
-	
+
 	/**
 	 * Enables five D GCodes if true. If false reverts to traditional 3D Gcodes
 	 */
@@ -146,7 +147,16 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	private final ExtrusionUpdater extrusionUpdater = new ExtrusionUpdater(this);
 
 	/**
-	 * the size of the buffer on the GCode host
+	 * If true, commands are streamed to the firmware for as long as they fit
+	 * in its receive buffer, instead of waiting for each one's "ok" before
+	 * sending the next. Every line stays in buffer until its own "ok"
+	 * arrives, so what we count as in the firmware's receive buffer holds
+	 * through resends.
+	 */
+	private boolean streaming = false;
+
+	/**
+	 * the size of the serial receive buffer on the firmware, in bytes
 	 */
 	private int maxBufferSize = 128;
 
@@ -154,8 +164,61 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * The commands sent but not yet acknowledged by the firmware. Stored so they can be resent 
 	 * if there is a checksum problem.
 	 */
-	private LinkedList<String> buffer = new LinkedList<String>();
+	private final CommandRing buffer = new CommandRing(64);
 	private ReentrantLock bufferLock = new ReentrantLock();
+	/** signalled whenever the firmware acknowledges a command or the buffer is flushed */
+	private final Condition bufferSpace = bufferLock.newCondition();
+
+	/**
+	 * How many of the oldest commands in buffer are on the wire. The rest
+	 * are waiting to be sent: when streaming, for room in the firmware's
+	 * receive buffer, or because the firmware asked for an earlier line
+	 * again. New commands aren't sent until these have been.
+	 */
+	private int sent = 0;
+
+	/**
+	 * How many of the oldest commands in buffer have been sent at least once.
+	 * The firmware takes lines strictly in order and answers each one it
+	 * takes with an "ok" once it has run it, so any other "ok" is for the
+	 * oldest of these, even if it's waiting to be sent again.
+	 */
+	private int written = 0;
+
+	/** the bytes sent for the commands on the wire, which the firmware may not have read yet */
+	private int bufferedBytes = 0;
+
+	/**
+	 * "ok"s on their way that acknowledge no command: the one the firmware
+	 * sends straight after a start or a resend request, and the one it sends
+	 * after running the tail of a line it threw away as a command of its own.
+	 */
+	private int extraOks = 0;
+
+	/** commands being resent are gathered here, to be written at once */
+	private byte[] resendBytes = new byte[256];
+
+	/**
+	 * The line the firmware last asked for again, until it's acknowledged;
+	 * otherwise -1. Until then, nothing after it is sent.
+	 */
+	private int resendingLine = -1;
+
+	/** true if the firmware's last error was a line arriving with a bad checksum */
+	private boolean checksumRefused = false;
+
+	/** number of times a command waited for room in the firmware's buffer */
+	private long streamWaitCount = 0;
+
+	/**
+	 * When streaming: how long, in ms, the firmware may say nothing while we
+	 * wait on it before we send it an empty line. If the end of a line was
+	 * lost, the rest sits in the firmware's buffer until a newline arrives;
+	 * the empty line completes it so it can be rejected and resent. If we
+	 * were resending, the resend is started again too.
+	 */
+	private long streamTimeout = 2000;
+	private volatile long lastResponseNanos = System.nanoTime();
 	
 	/** locks the readResponse method to prevent multiple concurrent reads */
 	private ReentrantLock readResponseLock = new ReentrantLock();
@@ -210,6 +273,16 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
             hasChecksums = Boolean.parseBoolean(XML.getChildNodeValue(xml, "checksums"));
         }
 
+        if (XML.hasChildNode(xml, "streaming")) {
+            streaming = Boolean.parseBoolean(XML.getChildNodeValue(xml, "streaming"));
+        }
+        if (XML.hasChildNode(xml, "bufferSize")) {
+            maxBufferSize = Integer.parseInt(XML.getChildNodeValue(xml, "bufferSize"));
+        }
+        if (XML.hasChildNode(xml, "streamTimeout")) {
+            streamTimeout = Long.parseLong(XML.getChildNodeValue(xml, "streamTimeout"));
+        }
+
         if (XML.hasChildNode(xml, "fived")) {
             fiveD = Boolean.parseBoolean(XML.getChildNodeValue(xml, "fived"));
         }
@@ -245,6 +318,11 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
         }
     }
 
+	@Override
+	protected Transport createEmulator(Node xml) {
+		return new RepRapEmulator(xml, getRate());
+	}
+
 	public void updateManualControl()
 	{
 		try {
@@ -405,21 +483,6 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 		sendCommand(code);
 	}
 	
-	/**
-	 * Returns null or the first instance of the matching group
-	 */
-	private String getRegexMatch(String regex, String input, int group)
-	{
-		return getRegexMatch(Pattern.compile(regex), input, group);
-	}
-
-	private String getRegexMatch(Pattern regex, String input, int group)
-	{
-		Matcher matcher = regex.matcher(input);
-		if (!matcher.find() || matcher.groupCount() < group) return null;
-		return matcher.group(group);
-	}
-
 	/**
 	 * Actually sends command over serial.
 	 * 
@@ -431,11 +494,11 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 * is finished sending.
 	 */
 	protected void sendCommand(String next) {
-		_sendCommand(next, true, false);
+		_sendCommand(next, true);
 	}
 
 	protected void sendCommand(String next, boolean synchronous) {
-		_sendCommand(next, synchronous, false);
+		_sendCommand(next, synchronous);
 	}
 
 	
@@ -445,74 +508,66 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			numResends++;
 			if(debugLevel > 0)
 				Base.logger.warning("Resending: \"" + command + "\". Resends in "+ numResends + " of "+lineIterator+" lines.");
-			_sendCommand(command, false, true);
+			bufferLock.lock();
+			buffer.add(command, getLineNumber(command));
+			bufferLock.unlock();
+			sendResends();
 		}
 	}
 
 	/**
-	 * inner method. not for use outside sendCommand and resendCommand
+	 * inner method. not for use outside sendCommand
 	 */
-	protected void _sendCommand(String next, boolean synchronous, boolean resending) {
-				
-		// If this line is uncommented, it simply sends the next line instead of doing a retransmit!
-		if (!resending) 
-		{
-			sendCommandLock.lock();
+	protected void _sendCommand(String next, boolean synchronous) {
+		int commandNumber = -1;
+		sendCommandLock.lock();
 
-			//assert (isInitialized());
-			// System.out.println("sending: " + next);
+		//assert (isInitialized());
+		// System.out.println("sending: " + next);
 	
-			next = clean(next);
-			next = fix(next); // make it compatible with older versions of the GCode interpeter
-			
+		// strip comments and make it compatible with older versions of the GCode interpeter
+		if (!rewriter.rewrite(next))
+		{
 			// skip empty commands.
-			if (next.length() == 0)
-			{
-				sendCommandLock.unlock();
-				return;
-			}
-	
-			//update the current feedrate
-			String feedrate = getRegexMatch("F(-[0-9\\.]+)", next, 1);
-			if (feedrate!=null) this.feedrate.set(Double.parseDouble(feedrate));
-
-			if (!alwaysRelativeE) {
-				//update the current extruder position
-				String e = getRegexMatch("E([-0-9\\.]+)", next, 1);
-				if (e!=null) this.ePosition.set(Double.parseDouble(e));
-			} else {
-				ePosition.set(0.0);
-			}
-
-			// applychecksum replaces the line that was to be retransmitted, into the next line.
-			if (hasChecksums) next = applyNandChecksum(next);
-			
-			Base.logger.finest("sending: "+next);
+			sendCommandLock.unlock();
+			return;
 		}
-		else
-		{
-			Base.logger.finest("resending: "+next);
+		if (realtimeControl) {
+			rewriter.scaleFeedrate(rcFeedrateMultiply, rcTravelFeedrateMultiply, rcFeedrateLimit);
 		}
-		// Block until we can fit the command on the Arduino
-/*		synchronized(bufferLock)
-		{
-			//wait for the number of commands queued in the buffer to shrink before 
-			//adding the next command to it.
-                        // NOTE: must compute bufferSize from buffer elements now
-			while(bufferSize + next.length() + 1 > maxBufferSize)
-			{
-				Base.logger.warning("reprap driver buffer full. gcode write slowed.");
-				try {
-					bufferLock.wait();
-				}
-				catch (InterruptedException e1) {
-					//Presumably we're shutting down
-					Thread.currentThread().interrupt();
-					return;
-				}
+	
+		//update the current feedrate
+		rewriter.scanValues();
+		if (rewriter.hasFeedrate()) this.feedrate.set(rewriter.getFeedrate());
+
+		if (!alwaysRelativeE) {
+			//update the current extruder position
+			if (rewriter.hasExtrusion()) this.ePosition.set(rewriter.getExtrusion());
+		} else {
+			ePosition.set(0.0);
+		}
+
+		// RepRap Syntax: N<linenumber> <cmd> *<chksum>\n
+		if (hasChecksums) {
+			if (rewriter.isLineNumberReset())
+				lineNumber.set(-1);
+
+			int givenLineNumber = rewriter.getGivenLineNumber();
+			if (givenLineNumber >= 0)
+			{ // reset our line number to the specified one. this is usually a m110 line # reset
+				lineNumber.set(givenLineNumber);
+				rewriter.checksum();
+			}
+			else
+			{ // only add a line number if it is not already specified
+				rewriter.number(lineNumber.incrementAndGet());
 			}
-		}*/
+			commandNumber = lineNumber.get();
+		}
+		next = rewriter.toString();
 		
+		if (Base.logger.isLoggable(Level.FINEST))
+			Base.logger.finest("sending: "+next);
 
 		// debug... let us know whats up!
 		if(debugLevel > 1)
@@ -526,140 +581,240 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				serialInUse.lock();
 				bufferLock.lock();
 
+				// When streaming, block until we can fit the command on the Arduino
+				while (streaming && !canStream(next.length() + 1)) {
+					bufferLock.unlock();
+					serialInUse.unlock();
+					waitForBufferSpace(next.length() + 1);
+					serialInUse.lock();
+					bufferLock.lock();
+				}
+
 				// record it in our buffer tracker.
-				buffer.addFirst(next);
+				buffer.add(next, commandNumber);
+				int newest = buffer.size() - 1;
+				if (sent == newest && resendingLine == -1) {
+					sent++;
+					written = sent;
+					bufferedBytes += buffer.getLength(newest);
 				
-				if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
-					Base.logger.info("Introducing noise (lineIterator=="
-							+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
-					lineIterator = 0;
-					String noisyNext = next.replace('6','7').replace('7','1') + "\n";
-					serial.write(noisyNext);
-				} else {
-					serial.write(next + "\n");
+					if((introduceNoiseEveryN != -1) && (lineIterator++) >= introduceNoiseEveryN) {
+						Base.logger.info("Introducing noise (lineIterator=="
+								+ lineIterator + ",introduceNoiseEveryN=" + introduceNoiseEveryN + ")");
+						lineIterator = 0;
+						String noisyNext = next.replace('6','7').replace('7','1') + "\n";
+						serial.write(noisyNext);
+					} else {
+						serial.write(buffer.getBytes(newest), 0, buffer.getLength(newest));
+					}
 				}
 				bufferLock.unlock();
 				serialInUse.unlock();
 
 				// Synchronous gcode transfer. Waits for the 'ok' ack to be received.
-				if (synchronous) next.wait();
+				// When streaming, waiting for room in the buffer is enough.
+				if (synchronous && !streaming) next.wait();
 			}
 		} catch (InterruptedException e1) {
 			//Presumably we're shutting down
 			Thread.currentThread().interrupt();
-			if (!resending) 
-				sendCommandLock.unlock();
+			sendCommandLock.unlock();
 			return;
 		}
 
 		// Wait for the response (synchronous gcode transmission)
 		//while(!isFinished()) {}
 		
-		if (!resending) 
-			sendCommandLock.unlock();
+		sendCommandLock.unlock();
 	}
 
-	public String clean(String str) {
-		String clean = str;
-
-		// trim whitespace
-		clean = clean.trim();
-
-		// remove spaces
-		//clean = clean.replaceAll(" ", "");
-		
-		// remove all comments
-        clean = RepRap5DDriver.gcodeCommentPattern.matcher(clean).replaceAll("");
+	/**
+	 * Is there room in the firmware's receive buffer for this command? A
+	 * command too long for the buffer is sent once the buffer is empty.
+	 * bufferLock must be held.
+	 */
+	private boolean hasRoomFor(int length) {
+		return bufferedBytes == 0 || bufferedBytes + length <= maxBufferSize;
+	}
 
-		return clean;
+	private boolean canStream(int length) {
+		return sent == buffer.size() && resendingLine == -1 && hasRoomFor(length);
 	}
-	public String fix(String str) {
-		String fixed = str;
-		// The 5D firmware expects E codes for extrusion control instead of M101, M102, M103
 
-		Pattern r = Pattern.compile("M01[^0-9]");
-		Matcher m = r.matcher(fixed);
-		if (m.find())
-		{
-			return "";
+	/**
+	 * Wait until a new command can be streamed to the firmware.
+	 */
+	private void waitForBufferSpace(int length) throws InterruptedException {
+		bufferLock.lock();
+		try {
+			streamWaitCount++;
+			while (!canStream(length)) {
+				if (!bufferSpace.await(streamTimeout, TimeUnit.MILLISECONDS)) {
+					checkForStall();
+				}
+			}
+		} finally {
+			bufferLock.unlock();
 		}
+	}
 
-	    // Remove M10[123] codes
-	    // This piece of code causes problems?!? Restarts?
-		r = Pattern.compile("M10[123](.*)");
-		m = r.matcher(fixed);
-	    if (m.find( )) {
-//	    	System.out.println("Didn't find pattern in: " + str );
-//	    	fixed = m.group(1)+m.group(3)+";";
-	    	return "";
-	    }
-		
-		// Reorder E and F codes? F-codes need to go LAST!
-		//requires: import java.util.regex.Matcher; and import java.util.regex.Pattern;
-		r = Pattern.compile("^(.*)(F[0-9\\.]*)\\s?E([0-9\\.]*)$");
-	    m = r.matcher(fixed);
-	    if (m.find( )) {
-			fixed = m.group(1)+" E"+m.group(3)+" "+m.group(2);
-	    }
-
-	    if(realtimeControl) {
-		    // Rescale F value
-		    r = Pattern.compile("(.*)F([0-9\\.]*)(.*)");
-		    m = r.matcher(fixed);
-		    if (m.find( )) {
-		    	double newvalue = Double.valueOf(m.group(2).trim()).doubleValue();
-		    	// FIXME: kind of an ugly way to test for extrusionless "travel" versus extrusion.
-		    	if (!fixed.contains("E"))
-		    	{
-		    		newvalue *= rcTravelFeedrateMultiply;
-		    	} else {
-		    		newvalue *= rcFeedrateMultiply;
-		    	}
-		    	if(newvalue > rcFeedrateLimit)
-		    		newvalue = rcFeedrateLimit;
-
-				DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
-				dfs.setDecimalSeparator('.');
-		    	NumberFormat formatter = new DecimalFormat("#0.0", dfs);
-		    	fixed = m.group(1)+" F"+formatter.format(newvalue)+" "+m.group(3);
-		    }
-		    
-	/*	    // Rescale E value
-			r = Pattern.compile("(.*)E([0-9\\.]*)(.*)");//E317.52// Z-moves slower! Extrude 10% less? More and more rapid reversing
-		    m = r.matcher(fixed);
-		    if (m.find( )) {
-		    	double newEvalue = Double.valueOf(m.group(2).trim()).doubleValue();
-		    	newEvalue = newEvalue * 0.040;
-				DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
-				dfs.setDecimalSeparator('.');
-		    	NumberFormat formatter = new DecimalFormat("#0.0", dfs);
-		    	fixed = m.group(1)+" E"+formatter.format(newEvalue)+" "+m.group(3);
-		    }
-	*/
-	    }
-	    
-	    return fixed; // no change!
+	/**
+	 * When streaming, if commands are outstanding and the firmware has said
+	 * nothing for a while, send it an empty line in case it is sitting on
+	 * part of one. If we were resending a line, it is sent again too, in case
+	 * it was thrown away without a word.
+	 */
+	private void checkForStall() {
+		if (!streaming || System.nanoTime() - lastResponseNanos < streamTimeout * 1000000L) {
+			return;
+		}
+		bufferLock.lock();
+		boolean waiting = written > 0;
+		boolean restart = waiting && resendingLine != -1;
+		if (restart) {
+			sent = buffer.positionOf(resendingLine);
+			bufferedBytes = buffer.getLength(0, sent);
+		}
+		bufferLock.unlock();
+		if (waiting && serial != null) {
+			Base.logger.fine("No response from firmware; sending an empty line");
+			lastResponseNanos = System.nanoTime();
+			serialInUse.lock();
+			serial.write("\n");
+			serialInUse.unlock();
+			if (restart) {
+				Base.logger.fine("Resending from line " + resendingLine);
+				sendResends();
+			}
+		}
 	}
 
 	/**
-	 * takes a line of gcode and returns that gcode with a line number and checksum
+	 * Send the commands waiting to be resent, in one write. When streaming,
+	 * only as many as the firmware has room for are sent; the rest are sent
+	 * as it acknowledges others. While the firmware waits for a line it asked
+	 * for again, only that line is sent.
 	 */
-	public String applyNandChecksum(String gcode) {
-		// RepRap Syntax: N<linenumber> <cmd> *<chksum>\n
+	private void sendResends() {
+		serialInUse.lock();
+		bufferLock.lock();
+		try {
+			int from = sent;
+			int end = buffer.size();
+			if (resendingLine != -1) {
+				end = Math.min(end, buffer.positionOf(resendingLine) + 1);
+			}
+			while (sent < end && (!streaming || hasRoomFor(buffer.getLength(sent)))) {
+				Base.logger.finest("resending: "+buffer.get(sent));
+				bufferedBytes += buffer.getLength(sent);
+				sent++;
+			}
+			if (sent > written) {
+				written = sent;
+			}
+			if (sent > from) {
+				int length = buffer.getLength(from, sent);
+				if (resendBytes.length < length) {
+					resendBytes = new byte[Math.max(length, resendBytes.length * 2)];
+				}
+				buffer.copy(from, sent, resendBytes);
+				serial.write(resendBytes, 0, length);
+			}
+			if (sent == buffer.size() && resendingLine == -1) {
+				bufferSpace.signalAll();
+			}
+		} finally {
+			bufferLock.unlock();
+			serialInUse.unlock();
+		}
+	}
 
-		if (gcode.contains("M110"))
-			lineNumber.set(-1);
-		
-		Matcher lineNumberMatcher = gcodeLineNumberPattern.matcher(gcode);
-		if (lineNumberMatcher.matches())
-		{ // reset our line number to the specified one. this is usually a m110 line # reset
-			lineNumber.set( Integer.parseInt( lineNumberMatcher.group(1) ) );
+	/**
+	 * @return the number after the first N in a command, or -1 if it hasn't
+	 * got one
+	 */
+	private int getLineNumber(String command) {
+		for (int i = 0; i < command.length(); i++) {
+			char c = command.charAt(i);
+			if (c != 'N' && c != 'n') continue;
+			int j = i + 1;
+			while (j < command.length() && Character.isWhitespace(command.charAt(j))) j++;
+			int start = j;
+			while (j < command.length() && command.charAt(j) >= '0' && command.charAt(j) <= '9') j++;
+			if (j > start) return Integer.parseInt(command.substring(start, j));
 		}
-		else
-		{ // only add a line number if it is not already specified
-			gcode = "N"+lineNumber.incrementAndGet()+' '+gcode+' ';
+		return -1;
+	}
+
+	/**
+	 * Handle a resend request. The firmware takes lines strictly in order, so
+	 * it has every line before the bad one, and they stay in the buffer until
+	 * their own "ok"s arrive. It has none from the bad line on; the bad line
+	 * is sent again on its own, and nothing behind it is sent until it's
+	 * acknowledged.
+	 *
+	 * When streaming, the lines already on their way when the firmware asked
+	 * are refused in turn, each bringing another request for the same line.
+	 * Those are ignored unless the firmware says the line itself arrived
+	 * corrupt: there may be any number of them, as the firmware empties its
+	 * receive buffer with each refusal, and sending the line again for each
+	 * would only put more lines on the wire to be refused. If the resent line
+	 * is thrown away with the rest, the firmware falls silent, and
+	 * checkForStall() sends it again. A copy arriving after the line was
+	 * taken is refused like any other out of sequence line, with a request
+	 * for the line after it, so no line is run twice.
+	 * @param badLineNumber the line asked for, or -1 if the request didn't
+	 * say; then everything unacknowledged is sent again, and the firmware
+	 * refuses what it already has.
+	 */
+	private void resendFrom(int badLineNumber, String dudLetter) {
+		bufferLock.lock();
+		try {
+			if (okAfterResend) {
+				// firmware sends "ok" after resend, count it so it isn't taken for an acknowledgement:
+				extraOks++;
+			}
+			boolean corrupt = checksumRefused;
+			checksumRefused = false;
+			if (streaming && badLineNumber >= 0 && badLineNumber == resendingLine && !corrupt && dudLetter == null) {
+				// a line sent before the resent one was refused
+				return;
+			}
+			int position = (badLineNumber < 0) ? 0 : buffer.positionOf(badLineNumber);
+			if (badLineNumber >= 0 && (position == buffer.size() || buffer.getNumber(position) != badLineNumber)) {
+				if (position == buffer.size() && badLineNumber > lineNumber.get()) {
+					// It took everything we sent, then something else went wrong.
+					Base.logger.fine("resend for line " + badLineNumber + ", which hasn't been sent yet");
+				} else {
+					Base.logger.severe("resend for line " + badLineNumber + ", which was already acknowledged");
+					setError("Firmware asked again for line " + badLineNumber + ", after acknowledging it");
+				}
+				return;
+			}
+			if (buffer.isEmpty()) {
+				return;
+			}
+			sent = position;
+			bufferedBytes = buffer.getLength(0, position);
+			if (dudLetter != null) {
+				String dud = buffer.remove(position);
+				if (position < written) {
+					written--;
+				}
+				Base.logger.info("Dud "+dudLetter+" code: Dropping " + dud);
+				synchronized (dud) {
+					dud.notifyAll();
+				}
+			}
+			resendingLine = (position < buffer.size()) ? buffer.getNumber(position) : -1;
+			numResends++;
+			if(debugLevel > 0)
+				Base.logger.warning("Resending line " + resendingLine
+						+ ". Resends in "+ numResends + " of "+lineIterator+" lines.");
+		} finally {
+			bufferLock.unlock();
 		}
-		return applyChecksum(gcode);
+		sendResends();
 	}
 
 	public String applyChecksum(String gcode) {
@@ -674,12 +829,23 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 	
 	public void serialByteReceivedEvent(ByteFifo fifo) {
+		// A chunk of input can hold any number of lines; handle every complete one.
+		while (true) {
+			serialInUse.lock();
+			byte[] response = fifo.dequeueLine();
+			serialInUse.unlock();
+			if (response.length == 0) {
+				return;
+			}
+			processResponse(response);
+		}
+	}
+
+	private void processResponse(byte[] response) {
 		readResponseLock.lock();
 
-		serialInUse.lock();
-		byte[] response = fifo.dequeueLine();
 		int responseLength = response.length;
-		serialInUse.unlock();
+		lastResponseNanos = System.nanoTime();
 
 		// 0 is now an acceptable value; it merely means that we timed out
 		// waiting for input
@@ -689,17 +855,9 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 			readResponseLock.unlock();
 			return;
 		} else if(responseLength!=0) {
-			String line;
-			try
-			{
-				//convert to string and remove any trailing \r or \n's
-				line = new String(response, 0, responseLength, "US-ASCII")
-							.trim().toLowerCase();
-			} catch (UnsupportedEncodingException e) {
-				Base.logger.severe("US-ASCII required. Terminating.");
-				readResponseLock.unlock();
-				throw new RuntimeException(e);
-			}
+			// trims the line, removing any trailing \r or \n's, and lower-cases it
+			ResponseScanner line = responseScanner;
+			line.scan(response, 0, responseLength);
 
 			//System.out.println("received: " + line);
 			if(debugLevel > 1)
@@ -709,32 +867,31 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				Base.logger.fine("empty line received");
 			else if (line.startsWith("echo:")) {
 					//if echo is turned on relay it to the user for debugging
-					Base.logger.info(line);
+					Base.logger.info(line.toString());
+					if (line.isLineTail()) {
+						// The rest of a line cut short when the firmware emptied its
+						// buffer, run as a command of its own; its "ok" isn't for us.
+						bufferLock.lock();
+						extraOks++;
+						bufferLock.unlock();
+					}
 			}
 			else if (line.startsWith("ok t:")||line.startsWith("t:")) {
-				Pattern r = Pattern.compile("t:([0-9\\.]+)");
-			    Matcher m = r.matcher(line);
-			    if (m.find( )) {
-			    	String temp = m.group(1);
-					
-					machine.currentTool().setCurrentTemperature(
-							Double.parseDouble(temp));
-			    }
-				r = Pattern.compile("^ok.*b:([0-9\\.]+)$");
-			    m = r.matcher(line);
-			    if (m.find( )) {
-			    	String bedTemp = m.group(1);
-					machine.currentTool().setPlatformCurrentTemperature(
-							Double.parseDouble(bedTemp));
-			    }
+				double temp = line.getTemperature();
+				if (!Double.isNaN(temp)) {
+					machine.currentTool().setCurrentTemperature(temp);
+				}
+				double bedTemp = line.getBedTemperature();
+				if (!Double.isNaN(bedTemp)) {
+					machine.currentTool().setPlatformCurrentTemperature(bedTemp);
+				}
 			}
 			else if (line.startsWith("ok c:")||line.startsWith("c:")) {
-				Pattern r = Pattern.compile("c: *x:?([-0-9\\.]+) *y:?([-0-9\\.]+) *z:?([-0-9\\.]+)");
-				Matcher m = r.matcher(line);
-				if (m.find()) {
-					double x = Double.parseDouble(m.group(1));
-					double y = Double.parseDouble(m.group(2));
-					double z = Double.parseDouble(m.group(3));
+				double[] xyz = new double[3];
+				if (line.getPosition(xyz)) {
+					double x = xyz[0];
+					double y = xyz[1];
+					double z = xyz[2];
 					// super to avoid parroting back a G92
 					try {
 						super.setCurrentPosition(new Point5d(x, y, z));
@@ -754,20 +911,35 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 				bufferLock.lock();
 				//Notify the thread waitining in this gcode's sendCommand method that the gcode has been received.
-				if (buffer.isEmpty()) {
+				if (extraOks > 0) {
+					// the "ok" after a start or resend
+					extraOks--;
+				} else if (written == 0) {
 					Base.logger.severe("Received OK with nothing queued!");
 				} else {
-					String notifier = buffer.removeLast();
+					int acceptedLineNumber = buffer.getNumber(0);
+					if (sent > 0) {
+						bufferedBytes -= buffer.getLength(0);
+						sent--;
+					}
+					written--;
+					String notifier = buffer.removeOldest();
 					if(debugLevel > 1)
 						Base.logger.info("FW Accepted: " + notifier);
+					if (resendingLine != -1 && acceptedLineNumber >= resendingLine) {
+						// the resent line made it; send what's behind it
+						resendingLine = -1;
+					}
 					synchronized(notifier) { notifier.notifyAll(); }
 				}
+				/*let any sendCommand method waiting to send know that the buffer is 
+				now smaller and may be able to fit their command.*/
+				bufferSpace.signalAll();
+				boolean waiting = sent < buffer.size();
 				bufferLock.unlock();
-				
-				synchronized(bufferLock)
-				{ /*let any sendCommand method waiting to send know that the buffer is 
-					now smaller and may be able to fit their command.*/
-					bufferLock.notifyAll();
+
+				if (waiting) {
+					sendResends();
 				}
 			}
 
@@ -793,7 +965,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 				if (okAfterStart) {
 					// firmware sends "ok" after start, put something here to consume it:
 					bufferLock.lock();
-					buffer.addLast(";start-ok");
+					extraOks++;
 					bufferLock.unlock();
 				}
 
@@ -814,74 +986,32 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 
 			} else if (line.startsWith("resend:")||line.startsWith("rs ")) {
 				// Bad checksum, resend requested
-				Matcher badLineMatch = resendLinePattern.matcher(line);
+				int badLineNumber = line.getFirstInteger();
 
 				// Is it a Dud M or G code?
-				String dudLetter = getRegexMatch("dud ([a-z]) code", line, 1);
+				String dudLetter = line.getDudLetter();
 
-				if (badLineMatch.find())
+				if (badLineNumber >= 0)
 				{
-					int badLineNumber = Integer.parseInt(
-							badLineMatch.group(1) );
 					if(debugLevel > 1)
 						Base.logger.warning("Received resend request for line " + badLineNumber);
 
-					Queue<String> resend = new LinkedList<String>();
-					boolean found = false;
-					// Search backwards for the bad line in our buffer.
-					// Firmware flushed everything after this line, so
-					// build a queue of lines to resend.
-					bufferLock.lock();
-					lineSearch: while (!buffer.isEmpty())
-					{
-						String bufferedLine = buffer.removeLast();
-						if(debugLevel > 1)
-							Base.logger.info("Searching: " + bufferedLine);
-						int bufferedLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, bufferedLine.toLowerCase(), 1) );
-						if (dudLetter != null && bufferedLineNumber == badLineNumber) {
-							Base.logger.info("Dud "+dudLetter+" code: Dropping " + bufferedLine);
-							synchronized (bufferedLine) {
-								bufferedLine.notifyAll();
-							}
-							found = true;
-							break lineSearch;
-						}
-						resend.add(bufferedLine);
-						if (bufferedLineNumber == badLineNumber) {
-							found = true;
-							break lineSearch;
-						}
-					}
-					if (okAfterResend) {
-						// firmware sends "ok" after resend, put something here to consume it:
-						buffer.addLast(";resend-ok");
-					}
-					bufferLock.unlock();
-
-					if (!found) {
-						int restartLineNumber = Integer.parseInt( getRegexMatch(
-								gcodeLineNumberPattern, resend.element().toLowerCase(), 1) );
-						Base.logger.severe("resend for line " + badLineNumber + " not in our buffer.  Resuming from " + restartLineNumber);
-						this.resendCommand(applyChecksum("N"+(restartLineNumber-1)+" M110"));
-					}
-					// resend the lines
-					while (!resend.isEmpty())
-					{
-						String bufferedLine = resend.remove();
-						this.resendCommand(bufferedLine);
-					}
+					resendFrom(badLineNumber, dudLetter);
 				}
 				else
 				{
-					// Malformed resend line request received. Resetting the line number
+					// Malformed resend line request received. Resend everything unacknowledged.
 					Base.logger.warning("malformed line resend request, "
-							+"resetting line number. Malformed Data: \n"+line);
-					this.resendCommand(applyChecksum("N"+(lineNumber.get()-1)+" M110"));
+							+"resending everything unacknowledged. Malformed Data: \n"+line);
+					resendFrom(-1, null);
 				}
 
 			} else if (line.startsWith("t:") || line.startsWith("c:")) {
 				// temperature, position handled above
+			} else if (line.startsWith("error:")) {
+				// Marlin says why before it asks for a resend; the resend is what we act on.
+				Base.logger.fine("Firmware: " + line);
+				checksumRefused = line.contains("checksum mismatch");
 			} else {
 				Base.logger.severe("Unknown: " + line);
 			}
@@ -891,6 +1021,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	}
 
 	public boolean isFinished() {
+		checkForStall();
 		return isBufferEmpty();
 	}
 
@@ -900,13 +1031,22 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 */
 	private void flushBuffer() {
 		bufferLock.lock();
+		resendingLine = -1;
+		extraOks = 0;
 		while (!buffer.isEmpty())
 		{
-			String notifier = buffer.removeLast();
+			String notifier = buffer.removeOldest();
 			if(debugLevel > 1)
 				Base.logger.fine("Flushing dead command: " + notifier);
 			synchronized(notifier) { notifier.notifyAll(); }
 		}
+		sent = 0;
+		written = 0;
+		bufferedBytes = 0;
+		bufferSpace.signalAll();
+		if (streaming && streamWaitCount > 0) {
+			Base.logger.fine("Commands that waited for room in the firmware buffer: " + streamWaitCount);
+		}
 		bufferLock.unlock();
 	}
 
@@ -915,7 +1055,7 @@ public class RepRap5DDriver extends SerialDriver implements SerialFifoEventListe
 	 */
 	public boolean isBufferEmpty() {
 		bufferLock.lock();
-		boolean isEmpty = buffer.isEmpty();
+		boolean isEmpty = buffer.isEmpty() && extraOks == 0;
 		bufferLock.unlock();
 		return isEmpty;
 	}
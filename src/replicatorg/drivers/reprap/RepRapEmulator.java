@@ -0,0 +1,687 @@
+package replicatorg.drivers.reprap;
+
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.exceptions.SerialException;
+import replicatorg.app.tools.XML;
+import replicatorg.app.util.serial.LoopbackTransport;
+import replicatorg.app.util.serial.Transport;
+
+/**
+ * An in-process stand-in for RepRap firmware that speaks the text protocol,
+ * as Marlin and its relatives do, for running the RepRap drivers without a
+ * machine attached.
+ *
+ * The emulator is a transport: it sits on the far end of a loopback link,
+ * which carries bytes at the configured rate. Bytes from the host land in a
+ * receive buffer of limited size, and anything that arrives while it is full
+ * is lost. Lines are taken from it into a short command queue, checking line
+ * numbers and checksums on the way as Marlin does: a bad line empties the
+ * receive buffer and is answered with a resend request and an "ok". Moves go
+ * into a planner queue that runs in simulated time, and a move that finds the
+ * planner full holds up every command behind it, so a host that sends faster
+ * than the machine moves sees its "ok"s slow down just as it would from a
+ * real board.
+ *
+ * The emulator announces itself with "start" when opened and when reset,
+ * answers M105 with "ok T:.. B:..", M114 with "ok C: X:.. Y:.. Z:.. E:..",
+ * and anything it doesn't know with an "echo:" line and an "ok". Heaters come
+ * up to temperature immediately, homing takes no time, and arcs are run as
+ * straight moves to their end point.
+ *
+ * To use it, add an emulator node to the driver configuration:
+ * <pre>
+ * &lt;emulator buffer="128" commands="4" planner="16" bytetime="87" speedup="1" checksumerror="0" resend="resend"/&gt;
+ * </pre>
+ * buffer is the size of the receive buffer in bytes, commands the length of
+ * the command queue, planner the number of moves the planner holds, bytetime
+ * the time in microseconds to move one byte over the link (by default, the
+ * time at the configured baud rate), speedup scales how fast motion runs,
+ * checksumerror rejects every Nth numbered line as if it were corrupt (0 to
+ * disable), and resend picks how a line is asked for again: "resend" for
+ * "Resend: N", as Marlin does, or "rs" for "rs N".
+ */
+public class RepRapEmulator implements Transport {
+
+	// Temperature reported by a heater that's turned off
+	private static final double AMBIENT = 20.0;
+
+	// Feedrate used before the host sets one, in mm/min
+	private static final double DEFAULT_FEEDRATE = 1500;
+
+	// A line waiting in the command queue, already checked.
+	private static class Command {
+		final String text;
+		// Simulated time at which the command arrived
+		final long arrival;
+
+		Command(String text, long arrival) {
+			this.text = text;
+			this.arrival = arrival;
+		}
+	}
+
+	// A move in the planner queue.
+	private static class Block {
+		// Simulated time at which the move was planned
+		final long arrival;
+		// Simulated time the move takes to run
+		final long duration;
+
+		Block(long arrival, long duration) {
+			this.arrival = arrival;
+			this.duration = duration;
+		}
+	}
+
+	// Configuration
+	private byte[] rx = new byte[128];
+	private int commandCapacity = 4;
+	private int plannerCapacity = 16;
+	private long byteNanos;
+	private double speedup = 1.0;
+	private int checksumErrorEvery = 0;
+	private String resendPrefix = "Resend: ";
+
+	// The link; the host talks to one end, and we listen on the other.
+	private final LoopbackTransport hostEnd;
+	private final LoopbackTransport deviceEnd;
+
+	// Link state, in real time
+	private final long epoch = System.nanoTime();
+	private long firstLine = -1;
+	private long lastLine = -1;
+	private Thread firmware = null;
+
+	// Receive buffer
+	private int rxHead = 0;
+	private int rxCount = 0;
+
+	// Firmware state, in simulated time
+	private final LinkedList<Command> commands = new LinkedList<Command>();
+	private final LinkedList<Block> planner = new LinkedList<Block>();
+	private long busyUntil = 0;
+	private long dwellUntil = -1;
+	private boolean started = false;
+	private int lastLineNumber = 0;
+	private boolean relative = false;
+	private boolean relativeE = false;
+	private double feedrate = DEFAULT_FEEDRATE;
+	private final double[] position = new double[4];
+	private double toolTemperature = 0;
+	private double platformTemperature = 0;
+
+	// Words of the command being run, by letter
+	private final double[] words = new double[26];
+	private final boolean[] hasWord = new boolean[26];
+
+	private final DecimalFormat df;
+
+	// Counters
+	private int lineCount = 0;
+	private int resendCount = 0;
+	private int checksumErrorCount = 0;
+	private int numberedLineCount = 0;
+	private long overflowCount = 0;
+	private long deviceIdleNanos = 0;
+
+	/**
+	 * Create an emulator with the default configuration.
+	 * @param baudRate the rate the link runs at; this sets the time taken to
+	 * move each byte.
+	 */
+	public RepRapEmulator(int baudRate) {
+		LoopbackTransport[] ends = LoopbackTransport.createPair("RepRap emulator");
+		hostEnd = ends[0];
+		deviceEnd = ends[1];
+		// 8 data bits, a start bit and a stop bit
+		byteNanos = (baudRate > 0) ? (10L * 1000000000L / baudRate) : 0;
+		hostEnd.setByteTime(byteNanos);
+		deviceEnd.setByteTime(byteNanos);
+		DecimalFormatSymbols dfs = DecimalFormatSymbols.getInstance();
+		dfs.setDecimalSeparator('.');
+		df = new DecimalFormat("0.0##", dfs);
+	}
+
+	/**
+	 * Create an emulator configured from an emulator node in the driver's XML.
+	 */
+	public RepRapEmulator(Node xml, int baudRate) {
+		this(baudRate);
+		String value;
+		try {
+			if ((value = XML.getAttributeValue(xml, "buffer")) != null)
+				setBufferCapacity(Integer.parseInt(value));
+			if ((value = XML.getAttributeValue(xml, "commands")) != null)
+				setCommandCapacity(Integer.parseInt(value));
+			if ((value = XML.getAttributeValue(xml, "planner")) != null)
+				setPlannerCapacity(Integer.parseInt(value));
+			if ((value = XML.getAttributeValue(xml, "bytetime")) != null)
+				setByteTime((long)(Double.parseDouble(value) * 1000));
+			if ((value = XML.getAttributeValue(xml, "speedup")) != null)
+				setSpeedup(Double.parseDouble(value));
+			if ((value = XML.getAttributeValue(xml, "checksumerror")) != null)
+				setChecksumErrorEvery(Integer.parseInt(value));
+		} catch (NumberFormatException nfe) {
+			Base.logger.warning("Invalid emulator setting: " + nfe.getMessage());
+		}
+		if ((value = XML.getAttributeValue(xml, "resend")) != null)
+			setShortResend("rs".equals(value.trim().toLowerCase()));
+		Base.logger.info("Emulating RepRap: " + rx.length + " byte buffer, "
+				+ commandCapacity + " commands, " + plannerCapacity + " moves, "
+				+ (byteNanos / 1000) + "us per byte, speedup " + speedup);
+	}
+
+	/** Set the size of the receive buffer, in bytes. */
+	public synchronized void setBufferCapacity(int bytes) {
+		rx = new byte[Math.max(1, bytes)];
+		rxHead = 0;
+		rxCount = 0;
+	}
+
+	/** Set how many checked lines wait to be run. */
+	public synchronized void setCommandCapacity(int n) { commandCapacity = Math.max(1, n); }
+
+	/** Set how many moves the planner holds. */
+	public synchronized void setPlannerCapacity(int n) { plannerCapacity = Math.max(1, n); }
+
+	/** Set the time taken to move one byte over the link, in nanoseconds. */
+	public synchronized void setByteTime(long nanos) {
+		byteNanos = Math.max(0, nanos);
+		hostEnd.setByteTime(byteNanos);
+		deviceEnd.setByteTime(byteNanos);
+	}
+
+	/** Set how many times faster than real time the machine moves. */
+	public synchronized void setSpeedup(double speedup) { this.speedup = (speedup > 0) ? speedup : 1.0; }
+
+	/** Reject every Nth numbered line as if its checksum were wrong; 0 to disable. */
+	public synchronized void setChecksumErrorEvery(int n) { checksumErrorEvery = Math.max(0, n); }
+
+	/** Ask for lines again with "rs N" rather than "Resend: N". */
+	public synchronized void setShortResend(boolean shortResend) {
+		resendPrefix = shortResend ? "rs " : "Resend: ";
+	}
+
+	// Simulated machine time corresponding to the given real time
+	private long simTime(long realNanos) {
+		return (long)((realNanos - epoch) * speedup);
+	}
+
+	public String getName() {
+		return hostEnd.getName();
+	}
+
+	public void open(Receiver receiver) throws SerialException {
+		deviceEnd.open(new Receiver() {
+			public void received(byte[] bytes, int offset, int length) {
+				RepRapEmulator.this.received(bytes, offset, length);
+			}
+			public void lost(String reason) {
+			}
+		});
+		hostEnd.open(receiver);
+		synchronized (this) {
+			firmware = new Thread("RepRap emulator") {
+				public void run() {
+					runFirmware();
+				}
+			};
+			firmware.setDaemon(true);
+			firmware.start();
+			// Opening the port resets the board.
+			reset();
+		}
+	}
+
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		hostEnd.write(bytes, offset, length);
+	}
+
+	public synchronized void pulseRTSLow() {
+		reset();
+	}
+
+	// Power up, forgetting everything.
+	private void reset() {
+		rxHead = 0;
+		rxCount = 0;
+		commands.clear();
+		planner.clear();
+		busyUntil = simTime(System.nanoTime());
+		dwellUntil = -1;
+		lastLineNumber = 0;
+		relative = false;
+		relativeE = false;
+		feedrate = DEFAULT_FEEDRATE;
+		for (int i = 0; i < position.length; i++) position[i] = 0;
+		toolTemperature = 0;
+		platformTemperature = 0;
+		respond("start");
+		notifyAll();
+	}
+
+	// Bytes from the host, as they come off the link.
+	private synchronized void received(byte[] bytes, int offset, int length) {
+		for (int i = 0; i < length; i++) {
+			if (rxCount == rx.length) {
+				overflowCount += length - i;
+				break;
+			}
+			rx[(rxHead + rxCount) % rx.length] = bytes[offset + i];
+			rxCount++;
+		}
+		notifyAll();
+	}
+
+	private void respond(String line) {
+		byte[] bytes = (line + "\n").getBytes();
+		try {
+			deviceEnd.write(bytes, 0, bytes.length);
+		} catch (IOException e) {
+			Base.logger.severe("Emulator couldn't reply: " + e.getMessage());
+		}
+	}
+
+	// The firmware's main loop: take lines in, run commands, and sleep until
+	// there's something to do.
+	private synchronized void runFirmware() {
+		try {
+			while (firmware == Thread.currentThread()) {
+				long now = simTime(System.nanoTime());
+				advance(now);
+				boolean progress = true;
+				while (progress) {
+					progress = readLines(now);
+					if (!commands.isEmpty() && runCommand(commands.getFirst(), now)) {
+						commands.removeFirst();
+						progress = true;
+					}
+				}
+				long wake = wakeTime();
+				if (wake < 0) {
+					wait();
+				} else if (wake > now) {
+					long nanos = (long)((wake - now) / speedup);
+					TimeUnit.NANOSECONDS.timedWait(this, Math.max(1, nanos));
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed
+		}
+	}
+
+	// Simulated time at which a blocked command may be able to go on, or -1
+	// to wait for more input.
+	private long wakeTime() {
+		if (commands.isEmpty()) return -1;
+		if (dwellUntil >= 0) return dwellUntil;
+		if (!planner.isEmpty()) {
+			// Either the planner is full, or the command waits for it to empty;
+			// the next change is when the move in progress ends.
+			Block first = planner.getFirst();
+			return Math.max(busyUntil, first.arrival) + first.duration;
+		}
+		return busyUntil;
+	}
+
+	// Run the planner up to the given simulated time.
+	private void advance(long now) {
+		while (!planner.isEmpty()) {
+			Block next = planner.getFirst();
+			long start = Math.max(busyUntil, next.arrival);
+			if (start + next.duration > now) break;
+			// The machine had nothing to do between the last move and this one.
+			if (started && start > busyUntil) {
+				deviceIdleNanos += start - busyUntil;
+			}
+			started = true;
+			planner.removeFirst();
+			busyUntil = start + next.duration;
+		}
+	}
+
+	private boolean isIdle(long now) {
+		return planner.isEmpty() && busyUntil <= now;
+	}
+
+	// Move complete lines from the receive buffer into the command queue,
+	// checking them as we go. Returns true if any were taken.
+	private boolean readLines(long now) {
+		boolean taken = false;
+		while (commands.size() < commandCapacity) {
+			int end = -1;
+			for (int i = 0; i < rxCount; i++) {
+				byte b = rx[(rxHead + i) % rx.length];
+				if (b == '\n' || b == '\r') {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) break;
+			StringBuilder sb = new StringBuilder(end);
+			for (int i = 0; i < end; i++) {
+				sb.append((char)(rx[(rxHead + i) % rx.length] & 0xff));
+			}
+			rxHead = (rxHead + end + 1) % rx.length;
+			rxCount -= end + 1;
+			taken = true;
+
+			String line = sb.toString().trim();
+			if (line.length() == 0) continue;
+			lineCount++;
+			long arrival = System.nanoTime();
+			if (firstLine == -1) firstLine = arrival;
+			lastLine = arrival;
+			String command = checkLine(line);
+			if (command != null) {
+				commands.addLast(new Command(command, now));
+			}
+		}
+		return taken;
+	}
+
+	// Check a line's number and checksum. Returns the command without them,
+	// or null if the line was rejected.
+	private String checkLine(String line) {
+		int star = line.indexOf('*');
+		if (line.charAt(0) == 'N' || line.charAt(0) == 'n') {
+			int i = 1;
+			while (i < line.length() && Character.isDigit(line.charAt(i))) i++;
+			long number;
+			try {
+				number = Long.parseLong(line.substring(1, i));
+			} catch (NumberFormatException nfe) {
+				number = -1;
+			}
+			numberedLineCount++;
+			if (number != lastLineNumber + 1 && line.indexOf("M110") < 0) {
+				requestResend("Line Number is not Last Line Number+1");
+				return null;
+			}
+			if (star < 0) {
+				requestResend("No Checksum with line number");
+				return null;
+			}
+			int checksum = 0;
+			for (int j = 0; j < star; j++) checksum ^= line.charAt(j);
+			int sent;
+			try {
+				sent = Integer.parseInt(line.substring(star + 1).trim());
+			} catch (NumberFormatException nfe) {
+				sent = -1;
+			}
+			if ((checksum & 0xff) != (sent & 0xff) ||
+					(checksumErrorEvery > 0 && (numberedLineCount % checksumErrorEvery) == 0)) {
+				checksumErrorCount++;
+				requestResend("checksum mismatch");
+				return null;
+			}
+			lastLineNumber = (int)number;
+			return line.substring(i, star).trim();
+		} else if (star >= 0) {
+			requestResend("No Line Number with checksum");
+			return null;
+		}
+		return line;
+	}
+
+	// Throw away what's in the receive buffer and ask for the next line again.
+	private void requestResend(String error) {
+		resendCount++;
+		rxHead = 0;
+		rxCount = 0;
+		respond("Error:" + error + ", Last Line: " + lastLineNumber);
+		respond(resendPrefix + (lastLineNumber + 1));
+		respond("ok");
+	}
+
+	// Run a command, if it can be run now. Returns false if it has to wait.
+	private boolean runCommand(Command command, long now) {
+		String text = command.text;
+		int comment = text.indexOf(';');
+		if (comment >= 0) text = text.substring(0, comment);
+		parseWords(text);
+
+		if (hasWord('G')) {
+			int code = (int)word('G');
+			switch (code) {
+			case 0:
+			case 1:
+			case 2:
+			case 3:
+				if (planner.size() >= plannerCapacity) return false;
+				move(command.arrival > now ? command.arrival : now);
+				break;
+			case 4:
+				if (!isIdle(now)) return false;
+				if (dwellUntil < 0) {
+					double millis = hasWord('P') ? word('P') : 0;
+					if (hasWord('S')) millis = word('S') * 1000;
+					dwellUntil = now + (long)(millis * 1000000);
+				}
+				if (now < dwellUntil) return false;
+				dwellUntil = -1;
+				break;
+			case 28:
+				if (!isIdle(now)) return false;
+				boolean any = hasWord('X') || hasWord('Y') || hasWord('Z');
+				if (!any || hasWord('X')) position[0] = 0;
+				if (!any || hasWord('Y')) position[1] = 0;
+				if (!any || hasWord('Z')) position[2] = 0;
+				break;
+			case 90:
+				relative = false;
+				relativeE = false;
+				break;
+			case 91:
+				relative = true;
+				relativeE = true;
+				break;
+			case 92:
+				for (int i = 0; i < 4; i++) {
+					char axis = "XYZE".charAt(i);
+					if (hasWord(axis)) position[i] = word(axis);
+				}
+				break;
+			default:
+				unknown(text);
+				break;
+			}
+			respond("ok");
+		} else if (hasWord('M')) {
+			int code = (int)word('M');
+			switch (code) {
+			case 82:
+				relativeE = false;
+				break;
+			case 83:
+				relativeE = true;
+				break;
+			case 104:
+			case 109:
+				if (hasWord('S')) toolTemperature = word('S');
+				break;
+			case 140:
+			case 190:
+				if (hasWord('S')) platformTemperature = word('S');
+				break;
+			case 105:
+				respond("ok T:" + df.format(temperature(toolTemperature))
+						+ " B:" + df.format(temperature(platformTemperature)));
+				return true;
+			case 114:
+				respond("ok C: X:" + df.format(position[0]) + " Y:" + df.format(position[1])
+						+ " Z:" + df.format(position[2]) + " E:" + df.format(position[3]));
+				return true;
+			case 115:
+				respond("ok FIRMWARE_NAME:ReplicatorG RepRap emulator PROTOCOL_VERSION:1.0");
+				return true;
+			case 400:
+				if (!isIdle(now)) return false;
+				break;
+			case 18:
+			case 84:
+			case 106:
+			case 107:
+			case 110:
+				break;
+			default:
+				unknown(text);
+				break;
+			}
+			respond("ok");
+		} else if (hasWord('T')) {
+			respond("ok");
+		} else {
+			unknown(text);
+			respond("ok");
+		}
+		return true;
+	}
+
+	private void unknown(String text) {
+		respond("echo:Unknown command: \"" + text + "\"");
+	}
+
+	private double temperature(double target) {
+		return (target > AMBIENT) ? target : AMBIENT;
+	}
+
+	// Plan a move to the position given by the current command.
+	private void move(long now) {
+		if (hasWord('F') && word('F') > 0) feedrate = word('F');
+		double[] target = new double[4];
+		for (int i = 0; i < 4; i++) {
+			char axis = "XYZE".charAt(i);
+			boolean rel = (i == 3) ? relativeE : relative;
+			target[i] = hasWord(axis) ? (rel ? position[i] + word(axis) : word(axis)) : position[i];
+		}
+		double dx = target[0] - position[0];
+		double dy = target[1] - position[1];
+		double dz = target[2] - position[2];
+		double distance = Math.sqrt(dx * dx + dy * dy + dz * dz);
+		if (distance == 0) distance = Math.abs(target[3] - position[3]);
+		System.arraycopy(target, 0, position, 0, 4);
+		if (distance == 0) return;
+		long duration = (long)(distance / (feedrate / 60.0) * 1e9);
+		// A move that arrives to an idle machine starts right away.
+		if (planner.isEmpty() && busyUntil < now) {
+			if (started) deviceIdleNanos += now - busyUntil;
+			busyUntil = now;
+		}
+		started = true;
+		planner.addLast(new Block(now, duration));
+	}
+
+	// Split a command into letters and the numbers that follow them, with or
+	// without spaces between.
+	private void parseWords(String text) {
+		for (int i = 0; i < hasWord.length; i++) hasWord[i] = false;
+		int i = 0, n = text.length();
+		while (i < n) {
+			char c = Character.toUpperCase(text.charAt(i));
+			if (c < 'A' || c > 'Z') {
+				i++;
+				continue;
+			}
+			int start = ++i;
+			while (i < n && (Character.isDigit(text.charAt(i)) || text.charAt(i) == '.'
+					|| ((text.charAt(i) == '-' || text.charAt(i) == '+') && i == start))) {
+				i++;
+			}
+			double value = 0;
+			if (i > start) {
+				try {
+					value = Double.parseDouble(text.substring(start, i));
+				} catch (NumberFormatException nfe) {
+					value = 0;
+				}
+			}
+			if (!hasWord[c - 'A']) {
+				hasWord[c - 'A'] = true;
+				words[c - 'A'] = value;
+			}
+		}
+	}
+
+	private boolean hasWord(char letter) {
+		return hasWord[letter - 'A'];
+	}
+
+	private double word(char letter) {
+		return words[letter - 'A'];
+	}
+
+	public void close() {
+		synchronized (this) {
+			if (firmware != null) {
+				firmware.interrupt();
+				firmware = null;
+			}
+		}
+		hostEnd.close();
+		deviceEnd.close();
+		Base.logger.info(getStatistics());
+	}
+
+	/** @return the number of lines received from the host */
+	public synchronized int getLineCount() { return lineCount; }
+
+	/** @return the number of lines asked for again */
+	public synchronized int getResendCount() { return resendCount; }
+
+	/** @return the number of lines rejected for a bad checksum, injected or not */
+	public synchronized int getChecksumErrorCount() { return checksumErrorCount; }
+
+	/**
+	 * @return where the commands run so far leave the machine: X, Y, Z and E,
+	 * in mm
+	 */
+	public synchronized double[] getPosition() { return position.clone(); }
+
+	/** @return the number of bytes lost because the receive buffer was full */
+	public synchronized long getOverflowCount() { return overflowCount; }
+
+	/**
+	 * @return the time, in nanoseconds, that the link sat idle in both
+	 * directions while the emulator waited for the host to send something.
+	 */
+	public long getLinkIdleNanos() { return hostEnd.getIdleNanos(); }
+
+	/**
+	 * @return the simulated time, in nanoseconds, that the planner ran dry
+	 * between moves.
+	 */
+	public synchronized long getDeviceIdleNanos() { return deviceIdleNanos; }
+
+	/**
+	 * @return true if every command received has been run, and the machine
+	 * has stopped moving.
+	 */
+	public synchronized boolean isIdle() {
+		long now = simTime(System.nanoTime());
+		advance(now);
+		return rxCount == 0 && commands.isEmpty() && isIdle(now);
+	}
+
+	/** @return the number of lines received per second of link time */
+	public synchronized double getLinesPerSecond() {
+		if (lineCount < 2 || lastLine <= firstLine) return 0;
+		return (lineCount - 1) * 1e9 / (lastLine - firstLine);
+	}
+
+	public synchronized String getStatistics() {
+		return String.format("Emulator: %d lines (%.1f/s), %d resends, %d checksum errors, "
+				+ "%d bytes overflowed; link idle %.3fs, machine idle %.3fs",
+				lineCount, getLinesPerSecond(), resendCount, checksumErrorCount,
+				overflowCount, getLinkIdleNanos() / 1e9, deviceIdleNanos / 1e9);
+	}
+}
@@ -0,0 +1,182 @@
+package replicatorg.drivers.reprap;
+
+/**
+ * Picks apart a line received from RepRap firmware without regular
+ * expressions. The line is trimmed and lower-cased into a reusable buffer,
+ * and the values the driver needs (temperatures, position, the line to
+ * resend) are scanned for on demand.
+ *
+ * Not thread safe; responses are processed one at a time under the driver's
+ * read lock.
+ */
+class ResponseScanner {
+	private char[] buf = new char[128];
+	private int length = 0;
+
+	/**
+	 * Load a line of the firmware's response.
+	 * @return false if the line is empty once trimmed
+	 */
+	boolean scan(byte[] bytes, int offset, int count) {
+		int start = offset, end = offset + count;
+		while (start < end && (bytes[start] & 0xff) <= ' ') start++;
+		while (end > start && (bytes[end - 1] & 0xff) <= ' ') end--;
+		length = end - start;
+		if (length > buf.length) {
+			buf = new char[Math.max(length, buf.length * 2)];
+		}
+		for (int i = 0; i < length; i++) {
+			// US-ASCII; anything else can't be part of a keyword.
+			int b = bytes[start + i] & 0xff;
+			char c = (b < 128) ? (char)b : '\uFFFD';
+			buf[i] = (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+		}
+		return length > 0;
+	}
+
+	int length() {
+		return length;
+	}
+
+	boolean startsWith(String prefix) {
+		return regionMatches(0, prefix);
+	}
+
+	boolean contains(String s) {
+		return indexOf(s, 0) >= 0;
+	}
+
+	/**
+	 * @return the temperature after the first "t:", or NaN if there isn't one
+	 */
+	double getTemperature() {
+		for (int at = indexOf("t:", 0); at >= 0; at = indexOf("t:", at + 1)) {
+			int end = skip(at + 2, false);
+			if (end > at + 2) return parse(at + 2, end);
+		}
+		return Double.NaN;
+	}
+
+	/**
+	 * @return the bed temperature, if the line is an "ok" that ends with
+	 * "b:" and a number; NaN otherwise
+	 */
+	double getBedTemperature() {
+		if (!startsWith("ok")) return Double.NaN;
+		int start = length;
+		while (start > 0 && isUnsigned(buf[start - 1])) start--;
+		if (start == length || start < 4 || buf[start - 2] != 'b' || buf[start - 1] != ':') {
+			return Double.NaN;
+		}
+		return parse(start, length);
+	}
+
+	/**
+	 * Read a position report, "c: x:1 y:2 z:3", the colons after the axes
+	 * being optional.
+	 * @return false if there isn't one
+	 */
+	boolean getPosition(double[] xyz) {
+		for (int at = indexOf("c:", 0); at >= 0; at = indexOf("c:", at + 1)) {
+			int i = at + 2;
+			boolean found = true;
+			for (int axis = 0; axis < 3 && found; axis++) {
+				while (i < length && buf[i] == ' ') i++;
+				if (i >= length || buf[i] != "xyz".charAt(axis)) {
+					found = false;
+					break;
+				}
+				i++;
+				if (i < length && buf[i] == ':') i++;
+				int end = skip(i, true);
+				if (end == i) {
+					found = false;
+					break;
+				}
+				xyz[axis] = parse(i, end);
+				if (Double.isNaN(xyz[axis])) found = false;
+				i = end;
+			}
+			if (found) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the first number on the line, as sent with a resend request;
+	 * -1 if there isn't one
+	 */
+	int getFirstInteger() {
+		for (int i = 0; i < length; i++) {
+			if (buf[i] >= '0' && buf[i] <= '9') {
+				long n = 0;
+				for (; i < length && buf[i] >= '0' && buf[i] <= '9'; i++) {
+					n = n * 10 + (buf[i] - '0');
+					if (n > Integer.MAX_VALUE) return -1;
+				}
+				return (int)n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @return the letter in "dud ? code", or null if the line doesn't say
+	 */
+	String getDudLetter() {
+		for (int at = indexOf("dud ", 0); at >= 0; at = indexOf("dud ", at + 1)) {
+			int letter = at + 4;
+			if (letter < length && buf[letter] >= 'a' && buf[letter] <= 'z'
+					&& regionMatches(letter + 1, " code")) {
+				return String.valueOf(buf[letter]);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if this is the firmware refusing an unknown command that
+	 * begins with a digit, as the end of a line does when the firmware
+	 * empties its buffer part way through it: "echo:unknown command: "12""
+	 */
+	boolean isLineTail() {
+		int at = indexOf("unknown command:", 0);
+		if (at < 0) return false;
+		int i = at + "unknown command:".length();
+		while (i < length && (buf[i] == ' ' || buf[i] == '"')) i++;
+		return i < length && buf[i] >= '0' && buf[i] <= '9';
+	}
+
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+
+	private boolean regionMatches(int at, String s) {
+		if (at + s.length() > length) return false;
+		for (int i = 0; i < s.length(); i++) {
+			if (buf[at + i] != s.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	private int indexOf(String s, int from) {
+		for (int i = from; i + s.length() <= length; i++) {
+			if (regionMatches(i, s)) return i;
+		}
+		return -1;
+	}
+
+	// Skip a run of number characters, signed or not.
+	private int skip(int i, boolean signed) {
+		while (i < length && (isUnsigned(buf[i]) || (signed && buf[i] == '-'))) i++;
+		return i;
+	}
+
+	private double parse(int start, int end) {
+		return LineRewriter.parse(buf, start, end);
+	}
+
+	private static boolean isUnsigned(char c) {
+		return (c >= '0' && c <= '9') || c == '.';
+	}
+}
@@ -40,6 +40,7 @@ import java.util.regex.Pattern;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
+import replicatorg.app.util.serial.Transport;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SerialDriver;
 import replicatorg.machine.model.AxisId;
@@ -93,6 +94,11 @@ public class SimpleRepRap5DDriver extends SerialDriver {
 		super.loadXML(xml);
 	}
 
+	@Override
+	protected Transport createEmulator(Node xml) {
+		return new RepRapEmulator(xml, getRate());
+	}
+
 	public void initialize() {
 		// declare our serial guy.
 		if (serial == null) {
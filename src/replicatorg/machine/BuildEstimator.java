@@ -0,0 +1,749 @@
+package replicatorg.machine;
+
+import java.awt.geom.Rectangle2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCode;
+import replicatorg.app.GCodeEnumeration;
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Works out how long a job will take to build, and checks its code for
+ * problems on the way. The results are kept in a JobAnalysis, along with the
+ * area the job covers, how much it extrudes and where its layers start.
+ *
+ * The source is split into chunks of lines, which are estimated in parallel.
+ * A line depends on what came before it only through the modal state: where
+ * the machine is, the feedrate, the units, absolute or relative positioning,
+ * the coordinate system and the tool. While the chunks are being read, that
+ * state is followed line by line, which is much quicker than estimating, and
+ * each chunk starts from the state it was read in. Once a chunk is done, the
+ * state it actually ended in is checked against what the next chunk started
+ * from; if they differ, the next chunk is estimated again.
+ *
+ * Each chunk starts and ends with the machine at rest, so an estimate is a
+ * little longer than if the file were estimated in one piece.
+ *
+ * A JobCheckpoint of the state each line starts in is kept at the start of
+ * every chunk and every layer, for JobResume.
+ */
+public class BuildEstimator {
+	/** Lines in each chunk */
+	static final int CHUNK_LINES = 8192;
+
+	/** The most problems logged again when a saved analysis is used */
+	static final int SAVED_ISSUES_LOGGED = 100;
+
+	private static ForkJoinPool pool = null;
+
+	static synchronized ForkJoinPool getPool() {
+		if (pool == null) {
+			pool = new ForkJoinPool();
+		}
+		return pool;
+	}
+
+	private final MachineModel machine;
+	private final boolean safetyChecks;
+
+	private JobAnalysis analysis = new JobAnalysis();
+
+	/**
+	 * @param machine the machine the job will be built on
+	 * @param safetyChecks true to check the code for problems as well
+	 */
+	public BuildEstimator(MachineModel machine, boolean safetyChecks) {
+		this.machine = machine;
+		this.safetyChecks = safetyChecks;
+	}
+
+	/** @return the results of the last estimate */
+	public JobAnalysis getAnalysis() { return analysis; }
+
+	/** @return the estimated build time, in milliseconds */
+	public double getBuildTime() { return analysis.getBuildTime(); }
+
+	/** @return the number of lines that can't be built */
+	public long getNumErrors() { return analysis.getNumErrors(); }
+
+	/** @return the number of lines that may not build as intended */
+	public long getNumWarnings() { return analysis.getNumWarnings(); }
+
+	/** @return a description of the first problem found, or null if there were none */
+	public String getMessage() { return analysis.getMessage(); }
+
+	/**
+	 * Analyze a job for a machine, using the saved analysis if it has been
+	 * analyzed before. New analyses are saved in the default JobAnalysisCache,
+	 * unless the analysis was interrupted.
+	 */
+	public static JobAnalysis analyze(GCodeSource source, MachineModel machine, boolean safetyChecks) {
+		JobAnalysisCache cache = JobAnalysisCache.getDefault();
+		String key = null;
+		JobAnalysis analysis = null;
+		if (cache != null) {
+			key = JobAnalysisCache.key(source, machine, safetyChecks);
+			analysis = cache.get(key);
+		}
+		if (analysis != null) {
+			Base.logger.info("Using the saved analysis of this job.");
+			int count = Math.min(analysis.getIssueCount(), SAVED_ISSUES_LOGGED);
+			for (int i = 0; i < count; i++) {
+				Base.logger.log(analysis.getIssueLevel(i), analysis.getIssue(i));
+			}
+			if (analysis.getIssueCount() > count) {
+				Base.logger.warning("... and " + (analysis.getIssueCount() - count) + " more problems.");
+			}
+			return analysis;
+		}
+		// TODO: Hooks for plugins to add estimated time?
+		BuildEstimator estimator = new BuildEstimator(machine, safetyChecks);
+		estimator.estimate(source);
+		analysis = estimator.getAnalysis();
+		if (cache != null && !Thread.currentThread().isInterrupted()) {
+			cache.put(key, analysis);
+		}
+		return analysis;
+	}
+
+	/**
+	 * Estimate the given source, replacing the results of any earlier estimate.
+	 */
+	public void estimate(GCodeSource source) {
+		analysis = new JobAnalysis();
+
+		ForkJoinPool pool = getPool();
+		int window = 2 * pool.getParallelism();
+		LinkedList<Chunk> pending = new LinkedList<Chunk>();
+		ModalState end = initialState();
+
+		ModalState state = initialState();
+		GCode gcode = new GCode();
+		Chunk chunk = new Chunk(state.copy());
+		ExtrusionTracker extrusion = new ExtrusionTracker();
+		JobSetup setup = new JobSetup();
+		// The state each line starts in, for checkpoints
+		ModalState before = state.copy();
+		ExtrusionTracker extrusionBefore = new ExtrusionTracker();
+		// A layer starts with the first line that extrudes at a new height.
+		double layerHeight = Double.NaN;
+		int lineNumber = 0;
+		try {
+			for (String line : source) {
+				gcode.parse(line);
+				before.set(state);
+				extrusionBefore.set(extrusion);
+				state.advance(gcode, machine);
+				if (extrusion.advance(gcode, state) && state.position.z() != layerHeight) {
+					layerHeight = state.position.z();
+					analysis.addLayer(lineNumber, layerHeight);
+					setup.endHoming();
+					checkpoint(lineNumber, before, extrusionBefore, setup);
+				} else if (lineNumber % CHUNK_LINES == 0) {
+					checkpoint(lineNumber, before, extrusionBefore, setup);
+				}
+				setup.noteHoming(gcode, line, before);
+				if (!gcode.hasCode('G') && gcode.hasCode('M')) {
+					setup.noteTools(gcode, line);
+				}
+				lineNumber++;
+				chunk.lines[chunk.count++] = line;
+				if (chunk.count == CHUNK_LINES) {
+					chunk.result = pool.submit(chunk);
+					pending.addLast(chunk);
+					while (pending.size() > window) {
+						end = merge(pending.removeFirst(), end);
+					}
+					chunk = new Chunk(state.copy());
+				}
+			}
+			while (!pending.isEmpty()) {
+				end = merge(pending.removeFirst(), end);
+			}
+			// Nothing else to do here while the last chunk is estimated.
+			if (chunk.count > 0) {
+				merge(chunk, end);
+			}
+			analysis.extrusion[0] = extrusion.total[0];
+			analysis.extrusion[1] = extrusion.total[1];
+		} catch (InterruptedException e) {
+			for (Chunk c : pending) {
+				c.result.cancel(true);
+			}
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void checkpoint(int line, ModalState state, ExtrusionTracker extrusion, JobSetup setup) {
+		ExtrusionTracker e = new ExtrusionTracker();
+		e.set(extrusion);
+		analysis.checkpoints.add(new JobCheckpoint(line, state.copy(), e, setup.copy()));
+	}
+
+	// Take a chunk's results, estimating it again if it didn't start where the
+	// chunk before it ended. Returns the state the chunk ended in.
+	private ModalState merge(Chunk chunk, ModalState previousEnd) throws InterruptedException {
+		ChunkResult result;
+		if (!chunk.start.equals(previousEnd)) {
+			if (chunk.result != null) {
+				chunk.result.cancel(false);
+				Base.logger.fine("Estimating a chunk again from where the last one ended");
+			}
+			chunk.start = previousEnd;
+			result = chunk.call();
+		} else if (chunk.result == null) {
+			result = chunk.call();
+		} else {
+			try {
+				result = chunk.result.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof Error) throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+
+		analysis.buildTime += result.buildTime;
+		analysis.bounds.add(result.bounds);
+		for (int i = 0; i < result.problems.size(); i++) {
+			Level level = result.levels.get(i);
+			String s = result.problems.get(i);
+			Base.logger.log(level, s);
+			analysis.addIssue(level, s);
+		}
+		return result.end;
+	}
+
+	private EstimationDriver createDriver() {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(machine);
+		return estimator;
+	}
+
+	private ModalState initialState() {
+		EstimationDriver estimator = createDriver();
+		GCodeParser parser = new GCodeParser();
+		parser.init(estimator);
+		return new ModalState(estimator, parser);
+	}
+
+	private static class ChunkResult {
+		double buildTime;
+		Rectangle2D.Double bounds;
+		ModalState end;
+		final List<String> problems = new ArrayList<String>();
+		final List<Level> levels = new ArrayList<Level>();
+	}
+
+	// A run of lines, and the state they start from.
+	private class Chunk implements Callable<ChunkResult> {
+		final String[] lines = new String[CHUNK_LINES];
+		int count = 0;
+		ModalState start;
+		Future<ChunkResult> result = null;
+
+		Chunk(ModalState start) {
+			this.start = start;
+		}
+
+		public ChunkResult call() {
+			ChunkResult r = new ChunkResult();
+			EstimationDriver estimator = createDriver();
+			GCodeParser parser = new GCodeParser();
+			parser.init(estimator);
+			start.applyTo(estimator, parser);
+
+			int nToolheads = machine.getTools().size();
+			Point5d maxRates = machine.getMaximumFeedrates();
+			CommandBatch queue = new CommandBatch();
+			GCode gcode = new GCode();
+
+			for (int i = 0; i < count; i++) {
+				String line = lines[i];
+				gcode.parse(line);
+				if (safetyChecks) {
+					check(gcode, line, nToolheads, maxRates, r);
+				}
+				parser.parse(gcode, queue);
+				while (!queue.isEmpty()) {
+					try {
+						queue.run(estimator);
+					} catch (RetryException e) {
+						// Ignore, and carry on with the next command.
+						queue.remove();
+					} catch (StopException e) {
+						// TODO: Should we stop the estimator when we get a stop???
+						queue.remove();
+					}
+				}
+			}
+			r.buildTime = estimator.getBuildTime();
+			r.bounds = estimator.getBounds();
+			r.end = new ModalState(estimator, parser);
+			return r;
+		}
+	}
+
+	private static void check(GCode gcLine, String line, int nToolheads, Point5d maxRates, ChunkResult r) {
+		if (!isSupported(gcLine.getCommand())) {
+			r.levels.add(Level.SEVERE);
+			r.problems.add("Unsupported GCode!\n" + line +
+					" uses a code that ReplicatorG doesn't recognize.");
+		}
+
+		// we're going to check for the correct number of toolheads in each command
+		// the list of exceptions keeps growing, do we really need to do this check?
+		// maybe we should just specify the things to check, rather than the reverse
+		if(gcLine.getCodeValue('T') > nToolheads-1 && gcLine.getCodeValue('M') != 109
+												   && gcLine.getCodeValue('M') != 106
+												   && gcLine.getCodeValue('M') != 107)
+		{
+			r.levels.add(Level.SEVERE);
+			r.problems.add("Too Many Toolheads!\n" + line +
+					" makes reference to a non-existent toolhead.");
+		}
+		if(gcLine.hasCode('F'))
+		{
+			double fVal = gcLine.getCodeValue('F');
+			if( (gcLine.hasCode('X') && fVal > maxRates.x()) ||
+				(gcLine.hasCode('Y') && fVal > maxRates.y()) ||
+// we're going to ignore this for now, since most of the time the z isn't actually moving
+//				(gcLine.hasCode('Z') && fVal > maxRates.z()) ||
+				(gcLine.hasCode('A') && fVal > maxRates.a()) ||
+				(gcLine.hasCode('B') && fVal > maxRates.b()))
+			{
+				r.levels.add(Level.WARNING);
+				r.problems.add("You're moving too fast!\n" +
+						 line + " Tries to turn an axis faster than its max rate.");
+			}
+		}
+	}
+
+	/**
+	 * @return true if the first word of a command, up to the first space, is
+	 * a code we know, or if there isn't one
+	 */
+	static boolean isSupported(String command) {
+		int end = command.indexOf(' ');
+		if (end < 0) end = command.length();
+		if (end == 0) return true;
+
+		// A letter and a number written the way the table has it, the usual
+		// case. Anything else, such as "G01", is looked up as it stands.
+		if (end > 1 && end <= 10 && (end == 2 || command.charAt(1) != '0')) {
+			int number = 0;
+			int i = 1;
+			for (; i < end; i++) {
+				char c = command.charAt(i);
+				if (c < '0' || c > '9') break;
+				number = number * 10 + (c - '0');
+			}
+			if (i == end) {
+				return GCodeEnumeration.getGCode(command.charAt(0), number) != null;
+			}
+		}
+		return GCodeEnumeration.getGCode(command.substring(0, end)) != null;
+	}
+
+	/**
+	 * Follows how far each extruder is driven: the A axis for tool 0, the B
+	 * axis for tool 1, and the E axis for whichever was last named by a T
+	 * code. The estimate doesn't depend on this, so it is kept apart from the
+	 * modal state.
+	 */
+	static class ExtrusionTracker {
+		final double[] total = new double[2];
+		private final double[] last = new double[2];
+		private int tool = 0;
+		// For code that turns the extruder on and off rather than moving it
+		private boolean extruderOn = false;
+
+		/** @return where an extruder's axis is, in mm; 0 for A and 1 for B */
+		double getPosition(int axis) { return last[axis]; }
+
+		/**
+		 * Make this tracker follow on from where another is, without
+		 * allocating. Its totals are left alone.
+		 */
+		void set(ExtrusionTracker other) {
+			last[0] = other.last[0];
+			last[1] = other.last[1];
+			tool = other.tool;
+			extruderOn = other.extruderOn;
+		}
+
+		void write(DataOutput out) throws IOException {
+			out.writeDouble(last[0]);
+			out.writeDouble(last[1]);
+			out.writeInt(tool);
+			out.writeBoolean(extruderOn);
+		}
+
+		static ExtrusionTracker read(DataInput in) throws IOException {
+			ExtrusionTracker t = new ExtrusionTracker();
+			t.last[0] = in.readDouble();
+			t.last[1] = in.readDouble();
+			t.tool = in.readInt();
+			t.extruderOn = in.readBoolean();
+			return t;
+		}
+
+		/**
+		 * @return true if the line builds something: it drives an extruder
+		 * forwards, or moves with the extruder turned on
+		 */
+		boolean advance(GCode gcode, ModalState state) {
+			if (gcode.hasCode('T')) {
+				int t = (int)gcode.getCodeValue('T');
+				if (t == 0 || t == 1) tool = t;
+			}
+			if (gcode.hasCode('M')) {
+				int m = (int)gcode.getCodeValue('M');
+				if (m == 101) extruderOn = true;
+				else if (m == 103) extruderOn = false;
+			}
+			if (!gcode.hasCode('G')) return false;
+
+			int g = (int)gcode.getCodeValue('G');
+			if (g == 92) {
+				if (gcode.hasCode('A')) last[0] = state.toMM(gcode.getCodeValue('A'));
+				if (gcode.hasCode('E')) last[tool] = state.toMM(gcode.getCodeValue('E'));
+				if (gcode.hasCode('B')) last[1] = state.toMM(gcode.getCodeValue('B'));
+				return false;
+			}
+			if (g > 3) return false;
+			boolean builds = false;
+			if (gcode.hasCode('A')) builds |= feed(0, gcode.getCodeValue('A'), state);
+			if (gcode.hasCode('E')) builds |= feed(tool, gcode.getCodeValue('E'), state);
+			if (gcode.hasCode('B')) builds |= feed(1, gcode.getCodeValue('B'), state);
+			return builds || (extruderOn && g != 0 && (gcode.hasCode('X') || gcode.hasCode('Y')));
+		}
+
+		private boolean feed(int axis, double value, ModalState state) {
+			double v = state.toMM(value);
+			double delta = state.absoluteMode ? v - last[axis] : v;
+			last[axis] += delta;
+			total[axis] += delta;
+			return delta > 0;
+		}
+	}
+
+	/**
+	 * Everything a line of GCode depends on from the lines before it, as kept
+	 * by a GCodeParser and its EstimationDriver.
+	 */
+	static class ModalState {
+		final Point5d position;
+		double driverFeedrate;
+		boolean absoluteMode;
+		double feedrate;
+		int units;
+		int tool;
+		int coordinateSystem;
+		// x, y and z of each coordinate system's offset
+		final double[] offsets = new double[21];
+
+		private ModalState() {
+			position = new Point5d();
+		}
+
+		private ModalState(ModalState other) {
+			position = new Point5d();
+			set(other);
+		}
+
+		ModalState(EstimationDriver driver, GCodeParser parser) {
+			position = driver.getCurrentPosition(false);
+			driverFeedrate = driver.getCurrentFeedrate();
+			absoluteMode = parser.isAbsoluteMode();
+			feedrate = parser.getFeedrate();
+			units = parser.getUnits();
+			tool = parser.getTool();
+			coordinateSystem = parser.getCoordinateSystem();
+			for (int i = 0; i < 7; i++) {
+				Point3d offset = driver.getOffset(i);
+				offsets[3 * i] = offset.x;
+				offsets[3 * i + 1] = offset.y;
+				offsets[3 * i + 2] = offset.z;
+			}
+		}
+
+		ModalState copy() {
+			return new ModalState(this);
+		}
+
+		/** Make this state the same as another, without allocating. */
+		void set(ModalState other) {
+			position.set(other.position);
+			driverFeedrate = other.driverFeedrate;
+			absoluteMode = other.absoluteMode;
+			feedrate = other.feedrate;
+			units = other.units;
+			tool = other.tool;
+			coordinateSystem = other.coordinateSystem;
+			System.arraycopy(other.offsets, 0, offsets, 0, offsets.length);
+		}
+
+		void applyTo(Driver driver, GCodeParser parser) {
+			try {
+				driver.setCurrentPosition(new Point5d(position));
+			} catch (RetryException e) {
+				// Neither the estimator nor a driver capturing to a file
+				// ever asks to retry.
+			}
+			driver.setFeedrate(driverFeedrate);
+			for (int i = 0; i < 7; i++) {
+				driver.setOffsetX(i, offsets[3 * i]);
+				driver.setOffsetY(i, offsets[3 * i + 1]);
+				driver.setOffsetZ(i, offsets[3 * i + 2]);
+			}
+			parser.setAbsoluteMode(absoluteMode);
+			parser.setFeedrate(feedrate);
+			parser.setUnits(units);
+			parser.setTool(tool);
+			parser.setCoordinateSystem(coordinateSystem);
+		}
+
+		private double toMM(double value) {
+			return (units == GCodeParser.UNITS_INCHES) ? value * 25.4 : value;
+		}
+
+		/**
+		 * Follow what a line does to the state, working it out just as
+		 * GCodeParser and EstimationDriver do, but without building commands.
+		 */
+		void advance(GCode gcode, MachineModel machine) {
+			// M codes leave the state alone; the estimator only ever has one
+			// tool selected.
+			if (!gcode.hasCode('G')) return;
+
+			int offset = 3 * coordinateSystem;
+			double xVal = toMM(gcode.getCodeValue('X')) + offsets[offset];
+			double yVal = toMM(gcode.getCodeValue('Y')) + offsets[offset + 1];
+			double zVal = toMM(gcode.getCodeValue('Z')) + offsets[offset + 2];
+			double aVal = toMM(gcode.getCodeValue('A'));
+			double bVal = toMM(gcode.getCodeValue('B'));
+			double eVal = toMM(gcode.getCodeValue('E'));
+
+			Point5d temp = new Point5d(position);
+			if (absoluteMode) {
+				if (gcode.hasCode('X')) temp.setX(xVal);
+				if (gcode.hasCode('Y')) temp.setY(yVal);
+				if (gcode.hasCode('Z')) temp.setZ(zVal);
+				if (gcode.hasCode('A')) temp.setA(aVal);
+				if (gcode.hasCode('E')) {
+					if (tool == 0) temp.setA(eVal);
+					else if (tool == 1) temp.setB(eVal);
+				}
+				if (gcode.hasCode('B')) temp.setB(bVal);
+			} else {
+				if (gcode.hasCode('X')) temp.setX(temp.x() + xVal);
+				if (gcode.hasCode('Y')) temp.setY(temp.y() + yVal);
+				if (gcode.hasCode('Z')) temp.setZ(temp.z() + zVal);
+				if (gcode.hasCode('A')) temp.setA(temp.a() + aVal);
+				if (gcode.hasCode('E')) {
+					if (tool == 0) temp.setA(temp.a() + eVal);
+					else if (tool == 1) temp.setB(temp.b() + eVal);
+				}
+				if (gcode.hasCode('B')) temp.setB(temp.b() + bVal);
+			}
+
+			if (gcode.hasCode('F')) {
+				feedrate = gcode.getCodeValue('F');
+				driverFeedrate = feedrate;
+			}
+
+			GCodeEnumeration code = GCodeEnumeration.getGCode('G', (int)gcode.getCodeValue('G'));
+			if (code == null) return;
+
+			switch (code) {
+			case G0:
+				if (!gcode.hasCode('F')) {
+					// The fastest rate for the move
+					Point5d diff = new Point5d(position);
+					diff.sub(temp);
+					diff.absolute();
+					double length = diff.length();
+					double selectedFR = Double.MAX_VALUE;
+					Point5d maxFR = machine.getMaximumFeedrates();
+					for (int idx = 0; idx < 3; idx++) {
+						double axisMove = diff.get(idx);
+						if (axisMove == 0) { continue; }
+						double candidate = maxFR.get(idx)*length/axisMove;
+						if (candidate < selectedFR) {
+							selectedFR = candidate;
+						}
+					}
+					if (selectedFR == Double.MAX_VALUE) { selectedFR = maxFR.get(0); }
+					driverFeedrate = selectedFR;
+				}
+				moveTo(temp);
+				break;
+			case G1:
+				driverFeedrate = feedrate;
+				moveTo(temp);
+				break;
+			case G2:
+			case G3:
+				if (gcode.hasCode('I') || gcode.hasCode('J')) {
+					arcTo(temp, toMM(gcode.getCodeValue('I')), toMM(gcode.getCodeValue('J')),
+							code == GCodeEnumeration.G2);
+				}
+				break;
+			case G10:
+				if (gcode.hasCode('P')) {
+					int n = (int)gcode.getCodeValue('P');
+					if (n >= 1 && n <= 6) {
+						if (gcode.hasCode('X')) offsets[3 * n] = gcode.getCodeValue('X');
+						if (gcode.hasCode('Y')) offsets[3 * n + 1] = gcode.getCodeValue('Y');
+						if (gcode.hasCode('Z')) offsets[3 * n + 2] = gcode.getCodeValue('Z');
+					}
+				}
+				break;
+			case G20:
+			case G70:
+				units = GCodeParser.UNITS_INCHES;
+				break;
+			case G21:
+			case G71:
+				units = GCodeParser.UNITS_MM;
+				break;
+			case G53: coordinateSystem = 0; break;
+			case G54: coordinateSystem = 1; break;
+			case G55: coordinateSystem = 2; break;
+			case G56: coordinateSystem = 3; break;
+			case G57: coordinateSystem = 4; break;
+			case G58: coordinateSystem = 5; break;
+			case G59: coordinateSystem = 6; break;
+			case G90:
+				absoluteMode = true;
+				break;
+			case G91:
+				absoluteMode = false;
+				break;
+			case G92:
+				if (gcode.hasCode('X')) position.setX(xVal);
+				if (gcode.hasCode('Y')) position.setY(yVal);
+				if (gcode.hasCode('Z')) position.setZ(zVal);
+				if (gcode.hasCode('A')) position.setA(aVal);
+				if (gcode.hasCode('E')) position.setA(eVal);
+				if (gcode.hasCode('B')) position.setB(bVal);
+				break;
+			default:
+				break;
+			}
+		}
+
+		private void moveTo(Point5d p) {
+			for (int i = 0; i < 5; i++) {
+				position.set(i, p.get(i));
+			}
+		}
+
+		// The last point of the arc GCodeParser.drawArc() would draw.
+		private void arcTo(Point5d endpoint, double iVal, double jVal, boolean clockwise) {
+			double cx = position.x() + iVal;
+			double cy = position.y() + jVal;
+			double aX = position.x() - cx;
+			double aY = position.y() - cy;
+			double bX = endpoint.x() - cx;
+			double bY = endpoint.y() - cy;
+			double angleA, angleB;
+			if (clockwise) {
+				angleA = Math.atan2(bY, bX);
+				angleB = Math.atan2(aY, aX);
+			} else {
+				angleA = Math.atan2(aY, aX);
+				angleB = Math.atan2(bY, bX);
+			}
+			if (angleB <= angleA)
+				angleB += 2 * Math.PI;
+			double angle = angleB - angleA;
+			double radius = Math.sqrt(aX * aX + aY * aY);
+			double length = radius * angle;
+			double curveSection = (units == GCodeParser.UNITS_INCHES) ?
+					GCodeParser.curveSectionInches : GCodeParser.curveSectionMM;
+			int steps = (int) Math.ceil(Math.max(angle * 2.4, length / curveSection));
+			int step = clockwise ? 0 : steps;
+			double arcStartZ = position.z();
+			position.setX(cx + radius * Math.cos(angleA + angle * ((double) step / steps)));
+			position.setY(cy + radius * Math.sin(angleA + angle * ((double) step / steps)));
+			position.setZ(arcStartZ + (endpoint.z() - arcStartZ) * steps / steps);
+		}
+
+		void write(DataOutput out) throws IOException {
+			for (int i = 0; i < 5; i++) {
+				out.writeDouble(position.get(i));
+			}
+			out.writeDouble(driverFeedrate);
+			out.writeBoolean(absoluteMode);
+			out.writeDouble(feedrate);
+			out.writeInt(units);
+			out.writeInt(tool);
+			out.writeInt(coordinateSystem);
+			for (int i = 0; i < offsets.length; i++) {
+				out.writeDouble(offsets[i]);
+			}
+		}
+
+		static ModalState read(DataInput in) throws IOException {
+			ModalState s = new ModalState();
+			for (int i = 0; i < 5; i++) {
+				s.position.set(i, in.readDouble());
+			}
+			s.driverFeedrate = in.readDouble();
+			s.absoluteMode = in.readBoolean();
+			s.feedrate = in.readDouble();
+			s.units = in.readInt();
+			s.tool = in.readInt();
+			s.coordinateSystem = in.readInt();
+			for (int i = 0; i < s.offsets.length; i++) {
+				s.offsets[i] = in.readDouble();
+			}
+			return s;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof ModalState)) return false;
+			ModalState other = (ModalState)o;
+			for (int i = 0; i < 5; i++) {
+				if (position.get(i) != other.position.get(i)) return false;
+			}
+			for (int i = 0; i < offsets.length; i++) {
+				if (offsets[i] != other.offsets[i]) return false;
+			}
+			return driverFeedrate == other.driverFeedrate
+					&& absoluteMode == other.absoluteMode
+					&& feedrate == other.feedrate
+					&& units == other.units
+					&& tool == other.tool
+					&& coordinateSystem == other.coordinateSystem;
+		}
+
+		public int hashCode() {
+			return (int)Double.doubleToLongBits(position.x()) ^ coordinateSystem;
+		}
+	}
+}
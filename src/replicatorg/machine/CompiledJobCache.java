@@ -0,0 +1,166 @@
+package replicatorg.machine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.machine.builder.CompiledJob;
+import replicatorg.machine.builder.JobCompiler;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Keeps jobs compiled for the drivers they were built on, so that building a
+ * job again needn't parse any GCode.
+ *
+ * As in JobAnalysisCache, a compiled job is found by a hash of the job's code
+ * and a hash of everything about the driver the parser asks it, and the least
+ * recently used are deleted once they take more than the allowed space. A job
+ * is compiled the first time it is built, on a thread of its own, while the
+ * build goes on as it always has; a job that can't be compiled is remembered,
+ * so it isn't tried again.
+ *
+ * Finding a job hashes all of its code before the build starts, and
+ * compiling it parses it twice more, so the cache is off unless the
+ * "build.compiled_job_cache_mb" preference gives it some space.
+ */
+public class CompiledJobCache {
+	private static final String SUFFIX = ".job";
+
+	private static CompiledJobCache defaultCache = null;
+
+	/**
+	 * @return the cache in the user's .replicatorg directory, limited to the
+	 * size in the "build.compiled_job_cache_mb" preference; null if that is
+	 * 0, as it is unless set
+	 */
+	public static synchronized CompiledJobCache getDefault() {
+		long maxBytes = Base.preferences.getInt("build.compiled_job_cache_mb", 0) * 1024L * 1024L;
+		if (maxBytes <= 0) return null;
+		if (defaultCache == null) {
+			File dir = Base.getUserFile("compiled", false);
+			if (dir == null) return null;
+			defaultCache = new CompiledJobCache(dir, maxBytes);
+		}
+		defaultCache.maxBytes = maxBytes;
+		return defaultCache;
+	}
+
+	private final File dir;
+	private long maxBytes;
+	// Jobs being compiled, or that couldn't be
+	private final Set<String> compiling = new HashSet<String>();
+	private final Set<String> uncompilable = new HashSet<String>();
+
+	public CompiledJobCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the name the job is kept under, once compiled for the driver
+	 */
+	public static String key(GCodeSource source, DriverQueryInterface driver) {
+		return JobAnalysisCache.digest(source) + "-"
+				+ JobAnalysisCache.hex(JobAnalysisCache.sha1().digest(JobAnalysisCache.utf8(profile(driver))), 8);
+	}
+
+	// Everything about the driver, and the settings, the parser's commands depend on
+	private static String profile(DriverQueryInterface driver) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(CompiledJob.VERSION);
+		sb.append(' ').append(driver.getClass().getName());
+		sb.append(' ').append(driver.isPassthroughDriver());
+		sb.append(' ').append(driver instanceof MultiTool && ((MultiTool)driver).supportsSimultaneousTools());
+		sb.append(' ').append(driver.hasAutomatedBuildPlatform());
+		Point5d feedrates = driver.getMaximumFeedrates();
+		for (int i = 0; i < 5; i++) {
+			sb.append(' ').append(feedrates.get(i));
+		}
+		for (int i = 0; i < 7; i++) {
+			sb.append(' ').append(driver.getOffset(i));
+		}
+		sb.append(' ').append(GCodeParser.curveSectionMM);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the job kept under the given key, or null if there isn't one
+	 */
+	public synchronized CompiledJob get(String key) {
+		File f = new File(dir, key + SUFFIX);
+		if (!f.exists()) return null;
+		CompiledJob job = CompiledJob.open(f, key);
+		if (job == null) {
+			Base.logger.fine("Compiled job " + f + " is out of date");
+			f.delete();
+		} else {
+			f.setLastModified(System.currentTimeMillis());
+		}
+		return job;
+	}
+
+	/**
+	 * Compile a job on a thread of its own, and keep it under the given key,
+	 * unless it is already being compiled or can't be.
+	 * @param driver answers the parser's questions as the job is compiled;
+	 * the same driver a Pipelined build would ask
+	 */
+	public void compileLater(final String key, final GCodeSource source, final DriverQueryInterface driver) {
+		synchronized (this) {
+			if (compiling.contains(key) || uncompilable.contains(key)) return;
+			compiling.add(key);
+		}
+		Thread thread = new Thread("Job compiler") {
+			public void run() {
+				boolean compiled = true;
+				try {
+					compiled = compile(key, source, driver);
+				} catch (IOException e) {
+					// Not the job's fault; it can be tried again.
+					Base.logger.log(Level.FINE, "Couldn't save compiled job " + key, e);
+				}
+				synchronized (CompiledJobCache.this) {
+					compiling.remove(key);
+					if (!compiled) {
+						uncompilable.add(key);
+					}
+				}
+			}
+		};
+		thread.setDaemon(true);
+		thread.setPriority(Thread.MIN_PRIORITY);
+		thread.start();
+	}
+
+	/**
+	 * Compile a job, and keep it under the given key.
+	 * @return false if it can't be compiled
+	 */
+	public boolean compile(String key, GCodeSource source, DriverQueryInterface driver) throws IOException {
+		File f = new File(dir, key + SUFFIX);
+		File temp = new File(dir, key + ".tmp");
+		dir.mkdirs();
+		long started = System.currentTimeMillis();
+		if (!JobCompiler.compile(source, driver, key, temp)) {
+			Base.logger.fine("Job " + key + " can't be compiled");
+			return false;
+		}
+		synchronized (this) {
+			f.delete();
+			if (!temp.renameTo(f)) {
+				temp.delete();
+				throw new IOException("Couldn't rename " + temp + " to " + f);
+			}
+			JobAnalysisCache.evict(dir, SUFFIX, maxBytes);
+		}
+		Base.logger.fine("Compiled job " + key + " in " + (System.currentTimeMillis() - started) + " ms");
+		return true;
+	}
+}
@@ -0,0 +1,175 @@
+package replicatorg.machine;
+
+import java.awt.geom.Rectangle2D;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * What is known about a job before it is built: how long it will take, the
+ * area it covers, how much it extrudes, where each layer starts, and any
+ * problems found in its code. It also keeps checkpoints of the job's state
+ * along the way, so that a build can be resumed part way through.
+ */
+public class JobAnalysis {
+	// Bump this whenever the analysis changes, so older saved ones are ignored.
+	static final int VERSION = 3;
+
+	double buildTime = 0;
+	final Rectangle2D.Double bounds = new Rectangle2D.Double();
+	final double[] extrusion = new double[2];
+
+	// The line each layer starts on, and its height
+	private int[] layerLines = new int[64];
+	private double[] layerHeights = new double[64];
+	private int layerCount = 0;
+
+	// In order of their lines
+	final List<JobCheckpoint> checkpoints = new ArrayList<JobCheckpoint>();
+
+	long numErrors = 0;
+	long numWarnings = 0;
+	String message = null;
+	final List<Level> levels = new ArrayList<Level>();
+	final List<String> issues = new ArrayList<String>();
+
+	/** @return the estimated build time, in milliseconds */
+	public double getBuildTime() { return buildTime; }
+
+	/** @return the area in X and Y the job moves over, including the origin */
+	public Rectangle2D.Double getBounds() { return bounds; }
+
+	/**
+	 * @return how far the given tool's extruder is moved over the job, in mm
+	 * of filament; tool 0 uses the A axis and tool 1 the B axis
+	 */
+	public double getExtrusion(int tool) { return extrusion[tool]; }
+
+	/** @return the number of layers found */
+	public int getLayerCount() { return layerCount; }
+
+	/** @return the index of the line a layer starts on, counting from 0 */
+	public int getLayerLine(int layer) { return layerLines[layer]; }
+
+	/** @return the height a layer is built at, in mm */
+	public double getLayerHeight(int layer) { return layerHeights[layer]; }
+
+	/** @return the number of lines that can't be built */
+	public long getNumErrors() { return numErrors; }
+
+	/** @return the number of lines that may not build as intended */
+	public long getNumWarnings() { return numWarnings; }
+
+	/** @return a description of the first problem found, or null if there were none */
+	public String getMessage() { return message; }
+
+	/** @return the number of problems found, errors and warnings together */
+	public int getIssueCount() { return issues.size(); }
+
+	/** @return Level.SEVERE for an error, Level.WARNING for a warning */
+	public Level getIssueLevel(int i) { return levels.get(i); }
+
+	public String getIssue(int i) { return issues.get(i); }
+
+	void addLayer(int line, double height) {
+		if (layerCount == layerLines.length) {
+			int[] lines = new int[layerCount * 2];
+			double[] heights = new double[layerCount * 2];
+			System.arraycopy(layerLines, 0, lines, 0, layerCount);
+			System.arraycopy(layerHeights, 0, heights, 0, layerCount);
+			layerLines = lines;
+			layerHeights = heights;
+		}
+		layerLines[layerCount] = line;
+		layerHeights[layerCount] = height;
+		layerCount++;
+	}
+
+	/**
+	 * @return the last checkpoint taken at or before a line, or null if there
+	 * isn't one
+	 */
+	JobCheckpoint getCheckpoint(int line) {
+		int low = 0;
+		int high = checkpoints.size() - 1;
+		JobCheckpoint found = null;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			JobCheckpoint c = checkpoints.get(mid);
+			if (c.line <= line) {
+				found = c;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return found;
+	}
+
+	void addIssue(Level level, String s) {
+		//only take the first message
+		if (message == null)
+			message = s + '\n';
+		if (level == Level.SEVERE)
+			numErrors++;
+		else
+			numWarnings++;
+		levels.add(level);
+		issues.add(s);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(VERSION);
+		out.writeDouble(buildTime);
+		out.writeDouble(bounds.x);
+		out.writeDouble(bounds.y);
+		out.writeDouble(bounds.width);
+		out.writeDouble(bounds.height);
+		out.writeDouble(extrusion[0]);
+		out.writeDouble(extrusion[1]);
+		out.writeInt(layerCount);
+		for (int i = 0; i < layerCount; i++) {
+			out.writeInt(layerLines[i]);
+			out.writeDouble(layerHeights[i]);
+		}
+		out.writeInt(checkpoints.size());
+		for (JobCheckpoint c : checkpoints) {
+			c.write(out);
+		}
+		out.writeInt(issues.size());
+		for (int i = 0; i < issues.size(); i++) {
+			out.writeBoolean(levels.get(i) == Level.SEVERE);
+			out.writeUTF(issues.get(i));
+		}
+	}
+
+	/**
+	 * @return the analysis written by write(), or null if it was written by
+	 * a different version
+	 */
+	static JobAnalysis read(DataInput in) throws IOException {
+		if (in.readInt() != VERSION) return null;
+		JobAnalysis a = new JobAnalysis();
+		a.buildTime = in.readDouble();
+		a.bounds.setRect(in.readDouble(), in.readDouble(), in.readDouble(), in.readDouble());
+		a.extrusion[0] = in.readDouble();
+		a.extrusion[1] = in.readDouble();
+		int layers = in.readInt();
+		for (int i = 0; i < layers; i++) {
+			a.addLayer(in.readInt(), in.readDouble());
+		}
+		int checkpoints = in.readInt();
+		for (int i = 0; i < checkpoints; i++) {
+			a.checkpoints.add(JobCheckpoint.read(in));
+		}
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			Level level = in.readBoolean() ? Level.SEVERE : Level.WARNING;
+			a.addIssue(level, in.readUTF());
+		}
+		return a;
+	}
+}
@@ -0,0 +1,243 @@
+package replicatorg.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.MappedGCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Keeps the analyses of jobs on disk, so a job that has been analyzed for
+ * a machine before needn't be again.
+ *
+ * An analysis is found by a hash of the job's code and a hash of everything
+ * about the machine it depends on. Each is kept in a file of its own, whose
+ * modification time is when it was last used; once the files take more than
+ * the allowed space, the least recently used are deleted.
+ */
+public class JobAnalysisCache {
+	private static final String SUFFIX = ".analysis";
+
+	private static JobAnalysisCache defaultCache = null;
+
+	/**
+	 * @return the cache in the user's .replicatorg directory, limited to the
+	 * size in the "build.analysis_cache_mb" preference; null if that is 0
+	 */
+	public static synchronized JobAnalysisCache getDefault() {
+		long maxBytes = Base.preferences.getInt("build.analysis_cache_mb", 32) * 1024L * 1024L;
+		if (maxBytes <= 0) return null;
+		if (defaultCache == null) {
+			File dir = Base.getUserFile("analysis", false);
+			if (dir == null) return null;
+			defaultCache = new JobAnalysisCache(dir, maxBytes);
+		}
+		defaultCache.maxBytes = maxBytes;
+		return defaultCache;
+	}
+
+	private final File dir;
+	private long maxBytes;
+
+	public JobAnalysisCache(File dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the name the analysis of a job on a machine is kept under
+	 */
+	public static String key(GCodeSource source, MachineModel machine, boolean safetyChecks) {
+		return digest(source) + "-" + hex(sha1().digest(utf8(profile(machine, safetyChecks))), 8);
+	}
+
+	/**
+	 * @return a hash of the lines of a job, as UTF-8 with a line break after
+	 * each, in hex
+	 */
+	static String digest(GCodeSource source) {
+		MessageDigest digest = sha1();
+		update(digest, source, new byte[256]);
+		return hex(digest.digest(), 20);
+	}
+
+	private static byte[] update(MessageDigest digest, GCodeSource source, byte[] buf) {
+		if (source instanceof MappedGCodeSource) {
+			((MappedGCodeSource)source).digestLines(digest);
+		} else if (source instanceof GCodeSourceCollection) {
+			for (GCodeSource part : ((GCodeSourceCollection)source).getSources()) {
+				buf = update(digest, part, buf);
+			}
+		} else {
+			for (String line : source) {
+				buf = update(digest, line, buf);
+			}
+		}
+		return buf;
+	}
+
+	// Add a line and a line break to the digest, as UTF-8.
+	private static byte[] update(MessageDigest digest, CharSequence line, byte[] buf) {
+		int n = line.length();
+		if (buf.length < n + 1) buf = new byte[Math.max(n + 1, buf.length * 2)];
+		boolean ascii = true;
+		for (int i = 0; i < n && ascii; i++) {
+			char c = line.charAt(i);
+			if (c > 127) ascii = false;
+			buf[i] = (byte)c;
+		}
+		if (ascii) {
+			buf[n] = '\n';
+			digest.update(buf, 0, n + 1);
+		} else {
+			digest.update(utf8(line.toString()));
+			digest.update((byte)'\n');
+		}
+		return buf;
+	}
+
+	// Everything about the machine, and the settings, an analysis depends on
+	private static String profile(MachineModel machine, boolean safetyChecks) {
+		StringBuilder sb = new StringBuilder();
+		sb.append(JobAnalysis.VERSION);
+		Point5d feedrates = machine.getMaximumFeedrates();
+		Point5d accelerations = machine.getAccelerations();
+		for (int i = 0; i < 5; i++) {
+			sb.append(' ').append(feedrates.get(i));
+			sb.append(' ').append(accelerations.get(i));
+		}
+		sb.append(' ').append(machine.getJunctionDeviation());
+		sb.append(' ').append(machine.getTools().size());
+		sb.append(' ').append(GCodeParser.curveSectionMM);
+		sb.append(' ').append(safetyChecks);
+		return sb.toString();
+	}
+
+	/**
+	 * @return the analysis kept under the given key, or null if there isn't one
+	 */
+	public synchronized JobAnalysis get(String key) {
+		File f = new File(dir, key + SUFFIX);
+		if (!f.exists()) return null;
+		JobAnalysis analysis = null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+			try {
+				analysis = JobAnalysis.read(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Couldn't read saved analysis " + f, e);
+		}
+		if (analysis == null) {
+			f.delete();
+		} else {
+			f.setLastModified(System.currentTimeMillis());
+		}
+		return analysis;
+	}
+
+	/**
+	 * Keep an analysis under the given key, making room for it if need be.
+	 */
+	public synchronized void put(String key, JobAnalysis analysis) {
+		File f = new File(dir, key + SUFFIX);
+		File temp = new File(dir, key + ".tmp");
+		dir.mkdirs();
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+			try {
+				analysis.write(out);
+			} finally {
+				out.close();
+			}
+			f.delete();
+			if (!temp.renameTo(f)) {
+				throw new IOException("Couldn't rename " + temp + " to " + f);
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Couldn't save analysis " + f, e);
+			temp.delete();
+			return;
+		}
+		evict(dir, SUFFIX, maxBytes);
+	}
+
+	/**
+	 * Delete the least recently used of the files in a directory with the
+	 * given suffix until all the files fit in the given space.
+	 */
+	static void evict(File dir, String suffix, long maxBytes) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		long total = 0;
+		for (File f : files) {
+			total += f.length();
+		}
+		if (total <= maxBytes) return;
+
+		final long[] used = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		for (int i = 0; i < files.length; i++) {
+			used[i] = files[i].lastModified();
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return (used[a] < used[b]) ? -1 : ((used[a] == used[b]) ? 0 : 1);
+			}
+		});
+		for (int i = 0; i < order.length && total > maxBytes; i++) {
+			File f = files[order[i]];
+			if (!f.getName().endsWith(suffix)) continue;
+			long length = f.length();
+			if (f.delete()) {
+				total -= length;
+			}
+		}
+	}
+
+	static MessageDigest sha1() {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-1.
+			throw new RuntimeException(e);
+		}
+	}
+
+	static byte[] utf8(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	static String hex(byte[] bytes, int count) {
+		StringBuilder sb = new StringBuilder(count * 2);
+		for (int i = 0; i < count; i++) {
+			sb.append(Character.forDigit((bytes[i] >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(bytes[i] & 0xf, 16));
+		}
+		return sb.toString();
+	}
+}
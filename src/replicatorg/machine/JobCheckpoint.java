@@ -0,0 +1,43 @@
+package replicatorg.machine;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import replicatorg.machine.BuildEstimator.ExtrusionTracker;
+import replicatorg.machine.BuildEstimator.ModalState;
+
+/**
+ * Everything needed to carry on with a job from one of its lines, as though
+ * the lines before it had been built: the modal state the line is run in,
+ * where the extruders are, and the lines that set the machine up. Taken by
+ * BuildEstimator every few thousand lines and at the start of each layer.
+ */
+class JobCheckpoint {
+	/** The index of the line, counting from 0 */
+	final int line;
+	final ModalState state;
+	final ExtrusionTracker extrusion;
+	final JobSetup setup;
+
+	JobCheckpoint(int line, ModalState state, ExtrusionTracker extrusion, JobSetup setup) {
+		this.line = line;
+		this.state = state;
+		this.extrusion = extrusion;
+		this.setup = setup;
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(line);
+		state.write(out);
+		extrusion.write(out);
+		setup.write(out);
+	}
+
+	static JobCheckpoint read(DataInput in) throws IOException {
+		int line = in.readInt();
+		ModalState state = ModalState.read(in);
+		ExtrusionTracker extrusion = ExtrusionTracker.read(in);
+		return new JobCheckpoint(line, state, extrusion, JobSetup.read(in));
+	}
+}
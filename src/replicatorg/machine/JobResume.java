@@ -0,0 +1,216 @@
+package replicatorg.machine;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import replicatorg.app.GCode;
+import replicatorg.app.GCodeParser;
+import replicatorg.machine.BuildEstimator.ExtrusionTracker;
+import replicatorg.machine.BuildEstimator.ModalState;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.model.GCodeSource;
+import replicatorg.model.GCodeSourceCollection;
+import replicatorg.model.StringListSource;
+import replicatorg.model.TailGCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Resumes a job part way through, say after a failed build, by building the
+ * job from a given line or layer on with a few lines in front that ready the
+ * machine as the lines before would have.
+ *
+ * The job's state at the line is found from the JobAnalysis: the nearest
+ * checkpoint at or before it is followed on through the few lines between.
+ * The lines in front then set the tools' temperatures and set them up, home
+ * the machine as the job did, wait for each heated tool, move to where the
+ * job was from above, set the extruders' positions, and put the parser back
+ * into the job's modes. The job itself is
+ * read from the line on, without reading the lines before it if it is a
+ * MappedGCodeSource.
+ */
+public class JobResume {
+	/** How far above where the job was the machine moves over to it, in mm */
+	static final double CLEARANCE = 5;
+
+	/**
+	 * @param layer the layer to start from, counting from 0
+	 * @return the code to build, or null if there is no such layer
+	 */
+	public static GCodeSource fromLayer(GCodeSource source, JobAnalysis analysis,
+			MachineModel machine, int layer) {
+		if (layer < 0 || layer >= analysis.getLayerCount()) return null;
+		return fromLine(source, analysis, machine, analysis.getLayerLine(layer));
+	}
+
+	/**
+	 * @param analysis the job's analysis, for the machine it is built on
+	 * @param line the index of the line to start from, counting from 0
+	 * @return the code to build, or null if there is no such line or the
+	 * analysis has no checkpoint before it
+	 */
+	public static GCodeSource fromLine(GCodeSource source, JobAnalysis analysis,
+			MachineModel machine, int line) {
+		if (line < 0 || line >= source.getLineCount()) return null;
+		JobCheckpoint checkpoint = analysis.getCheckpoint(line);
+		if (checkpoint == null) return null;
+
+		// Follow the state on to the line; there are no layer starts between.
+		ModalState state = checkpoint.state.copy();
+		ExtrusionTracker extrusion = new ExtrusionTracker();
+		extrusion.set(checkpoint.extrusion);
+		JobSetup setup = checkpoint.setup.copy();
+		GCode gcode = new GCode();
+		Iterator<String> lines = new TailGCodeSource(source, checkpoint.line).iterator();
+		for (int i = checkpoint.line; i < line; i++) {
+			String s = lines.next();
+			gcode.parse(s);
+			setup.noteHoming(gcode, s, state);
+			state.advance(gcode, machine);
+			extrusion.advance(gcode, state);
+			if (!gcode.hasCode('G') && gcode.hasCode('M')) {
+				setup.noteTools(gcode, s);
+			}
+		}
+
+		Vector<GCodeSource> sources = new Vector<GCodeSource>();
+		sources.add(new StringListSource(preamble(line, state, extrusion, setup)));
+		sources.add(new TailGCodeSource(source, line));
+		return new GCodeSourceCollection(sources);
+	}
+
+	// The lines that ready the machine to carry on from a line.
+	static Vector<String> preamble(int line, ModalState state, ExtrusionTracker extrusion, JobSetup setup) {
+		Vector<String> lines = new Vector<String>();
+		lines.add("(Resuming the job from line " + (line + 1) + ")");
+
+		// Set every temperature first, so that the tools heat while the rest
+		// is done, then set the tools up, but leave the extruders off until
+		// the machine is in place. GCodeParser takes the last tool named by
+		// an M code as the one in use.
+		GCode gcode = new GCode();
+		String toolLine = null;
+		List<String> temperatures = new ArrayList<String>();
+		List<String> others = new ArrayList<String>();
+		List<String> extruders = new ArrayList<String>();
+		// The job's wait for each tool, and whether each tool it sets the
+		// temperature of is heated
+		Map<Integer,String> waits = new LinkedHashMap<Integer,String>();
+		Map<Integer,Boolean> heated = new LinkedHashMap<Integer,Boolean>();
+		boolean heatsInUse = false;
+		for (String s : setup.getToolLines()) {
+			gcode.parse(s);
+			if (gcode.hasCode('T')) {
+				toolLine = s;
+			}
+			int m = (int)gcode.getCodeValue('M');
+			boolean hot = gcode.hasCode('S') && gcode.getCodeValue('S') > 0;
+			if (m == 104) {
+				temperatures.add(s);
+				if (gcode.hasCode('T')) {
+					heated.put((int)gcode.getCodeValue('T'), hot);
+				} else {
+					heatsInUse |= hot;
+				}
+			} else if (m == 109 || m == 140) {
+				// The platform is waited for along with its tool.
+				temperatures.add(s);
+				heatsInUse |= hot;
+			} else if (m == 110) {
+				temperatures.add(s);
+			} else if (m == 6) {
+				if (gcode.hasCode('T')) {
+					waits.put((int)gcode.getCodeValue('T'), s);
+				}
+			} else if (m == 101 || m == 102 || m == 103) {
+				extruders.add(s);
+			} else {
+				others.add(s);
+			}
+		}
+		lines.addAll(temperatures);
+		lines.addAll(others);
+		lines.addAll(setup.getHomingLines());
+
+		// Then wait for each heated tool before going near the job.
+		if (heatsInUse) {
+			int inUse = 0;
+			if (toolLine != null) {
+				gcode.parse(toolLine);
+				inUse = (int)gcode.getCodeValue('T');
+			}
+			if (!heated.containsKey(inUse)) {
+				heated.put(inUse, true);
+			}
+		}
+		for (Map.Entry<Integer,Boolean> e : heated.entrySet()) {
+			if (e.getValue() && !waits.containsKey(e.getKey())) {
+				waits.put(e.getKey(), "M6 T" + e.getKey());
+			}
+		}
+		for (Map.Entry<Integer,String> e : waits.entrySet()) {
+			if (!Boolean.FALSE.equals(heated.get(e.getKey()))) {
+				lines.add(e.getValue());
+			}
+		}
+
+		// Move over to where the job was from above, in machine coordinates.
+		Point5d p = state.position;
+		lines.add("G21");
+		lines.add("G90");
+		lines.add("G53");
+		lines.add("G0 Z" + format(p.z() - state.offsets[2] + CLEARANCE));
+		lines.add("G0 X" + format(p.x() - state.offsets[0]) + " Y" + format(p.y() - state.offsets[1]));
+		if (state.feedrate > 0) {
+			lines.add("G1 Z" + format(p.z() - state.offsets[2]) + " F" + format(state.feedrate));
+		} else {
+			lines.add("G0 Z" + format(p.z() - state.offsets[2]));
+		}
+		lines.add("G92 A" + format(extrusion.getPosition(0)) + " B" + format(extrusion.getPosition(1)));
+
+		// Then put the parser back into the job's modes.
+		for (int i = 1; i < 7; i++) {
+			double x = state.offsets[3 * i];
+			double y = state.offsets[3 * i + 1];
+			double z = state.offsets[3 * i + 2];
+			if (x != 0 || y != 0 || z != 0) {
+				lines.add("G10 P" + i + " X" + format(x) + " Y" + format(y) + " Z" + format(z));
+			}
+		}
+		if (state.coordinateSystem != 0) {
+			lines.add("G" + (53 + state.coordinateSystem));
+		}
+		if (state.units == GCodeParser.UNITS_INCHES) {
+			lines.add("G20");
+		}
+		if (!state.absoluteMode) {
+			lines.add("G91");
+		}
+		lines.addAll(extruders);
+
+		if (toolLine != null) {
+			int lastNamed = -1;
+			for (String s : lines) {
+				gcode.parse(s);
+				if (gcode.hasCode('M') && gcode.hasCode('T')) {
+					lastNamed = (int)gcode.getCodeValue('T');
+				}
+			}
+			gcode.parse(toolLine);
+			if ((int)gcode.getCodeValue('T') != lastNamed) {
+				lines.add(toolLine);
+			}
+		}
+		return lines;
+	}
+
+	// A number as GCode reads it back exactly: as few digits as it takes,
+	// and never in scientific notation.
+	private static String format(double v) {
+		return BigDecimal.valueOf(v).stripTrailingZeros().toPlainString();
+	}
+}
@@ -0,0 +1,176 @@
+package replicatorg.machine;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import replicatorg.app.GCode;
+import replicatorg.app.GCodeParser;
+import replicatorg.machine.BuildEstimator.ModalState;
+
+/**
+ * The lines of a job that set the machine up for the lines after them, as
+ * far as the job has been read: the last line of each kind that sets up the
+ * tools (temperatures, heat waits, fans, extruders on or off), and the lines
+ * that home the machine and set its position before the first layer.
+ *
+ * Running these, and putting the machine into the modal state the job was
+ * in, readies it to carry on from wherever the job was read to.
+ */
+class JobSetup {
+	/** The most lines after the last homing line that a homing block waits through */
+	static final int HOMING_LINES = 256;
+
+	// The last line of each kind that sets the tools up, in the order they came
+	private final LinkedHashMap<String,String> tools = new LinkedHashMap<String,String>();
+	private String[] toolLines = null;
+
+	// The lines from the first that homes the machine, of which those up to
+	// homingEnd end with homing the machine or setting its position. The
+	// block is open until a layer starts.
+	private final List<String> homing = new ArrayList<String>();
+	private int homingEnd = 0;
+	private boolean homingOpen = false;
+
+	JobSetup() {
+	}
+
+	private JobSetup(JobSetup other) {
+		tools.putAll(other.tools);
+		toolLines = other.toolLines;
+		homing.addAll(other.homing);
+		homingEnd = other.homingEnd;
+		homingOpen = other.homingOpen;
+	}
+
+	JobSetup copy() {
+		return new JobSetup(this);
+	}
+
+	/**
+	 * Note a line that sets up the tools: an M code without a G code. Only
+	 * codes that leave the machine in a lasting state are kept; those that
+	 * end the job, ask the machine something, or act once (such as storing
+	 * the position to EEPROM or resetting the driver) are not.
+	 */
+	void noteTools(GCode gcode, String line) {
+		int m = (int)gcode.getCodeValue('M');
+		switch (m) {
+		case 6: // wait for the tool to heat
+		case 104: // tool temperature
+		case 108: // extruder motor speed
+		case 110: // chamber temperature
+		case 300: case 301: // servos
+			break;
+		case 3: case 4: case 5: m = 3; break;
+		case 7: case 8: case 9: m = 7; break;
+		case 10: case 11: m = 10; break;
+		case 13: case 14:
+			// The spindle and the coolant both
+			note(3, gcode, line);
+			m = 7;
+			break;
+		case 17: case 18: m = 17; break;
+		case 21: case 22: m = 21; break;
+		case 40: case 41: case 42: case 43: case 44: case 45: case 46: m = 40; break;
+		case 101: case 102: case 103: m = 101; break;
+		case 106: case 107: m = 106; break;
+		case 109: case 140: m = 109; break; // platform temperature
+		case 126: case 127: m = 126; break;
+		default:
+			return;
+		}
+		note(m, gcode, line);
+	}
+
+	private void note(int kind, GCode gcode, String line) {
+		String key = gcode.hasCode('T') ? kind + " T" + (int)gcode.getCodeValue('T') : Integer.toString(kind);
+		tools.remove(key);
+		tools.put(key, line);
+		toolLines = null;
+	}
+
+	/**
+	 * Note any line, in case it homes the machine.
+	 * @param state the modal state the line is run in
+	 */
+	void noteHoming(GCode gcode, String line, ModalState state) {
+		boolean homes;
+		if (gcode.hasCode('G')) {
+			int g = (int)gcode.getCodeValue('G');
+			homes = (g == 28 || g == 161 || g == 162);
+		} else {
+			homes = gcode.hasCode('M') && (int)gcode.getCodeValue('M') == 132;
+		}
+		if (homes && !homingOpen) {
+			homing.clear();
+			// The block is run in the state it started in.
+			homing.add(state.units == GCodeParser.UNITS_INCHES ? "G20" : "G21");
+			homing.add(state.absoluteMode ? "G90" : "G91");
+			homingOpen = true;
+		}
+		if (!homingOpen) return;
+		homing.add(line);
+		if (homes || (gcode.hasCode('G') && (int)gcode.getCodeValue('G') == 92)) {
+			homingEnd = homing.size();
+		} else if (homing.size() - homingEnd > HOMING_LINES) {
+			endHoming();
+		}
+	}
+
+	/**
+	 * Close the homing block, as a layer starts.
+	 */
+	void endHoming() {
+		if (!homingOpen) return;
+		homing.subList(homingEnd, homing.size()).clear();
+		homingOpen = false;
+	}
+
+	/** @return the last line of each kind that sets up the tools, in the order they came */
+	String[] getToolLines() {
+		if (toolLines == null) {
+			toolLines = tools.values().toArray(new String[tools.size()]);
+		}
+		return toolLines;
+	}
+
+	/** @return the lines that home the machine, or none if it hasn't been */
+	List<String> getHomingLines() {
+		return homing.subList(0, homingEnd);
+	}
+
+	void write(DataOutput out) throws IOException {
+		out.writeInt(tools.size());
+		for (Map.Entry<String,String> e : tools.entrySet()) {
+			out.writeUTF(e.getKey());
+			out.writeUTF(e.getValue());
+		}
+		out.writeInt(homing.size());
+		for (String line : homing) {
+			out.writeUTF(line);
+		}
+		out.writeInt(homingEnd);
+		out.writeBoolean(homingOpen);
+	}
+
+	static JobSetup read(DataInput in) throws IOException {
+		JobSetup s = new JobSetup();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			String key = in.readUTF();
+			s.tools.put(key, in.readUTF());
+		}
+		count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			s.homing.add(in.readUTF());
+		}
+		s.homingEnd = in.readInt();
+		s.homingOpen = in.readBoolean();
+		return s;
+	}
+}
@@ -19,8 +19,8 @@
 
 package replicatorg.machine;
 
-import java.util.LinkedList;
-import java.util.Queue;
+import java.awt.GraphicsEnvironment;
+import java.io.IOException;
 import java.util.logging.Level;
 
 import javax.swing.JOptionPane;
@@ -30,20 +30,15 @@ import javax.swing.JTextArea;
 import org.w3c.dom.Node;
 
 import replicatorg.app.Base;
-import replicatorg.app.GCode;
-import replicatorg.app.GCodeEnumeration;
-import replicatorg.app.GCodeParser;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.EstimationDriver;
-import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
-import replicatorg.drivers.StopException;
 import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
 import replicatorg.model.GCodeSource;
-import replicatorg.util.Point5d;
 
 /**
  * The MachineController object controls a single machine. It contains a single
@@ -74,8 +69,6 @@ public class Machine implements MachineInterface {
 		// Start a build
 		SIMULATE, // Build to the simulator
 		BUILD_DIRECT, // Build in real time on the machine
-		BUILD_TO_FILE, // Build, but instruct the machine to save it to the
-						// local filesystem
 		BUILD_TO_REMOTE_FILE, // Build, but instruct the machine to save it to
 								// the machine's filesystem
 		BUILD_REMOTE, // Instruct the machine to run a build from it's
@@ -183,7 +176,18 @@ public class Machine implements MachineInterface {
 		
 		estimate(source);
 		
-		if(numErrors > 0)
+		if (GraphicsEnvironment.isHeadless()) {
+			// Nobody to ask: refuse code with errors, and go ahead with warnings.
+			if (numErrors > 0) {
+				Base.logger.severe("The pre-run check found " + numErrors
+						+ " errors; the first was: " + message);
+				return false;
+			} else if (numWarnings > 0) {
+				Base.logger.warning("The pre-run check found " + numWarnings
+						+ " warnings; the first was: " + message);
+			}
+		}
+		else if(numErrors > 0)
 		{
 			JOptionPane.showConfirmDialog(null, 
 					new Object[]{"The pre-run check has found some problematic GCode.",
@@ -241,95 +245,14 @@ public class Machine implements MachineInterface {
 			return;
 		}
 
-		EstimationDriver estimator = new EstimationDriver();
-		// TODO: Is this correct?
-		estimator.setMachine(machineThread.getModel());
-		
 		boolean safetyChecks = Base.preferences.getBoolean("build.safetyChecks", true);
-		
-		int nToolheads = machineThread.getModel().getTools().size();
-		Point5d maxRates = machineThread.getModel().getMaximumFeedrates();
-		
-		Queue<DriverCommand> estimatorQueue = new LinkedList<DriverCommand>();
-
-		GCodeParser estimatorParser = new GCodeParser();
-		estimatorParser.init(estimator);
-
-		// run each line through the estimator
-		for (String line : source) {
-			// TODO: Hooks for plugins to add estimated time?
-			estimatorParser.parse(line, estimatorQueue);
-
-			if(safetyChecks)
-			{
-				GCode gcLine = new GCode(line);
-				String s;
-
-				String mainCode = gcLine.getCommand().split(" ")[0];
-				if(!("").equals(mainCode) && GCodeEnumeration.getGCode(mainCode) == null)
-				{
-					s = "Unsupported GCode!\n" + line + 
-							" uses a code that ReplicatorG doesn't recognize.";
-					
-					//only take the first message
-					if(message == null)
-						message = s + '\n';
-
-					Base.logger.log(Level.SEVERE, s);
-					numErrors++;
-				}
-				
-				// we're going to check for the correct number of toolheads in each command
-				// the list of exceptions keeps growing, do we really need to do this check?
-				// maybe we should just specify the things to check, rather than the reverse
-				if(gcLine.getCodeValue('T') > nToolheads-1 && gcLine.getCodeValue('M') != 109
-														   && gcLine.getCodeValue('M') != 106
-														   && gcLine.getCodeValue('M') != 107)
-				{
-					s = "Too Many Toolheads!\n" + line + 
-							" makes reference to a non-existent toolhead.";
-					
-					//only take the first message
-					if(message == null)
-						message = s + '\n';
-					
-					Base.logger.log(Level.SEVERE, s);
-					numErrors++;
-				}
-				if(gcLine.hasCode('F'))
-				{
-					double fVal = gcLine.getCodeValue('F');
-					if( (gcLine.hasCode('X') && fVal > maxRates.x()) ||
-						(gcLine.hasCode('Y') && fVal > maxRates.y()) ||
-	// we're going to ignore this for now, since most of the time the z isn't actually moving 
-	//					(gcLine.hasCode('Z') && fVal > maxRates.z()) ||  
-						(gcLine.hasCode('A') && fVal > maxRates.a()) ||
-						(gcLine.hasCode('B') && fVal > maxRates.b()))
-					{
-						s = "You're moving too fast!\n" +
-								 line + " Tries to turn an axis faster than its max rate.";
-						
-						//only take the first message
-						if(message == null)
-							message = s + '\n';
-						
-						Base.logger.log(Level.WARNING, s);
-						numWarnings++;
-					}
-				}
-			}
-			
-			for (DriverCommand command : estimatorQueue) {
-				try {
-					command.run(estimator);
-				} catch (RetryException r) {
-					// Ignore.
-				} catch (StopException e) {
-					// TODO: Should we stop the estimator when we get a stop???
-				}
-			}
-			estimatorQueue.clear();
-		}
+		JobAnalysis analysis = BuildEstimator.analyze(source, machineThread.getModel(), safetyChecks);
+
+		numErrors += analysis.getNumErrors();
+		numWarnings += analysis.getNumWarnings();
+		//only take the first message
+		if (message == null)
+			message = analysis.getMessage();
 
 		// TODO: Set simulator up properly.
 		// if (simulator != null) {
@@ -340,13 +263,22 @@ public class Machine implements MachineInterface {
 		// ((SimulationDriver)driver).setSimulationBounds(estimator.getBounds());
 		// }
 
-		machineThread.setEstimatedBuildTime(estimator.getBuildTime());
+		machineThread.setEstimatedBuildTime(analysis.getBuildTime());
 		Base.logger
 				.info("Estimated build time is: "
-						+ EstimationDriver.getBuildTimeString(estimator
+						+ EstimationDriver.getBuildTimeString(analysis
 								.getBuildTime()));
 	}
 
+	public JobAnalysis getSavedAnalysis(GCodeSource source) {
+		JobAnalysisCache cache = JobAnalysisCache.getDefault();
+		if (source == null || cache == null) {
+			return null;
+		}
+		boolean safetyChecks = Base.preferences.getBoolean("build.safetyChecks", true);
+		return cache.get(JobAnalysisCache.key(source, machineThread.getModel(), safetyChecks));
+	}
+
 	public DriverQueryInterface getDriverQueryInterface() {
 		return (DriverQueryInterface) machineThread.getDriver();
 	}
@@ -393,15 +325,33 @@ public class Machine implements MachineInterface {
 				RequestType.BUILD_TO_REMOTE_FILE, source, remoteName));
 	}
 
-	public void buildToFile(GCodeSource source, String path) {
-		/**
-		 * Upload the gcode to the given file.
-		 * 
-		 * @param source
-		 * @param remoteName
-		 */
-		machineThread.scheduleRequest(new MachineCommand(
-				RequestType.BUILD_TO_FILE, source, path));
+	/**
+	 * Compile the job to an .s3g file, without going through the machine
+	 * thread, so the machine needn't be connected or idle. This takes as long
+	 * as the compile does, so call it from a thread of its own; interrupting
+	 * that thread stops the compile.
+	 * @return true if the whole job was written
+	 */
+	public boolean buildToFile(GCodeSource source, String path) {
+		if (!(machineThread.getDriver() instanceof Sanguino3GDriver)) {
+			Base.logger.severe("Build to file requires a driver that speaks the s3g protocol!");
+			return false;
+		}
+		S3GCompiler compiler = new S3GCompiler(machineNode);
+		try {
+			if (!compiler.compile(machineThread.buildGCodeJob(source), path)) {
+				Base.logger.info("Build to file stopped.");
+				return false;
+			}
+		} catch (IOException e) {
+			Base.logger.log(Level.SEVERE, "Could not write to " + path, e);
+			return false;
+		}
+		if (compiler.getHaltMessage() != null) {
+			Base.logger.info("The job ends before the end of its code; the rest wasn't written.");
+		}
+		Base.logger.info("Finished writing to file!");
+		return true;
 	}
 
 	public void unpause() {
@@ -465,6 +415,11 @@ public class Machine implements MachineInterface {
 		callbackHandler.schedule(progress);
 	}
 
+	/** @return how often, in milliseconds, progress events are passed on */
+	protected long getProgressInterval() {
+		return callbackHandler.getInterval();
+	}
+
 	protected void emitToolStatus(ToolModel tool) {
 		MachineToolStatusEvent e = new MachineToolStatusEvent(this, tool);
 		callbackHandler.schedule(e);
@@ -1,101 +1,269 @@
 package replicatorg.machine;
 
-import java.util.Vector;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
 
 import replicatorg.app.Base;
+import replicatorg.machine.model.ToolModel;
 
 
 /** Thread that handles callbacks for events from the machine controller.
- * TODO: There /has/ to be a better way of doing this.
+ *
+ * Progress and tool status can be reported far more often than anyone can
+ * watch, so they are coalesced: only the latest progress, and the latest
+ * status of each tool, is kept, and they are sent no more often than the
+ * "machine.event_rate" preference allows. The machine thread checks
+ * getInterval() so as not to make a progress event for every line it builds. State changes are never coalesced, and are sent as soon as they
+ * are scheduled, each after whatever progress came before it.
+ *
+ * Each listener is called on a thread of its own, so that a slow one can't
+ * hold up the others. Events wait for it in a mailbox of their own, which is
+ * coalesced in the same way, so a listener that falls behind gets the
+ * latest progress when it catches up rather than everything it missed.
  * @author mattmets
  *
  */
 public class MachineCallbackHandler extends Thread {
-	
+	/** The most progress and tool status events sent each second, by default */
+	public static final double DEFAULT_RATE = 10;
+
 	// Send messages to these listeners
-	private Vector<MachineListener> listeners = new Vector<MachineListener>();
-
-	// We have to send these kinds of messages.
-	// TODO: Make this abstract.
-	ConcurrentLinkedQueue<MachineStateChangeEvent> machineStateChangeEventQueue;
-	ConcurrentLinkedQueue<MachineProgressEvent> machineProgressEventQueue;
-	ConcurrentLinkedQueue<MachineToolStatusEvent> machineToolStatusEventQueue;
-	
+	private final Map<MachineListener,Delivery> listeners = new LinkedHashMap<MachineListener,Delivery>();
+
+	// Events not yet handed to the listeners
+	private final Events pending = new Events();
+	// How long to wait between sending coalesced events, in milliseconds
+	private volatile long interval;
+	private long lastPublished = 0;
+
 	public MachineCallbackHandler() {
 		super("Machine Callback Handler");
-		
-		machineStateChangeEventQueue = new ConcurrentLinkedQueue<MachineStateChangeEvent>();
-		machineProgressEventQueue = new ConcurrentLinkedQueue<MachineProgressEvent>();
-		machineToolStatusEventQueue = new ConcurrentLinkedQueue<MachineToolStatusEvent>();
+		setRate(Base.preferences.getDouble("machine.event_rate", DEFAULT_RATE));
 	}
-	
-	private synchronized void sendMessages() {
-		while (!machineStateChangeEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineStateChanged(machineStateChangeEventQueue.peek());
-			}
-			Base.logger.fine("Sending machine state change event: "
-					+ machineStateChangeEventQueue.peek().getState().getState().toString());
-			machineStateChangeEventQueue.remove();
-		}
-		
-		while (!machineProgressEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.machineProgress(machineProgressEventQueue.peek());
+
+	/**
+	 * Set the most progress and tool status events sent each second. State
+	 * changes are always sent at once.
+	 */
+	public synchronized void setRate(double perSecond) {
+		interval = (perSecond > 0) ? Math.round(1000 / perSecond) : 0;
+	}
+
+	/** @return the most progress and tool status events sent each second */
+	public synchronized double getRate() {
+		return (interval > 0) ? 1000.0 / interval : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the time, in milliseconds, between progress and tool status
+	 * events. Doesn't take the lock, so that the machine thread can check
+	 * whether to make another progress event without waiting on us.
+	 */
+	public long getInterval() {
+		return interval;
+	}
+
+	@Override
+	public void run() {
+		List<Object> batch = new ArrayList<Object>();
+		List<Delivery> targets = new ArrayList<Delivery>();
+		try {
+			while (true) {
+				take(batch, targets);
+				for (Delivery d : targets) {
+					d.post(batch);
+				}
+				batch.clear();
+				targets.clear();
 			}
-			machineProgressEventQueue.remove();
-		}
-		
-		while (!machineToolStatusEventQueue.isEmpty()) {
-			for (MachineListener l : listeners) {
-				l.toolStatusChanged(machineToolStatusEventQueue.peek());
+		} catch (InterruptedException e) {
+			// Terminate!
+			Base.logger.fine("taking callback handler down");
+		} finally {
+			synchronized (this) {
+				for (Delivery d : listeners.values()) {
+					d.executor.shutdown();
+				}
 			}
-			machineToolStatusEventQueue.remove();
 		}
 	}
-	
-	@Override
-	public void run() {
-		while(true) {
-			// If we have any messages to send out, do so, otherwise wait.
-			try {
-				sendMessages();
-	
-				sleep(100);
-			} catch (InterruptedException e) {
-				// Terminate!
-				Base.logger.fine("taking callback handler down, state change queue: "
-						+ machineStateChangeEventQueue.size());
-				break;
+
+	// Wait until there is something to send, and take it, along with the
+	// listeners to send it to.
+	private synchronized void take(List<Object> batch, List<Delivery> targets) throws InterruptedException {
+		while (true) {
+			long wait = 0;
+			if (pending.hasCoalesced()) {
+				long now = System.currentTimeMillis();
+				wait = lastPublished + interval - now;
+				if (wait <= 0) {
+					pending.settle();
+					lastPublished = now;
+				}
 			}
+			if (pending.hasOrdered()) break;
+			// Until the rate allows, or for ever if there's nothing waiting;
+			// either way, a state change wakes us.
+			wait(wait);
 		}
+		pending.drainTo(batch);
+		targets.addAll(listeners.values());
 	}
-	
+
 	synchronized public void addMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.add(listener);
+		if (!listeners.containsKey(listener)) {
+			listeners.put(listener, new Delivery(listener));
+		}
 		// TODO: Was this important?
 //		listener.machineStateChanged(new MachineStateChangeEvent(this,
 //				getMachineState()));
 	}
 
 	synchronized public void removeMachineListener(MachineListener listener) {
-		// TODO: Is this thread safe?
-		listeners.remove(listener);
+		Delivery d = listeners.remove(listener);
+		if (d != null) {
+			d.executor.shutdown();
+		}
 	}
 
 	synchronized public void schedule(MachineStateChangeEvent status) {
-		machineStateChangeEventQueue.add(status);
+		pending.add(status);
 		Base.logger.fine("Scheduling machine state change event: "
 				+ status.getState().getState().toString());
+		notifyAll();
 	}
 
 	synchronized public void schedule(MachineProgressEvent progress) {
-		machineProgressEventQueue.add(progress);
+		boolean idle = !pending.hasCoalesced();
+		pending.add(progress);
+		// Otherwise the dispatcher is already waiting to send it.
+		if (idle) notifyAll();
 	}
 
 	synchronized public void schedule(MachineToolStatusEvent e) {
-		machineToolStatusEventQueue.add(e);
+		boolean idle = !pending.hasCoalesced();
+		pending.add(e);
+		if (idle) notifyAll();
+	}
+
+	/**
+	 * Events waiting to be sent, in the order they came, except that the
+	 * progress and tool status events since the last state change are
+	 * coalesced until they are settled into line.
+	 */
+	private static class Events {
+		private final LinkedList<Object> ordered = new LinkedList<Object>();
+		private MachineProgressEvent progress = null;
+		private final LinkedHashMap<ToolModel,MachineToolStatusEvent> toolStatus =
+			new LinkedHashMap<ToolModel,MachineToolStatusEvent>();
+
+		void add(Object e) {
+			if (e instanceof MachineProgressEvent) {
+				progress = (MachineProgressEvent)e;
+			} else if (e instanceof MachineToolStatusEvent) {
+				MachineToolStatusEvent status = (MachineToolStatusEvent)e;
+				toolStatus.remove(status.getTool());
+				toolStatus.put(status.getTool(), status);
+			} else {
+				// Whatever came before a state change goes before it.
+				settle();
+				ordered.add(e);
+			}
+		}
+
+		boolean hasOrdered() { return !ordered.isEmpty(); }
+
+		boolean hasCoalesced() { return progress != null || !toolStatus.isEmpty(); }
+
+		// Put the coalesced events in line.
+		void settle() {
+			if (progress != null) {
+				ordered.add(progress);
+				progress = null;
+			}
+			ordered.addAll(toolStatus.values());
+			toolStatus.clear();
+		}
+
+		void drainTo(List<Object> batch) {
+			batch.addAll(ordered);
+			ordered.clear();
+		}
+	}
+
+	private static final ThreadFactory listenerThreads = new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "Machine listener");
+			t.setDaemon(true);
+			return t;
+		}
+	};
+
+	/**
+	 * A listener's mailbox, emptied by its own thread. The thread runs a
+	 * delivery at a time, and has room for one more waiting; there's never
+	 * need for more, as a delivery takes everything in the mailbox.
+	 */
+	private static class Delivery implements Runnable {
+		final MachineListener listener;
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(1), listenerThreads);
+		private final Events mailbox = new Events();
+		private final List<Object> batch = new ArrayList<Object>();
+		private boolean waiting = false;
+
+		Delivery(MachineListener listener) {
+			this.listener = listener;
+			executor.allowCoreThreadTimeOut(true);
+		}
+
+		void post(List<Object> events) {
+			synchronized (this) {
+				for (Object e : events) {
+					mailbox.add(e);
+				}
+				if (waiting) return;
+				waiting = true;
+			}
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException e) {
+				// The listener has been removed.
+			}
+		}
+
+		public void run() {
+			synchronized (this) {
+				mailbox.settle();
+				mailbox.drainTo(batch);
+				waiting = false;
+			}
+			for (Object e : batch) {
+				try {
+					if (e instanceof MachineStateChangeEvent) {
+						MachineStateChangeEvent change = (MachineStateChangeEvent)e;
+						Base.logger.fine("Sending machine state change event: "
+								+ change.getState().getState().toString());
+						listener.machineStateChanged(change);
+					} else if (e instanceof MachineProgressEvent) {
+						listener.machineProgress((MachineProgressEvent)e);
+					} else {
+						listener.toolStatusChanged((MachineToolStatusEvent)e);
+					}
+				} catch (RuntimeException ex) {
+					Base.logger.log(Level.SEVERE, "A machine listener failed", ex);
+				}
+			}
+			batch.clear();
+		}
 	}
 }
@@ -67,6 +67,12 @@ public interface MachineInterface {
 	 */
 	public void estimate(GCodeSource source);
 	
+	/** Look up a job's analysis from when it was last estimated for this machine
+	 * @param source GCode source of the job
+	 * @return the saved analysis, or null if there isn't one
+	 */
+	public JobAnalysis getSavedAnalysis(GCodeSource source);
+	
 	/** Run the job in a simulator */
 	
 	/** Simulate the job on screen
@@ -77,7 +83,7 @@ public interface MachineInterface {
 	
 	public boolean buildDirect(GCodeSource source);
 	public boolean buildRemote(String remoteName);
-	public void buildToFile(GCodeSource source, String path);
+	public boolean buildToFile(GCodeSource source, String path);
 	public void upload(GCodeSource source, String remoteName);
 	public void pause();
 	public void unpause();
@@ -2,6 +2,7 @@ package replicatorg.machine;
 
 import java.util.Vector;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
 
 
 import org.w3c.dom.Node;
@@ -13,6 +14,7 @@ import replicatorg.drivers.BadFirmwareVersionException;
 import replicatorg.drivers.Driver;
 import replicatorg.drivers.DriverError;
 import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.OnboardParameters;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SDCardCapture;
@@ -23,10 +25,12 @@ import replicatorg.drivers.commands.AssessState;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.machine.Machine.RequestType;
+import replicatorg.machine.builder.CompiledJob;
 import replicatorg.machine.builder.MachineBuilder;
 import replicatorg.machine.builder.Direct;
-import replicatorg.machine.builder.ToLocalFile;
+import replicatorg.machine.builder.Pipelined;
 import replicatorg.machine.builder.ToRemoteFile;
+import replicatorg.machine.builder.UsingCompiledJob;
 import replicatorg.machine.builder.UsingRemoteFile;
 import replicatorg.machine.model.MachineModel;
 import replicatorg.machine.model.ToolModel;
@@ -125,6 +129,8 @@ class MachineThread extends Thread {
 	
 		// Build statistics
 		private double startTimeMillis = -1;
+		// When the next progress event is due
+		private long nextProgressMillis = 0;
 	
 	// Our driver object. Null when no driver is selected.
 	private Driver driver = null;
@@ -298,6 +304,7 @@ class MachineThread extends Thread {
 		case BUILD_DIRECT:
 			if (state.canPrint()) {
 				startTimeMillis = System.currentTimeMillis();
+				nextProgressMillis = 0;
 
 				if (!isSimulating()) {
 					driver.getCurrentPosition(false); // reconcile position
@@ -306,7 +313,25 @@ class MachineThread extends Thread {
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
 				
-				machineBuilder = new Direct(driver, simulator, combinedSource);
+				stopBuilder();
+				// A compiled job sends what a Pipelined build does, so stands in
+				// for one only. Build the job as compiled before, if it has
+				// been; otherwise compile it for next time, while it is built
+				// from the GCode.
+				int lookahead = Base.preferences.getInt("build.lookahead_lines", 0);
+				CompiledJobCache cache = (lookahead > 0) ? CompiledJobCache.getDefault() : null;
+				String key = (cache == null) ? null : CompiledJobCache.key(combinedSource, (DriverQueryInterface)driver);
+				CompiledJob job = (cache == null) ? null : cache.get(key);
+				if (job != null) {
+					machineBuilder = new UsingCompiledJob(driver, job);
+				} else if (lookahead > 0) {
+					machineBuilder = new Pipelined(driver, combinedSource, lookahead);
+				} else {
+					machineBuilder = new Direct(driver, simulator, combinedSource);
+				}
+				if (job == null && cache != null) {
+					cache.compileLater(key, combinedSource, (DriverQueryInterface)driver);
+				}
 				
 				// TODO: This shouldn't be done here?
 				driver.invalidatePosition();
@@ -326,6 +351,7 @@ class MachineThread extends Thread {
 				}
 				
 				startTimeMillis = System.currentTimeMillis();
+				nextProgressMillis = 0;
 				
 				// Pad the job with start and end code
 				GCodeSource combinedSource = buildGCodeJob(command.source);
@@ -354,45 +380,6 @@ class MachineThread extends Thread {
 
 			}
 			break;
-		case BUILD_TO_FILE:
-			/** We will accept a disconnected machine or a ready machine. */
-			if (state.canPrint() || state.getState() == MachineState.State.NOT_ATTACHED) {
-				if (!(driver instanceof SDCardCapture)) {
-					break;
-				}
-				
-				startTimeMillis = System.currentTimeMillis();
-
-				// There is no need to reconcile the position.
-				
-				// Pad the job with start and end code
-				GCodeSource combinedSource = buildGCodeJob(command.source);
-				
-				ToLocalFile lf = new ToLocalFile(driver, simulator,	combinedSource, command.remoteName);
-				if(lf.setupFailed)
-				{
-					// This is even worse than above, because we might already be NOT_ATTACHED
-					// and we don't emit repeated changes for the same state, we have to switch
-					// to something other than NOT_ATTACHED which WILL NOT end the build,
-					// then back to NOT_ATTACHED, finally, because we don't want to end on READY
-					// if we were never attached, we switch to READY only if we had been able to print
-					boolean connected = state.canPrint();
-					setState(new MachineState(MachineState.State.ERROR));
-					setState(new MachineState(MachineState.State.NOT_ATTACHED));
-					if(connected)
-						setState(new MachineState(MachineState.State.READY));
-					break;
-				}
-				
-				machineBuilder = lf;
-				
-				if (state.canPrint()) {
-					setState(new MachineState(MachineState.State.BUILDING), buildingMessage());
-				} else {
-					setState(new MachineState(MachineState.State.BUILDING_OFFLINE), buildingMessage());
-				}
-			}
-			break;
 		case BUILD_REMOTE:
 			if (state.canPrint()) {
 				if (!(driver instanceof SDCardCapture)) {
@@ -400,6 +387,7 @@ class MachineThread extends Thread {
 				}
 				
 				startTimeMillis = System.currentTimeMillis();
+				nextProgressMillis = 0;
 				
 				machineBuilder = new UsingRemoteFile(driver, command.remoteName);
 			
@@ -425,6 +413,7 @@ class MachineThread extends Thread {
 			}
 			break;
 		case STOP_MOTION:
+			stopBuilder();
 			driver.stop(false);
 			
 			if (state.getState() == MachineState.State.BUILDING) {
@@ -441,6 +430,7 @@ class MachineThread extends Thread {
 			driver.getMachine().currentTool().setTargetTemperature(0);
 			driver.getMachine().currentTool().setPlatformTargetTemperature(0);
 			
+			stopBuilder();
 			driver.stop(true);
 			
 			if (state.getState() == MachineState.State.BUILDING) {
@@ -541,16 +531,29 @@ class MachineThread extends Thread {
 			// If we are building
 			if ( state.isBuilding() && !state.isPaused() ) {
 				//run another instruction on the machine.
-				machineBuilder.runNext();
+				try {
+					machineBuilder.runNext();
+				} catch (RuntimeException e) {
+					// Don't leave the machine building with nothing running the build.
+					Base.logger.log(Level.SEVERE, "The build failed", e);
+					stopBuilder();
+					setState(new MachineState(MachineState.State.ERROR),
+							"Build failed: " + e.getMessage());
+					continue;
+				}
 				
-				// Send out a progress event
-				// TODO: Should these be rate limited?
-				MachineProgressEvent progress = 
-					new MachineProgressEvent((double)System.currentTimeMillis()-startTimeMillis,
-							estimatedBuildTime,
-							machineBuilder.getLinesProcessed(),
-							machineBuilder.getLinesTotal());
-				controller.emitProgress(progress);
+				// Send out a progress event, but only as often as the callback
+				// handler passes them on, and at the end.
+				long now = System.currentTimeMillis();
+				if (now >= nextProgressMillis || machineBuilder.finished()) {
+					nextProgressMillis = now + controller.getProgressInterval();
+					MachineProgressEvent progress = 
+						new MachineProgressEvent((double)now-startTimeMillis,
+								estimatedBuildTime,
+								machineBuilder.getLinesProcessed(),
+								machineBuilder.getLinesTotal());
+					controller.emitProgress(progress);
+				}
 				
 				if (machineBuilder.finished()) {
 					// TODO: Exit correctly.
@@ -680,7 +683,18 @@ class MachineThread extends Thread {
 		// is placed in a connecting state.
 	}
 	
+	/**
+	 * Release anything the current builder is holding on to, for builds that
+	 * are abandoned before they finish.
+	 */
+	private void stopBuilder() {
+		if (machineBuilder instanceof Pipelined) {
+			((Pipelined)machineBuilder).stop();
+		}
+	}
+	
 	private void dispose() {
+		stopBuilder();
 		if (driver != null) {
 			driver.dispose();
 		}
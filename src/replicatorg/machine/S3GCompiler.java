@@ -0,0 +1,464 @@
+package replicatorg.machine;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Node;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCode;
+import replicatorg.app.GCodeParser;
+import replicatorg.app.tools.XML;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.BuildEstimator.ModalState;
+import replicatorg.machine.model.MachineModel;
+import replicatorg.machine.model.ToolModel;
+import replicatorg.model.GCodeSource;
+
+/**
+ * Compiles GCode into an .s3g file, just as building to a file does, but
+ * without the machine thread: the job is run through drivers of its own,
+ * which are never connected, as fast as they will go.
+ *
+ * As in BuildEstimator, the source is split into chunks of lines that are
+ * compiled in parallel, each by its own driver, starting from the modal state
+ * the chunk was read in. The packets a line turns into can also depend on
+ * things the modal state doesn't cover, such as the moves held back for
+ * planning or the way an extruder is turning, so each chunk starts compiling
+ * a few hundred lines before its own. Where its own lines start, its driver
+ * has to be in the same state as the driver of the chunk before, and the last
+ * of the early lines have to have come out exactly as they did in that chunk.
+ * If not, the chunk is compiled again by carrying on with the driver of the
+ * chunk before, as though the file were compiled in one piece. Either way,
+ * the file is the same as building to a file would write.
+ *
+ * So that a chunk's driver starts out with its tools set up, as well as in
+ * the right modal state, the lines that set the tools up (temperatures, fans,
+ * extruders on or off) are noted as the source is read, and the last of each
+ * kind is run before the chunk starts, without being written.
+ */
+public class S3GCompiler {
+	/** Lines in each chunk */
+	static final int CHUNK_LINES = 16384;
+	/** Lines of the chunk before that each chunk is compiled from as well */
+	static final int OVERLAP_LINES = 256;
+	/** Lines at the end of the overlap that must come out the same */
+	static final int CHECK_LINES = 128;
+
+	private final Node driverNode;
+	private final Node machineNode;
+	// Each chunk gets a driver of this class, set up as DriverFactory would.
+	private final Class<? extends Sanguino3GDriver> driverClass;
+
+	private long bytesWritten = 0;
+	private long millis = 0;
+	private String haltMessage = null;
+
+	/**
+	 * @param machineNode the machine the job will be built on, whose driver
+	 * must be a Sanguino3GDriver
+	 */
+	public S3GCompiler(Node machineNode) {
+		this.machineNode = machineNode;
+		this.driverNode = XML.getChildNodeByName(machineNode, "driver");
+		this.driverClass = DriverFactory.factory(driverNode).getClass().asSubclass(Sanguino3GDriver.class);
+	}
+
+	/** @return the number of bytes written by the last compile */
+	public long getBytesWritten() { return bytesWritten; }
+
+	/** @return how long the last compile took, in milliseconds */
+	public long getMillis() { return millis; }
+
+	/** @return how many bytes the last compile wrote each second */
+	public double getBytesPerSecond() {
+		return (millis == 0) ? 0 : bytesWritten * 1000.0 / millis;
+	}
+
+	/**
+	 * @return the message of the code that ended the last compile before the
+	 * end of the job, or null if it ran to the end
+	 */
+	public String getHaltMessage() { return haltMessage; }
+
+	/**
+	 * Compile the given source to a file, which is deleted again if the
+	 * compile doesn't finish.
+	 * @return false if the compile was interrupted
+	 */
+	public boolean compile(GCodeSource source, String path) throws IOException {
+		File file = new File(path);
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+		boolean finished = false;
+		try {
+			finished = compile(source, out);
+		} finally {
+			out.close();
+			if (!finished) {
+				file.delete();
+			}
+		}
+		return finished;
+	}
+
+	/**
+	 * Compile the given source, writing the packets to the given stream.
+	 * @return false if the compile was interrupted
+	 */
+	public boolean compile(GCodeSource source, OutputStream out) throws IOException {
+		long started = System.currentTimeMillis();
+		bytesWritten = 0;
+		haltMessage = null;
+
+		ForkJoinPool pool = BuildEstimator.getPool();
+		int window = 2 * pool.getParallelism();
+		LinkedList<Chunk> pending = new LinkedList<Chunk>();
+		Result last = null;
+
+		MachineModel model = loadModel();
+		ModalState state = initialState(model);
+		GCode gcode = new GCode();
+		Chunk chunk = new Chunk(null, null, null);
+		// The last line of each kind that sets up the tools
+		JobSetup setup = new JobSetup();
+		// The state the next chunk's overlap starts from, and its setup
+		ModalState overlapStart = null;
+		String[] overlapSetup = null;
+		try {
+			Iterator<String> lines = source.iterator();
+			while (lines.hasNext() && !isHalted(last)) {
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				String line = lines.next();
+				gcode.parse(line);
+				state.advance(gcode, model);
+				if (!gcode.hasCode('G') && gcode.hasCode('M')) {
+					if (gcode.hasCode('T')) {
+						// As GCodeParser does for drivers that use several tools at once
+						state.tool = (int)gcode.getCodeValue('T');
+					}
+					setup.noteTools(gcode, line);
+				}
+				chunk.add(line);
+				if (chunk.ownCount() == CHUNK_LINES - OVERLAP_LINES) {
+					overlapStart = state.copy();
+					overlapSetup = setup.getToolLines();
+				}
+				if (chunk.ownCount() == CHUNK_LINES) {
+					chunk.result = pool.submit(chunk);
+					pending.addLast(chunk);
+					while (pending.size() > window && !isHalted(last)) {
+						last = merge(pending.removeFirst(), last, out);
+					}
+					chunk = new Chunk(overlapStart, overlapSetup, chunk);
+				}
+			}
+			while (!pending.isEmpty() && !isHalted(last)) {
+				last = merge(pending.removeFirst(), last, out);
+			}
+			if (chunk.ownCount() > 0 && !isHalted(last)) {
+				last = merge(chunk, last, out);
+			}
+			if (last != null) {
+				// Send whatever moves are still held back.
+				write(out, last.encoder.finish(), 0, -1);
+				haltMessage = last.encoder.haltMessage;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			for (Chunk c : pending) {
+				c.result.cancel(true);
+			}
+			millis = System.currentTimeMillis() - started;
+		}
+		out.flush();
+		Base.logger.info("Wrote " + bytesWritten + " bytes in " + (millis / 1000.0) + " seconds ("
+				+ Math.round(getBytesPerSecond() / 1024) + " KB/s)");
+		return true;
+	}
+
+	private static boolean isHalted(Result r) {
+		return r != null && r.halted;
+	}
+
+	// Write a chunk's packets, compiling it again if it didn't start in the
+	// state the chunk before it ended in. Returns the results the next chunk
+	// is checked against.
+	private Result merge(Chunk chunk, Result previous, OutputStream out)
+			throws InterruptedException, IOException {
+		Result r;
+		if (chunk.result == null) {
+			r = chunk.call();
+		} else {
+			try {
+				r = chunk.result.get();
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+				if (cause instanceof Error) throw (Error)cause;
+				throw new RuntimeException(cause);
+			}
+		}
+		if (previous != null && !r.follows(previous)) {
+			Base.logger.fine("Compiling a chunk again from where the last one ended");
+			r = previous.encoder.compile(chunk.lines, chunk.first, chunk.first, chunk.count);
+		}
+		int start = r.marks[chunk.first];
+		int end = r.halted ? r.marks[r.count] : r.out.size();
+		write(out, r.out, start, end);
+		return r;
+	}
+
+	private void write(OutputStream out, Buffer buffer, int start, int end) throws IOException {
+		if (end < 0) end = buffer.size();
+		out.write(buffer.bytes(), start, end - start);
+		bytesWritten += end - start;
+	}
+
+	private MachineModel loadModel() {
+		MachineModel model = new MachineModel();
+		model.loadXML(machineNode);
+		return model;
+	}
+
+	private static ModalState initialState(MachineModel model) {
+		EstimationDriver estimator = new EstimationDriver();
+		estimator.setMachine(model);
+		GCodeParser parser = new GCodeParser();
+		parser.init(estimator);
+		return new ModalState(estimator, parser);
+	}
+
+	// A ByteArrayOutputStream that can be read without copying.
+	private static class Buffer extends ByteArrayOutputStream {
+		Buffer(int size) {
+			super(size);
+		}
+
+		byte[] bytes() { return buf; }
+	}
+
+	// The packets a run of lines was compiled into.
+	private static class Result {
+		Encoder encoder;
+		final Buffer out = new Buffer(64 * 1024);
+		// Where the packets for each line start, and where the last one ends
+		int[] marks;
+		// The lines compiled, counting any before the chunk's own
+		int count;
+		// The first of the chunk's own lines, and the state it was compiled in
+		int first;
+		String firstState;
+		// The state after the last line
+		String endState;
+		// True if a line ended the job; count is then the lines up to it
+		boolean halted = false;
+
+		/**
+		 * @return true if the chunk's own lines were compiled just as they
+		 * would have been by carrying on from the given chunk
+		 */
+		boolean follows(Result previous) {
+			// A line before the chunk's own may have ended the job here.
+			if (firstState == null) return false;
+			if (!firstState.equals(previous.endState)) return false;
+			int length = marks[first] - marks[first - CHECK_LINES];
+			int previousStart = previous.marks[previous.count - CHECK_LINES];
+			if (previous.marks[previous.count] - previousStart != length) return false;
+			byte[] a = out.bytes();
+			byte[] b = previous.out.bytes();
+			for (int i = 0, j = marks[first - CHECK_LINES], k = previousStart; i < length; i++) {
+				if (a[j + i] != b[k + i]) return false;
+			}
+			return true;
+		}
+	}
+
+	// A driver of its own, capturing everything it's sent.
+	private class Encoder {
+		final MachineModel model = loadModel();
+		final Sanguino3GDriver driver;
+		final GCodeParser parser = new GCodeParser();
+		final CommandBatch queue = new CommandBatch();
+		String haltMessage = null;
+
+		Encoder() {
+			try {
+				driver = driverClass.getDeclaredConstructor().newInstance();
+			} catch (InstantiationException e) {
+				throw new RuntimeException(e);
+			} catch (IllegalAccessException e) {
+				throw new RuntimeException(e);
+			} catch (NoSuchMethodException e) {
+				throw new RuntimeException(e);
+			} catch (InvocationTargetException e) {
+				throw new RuntimeException(e.getCause());
+			}
+			driver.loadXML(driverNode);
+			driver.setMachine(model);
+			parser.init(driver);
+		}
+
+		void start(ModalState state, String[] setup) {
+			// Setting up sends packets that aren't part of the job.
+			driver.beginFileCapture(new ByteArrayOutputStream());
+			for (String line : setup) {
+				run(line);
+			}
+			state.applyTo(driver, parser);
+		}
+
+		/**
+		 * Compile the lines from the given one on, of which the chunk's own
+		 * start at first.
+		 */
+		Result compile(String[] lines, int from, int first, int count) {
+			Result r = new Result();
+			r.encoder = this;
+			r.marks = new int[count + 1];
+			r.first = first;
+			r.count = count;
+			driver.beginFileCapture(r.out);
+			for (int i = from; i < count; i++) {
+				if (i == first) {
+					r.firstState = state();
+				}
+				r.marks[i] = r.out.size();
+				if (!run(lines[i])) {
+					r.halted = true;
+					r.marks[i + 1] = r.out.size();
+					r.count = i + 1;
+					return r;
+				}
+			}
+			r.marks[count] = r.out.size();
+			r.endState = state();
+			return r;
+		}
+
+		/**
+		 * Send whatever moves are still held back.
+		 * @return the packets they were sent as
+		 */
+		Buffer finish() {
+			Buffer out = new Buffer(1024);
+			driver.beginFileCapture(out);
+			driver.isFinished();
+			return out;
+		}
+
+		// Run a line, the way MachineBuilder.Direct does. Returns false if
+		// the line ends the job.
+		private boolean run(String line) {
+			parser.parse(line, queue);
+			while (!queue.isEmpty()) {
+				try {
+					queue.run(driver);
+				} catch (RetryException e) {
+					// Nothing is waiting on a machine, but try again as Direct would.
+				} catch (StopException e) {
+					if (e.getType() == StopException.StopType.OPTIONAL_HALT) {
+						// As though the user chose to carry on
+						queue.remove();
+					} else {
+						queue.clear();
+						haltMessage = e.getMessage();
+						return false;
+					}
+				}
+			}
+			return true;
+		}
+
+		// What the lines still to come can depend on, other than moves held
+		// back for planning, which the overlap checks for instead.
+		private String state() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(driver.getCurrentPosition(false));
+			sb.append(' ').append(driver.getCurrentFeedrate());
+			sb.append(' ').append(parser.isAbsoluteMode());
+			sb.append(' ').append(parser.getFeedrate());
+			sb.append(' ').append(parser.getUnits());
+			sb.append(' ').append(parser.getTool());
+			sb.append(' ').append(parser.getCoordinateSystem());
+			for (int i = 0; i < 7; i++) {
+				sb.append(' ').append(driver.getOffset(i));
+			}
+			sb.append(' ').append(model.currentTool().getIndex());
+			for (ToolModel t : model.getTools()) {
+				sb.append(' ').append(t.getMotorDirection());
+				sb.append(' ').append(t.getMotorSpeedRPM());
+				sb.append(' ').append(t.getMotorSpeedPWM());
+				sb.append(' ').append(t.isMotorEnabled());
+				sb.append(' ').append(t.getSpindleDirection());
+				sb.append(' ').append(t.getSpindleSpeedRPM());
+				sb.append(' ').append(t.getSpindleSpeedPWM());
+				sb.append(' ').append(t.isSpindleEnabled());
+				sb.append(' ').append(t.getTargetTemperature());
+				sb.append(' ').append(t.getPlatformTargetTemperature());
+				sb.append(' ').append(t.isFanEnabled());
+				sb.append(' ').append(t.isValveOpen());
+				sb.append(' ').append(t.isColletOpen());
+			}
+			return sb.toString();
+		}
+	}
+
+	// A run of lines, the lines before it that it's compiled from as well, and
+	// the state those start from.
+	private class Chunk implements Callable<Result> {
+		final String[] lines = new String[OVERLAP_LINES + CHUNK_LINES];
+		final int first;
+		int count;
+		final ModalState start;
+		final String[] setup;
+		Future<Result> result = null;
+
+		Chunk(ModalState start, String[] setup, Chunk previous) {
+			this.start = start;
+			this.setup = setup;
+			if (previous == null) {
+				first = 0;
+			} else {
+				first = OVERLAP_LINES;
+				System.arraycopy(previous.lines, previous.count - OVERLAP_LINES, lines, 0, OVERLAP_LINES);
+			}
+			count = first;
+		}
+
+		void add(String line) {
+			lines[count++] = line;
+		}
+
+		int ownCount() {
+			return count - first;
+		}
+
+		public Result call() {
+			Encoder encoder = new Encoder();
+			if (start != null) {
+				encoder.start(start, setup);
+			}
+			return encoder.compile(lines, 0, first, count);
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package replicatorg.machine.builder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.util.Point5d;
+
+/**
+ * A job compiled by JobCompiler: the commands each line of a GCode source
+ * turns into, just as the parser made them, read back a line at a time from a
+ * file mapped into memory, without any GCode being parsed.
+ *
+ * The file starts with MAGIC, VERSION and the key it was compiled under, and
+ * ends with END_OF_JOB, the number of lines and MAGIC again. In between, each
+ * line is its commands followed by END_OF_LINE, or by END_OF_BARRIER_LINE if
+ * the machine's position has to be asked for again once it has run (after
+ * homing, say, or a tool change). Moves, feedrates and positions are written
+ * here; every other command is written by CommandCodec.
+ *
+ * Where the parser only carried a coordinate of a move over from wherever the
+ * machine was, because the job never said, the coordinate is left out of the
+ * file. It is filled in as the line is read, from the driver's position as of
+ * the start of the job or the last barrier, just as the parser would have.
+ */
+public class CompiledJob {
+	static final int MAGIC = 0x52474a42;
+	/** Changes whenever the format does, so old files are compiled again */
+	public static final int VERSION = 2;
+
+	static final byte END_OF_LINE = 0;
+	static final byte END_OF_BARRIER_LINE = 1;
+	static final byte END_OF_JOB = 2;
+	// Five coordinates
+	static final byte POINT = 3;
+	// A mask of the axes carried over, then the coordinates of the others
+	static final byte POINT_CARRIED = 4;
+	static final byte FEEDRATE = 5;
+	static final byte SET_POSITION = 6;
+	static final byte SET_POSITION_CARRIED = 7;
+
+	// The end of a file: END_OF_JOB, the number of lines, MAGIC
+	static final int TRAILER_SIZE = 9;
+
+	private final ByteBuffer in;
+	private final int lineCount;
+
+	// The driver's position at the start of the job or the last barrier, if
+	// any line since has needed it.
+	private Point5d carried = null;
+	private final Point5d point = new Point5d();
+
+	private CompiledJob(ByteBuffer in, int lineCount) {
+		this.in = in;
+		this.lineCount = lineCount;
+	}
+
+	/**
+	 * Map a compiled job into memory.
+	 * @param key the key the job must have been compiled under
+	 * @return the job, or null if the file isn't a whole job compiled under
+	 * that key by this version
+	 */
+	public static CompiledJob open(File file, String key) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			ByteBuffer in;
+			try {
+				long size = raf.length();
+				if (size > Integer.MAX_VALUE) {
+					return null;
+				}
+				in = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, size);
+			} finally {
+				raf.close();
+			}
+			if (in.getInt() != MAGIC || in.getInt() != VERSION
+					|| !key.equals(CommandCodec.readString(in))) {
+				return null;
+			}
+			int trailer = in.limit() - TRAILER_SIZE;
+			if (trailer < in.position() || in.get(trailer) != END_OF_JOB
+					|| in.getInt(trailer + 5) != MAGIC) {
+				return null;
+			}
+			return new CompiledJob(in, in.getInt(trailer + 1));
+		} catch (IOException e) {
+			Base.logger.log(Level.FINE, "Couldn't open compiled job " + file, e);
+		} catch (BufferUnderflowException e) {
+			// Too short to be a job
+		}
+		return null;
+	}
+
+	/** @return the number of lines in the job */
+	public int getLineCount() {
+		return lineCount;
+	}
+
+	/** @return true if there are lines left to read */
+	public boolean hasNext() {
+		return in.get(in.position()) != END_OF_JOB;
+	}
+
+	/**
+	 * Read the commands of the next line into a batch.
+	 * @param driver the driver the job is being built on, which is asked for
+	 * its position if the line has coordinates carried over from it
+	 */
+	public void next(CommandBatch into, DriverQueryInterface driver) {
+		while (true) {
+			byte opcode = in.get();
+			switch (opcode) {
+			case END_OF_LINE:
+				return;
+			case END_OF_BARRIER_LINE:
+				// Ask again, once this line has run.
+				carried = null;
+				return;
+			case POINT:
+				into.addPoint(in.getDouble(), in.getDouble(), in.getDouble(),
+						in.getDouble(), in.getDouble());
+				break;
+			case POINT_CARRIED:
+				into.addPoint(readCarried(driver));
+				break;
+			case FEEDRATE:
+				into.addFeedrate(in.getDouble());
+				break;
+			case SET_POSITION:
+				into.add(new SetCurrentPosition(new Point5d(in.getDouble(), in.getDouble(),
+						in.getDouble(), in.getDouble(), in.getDouble())));
+				break;
+			case SET_POSITION_CARRIED:
+				into.add(new SetCurrentPosition(new Point5d(readCarried(driver))));
+				break;
+			default:
+				into.add(CommandCodec.read(opcode, in));
+				break;
+			}
+		}
+	}
+
+	// Read the coordinates of a point, taking those it carries over from the
+	// driver. The point returned is only good until the next call.
+	private Point5d readCarried(DriverQueryInterface driver) {
+		if (carried == null) {
+			carried = new Point5d(driver.getCurrentPosition(false));
+		}
+		int mask = in.get();
+		for (int axis = 0; axis < 5; axis++) {
+			point.set(axis, ((mask & (1 << axis)) != 0) ? carried.get(axis) : in.getDouble());
+		}
+		return point;
+	}
+}
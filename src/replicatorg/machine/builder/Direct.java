@@ -5,8 +5,6 @@ import java.util.LinkedList;
 import java.util.Queue;
 import java.util.logging.Level;
 
-import javax.swing.JOptionPane;
-
 import replicatorg.app.Base;
 import replicatorg.app.GCodeParser;
 import replicatorg.drivers.Driver;
@@ -14,6 +12,7 @@ import replicatorg.drivers.DriverQueryInterface;
 import replicatorg.drivers.RetryException;
 import replicatorg.drivers.SimulationDriver;
 import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
 import replicatorg.drivers.commands.DriverCommand;
 import replicatorg.machine.Machine.JobTarget;
 import replicatorg.model.GCodeSource;
@@ -40,7 +39,7 @@ public class Direct implements MachineBuilder{
 	
 	Driver driver;
 	GCodeParser parser;
-	Queue<DriverCommand> driverQueue;
+	CommandBatch driverQueue;
 	boolean building;		// True if we are running to the machine
 	
 	SimulationDriver simulator;
@@ -70,7 +69,7 @@ public class Direct implements MachineBuilder{
 			parser = new GCodeParser();
 			
 			// Queue of commands that we get from the parser, and run on the driver.
-			driverQueue = new LinkedList< DriverCommand >();
+			driverQueue = new CommandBatch();
 			
 			parser.init((DriverQueryInterface) driver);
 		}
@@ -154,10 +153,7 @@ public class Direct implements MachineBuilder{
 		try {
 			if (building) {
 				// Run the command on the machine.
-				while(!driverQueue.isEmpty()) {
-					driverQueue.peek().run(driver);
-					driverQueue.remove();
-				}
+				driverQueue.run(driver);
 			}
 			
 			retry = false;
@@ -167,34 +163,10 @@ public class Direct implements MachineBuilder{
 			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
 			retry = true;
 		} catch (StopException e) {
-			// TODO: Just returning here seems dangerous, better to notify the state machine.
-			
-			switch (e.getType()) {
-			case UNCONDITIONAL_HALT:
-				JOptionPane.showMessageDialog(null, e.getMessage(), 
-						"Unconditional halt: build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case PROGRAM_END:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program end: Build ended", JOptionPane.INFORMATION_MESSAGE);
-				state = State.FINISHED;
-				break;
-			case OPTIONAL_HALT:
-				int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
-						"Optional halt: Continue build?", JOptionPane.YES_NO_OPTION);
-				
-				if (result == JOptionPane.YES_OPTION) {
-					driverQueue.remove();
-				} else {
-					state = State.FINISHED;
-				}
-				break;
-			case PROGRAM_REWIND:
-				JOptionPane.showMessageDialog(null, e.getMessage(),
-						"Program rewind: Build ended", JOptionPane.INFORMATION_MESSAGE);
+			if (HaltHandler.carryOn(e)) {
+				driverQueue.remove();
+			} else {
 				state = State.FINISHED;
-				break;
 			}
 		}
 	}
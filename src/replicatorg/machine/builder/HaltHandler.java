@@ -0,0 +1,58 @@
+package replicatorg.machine.builder;
+
+import java.awt.GraphicsEnvironment;
+
+import javax.swing.JOptionPane;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.StopException;
+
+/**
+ * What a build does when one of its lines halts it (M0, M1, M2 or M30).
+ * With a display, the user is told, and asked whether to carry on after an
+ * optional halt. Without one, as when building from the command line, the
+ * halt is logged, and the build carries on after an optional halt and ends
+ * after any other.
+ */
+final class HaltHandler {
+	private HaltHandler() {
+	}
+
+	/**
+	 * @return true if the build should carry on past the command that
+	 * halted it, false if it should end
+	 */
+	static boolean carryOn(StopException e) {
+		if (GraphicsEnvironment.isHeadless()) {
+			if (e.getType() == StopException.StopType.OPTIONAL_HALT) {
+				Base.logger.info("Optional halt, carrying on: " + e.getMessage());
+				return true;
+			}
+			Base.logger.info(title(e) + ": " + e.getMessage());
+			return false;
+		}
+
+		if (e.getType() == StopException.StopType.OPTIONAL_HALT) {
+			int result = JOptionPane.showConfirmDialog(null, e.getMessage(),
+					title(e), JOptionPane.YES_NO_OPTION);
+			return result == JOptionPane.YES_OPTION;
+		}
+		JOptionPane.showMessageDialog(null, e.getMessage(),
+				title(e), JOptionPane.INFORMATION_MESSAGE);
+		return false;
+	}
+
+	private static String title(StopException e) {
+		switch (e.getType()) {
+		case UNCONDITIONAL_HALT:
+			return "Unconditional halt: build ended";
+		case PROGRAM_END:
+			return "Program end: Build ended";
+		case OPTIONAL_HALT:
+			return "Optional halt: Continue build?";
+		case PROGRAM_REWIND:
+		default:
+			return "Program rewind: Build ended";
+		}
+	}
+}
@@ -0,0 +1,209 @@
+package replicatorg.machine.builder;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.drivers.commands.CommandCodec;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Compiles GCode into a CompiledJob, for a machine whose driver answers the
+ * parser's questions as the given one does.
+ *
+ * The parser runs against a ParserPositionTracker, as in a Pipelined build,
+ * except that no one can say where the machine will be at the start of the
+ * job or after a barrier. So the job is parsed twice, side by side, with the
+ * tracker supposing a different position each time. A coordinate that comes
+ * out the same both times doesn't depend on where the machine was, and is
+ * written as it is. One that comes out as the supposed position both times was
+ * carried over from it, and is left for CompiledJob to fill in. Anything else,
+ * such as a relative move, an arc or a rapid move to a point that isn't
+ * wholly given, means the job can't be compiled; nor can one with a command
+ * CommandCodec can't write.
+ */
+public class JobCompiler {
+	// The positions supposed where the machine's isn't known. Odd values, so
+	// that a coordinate worked out from one is all but sure to differ from
+	// the same coordinate worked out from the other.
+	private static final Point5d UNKNOWN_A = new Point5d(-3191.37, 2207.93, -1543.61, 6871.29, -4127.73);
+	private static final Point5d UNKNOWN_B = new Point5d(5113.09, -6397.51, 3061.87, -2851.47, 7477.19);
+
+	private final DataOutputStream out;
+	private final ByteArrayOutputStream bufferA = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream bufferB = new ByteArrayOutputStream();
+	private final Point5d pointA = new Point5d();
+	private final Point5d pointB = new Point5d();
+
+	private JobCompiler(DataOutputStream out) {
+		this.out = out;
+	}
+
+	/**
+	 * Compile a job to a file, which is deleted again if the job can't be
+	 * compiled or the compile is interrupted.
+	 * @param driver answers the parser's questions, other than where the
+	 * machine is
+	 * @param key the key to open the job with
+	 * @return false if the job couldn't be compiled
+	 */
+	public static boolean compile(GCodeSource source, DriverQueryInterface driver,
+			String key, File file) throws IOException {
+		DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+		boolean compiled = false;
+		try {
+			compiled = new JobCompiler(out).compile(source, driver, key);
+		} finally {
+			out.close();
+			if (!compiled) {
+				file.delete();
+			}
+		}
+		return compiled;
+	}
+
+	private boolean compile(GCodeSource source, DriverQueryInterface driver, String key) throws IOException {
+		out.writeInt(CompiledJob.MAGIC);
+		out.writeInt(CompiledJob.VERSION);
+		CommandCodec.writeString(key, out);
+
+		ParserPositionTracker trackerA = new ParserPositionTracker(driver, UNKNOWN_A);
+		ParserPositionTracker trackerB = new ParserPositionTracker(driver, UNKNOWN_B);
+		GCodeParser parserA = new GCodeParser();
+		GCodeParser parserB = new GCodeParser();
+		parserA.init(trackerA);
+		parserB.init(trackerB);
+		CommandBatch batchA = new CommandBatch();
+		CommandBatch batchB = new CommandBatch();
+
+		int lines = 0;
+		for (String line : source) {
+			if (Thread.currentThread().isInterrupted()) {
+				return false;
+			}
+			parserA.parse(line, batchA);
+			parserB.parse(line, batchB);
+			if (!write(batchA, batchB)) {
+				return false;
+			}
+			boolean barrier = trackerA.track(batchA);
+			trackerB.track(batchB);
+			if (barrier) {
+				trackerA.resync(UNKNOWN_A);
+				trackerB.resync(UNKNOWN_B);
+			}
+			out.writeByte(barrier ? CompiledJob.END_OF_BARRIER_LINE : CompiledJob.END_OF_LINE);
+			batchA.clear();
+			batchB.clear();
+			lines++;
+			// DataOutputStream stops counting here; we couldn't map the file.
+			if (out.size() == Integer.MAX_VALUE) {
+				return false;
+			}
+		}
+
+		out.writeByte(CompiledJob.END_OF_JOB);
+		out.writeInt(lines);
+		out.writeInt(CompiledJob.MAGIC);
+		return true;
+	}
+
+	// Write the commands a line made in both passes as one.
+	// Returns false if they can't be.
+	private boolean write(CommandBatch batchA, CommandBatch batchB) throws IOException {
+		if (batchA.size() != batchB.size()) {
+			return false;
+		}
+		for (int i = 0; i < batchA.size(); i++) {
+			if (batchA.isPoint(i)) {
+				if (!batchB.isPoint(i)) {
+					return false;
+				}
+				batchA.getPoint(i, pointA);
+				batchB.getPoint(i, pointB);
+				if (!writePoint(CompiledJob.POINT, CompiledJob.POINT_CARRIED)) {
+					return false;
+				}
+			} else if (batchA.isFeedrate(i)) {
+				if (!batchB.isFeedrate(i) || batchA.getFeedrate(i) != batchB.getFeedrate(i)) {
+					return false;
+				}
+				out.writeByte(CompiledJob.FEEDRATE);
+				out.writeDouble(batchA.getFeedrate(i));
+			} else {
+				DriverCommand commandA = batchA.getCommand(i);
+				DriverCommand commandB = batchB.getCommand(i);
+				if (commandB == null) {
+					return false;
+				}
+				if (commandA instanceof SetCurrentPosition) {
+					if (!(commandB instanceof SetCurrentPosition)) {
+						return false;
+					}
+					pointA.set(((SetCurrentPosition)commandA).getPoint());
+					pointB.set(((SetCurrentPosition)commandB).getPoint());
+					if (!writePoint(CompiledJob.SET_POSITION, CompiledJob.SET_POSITION_CARRIED)) {
+						return false;
+					}
+				} else if (!writeCommand(commandA, commandB)) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Write pointA and pointB as one point.
+	private boolean writePoint(byte opcode, byte carriedOpcode) throws IOException {
+		int carried = 0;
+		for (int axis = 0; axis < 5; axis++) {
+			double a = pointA.get(axis);
+			double b = pointB.get(axis);
+			if (a != b) {
+				if (a != UNKNOWN_A.get(axis) || b != UNKNOWN_B.get(axis)) {
+					return false;
+				}
+				carried |= 1 << axis;
+			}
+		}
+		if (carried == 0) {
+			out.writeByte(opcode);
+		} else {
+			out.writeByte(carriedOpcode);
+			out.writeByte(carried);
+		}
+		for (int axis = 0; axis < 5; axis++) {
+			if ((carried & (1 << axis)) == 0) {
+				out.writeDouble(pointA.get(axis));
+			}
+		}
+		return true;
+	}
+
+	// Write a command, if it came out the same both times.
+	private boolean writeCommand(DriverCommand commandA, DriverCommand commandB) throws IOException {
+		bufferA.reset();
+		bufferB.reset();
+		if (!CommandCodec.write(commandA, new DataOutputStream(bufferA))
+				|| !CommandCodec.write(commandB, new DataOutputStream(bufferB))) {
+			return false;
+		}
+		byte[] bytes = bufferA.toByteArray();
+		if (!Arrays.equals(bytes, bufferB.toByteArray())) {
+			return false;
+		}
+		out.write(bytes);
+		return true;
+	}
+}
@@ -0,0 +1,162 @@
+package replicatorg.machine.builder;
+
+import javax.vecmath.Point3d;
+
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.MultiTool;
+import replicatorg.drivers.Version;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.drivers.commands.DriverCommand;
+import replicatorg.drivers.commands.HomeAxes;
+import replicatorg.drivers.commands.InvalidatePosition;
+import replicatorg.drivers.commands.QueuePoint;
+import replicatorg.drivers.commands.RecallHomePositions;
+import replicatorg.drivers.commands.RequestToolChange;
+import replicatorg.drivers.commands.SelectTool;
+import replicatorg.drivers.commands.SetAxisOffset;
+import replicatorg.drivers.commands.SetCurrentPosition;
+import replicatorg.util.Point5d;
+
+/**
+ * Stands in for the driver when a GCodeParser runs ahead of the machine.
+ *
+ * The parser asks the driver for its current position to resolve relative
+ * moves, arcs and rapid feedrates. When parsing happens ahead of execution,
+ * the driver's position lags behind the parser, so this class keeps track of
+ * where the commands produced so far will leave the machine. All other
+ * queries are passed through to the real driver, including the MultiTool
+ * queries the parser uses to decide how to treat T codes.
+ *
+ * Commands that move the machine to a position we can't predict (homing,
+ * recalling home positions) or that change state the parser reads back
+ * (offsets, the selected tool) are reported as barriers; the parser must wait
+ * for the machine to catch up and then resynchronize the tracker.
+ */
+class ParserPositionTracker implements DriverQueryInterface, MultiTool {
+	private final DriverQueryInterface driver;
+
+	// Where the machine will be once every command produced so far has run.
+	private Point5d position;
+
+	ParserPositionTracker(DriverQueryInterface driver, Point5d startPosition) {
+		this.driver = driver;
+		this.position = new Point5d(startPosition);
+	}
+
+	/**
+	 * Update the tracked position from a command produced by the parser.
+	 * @return true if the command is a barrier, and the tracker must be
+	 * resynchronized from the driver once it has run.
+	 */
+	boolean track(DriverCommand command) {
+		if (command instanceof QueuePoint) {
+			position = new Point5d(((QueuePoint)command).getDestination());
+		} else if (command instanceof SetCurrentPosition) {
+			position = new Point5d(((SetCurrentPosition)command).getPoint());
+		} else if (command instanceof HomeAxes
+				|| command instanceof RecallHomePositions
+				|| command instanceof InvalidatePosition
+				|| command instanceof SetAxisOffset
+				|| command instanceof SelectTool
+				|| command instanceof RequestToolChange) {
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Update the tracked position from a batch of commands produced by the
+	 * parser.
+	 * @return true if any of the commands is a barrier
+	 */
+	boolean track(CommandBatch batch) {
+		boolean barrier = false;
+		for (int i = 0; i < batch.size(); i++) {
+			if (batch.isPoint(i)) {
+				batch.getPoint(i, position);
+			} else {
+				DriverCommand command = batch.getCommand(i);
+				if (command != null) {
+					barrier |= track(command);
+				}
+			}
+		}
+		return barrier;
+	}
+
+	/**
+	 * Resynchronize the tracked position with the driver's, after a barrier.
+	 */
+	void resync(Point5d driverPosition) {
+		position = new Point5d(driverPosition);
+	}
+
+	public Point5d getCurrentPosition(boolean forceUpdate) {
+		return new Point5d(position);
+	}
+
+	public Point3d getOffset(int i) {
+		return driver.getOffset(i);
+	}
+
+	public Point5d getMaximumFeedrates() {
+		return driver.getMaximumFeedrates();
+	}
+
+	public double getSpindleRPM() {
+		return driver.getSpindleRPM();
+	}
+
+	public double getMotorRPM() {
+		return driver.getMotorRPM();
+	}
+
+	public int getMotorSpeedPWM() {
+		return driver.getMotorSpeedPWM();
+	}
+
+	public double getTemperature() {
+		return driver.getTemperature();
+	}
+
+	public double getTemperatureSetting() {
+		return driver.getTemperatureSetting();
+	}
+
+	public boolean hasAutomatedBuildPlatform() {
+		return driver.hasAutomatedBuildPlatform();
+	}
+
+	public double getPlatformTemperature() {
+		return driver.getPlatformTemperature();
+	}
+
+	public double getPlatformTemperatureSetting() {
+		return driver.getPlatformTemperatureSetting();
+	}
+
+	public boolean isPassthroughDriver() {
+		return driver.isPassthroughDriver();
+	}
+
+	public Version getVersion() {
+		return driver.getVersion();
+	}
+
+	public Version getPreferredVersion() {
+		return driver.getPreferredVersion();
+	}
+
+	public boolean toolsCanBeReindexed() {
+		return (driver instanceof MultiTool) && ((MultiTool)driver).toolsCanBeReindexed();
+	}
+
+	public boolean setConnectedToolIndex(int index) {
+		// The parser never does this; it's not something to do from the lookahead thread.
+		return false;
+	}
+
+	public boolean supportsSimultaneousTools() {
+		return (driver instanceof MultiTool) && ((MultiTool)driver).supportsSimultaneousTools();
+	}
+}
@@ -0,0 +1,318 @@
+package replicatorg.machine.builder;
+
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.machine.Machine.JobTarget;
+import replicatorg.model.GCodeSource;
+import replicatorg.util.Point5d;
+
+/**
+ * Machine builder for building a GCodeSource on a Driver, with the GCode
+ * read and parsed ahead of the machine.
+ *
+ * Direct reads, parses and sends one line at a time on the machine thread,
+ * so nothing is parsed while we wait for the machine to acknowledge a
+ * packet, and nothing is sent while we parse. Here a lookahead thread runs
+ * the source and the parser, and fills a bounded ring of parsed lines; the
+ * machine thread only drains the ring into the driver.
+ *
+ * The ring is single producer/single consumer, and doesn't take any locks:
+ * each side only advances its own counter. When the ring is full the
+ * lookahead thread parks until the machine thread frees a slot.
+ *
+ * Commands are removed from the ring only once the driver has accepted them,
+ * so a RetryException causes exactly the rejected command to be sent again,
+ * just like in Direct.
+ */
+public class Pipelined implements MachineBuilder {
+
+	public enum State {
+		RUNNING_GCODE,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	// One parsed line's worth of driver commands. Slots are allocated once,
+	// and reused as the ring wraps around.
+	private static class Slot {
+		final CommandBatch commands = new CommandBatch();
+		// True if the lookahead thread must resynchronize after this line runs
+		boolean barrier = false;
+	}
+
+	// How long either side parks when it has to wait for the other.
+	private static final long PARK_NANOS = 1000000;
+
+	GCodeSource source;
+
+	int linesProcessed;
+	int linesTotal;
+
+	Driver driver;
+
+	State state;
+
+	private final Slot[] ring;
+	// Number of lines published by the lookahead thread
+	private final AtomicLong published = new AtomicLong(0);
+	// Number of lines fully run on the driver
+	private final AtomicLong consumed = new AtomicLong(0);
+
+	private final LookaheadThread lookahead;
+	private volatile Thread machineThread = null;
+
+	// Position of the driver after a barrier, handed to the lookahead thread
+	private volatile Point5d resyncPosition = null;
+
+	// Set when the lookahead thread has published its last line
+	private volatile boolean sourceExhausted = false;
+	// Set, before sourceExhausted, if the lookahead thread stopped on an error
+	private volatile RuntimeException lookaheadFailure = null;
+	// Set when the build is over, to take down the lookahead thread
+	private volatile boolean stopped = false;
+
+	// The slot we are currently sending, or null if we need to fetch another.
+	private Slot current = null;
+
+	// Statistics
+	private long starvedCount = 0;
+	private long commandsSent = 0;
+	private long retries = 0;
+
+	/**
+	 * The lookahead thread reads lines from the source, parses them, and
+	 * publishes them to the ring.
+	 */
+	class LookaheadThread extends Thread {
+		private final GCodeParser parser;
+		private final ParserPositionTracker tracker;
+		private final Iterator<String> i;
+		volatile boolean waiting = false;
+
+		LookaheadThread(Point5d startPosition) {
+			super("Build Lookahead");
+			setDaemon(true);
+
+			tracker = new ParserPositionTracker((DriverQueryInterface)driver, startPosition);
+			parser = new GCodeParser();
+			parser.init(tracker);
+
+			// Initialize our gcode provider
+			i = source.iterator();
+		}
+
+		public void run() {
+			try {
+				while (!stopped && i.hasNext()) {
+					String line = i.next();
+
+					// Wait for a free slot
+					long next = published.get();
+					while (next - consumed.get() >= ring.length) {
+						if (stopped) { return; }
+						waiting = true;
+						LockSupport.parkNanos(PARK_NANOS);
+						waiting = false;
+					}
+
+					Slot slot = ring[(int)(next % ring.length)];
+					parser.parse(line, slot.commands);
+
+					boolean barrier = tracker.track(slot.commands);
+					slot.barrier = barrier;
+
+					published.set(next + 1);
+					wakeMachineThread();
+
+					// The parser can't continue until it knows where the barrier
+					// has left the machine.
+					if (barrier) {
+						while (resyncPosition == null) {
+							if (stopped) { return; }
+							waiting = true;
+							LockSupport.parkNanos(PARK_NANOS);
+							waiting = false;
+						}
+						tracker.resync(resyncPosition);
+						resyncPosition = null;
+					}
+				}
+			} catch (RuntimeException e) {
+				Base.logger.log(Level.SEVERE, "Error reading ahead in build, stopping", e);
+				lookaheadFailure = e;
+			} finally {
+				sourceExhausted = true;
+				wakeMachineThread();
+			}
+		}
+	}
+
+	/**
+	 * @param driver the driver to build on
+	 * @param source the GCode to build
+	 * @param lookaheadLines the number of parsed lines that can be waiting to be sent
+	 */
+	public Pipelined(Driver driver, GCodeSource source, int lookaheadLines) {
+		this.driver = driver;
+		this.source = source;
+
+		linesProcessed = 0;
+		linesTotal = source.getLineCount();
+
+		ring = new Slot[Math.max(1, lookaheadLines)];
+		for (int j = 0; j < ring.length; j++) {
+			ring[j] = new Slot();
+		}
+
+		state = State.RUNNING_GCODE;
+
+		// Ask for the position here, on the machine thread, so that the lookahead
+		// thread never has to talk to the driver.
+		lookahead = new LookaheadThread(driver.getCurrentPosition(false));
+		lookahead.start();
+	}
+
+	private void wakeMachineThread() {
+		Thread t = machineThread;
+		if (t != null) {
+			LockSupport.unpark(t);
+		}
+	}
+
+	private void wakeLookahead() {
+		if (lookahead.waiting) {
+			LockSupport.unpark(lookahead);
+		}
+	}
+
+	/**
+	 * Stop the lookahead thread. This should be called if the build is
+	 * abandoned before it finishes.
+	 */
+	public void stop() {
+		stopped = true;
+		LockSupport.unpark(lookahead);
+	}
+
+	private void finish() {
+		state = State.FINISHED;
+		stop();
+		Base.logger.info("Pipelined build: sent " + commandsSent + " commands, "
+				+ retries + " retries, machine thread starved " + starvedCount + " times");
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the next command on the driver
+	@Override
+	public void runNext() {
+		machineThread = Thread.currentThread();
+
+		// Check for any driver errors
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		if (current == null) {
+			long next = consumed.get();
+			if (next == published.get()) {
+				if (sourceExhausted && next == published.get()) {
+					if (lookaheadFailure != null) {
+						// The source didn't end; the build can't go on.
+						throw new RuntimeException("Error reading ahead in build: "
+								+ lookaheadFailure.getMessage(), lookaheadFailure);
+					}
+					// TODO: This is clunky.
+					if (driver.isFinished()) {
+						finish();
+					} else {
+						state = State.WAITING_FOR_MACHINE_FINISH;
+					}
+				} else {
+					// The lookahead thread hasn't kept up with us.
+					starvedCount++;
+					LockSupport.parkNanos(PARK_NANOS);
+				}
+				return;
+			}
+			current = ring[(int)(next % ring.length)];
+		}
+
+		try {
+			// Run the commands on the machine.
+			int queued = current.commands.size();
+			try {
+				current.commands.run(driver);
+			} finally {
+				commandsSent += queued - current.commands.size();
+			}
+
+			finishLine();
+		} catch (RetryException r) {
+			// Leave the command at the head of the slot, and retry it on the
+			// next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+			retries++;
+		} catch (StopException e) {
+			if (HaltHandler.carryOn(e)) {
+				current.commands.remove();
+				if (current.commands.isEmpty()) {
+					finishLine();
+				}
+			} else {
+				finish();
+			}
+		}
+	}
+
+	// Release the current slot back to the lookahead thread.
+	private void finishLine() {
+		if (current.barrier) {
+			resyncPosition = driver.getCurrentPosition(false);
+			current.barrier = false;
+		}
+		current = null;
+		linesProcessed++;
+		consumed.set(consumed.get() + 1);
+		wakeLookahead();
+	}
+
+	/**
+	 * @return the number of times the machine thread was ready to send, but
+	 * had nothing parsed to send.
+	 */
+	public long getStarvedCount() {
+		return starvedCount;
+	}
+
+	public int getLinesTotal() {
+		return linesTotal;
+	}
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
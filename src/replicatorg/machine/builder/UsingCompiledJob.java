@@ -0,0 +1,110 @@
+package replicatorg.machine.builder;
+
+import java.util.logging.Level;
+
+import replicatorg.app.Base;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverQueryInterface;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.machine.Machine.JobTarget;
+
+/**
+ * Machine builder for building a CompiledJob on a Driver. It runs just as
+ * Direct does, a line at a time, except that the commands of each line are
+ * read from the compiled job rather than parsed. The commands are those a
+ * Pipelined build sends, so it stands in only for a Pipelined build.
+ */
+public class UsingCompiledJob implements MachineBuilder {
+
+	public enum State {
+		RUNNING_JOB,
+		WAITING_FOR_MACHINE_FINISH,
+		FINISHED
+	}
+
+	CompiledJob job;
+
+	int linesProcessed;
+	int linesTotal;
+
+	Driver driver;
+	CommandBatch driverQueue;
+
+	boolean retry = false;
+
+	State state;
+
+	public UsingCompiledJob(Driver driver, CompiledJob job) {
+		this.driver = driver;
+		this.job = job;
+
+		linesProcessed = 0;
+		linesTotal = job.getLineCount();
+
+		driverQueue = new CommandBatch();
+
+		state = State.RUNNING_JOB;
+	}
+
+	@Override
+	public boolean finished() {
+		return (state == State.FINISHED);
+	}
+
+	// Run the next line on the driver
+	@Override
+	public void runNext() {
+		if (!retry && !job.hasNext()) {
+			if (driver.isFinished()) {
+				state = State.FINISHED;
+			} else {
+				state = State.WAITING_FOR_MACHINE_FINISH;
+			}
+			return;
+		}
+
+		if (driver.hasError()) {
+			Base.logger.severe("Driver reported an error, aborting build");
+			return;
+		}
+
+		if (retry == false) {
+			job.next(driverQueue, (DriverQueryInterface)driver);
+			linesProcessed++;
+		}
+
+		try {
+			driverQueue.run(driver);
+			retry = false;
+		} catch (RetryException r) {
+			// Run what's left of the line on the next go-round.
+			Base.logger.log(Level.FINE,"Message delivery failed, retrying");
+			retry = true;
+		} catch (StopException e) {
+			if (HaltHandler.carryOn(e)) {
+				driverQueue.remove();
+			} else {
+				state = State.FINISHED;
+			}
+		}
+	}
+
+	public int getLinesTotal() {
+		return linesTotal;
+	}
+	public int getLinesProcessed() {
+		return linesProcessed;
+	}
+
+	@Override
+	public boolean isInteractive() {
+		return true;
+	}
+
+	@Override
+	public JobTarget getTarget() {
+		return JobTarget.MACHINE;
+	}
+}
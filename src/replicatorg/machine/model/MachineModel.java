@@ -58,6 +58,11 @@ public class MachineModel
 	private Point5d homingFeedrates;
 	private Point5d stepsPerMM;
         private Point5d timeOut;
+	// acceleration limits, in mm/s/s; 0 where an axis has none
+	private Point5d accelerations;
+	// how far, in mm, the path may cut inside a corner taken without stopping
+	private double junctionDeviation = DEFAULT_JUNCTION_DEVIATION;
+	public static final double DEFAULT_JUNCTION_DEVIATION = 0.05;
 	
 	//our drive status
 	protected boolean drivesEnabled = true;
@@ -92,6 +97,7 @@ public class MachineModel
 		maximumFeedrates = new Point5d();
 		homingFeedrates = new Point5d();
 		timeOut = new Point5d();
+		accelerations = new Point5d();
 		stepsPerMM = new Point5d(1, 1, 1, 1, 1); //use ones, because we divide by this!
 		
 		currentTool.set(nullTool);
@@ -154,6 +160,15 @@ public class MachineModel
 		{
 			Node geometry = XML.getChildNodeByName(xml, "geometry");
 			
+			String jd = XML.getAttributeValue(geometry, "junctiondeviation");
+			if (jd != null) {
+				try {
+					junctionDeviation = Double.parseDouble(jd);
+				} catch (NumberFormatException nfe) {
+					Base.logger.severe("Invalid junction deviation "+jd+" in machine descriptor");
+				}
+			}
+			
 			//look through the axes.
 			NodeList axisNodes = geometry.getChildNodes();
 			for (int i=0; i<axisNodes.getLength(); i++)
@@ -172,6 +187,7 @@ public class MachineModel
 						double maxFeedrate = 0.0;
 						double homingFeedrate = 0.0;
 						double stepspermm = 1.0;
+						double acceleration = 0.0;
 						Endstops endstops = Endstops.NONE;
 						// abritrary # of seconds to time out,
 						// can be overriden in .xml for each axis, the max val is all we use currently
@@ -195,6 +211,9 @@ public class MachineModel
 							if (spmm == null) spmm = XML.getAttributeValue(axis, "scale"); // Backwards compatibility
 							stepspermm = Double.parseDouble(spmm);
 						} catch (Exception e) {}
+						try {
+							acceleration = Double.parseDouble(XML.getAttributeValue(axis, "acceleration"));
+						} catch (Exception e) {}
 						try {
 						        timeout = Double.parseDouble(XML.getAttributeValue(axis, "timeout"));
 						} catch (Exception e) {
@@ -213,6 +232,7 @@ public class MachineModel
 						maximumFeedrates.setAxis(id,maxFeedrate);
 						homingFeedrates.setAxis(id,homingFeedrate);
 						stepsPerMM.setAxis(id,stepspermm);
+						accelerations.setAxis(id,acceleration);
 						timeOut.setAxis(id,timeout);
 						this.endstops.put(id, endstops);
 						Base.logger.fine("Loaded axis " + id.name()
@@ -371,11 +391,7 @@ public class MachineModel
 
 	public Point5d mmToSteps(Point5d mm)
 	{
-		Point5d temp = new Point5d();
-		temp.mul(mm,stepsPerMM);
-		temp.round(); // integer step counts please
-		
-		return temp;
+		return mmToSteps(mm, null, new Point5d());
 	}
 
 	/*************************************
@@ -386,11 +402,29 @@ public class MachineModel
 
 	public Point5d mmToSteps(Point5d mm, Point5d excess)
 	{
-		Point5d temp = new Point5d();
-		temp.mul(mm,stepsPerMM);
-		temp.add(excess);
-		temp.round(excess); // integer step counts please
-		return temp;
+		return mmToSteps(mm, excess, new Point5d());
+	}
+
+	/**
+	 * Convert millimeters to machine steps, writing them into the given point
+	 * rather than making a new one, so that the drivers can do it for every
+	 * move without allocating.
+	 * @param mm the position or distance, in mm
+	 * @param excess the rounding error carried over from the last conversion,
+	 * which is replaced with this one's; or null to just round
+	 * @param steps where to put the steps; may be mm itself
+	 * @return steps
+	 */
+	public Point5d mmToSteps(Point5d mm, Point5d excess, Point5d steps)
+	{
+		steps.mul(mm,stepsPerMM);
+		if (excess == null) {
+			steps.round(); // integer step counts please
+		} else {
+			steps.add(excess);
+			steps.round(excess);
+		}
+		return steps;
 	}
 
 	/*************************************
@@ -527,6 +561,16 @@ public class MachineModel
       return timeOut;
 	  }
   
+  /** returns the acceleration limit of each axis, in mm/s/s; 0 if the axis has none */
+  public Point5d getAccelerations() {
+	  return accelerations;
+  }
+  
+  /** returns how far, in mm, the path may cut inside a corner taken without stopping */
+  public double getJunctionDeviation() {
+	  return junctionDeviation;
+  }
+  
   /** returns the endstop configuration for the given axis */
   public Endstops getEndstops(AxisId axis)
   {
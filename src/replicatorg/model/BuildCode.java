@@ -45,6 +45,9 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	/** Document object for this tab; includes undo information, etc. */
 	public SyntaxDocument document;
 
+	/** The file, when it is too large to load into the editor; otherwise null */
+	private MappedGCodeSource largeFileSource = null;
+
 	// saved positions from last time this tab was used
 	public int selectionStart;
 
@@ -66,15 +69,38 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	 * Load this piece of code from a file.
 	 */
 	public void load() throws IOException {
+		largeFileSource = null;
 		if (file == null) {
 			program = "";
 			setModified(true);
+		} else if (file.length() >= Base.preferences.getInt("ui.large_file_mb", 64) * 1024L * 1024L) {
+			// Too large to edit; it is built straight from the file instead.
+			largeFileSource = new MappedGCodeSource(file);
+			program = "(This file is too large to edit here: " + (file.length() / (1024 * 1024)) + " MB.)\n" +
+				"(It can still be built, estimated and simulated.)\n";
+			setModified(false);
 		} else {
 			program = Base.loadFile(file);
 			setModified(false);
 		}
 	}
 
+	/**
+	 * @return true if the file is too large to load into the editor, so the
+	 * program text is only a note saying so
+	 */
+	public boolean isLargeFile() {
+		return largeFileSource != null;
+	}
+
+	/**
+	 * @return the file's code, if it is too large to load into the editor;
+	 * otherwise null
+	 */
+	public GCodeSource getLargeFileSource() {
+		return largeFileSource;
+	}
+
 	/**
 	 * Save this piece of code, regardless of whether the modified flag is set
 	 * or not.
@@ -83,6 +109,11 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 		// TODO re-enable history
 		// history.record(s, SketchHistory.SAVE);
 
+		// A large file can't be edited, so there's nothing to save.
+		if (isLargeFile()) {
+			setModified(false);
+			return;
+		}
 		Base.saveFile(program, file);
 		setModified(false);
 	}
@@ -91,7 +122,14 @@ public class BuildCode extends BuildElement implements Comparable<BuildCode> {
 	 * Save this file to another location, used by Sketch.saveAs()
 	 */
 	public void saveAs(File newFile) throws IOException {
-		Base.saveFile(program, newFile);
+		if (isLargeFile()) {
+			if (!newFile.getCanonicalFile().equals(file.getCanonicalFile())) {
+				Base.copyFile(file, newFile);
+			}
+			largeFileSource = new MappedGCodeSource(newFile);
+		} else {
+			Base.saveFile(program, newFile);
+		}
 		file = newFile;
 		name = file.getName();
 		// we're still truncating the suffix, for now.
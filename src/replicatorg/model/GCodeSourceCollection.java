@@ -1,6 +1,7 @@
 package replicatorg.model;
 
 import java.util.Iterator;
+import java.util.List;
 import java.util.Vector;
 
 
@@ -27,6 +28,10 @@ public class GCodeSourceCollection implements GCodeSource {
 		
 		@Override
 		public boolean hasNext() {
+			// Skip sources with no lines left, such as an empty warmup
+			while (!iterators.isEmpty() && !iterators.firstElement().hasNext()) {
+				iterators.remove(0);
+			}
 			return (!iterators.isEmpty());
 		}
 
@@ -36,10 +41,6 @@ public class GCodeSourceCollection implements GCodeSource {
 			
 			if (hasNext()) {
 				next = iterators.firstElement().next();
-				
-				if (!iterators.firstElement().hasNext()) {
-					iterators.remove(0);
-				}
 			}
 			return next;
 		}
@@ -61,6 +62,11 @@ public class GCodeSourceCollection implements GCodeSource {
 		this.lineCount = lineCount;
 	}
 	
+	/** @return the sources, in the order their lines come in */
+	public List<GCodeSource> getSources() {
+		return sources;
+	}
+
 	@Override
 	public Iterator<String> iterator() {
 		return new GCodeSourceCollectionIterator(sources);
@@ -0,0 +1,305 @@
+package replicatorg.model;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * GCode read straight from a file mapped into memory, so that files of
+ * hundreds of megabytes can be built without being loaded into the editor.
+ *
+ * Iterating over the lines reads the file from start to end, or from any
+ * line on. To find a line by its number, the offset of every line is indexed
+ * the first time it is needed, in a long[] with one entry per line. Lines can be had as Strings,
+ * or as Line views onto the mapped file, which can be reused to read many
+ * lines without allocating.
+ *
+ * Any number of threads may read a source at once.
+ */
+public class MappedGCodeSource implements GCodeSource {
+	// Files are mapped in segments no bigger than 1GB; a line may straddle two.
+	private static final int SEGMENT_SHIFT = 30;
+	private static final long SEGMENT_SIZE = 1L << SEGMENT_SHIFT;
+
+	private final File file;
+	private final long length;
+	private final MappedByteBuffer[] segments;
+
+	// The offset each line starts at, plus the length of the file
+	private long[] lineStarts = null;
+
+	public MappedGCodeSource(File file) throws IOException {
+		this.file = file;
+		FileInputStream in = new FileInputStream(file);
+		try {
+			FileChannel channel = in.getChannel();
+			length = channel.size();
+			int count = (int)((length + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+			segments = new MappedByteBuffer[count];
+			for (int i = 0; i < count; i++) {
+				long start = i * SEGMENT_SIZE;
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+						Math.min(SEGMENT_SIZE, length - start));
+			}
+		} finally {
+			// The mapping stays valid after the channel is closed.
+			in.close();
+		}
+	}
+
+	public File getFile() { return file; }
+
+	/** @return the size of the file, in bytes */
+	public long getLength() { return length; }
+
+	private byte byteAt(long offset) {
+		return segments[(int)(offset >>> SEGMENT_SHIFT)].get((int)(offset & (SEGMENT_SIZE - 1)));
+	}
+
+	// Where the line starting at the given offset ends, not counting its
+	// line break.
+	private long lineEnd(long start) {
+		long end = start;
+		while (end < length && byteAt(end) != '\n') end++;
+		if (end > start && byteAt(end - 1) == '\r') end--;
+		return end;
+	}
+
+	// Where the line after the one starting at the given offset starts
+	private long nextLine(long start) {
+		long end = start;
+		while (end < length && byteAt(end) != '\n') end++;
+		return end + 1;
+	}
+
+	private synchronized long[] getLineStarts() {
+		if (lineStarts == null) {
+			long[] starts = new long[1024];
+			int count = 0;
+			long start = 0;
+			while (start < length) {
+				if (count == starts.length - 1) {
+					long[] bigger = new long[starts.length * 2];
+					System.arraycopy(starts, 0, bigger, 0, count);
+					starts = bigger;
+				}
+				starts[count++] = start;
+				start = nextLine(start);
+			}
+			long[] trimmed = new long[count + 1];
+			System.arraycopy(starts, 0, trimmed, 0, count);
+			trimmed[count] = length;
+			lineStarts = trimmed;
+		}
+		return lineStarts;
+	}
+
+	public int getLineCount() {
+		return getLineStarts().length - 1;
+	}
+
+	/**
+	 * Point a view at the given line.
+	 * @return the view
+	 */
+	public Line getLine(int index, Line view) {
+		long[] starts = getLineStarts();
+		if (index < 0 || index >= starts.length - 1) {
+			throw new IndexOutOfBoundsException("No line " + index);
+		}
+		long start = starts[index];
+		view.set(start, lineEnd(start));
+		return view;
+	}
+
+	/** @return a view onto no line yet, for getLine() */
+	public Line newLine() {
+		return new Line();
+	}
+
+	/**
+	 * Add the lines of the file to a digest, each followed by a '\n' whatever
+	 * line break it ends with in the file. This gives the same digest as adding
+	 * the lines one at a time, but reads the file in blocks.
+	 */
+	public void digestLines(MessageDigest digest) {
+		byte[] block = new byte[64 * 1024];
+		// A '\r' is held back until we know whether it ends a line.
+		boolean cr = false;
+		byte last = '\n';
+		for (long offset = 0; offset < length; ) {
+			ByteBuffer segment = segments[(int)(offset >>> SEGMENT_SHIFT)].duplicate();
+			int position = (int)(offset & (SEGMENT_SIZE - 1));
+			segment.position(position);
+			int n = Math.min(block.length, segment.limit() - position);
+			segment.get(block, 0, n);
+			int run = 0;
+			for (int i = 0; i < n; i++) {
+				byte b = block[i];
+				if (cr) {
+					if (b != '\n') digest.update((byte)'\r');
+					cr = false;
+				}
+				if (b == '\r') {
+					digest.update(block, run, i - run);
+					run = i + 1;
+					cr = true;
+				}
+			}
+			digest.update(block, run, n - run);
+			last = block[n - 1];
+			offset += n;
+		}
+		if (length > 0 && (cr || last != '\n')) {
+			digest.update((byte)'\n');
+		}
+	}
+
+	public Iterator<String> iterator() {
+		return linesFrom(0);
+	}
+
+	/**
+	 * @return an iterator starting at the given line, found in the index
+	 * rather than by reading the lines before it
+	 */
+	public Iterator<String> iterator(int index) {
+		long[] starts = getLineStarts();
+		if (index < 0 || index > starts.length - 1) {
+			throw new IndexOutOfBoundsException("No line " + index);
+		}
+		return linesFrom(starts[index]);
+	}
+
+	private Iterator<String> linesFrom(final long offset) {
+		return new Iterator<String>() {
+			long start = offset;
+			final Line line = new Line();
+			char[] chars = new char[256];
+			// The file is copied out a block at a time, which is quicker to
+			// scan than the mapped buffer.
+			final byte[] block = new byte[64 * 1024];
+			long blockStart = 0;
+			int blockLength = 0;
+
+			public boolean hasNext() { return start < length; }
+
+			public String next() {
+				if (start >= length) throw new NoSuchElementException();
+				// Read the line in one pass, as long as it's plain ASCII.
+				int n = 0;
+				long end = start;
+				boolean ascii = true;
+				scan:
+				while (end < length) {
+					if (end >= blockStart + blockLength) {
+						fill(end);
+					}
+					int i = (int)(end - blockStart);
+					for (; i < blockLength; i++) {
+						byte b = block[i];
+						if (b == '\n') {
+							end = blockStart + i;
+							break scan;
+						}
+						if (b < 0) ascii = false;
+						if (n == chars.length) {
+							char[] bigger = new char[n * 2];
+							System.arraycopy(chars, 0, bigger, 0, n);
+							chars = bigger;
+						}
+						chars[n++] = (char)b;
+					}
+					end = blockStart + blockLength;
+				}
+				if (n > 0 && chars[n - 1] == '\r') n--;
+				String s;
+				if (ascii) {
+					s = new String(chars, 0, n);
+				} else {
+					line.set(start, start + n);
+					s = line.decode();
+				}
+				start = end + 1;
+				return s;
+			}
+
+			private void fill(long offset) {
+				ByteBuffer segment = segments[(int)(offset >>> SEGMENT_SHIFT)].duplicate();
+				int position = (int)(offset & (SEGMENT_SIZE - 1));
+				segment.position(position);
+				blockStart = offset;
+				blockLength = Math.min(block.length, segment.limit() - position);
+				segment.get(block, 0, blockLength);
+			}
+
+			public void remove() { throw new UnsupportedOperationException(); }
+		};
+	}
+
+	/**
+	 * A line of the file, read in place. Each byte is one char; toString()
+	 * decodes the line as UTF-8 if it isn't plain ASCII.
+	 */
+	public class Line implements CharSequence {
+		private long start;
+		private int length;
+
+		private Line() {
+		}
+
+		private void set(long start, long end) {
+			this.start = start;
+			this.length = (int)(end - start);
+		}
+
+		public int length() { return length; }
+
+		public char charAt(int index) {
+			if (index < 0 || index >= length) {
+				throw new IndexOutOfBoundsException("No char " + index);
+			}
+			return (char)(byteAt(start + index) & 0xff);
+		}
+
+		public CharSequence subSequence(int from, int to) {
+			if (from < 0 || to > length || from > to) {
+				throw new IndexOutOfBoundsException(from + " to " + to);
+			}
+			Line sub = new Line();
+			sub.set(start + from, start + to);
+			return sub;
+		}
+
+		public String toString() {
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				byte b = byteAt(start + i);
+				if (b < 0) {
+					return decode();
+				}
+				chars[i] = (char)b;
+			}
+			return new String(chars);
+		}
+
+		private String decode() {
+			byte[] bytes = new byte[length];
+			for (int i = 0; i < length; i++) {
+				bytes[i] = byteAt(start + i);
+			}
+			try {
+				return new String(bytes, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
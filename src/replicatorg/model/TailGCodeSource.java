@@ -0,0 +1,36 @@
+package replicatorg.model;
+
+import java.util.Iterator;
+
+/**
+ * The lines of another source from a given line on. A MappedGCodeSource is
+ * read from that line straight away; any other source has to be read through
+ * the lines before it.
+ */
+public class TailGCodeSource implements GCodeSource {
+	private final GCodeSource source;
+	private final int first;
+
+	/**
+	 * @param first the index of the first line to give, counting from 0
+	 */
+	public TailGCodeSource(GCodeSource source, int first) {
+		this.source = source;
+		this.first = first;
+	}
+
+	public Iterator<String> iterator() {
+		if (source instanceof MappedGCodeSource) {
+			return ((MappedGCodeSource)source).iterator(first);
+		}
+		Iterator<String> i = source.iterator();
+		for (int skipped = 0; skipped < first && i.hasNext(); skipped++) {
+			i.next();
+		}
+		return i;
+	}
+
+	public int getLineCount() {
+		return Math.max(0, source.getLineCount() - first);
+	}
+}
@@ -22,8 +22,11 @@ public class PluginEngine implements GCodeSource {
 		return parent.getLineCount();
 	}
 
+	// Reused for every line, to avoid allocating an object per line
+	private final GCode mcode = new GCode();
+
 	private void processLine(String line) {
-		GCode mcode = new GCode(line);
+		mcode.parse(line);
 		if( mcode.hasCode('M')) {
 			double code = mcode.getCodeValue('M');
 		
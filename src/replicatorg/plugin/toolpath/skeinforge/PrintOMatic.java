@@ -79,11 +79,10 @@ public class PrintOMatic implements SkeinforgePreference {
 		String value = null;
 		
 		if (fullName != null) {
-			System.out.println(fullName);
 			value = Base.preferences.get(fullName, options.firstElement());
 			
 			// Store it back so that we can be assured that it is set.
-			System.out.println("fullname " + fullName + " value " + value);
+			Base.logger.fine("fullname " + fullName + " value " + value);
 			Base.preferences.put(fullName, value);
 		}
 		target.add(new JLabel(description));
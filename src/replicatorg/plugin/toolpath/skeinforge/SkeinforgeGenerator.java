@@ -1,6 +1,7 @@
 package replicatorg.plugin.toolpath.skeinforge;
 
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.BufferedReader;
@@ -55,6 +56,11 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 			return true;
 		}
 		
+		if (GraphicsEnvironment.isHeadless()) {
+			Base.logger.warning("The following non-optimal profile settings were detected:\n" + errors);
+			return true;
+		}
+		
 		int result = JOptionPane.showConfirmDialog(null,
 				"The following non-optimal profile settings were detected:\n\n"
 				+ errors + "\n\n"
@@ -356,6 +362,29 @@ public abstract class SkeinforgeGenerator extends ToolpathGenerator {
 		return configSuccess;
 	}
 
+	/**
+	 * Configure without showing anything, for running headless: use the
+	 * named profile, or the one last picked in the configuration dialog if
+	 * the name is null. Profile warnings are logged.
+	 * @return false if there's no profile with that name
+	 */
+	public boolean configureProfile(String name) {
+		if (name == null) {
+			name = Base.preferences.get("lastGeneratorProfileSelected", null);
+		}
+		for (Profile p : getProfiles()) {
+			if (p.toString().equals(name)) {
+				configSuccess = runSanityChecks();
+				if (configSuccess) {
+					profile = p.getFullPath();
+				}
+				return configSuccess;
+			}
+		}
+		Base.logger.severe("No skeinforge profile named " + name);
+		return false;
+	}
+
 	public void editProfiles(Frame parent) {
 		// First check for Python.
 		boolean hasPython = PythonUtils.interactiveCheckVersion(parent,
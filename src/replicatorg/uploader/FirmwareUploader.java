@@ -1,6 +1,7 @@
 package replicatorg.uploader;
 
 import java.awt.Frame;
+import java.awt.GraphicsEnvironment;
 import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
@@ -129,6 +130,11 @@ public class FirmwareUploader {
 	// firmware and
 	// / abort the connections.
 	public static boolean checkLatestVersion(final String boardName, Version version) {
+		// Without a display there's nobody to offer the upload to.
+		if (GraphicsEnvironment.isHeadless()) {
+			Base.logger.fine("No display; not checking for newer " + boardName + " firmware");
+			return false;
+		}
 		final Version latest = getLatestVersion(boardName);
 		if (latest == null)
 			return false;
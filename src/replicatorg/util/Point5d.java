@@ -46,6 +46,11 @@ public class Point5d {
 	public void setA(double a) { values[3] = a; }
 	public void setB(double b) { values[4] = b; }
 	public Point3d get3D() { return new Point3d(values); }
+
+	/** Set every element of this point to that of p. */
+	public void set(Point5d p) {
+		System.arraycopy(p.values,0,values,0,DIMENSIONS);
+	}
 	
 	public void add(Point5d p1) {
 		for (int idx = 0; idx < DIMENSIONS; idx++) {
@@ -136,6 +141,15 @@ public class Point5d {
 		return Math.sqrt(acc);
 	}
 	
+	/**
+	 * The length of the X, Y and Z part of this point; the same as
+	 * get3D().distance(new Point3d()), without making either point.
+	 */
+	public double length3D() {
+		double x = values[0], y = values[1], z = values[2];
+		return Math.sqrt(x*x + y*y + z*z);
+	}
+
 	public double magnitude() {
 		double acc = 0d;
 		for (int idx = 0; idx < DIMENSIONS; idx++) {
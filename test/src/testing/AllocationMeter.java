@@ -0,0 +1,56 @@
+package testing;
+
+import java.lang.management.ManagementFactory;
+
+import org.testng.SkipException;
+
+/**
+ * Measures how much the current thread allocates while it runs an operation
+ * over and over, using the JVM's per-thread allocated bytes counter. Only
+ * the calling thread is counted, so threads the operation talks to, such as
+ * an emulator's, don't show up.
+ */
+public class AllocationMeter {
+	/** Something to measure; run is called once per operation. */
+	public interface Operation {
+		void run(int i) throws Exception;
+	}
+
+	// Runs before measuring, so that the JIT has compiled the path and
+	// anything allocated once has been.
+	private static final int WARMUP = 20000;
+
+	private final com.sun.management.ThreadMXBean threads;
+
+	/**
+	 * @throws SkipException if this JVM can't count allocated bytes
+	 */
+	public AllocationMeter() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			throw new SkipException("This JVM doesn't count allocated bytes");
+		}
+		threads = (com.sun.management.ThreadMXBean)bean;
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			throw new SkipException("This JVM doesn't count allocated bytes");
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+	}
+
+	/**
+	 * Warm the operation up, then run it the given number of times.
+	 * @return the mean number of bytes allocated per operation
+	 */
+	public double bytesPerOperation(Operation op, int count) throws Exception {
+		for (int i = 0; i < WARMUP; i++) {
+			op.run(i);
+		}
+		long id = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(id);
+		for (int i = 0; i < count; i++) {
+			op.run(WARMUP + i);
+		}
+		long after = threads.getThreadAllocatedBytes(id);
+		return (double)(after - before) / count;
+	}
+}
@@ -0,0 +1,81 @@
+package testing.drivers.gen3;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Vector;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.machine.builder.Direct;
+import replicatorg.machine.builder.MachineBuilder;
+import replicatorg.machine.builder.Pipelined;
+import replicatorg.model.StringListSource;
+
+/**
+ * Builds the same job to a capture with Direct and with Pipelined, and
+ * checks that the machine would be sent exactly the same bytes.
+ */
+public class BuilderCaptureTest {
+	// Rapid moves of all lengths and directions, absolute and relative,
+	// mixed with feeds and position resets.
+	private static final String[] JOB = {
+		"G21", "G90", "G92 X0 Y0 Z0 A0",
+		"G0 X10 Y10", "G0 X13.37 Y-2.5 Z0.35", "G1 X20 Y20 A1 F1800",
+		"G0 X20.0001 Y20", "G0 X0 Y0 Z1", "G0 Z0.2",
+		"G91", "G0 X1.1 Y2.2", "G0 X-0.07 Y0.03", "G1 X5 A0.5 F1200", "G0 Y-7.77",
+		"G90", "G92 X1 Y1", "G0 X33.333 Y66.667", "G0 X-12.5 Y40.25 Z3",
+		"G2 X0 Y50 I6 J5 F1500", "G0 X10 Y10", "G0 X10 Y10",
+		// Too short to take a step
+		"G0 X10.01", "G0 X10.02 Y10.03", "G0 X3 Y7", "G0 Z1.001", "G0 X4 Z2.005",
+	};
+
+	private static final int LAPS = 20;
+
+	private Vector<String> job() {
+		Vector<String> lines = new Vector<String>();
+		for (int lap = 0; lap < LAPS; lap++) {
+			lines.addAll(Arrays.asList(JOB));
+		}
+		return lines;
+	}
+
+	private byte[] capture(MachineBuilderFactory factory) throws Exception {
+		Sanguino3GDriver driver = TestMachines.create("makerbot4g");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		driver.beginFileCapture(out);
+		MachineBuilder builder = factory.create(driver, new StringListSource(job()));
+		long end = System.currentTimeMillis() + 30000;
+		while (!builder.finished()) {
+			Assert.assertTrue(System.currentTimeMillis() < end, "The build didn't finish");
+			builder.runNext();
+		}
+		driver.endFileCapture();
+		Assert.assertFalse(driver.hasError());
+		return out.toByteArray();
+	}
+
+	private interface MachineBuilderFactory {
+		MachineBuilder create(Sanguino3GDriver driver, StringListSource source);
+	}
+
+	@Test
+	public void pipelinedSendsWhatDirectSends() throws Exception {
+		byte[] direct = capture(new MachineBuilderFactory() {
+			public MachineBuilder create(Sanguino3GDriver driver, StringListSource source) {
+				return new Direct(driver, null, source);
+			}
+		});
+		byte[] pipelined = capture(new MachineBuilderFactory() {
+			public MachineBuilder create(Sanguino3GDriver driver, StringListSource source) {
+				return new Pipelined(driver, source, 16);
+			}
+		});
+		Assert.assertTrue(direct.length > 0);
+		Assert.assertEquals(pipelined.length, direct.length);
+		for (int i = 0; i < direct.length; i++) {
+			Assert.assertEquals(pipelined[i], direct[i], "Captures differ at byte " + i);
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package testing.drivers.gen3;
+
+import replicatorg.app.tools.IButtonCrc;
+import replicatorg.app.util.serial.Transport;
+import replicatorg.drivers.gen3.PacketConstants;
+
+/**
+ * A machine that answers every packet the moment it is written, on the
+ * writing thread, without copying anything. Commands are acknowledged, and
+ * queries are answered with a large number, which GET_BUFFER_SIZE takes as
+ * plenty of room. This measures the host's side of the protocol alone.
+ */
+class InstantMachine implements Transport {
+	private final byte[] ok = response(0);
+	private final byte[] room = response(0x40000000);
+
+	private Receiver receiver = null;
+	private int packetCount = 0;
+
+	/** @return an OK response packet carrying the given 32-bit value */
+	static byte[] response(int value) {
+		byte[] packet = new byte[8];
+		packet[0] = PacketConstants.START_BYTE;
+		packet[1] = 5;
+		packet[2] = (byte)0x81;
+		for (int i = 0; i < 4; i++) {
+			packet[3 + i] = (byte)(value >> (8 * i));
+		}
+		IButtonCrc crc = new IButtonCrc();
+		crc.update(packet, 2, 5);
+		packet[7] = crc.getCrc();
+		return packet;
+	}
+
+	/** @return the number of packets answered */
+	int getPacketCount() {
+		return packetCount;
+	}
+
+	public void open(Receiver receiver) {
+		this.receiver = receiver;
+	}
+
+	public void close() {
+		receiver = null;
+	}
+
+	public void write(byte[] bytes, int offset, int length) {
+		packetCount++;
+		byte[] answer = ((bytes[offset + 2] & 0x80) != 0) ? ok : room;
+		receiver.received(answer, 0, answer.length);
+	}
+
+	public void pulseRTSLow() {
+	}
+
+	public String getName() {
+		return "instant";
+	}
+}
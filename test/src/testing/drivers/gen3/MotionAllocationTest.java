@@ -0,0 +1,77 @@
+package testing.drivers.gen3;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.EstimationDriver;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.util.Point5d;
+
+import testing.AllocationMeter;
+
+/**
+ * Checks that queueing a move allocates nothing: the position, delta, step
+ * and feedrate math all work in points the drivers keep for the purpose.
+ */
+public class MotionAllocationTest {
+	private static final int MOVES = 100000;
+
+	// Allowed mean bytes per move; enough for the odd one-off allocation,
+	// but far less than a single point.
+	private static final double MAX_BYTES = 8;
+
+	// Round a square, extruding as we go, and back again.
+	private static final Point5d[] PATH = {
+		new Point5d(10, 10, 0.3, 0, 0),
+		new Point5d(60, 10, 0.3, 1, 0),
+		new Point5d(60, 60, 0.3, 2, 0),
+		new Point5d(10, 60, 0.3, 3, 0),
+	};
+
+	@DataProvider(name = "drivers")
+	public Object[][] drivers() {
+		return new Object[][] {
+			{ "makerbot4g", "" },
+			{ "makerbot4ga", "" },
+			{ "makerbot4g", "<coalesce>0.01</coalesce>" },
+		};
+	}
+
+	private double measure(final Driver driver) throws Exception {
+		driver.setCurrentPosition(new Point5d());
+		driver.setFeedrate(3000);
+		return new AllocationMeter().bytesPerOperation(new AllocationMeter.Operation() {
+			public void run(int i) throws Exception {
+				driver.queuePoint(PATH[i % PATH.length]);
+			}
+		}, MOVES);
+	}
+
+	@Test(dataProvider = "drivers")
+	public void queuesPointsWithoutAllocating(String driverName, String driverSettings) throws Exception {
+		InstantMachine machine = new InstantMachine();
+		Sanguino3GDriver driver = TestMachines.create(driverName, driverSettings);
+		driver.openSerial(new Serial(machine));
+		try {
+			double bytes = measure(driver);
+			Reporter.log(driverName + driverSettings + ": " + bytes + " bytes per move");
+			Assert.assertTrue(machine.getPacketCount() > 0);
+			Assert.assertTrue(bytes < MAX_BYTES, bytes + " bytes allocated per move");
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void estimatesPointsWithoutAllocating() throws Exception {
+		EstimationDriver driver = TestMachines.setUp(new EstimationDriver());
+		double bytes = measure(driver);
+		Reporter.log("Estimating: " + bytes + " bytes per move");
+		Assert.assertTrue(driver.getBuildTime() > 0);
+		Assert.assertTrue(bytes < MAX_BYTES, bytes + " bytes allocated per move");
+	}
+}
@@ -0,0 +1,89 @@
+package testing.drivers.gen3;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.gen3.Makerbot4GDriver;
+import replicatorg.drivers.gen3.PacketProcessor;
+import replicatorg.drivers.gen3.PacketResponse;
+import replicatorg.util.Point5d;
+
+import testing.AllocationMeter;
+
+/**
+ * Checks that motion packets are built, sent, and their responses received
+ * and decoded, without allocating anything per packet.
+ */
+public class PacketAllocationTest {
+	private static final int PACKETS = 100000;
+
+	// Allowed mean bytes per packet; enough for the odd one-off allocation,
+	// but far less than a single packet array or response.
+	private static final double MAX_BYTES = 8;
+
+	// Lets the test queue points in steps, as the driver's own moves do.
+	static class PointSender extends Makerbot4GDriver {
+		private final Point5d steps = new Point5d();
+
+		void send(int i) throws RetryException {
+			steps.setX((i % 2) * 100);
+			steps.setY((i % 3) * 100);
+			queueAbsolutePoint(steps, 100);
+		}
+	}
+
+	@Test
+	public void sendsPointsWithoutAllocating() throws Exception {
+		sendPoints(TestMachines.setUp(new PointSender()), "Queueing a point");
+	}
+
+	@Test
+	public void sendsWindowedPointsWithoutAllocating() throws Exception {
+		PointSender driver = TestMachines.setUp(new PointSender(), "<window>8</window>");
+		Assert.assertEquals(driver.getWindowSize(), 8);
+		sendPoints(driver, "Queueing a point in the window");
+	}
+
+	private void sendPoints(final PointSender driver, String what) throws Exception {
+		AllocationMeter meter = new AllocationMeter();
+		InstantMachine machine = new InstantMachine();
+		driver.openSerial(new Serial(machine));
+		try {
+			double bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+				public void run(int i) throws Exception {
+					driver.send(i);
+				}
+			}, PACKETS);
+			Reporter.log(what + ": " + bytes + " bytes per packet");
+			Assert.assertTrue(machine.getPacketCount() >= PACKETS);
+			Assert.assertTrue(bytes < MAX_BYTES, bytes + " bytes allocated per packet");
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void receivesResponsesWithoutAllocating() throws Exception {
+		// An OK response carrying a 32-bit value, as a query would get
+		final byte[] packet = InstantMachine.response(0x12345678);
+
+		final PacketProcessor processor = new PacketProcessor();
+		final PacketResponse response = new PacketResponse();
+		double bytes = new AllocationMeter().bytesPerOperation(new AllocationMeter.Operation() {
+			public void run(int i) throws Exception {
+				boolean complete = false;
+				for (int j = 0; j < packet.length; j++) {
+					complete = processor.processByte(packet[j]);
+				}
+				if (!complete || !processor.getResponse(response).isOK()) {
+					throw new AssertionError("Response " + i + " wasn't received");
+				}
+			}
+		}, PACKETS);
+		Reporter.log("Receiving a response: " + bytes + " bytes per packet");
+		Assert.assertTrue(bytes < MAX_BYTES, bytes + " bytes allocated per packet");
+	}
+}
@@ -0,0 +1,262 @@
+package testing.drivers.gen3;
+
+import java.util.List;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import replicatorg.app.GCodeParser;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.RetryException;
+import replicatorg.drivers.StopException;
+import replicatorg.drivers.commands.CommandBatch;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.drivers.gen3.Sanguino3GEmulator;
+import replicatorg.util.Point5d;
+
+/**
+ * Builds jobs on a Makerbot4GDriver talking to the Sanguino3GEmulator, and
+ * checks where the emulated machine ends up, with and without buffer
+ * overflows, corrupted packets and line noise along the way.
+ */
+public class Sanguino3GEmulatorTest {
+	/** How long a test waits for the emulator to run what it was sent, in ms */
+	private static final long TIMEOUT = 30000;
+
+	// Points on the square the test job goes round
+	private static final double[][] SQUARE = { {10, 10}, {60, 10}, {60, 60}, {10, 60} };
+	private static final int LAPS = 50;
+
+	// Steps per mm on the extruder axis, which goes up by 1mm an edge
+	private static final int A_STEPS_PER_MM = 100;
+
+	private Sanguino3GDriver connect(Sanguino3GEmulator emulator) throws Exception {
+		return TestMachines.connect(TestMachines.create("makerbot4g"), emulator);
+	}
+
+	private Sanguino3GDriver connectWindowed(Sanguino3GEmulator emulator, int window) throws Exception {
+		return TestMachines.connect(TestMachines.create("makerbot4g", "<window>" + window + "</window>"), emulator);
+	}
+
+	// Run a line as a build does, retrying whatever the driver asks us to.
+	private void run(GCodeParser parser, CommandBatch queue, Driver driver, String line) throws Exception {
+		parser.parse(line, queue);
+		while (!queue.isEmpty()) {
+			try {
+				queue.run(driver);
+			} catch (RetryException e) {
+				// Try again
+			} catch (StopException e) {
+				queue.remove();
+			}
+		}
+	}
+
+	// Go round the square, extruding 1mm an edge, and end at the first corner.
+	private void runJob(Sanguino3GDriver driver) throws Exception {
+		sendJob(driver);
+		checkPosition(driver);
+	}
+
+	private void checkPosition(Sanguino3GDriver driver) throws Exception {
+		// Read back where the emulated machine is, rather than where the
+		// driver thinks it is.
+		Point5d p = driver.getCurrentPosition(true);
+		Assert.assertEquals(p.x(), 10.0, 0.05);
+		Assert.assertEquals(p.y(), 10.0, 0.05);
+		Assert.assertEquals(p.z(), 0.3, 0.01);
+		Assert.assertEquals(p.a(), LAPS * SQUARE.length + 1.0, 0.01);
+		Assert.assertEquals(driver.getMachine().currentTool().getTargetTemperature(), 220.0, 1e-9);
+	}
+
+	// Send the job, and wait for the machine to finish it.
+	private void sendJob(Sanguino3GDriver driver) throws Exception {
+		GCodeParser parser = new GCodeParser();
+		parser.init(driver);
+		CommandBatch queue = new CommandBatch();
+		run(parser, queue, driver, "G21");
+		run(parser, queue, driver, "G90");
+		run(parser, queue, driver, "G92 X0 Y0 Z0 A0");
+		run(parser, queue, driver, "M104 S220 T0");
+		run(parser, queue, driver, "G1 Z0.3 F600");
+		int edge = 0;
+		for (int lap = 0; lap < LAPS; lap++) {
+			for (double[] p : SQUARE) {
+				edge++;
+				run(parser, queue, driver, "G1 X" + p[0] + " Y" + p[1] + " A" + edge + " F3000");
+			}
+		}
+		run(parser, queue, driver, "G1 X10 Y10 A" + (edge + 1));
+
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!driver.isFinished()) {
+			Assert.assertTrue(System.currentTimeMillis() < end, "The job didn't finish");
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Check the order the emulator ran the job's moves in. The extruder goes
+	 * forward 1mm an edge, so it must never go back.
+	 * @param complete if true, every edge must have been run
+	 */
+	private void checkOrder(Sanguino3GEmulator emulator, boolean complete) {
+		List<int[]> moves = emulator.getMoves();
+		int edge = 0;
+		for (int[] target : moves) {
+			int a = target[3];
+			Assert.assertTrue(a >= edge * A_STEPS_PER_MM, "Edge " + (a / A_STEPS_PER_MM) + " ran after edge " + edge);
+			if (a > edge * A_STEPS_PER_MM) {
+				Assert.assertTrue(!complete || a == (edge + 1) * A_STEPS_PER_MM, "Edge " + (edge + 1) + " was skipped");
+				edge = a / A_STEPS_PER_MM;
+			}
+		}
+		if (complete) {
+			Assert.assertEquals(edge, LAPS * SQUARE.length + 1);
+		}
+	}
+
+	@Test
+	public void runsJob() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		Sanguino3GDriver driver = connect(emulator);
+		try {
+			runJob(driver);
+			Assert.assertEquals(emulator.getCrcErrorCount(), 0);
+			Assert.assertEquals(emulator.getNoiseByteCount(), 0);
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void recoversFromBufferOverflow() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		emulator.setBufferCapacity(64);
+		Sanguino3GDriver driver = connect(emulator);
+		// Slow enough that the moves back up
+		emulator.setSpeedup(20);
+		try {
+			runJob(driver);
+			Assert.assertTrue(emulator.getOverflowCount() > 0, "The buffer never overflowed");
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void recoversFromCrcErrors() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		emulator.setCrcErrorEvery(13);
+		Sanguino3GDriver driver = connect(emulator);
+		try {
+			runJob(driver);
+			Assert.assertTrue(emulator.getCrcErrorCount() > 0);
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void recoversFromNoise() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		emulator.setNoiseEvery(11);
+		Sanguino3GDriver driver = connect(emulator);
+		try {
+			runJob(driver);
+			Assert.assertTrue(emulator.getNoiseByteCount() > 0);
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void windowedJobNeverOverflows() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		emulator.setBufferCapacity(64);
+		Sanguino3GDriver driver = connectWindowed(emulator, 4);
+		// Slow enough that the moves back up
+		emulator.setSpeedup(20);
+		emulator.recordMoves();
+		try {
+			runJob(driver);
+			checkOrder(emulator, true);
+			Assert.assertEquals(emulator.getOverflowCount(), 0);
+			Assert.assertEquals(driver.getWindowSize(), 4);
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void windowIsClosedOnANoisyLink() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		emulator.setBufferCapacity(64);
+		emulator.setCrcErrorEvery(5);
+		Sanguino3GDriver driver = connectWindowed(emulator, 4);
+		// The link showed its errors while connecting, before any move went out.
+		Assert.assertEquals(driver.getWindowSize(), 1);
+		emulator.setSpeedup(20);
+		emulator.recordMoves();
+		try {
+			sendJob(driver);
+			// Queries only get one try.
+			emulator.setCrcErrorEvery(0);
+			checkPosition(driver);
+			checkOrder(emulator, true);
+			Assert.assertTrue(emulator.getCrcErrorCount() > 0);
+			Assert.assertTrue(emulator.getOverflowCount() > 0, "The buffer never overflowed");
+			Assert.assertFalse(driver.hasError());
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	@Test
+	public void windowNeverRunsMovesOutOfOrder() throws Exception {
+		Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+		Sanguino3GDriver driver = connectWindowed(emulator, 4);
+		Assert.assertEquals(driver.getWindowSize(), 4);
+		// The errors start with the window full of moves.
+		emulator.setSpeedup(20);
+		emulator.setCrcErrorEvery(13);
+		emulator.recordMoves();
+		try {
+			sendJob(driver);
+			Assert.assertTrue(emulator.getCrcErrorCount() > 0);
+			Assert.assertEquals(driver.getWindowSize(), 1);
+			// Either the failed moves were sent again in order, or the driver
+			// gave up on them; they are never run late.
+			checkOrder(emulator, !driver.hasError());
+		} finally {
+			driver.dispose();
+		}
+	}
+
+	// Time the job with and without a window, over a link that is slow next
+	// to the machine.
+	@Test
+	public void measuresWindowingGain() throws Exception {
+		long[] nanos = new long[2];
+		int[] windows = { 1, 4 };
+		for (int i = 0; i < windows.length; i++) {
+			Sanguino3GEmulator emulator = new Sanguino3GEmulator(115200);
+			Sanguino3GDriver driver = connectWindowed(emulator, windows[i]);
+			emulator.recordMoves();
+			try {
+				long start = System.nanoTime();
+				runJob(driver);
+				nanos[i] = System.nanoTime() - start;
+				checkOrder(emulator, true);
+				Assert.assertEquals(driver.getWindowSize(), windows[i]);
+				Reporter.log(String.format("Window of %d: %d packets in %.3fs (%.1f/s); link idle %.3fs",
+						windows[i], emulator.getPacketCount(), nanos[i] / 1e9,
+						emulator.getPacketsPerSecond(), emulator.getLinkIdleNanos() / 1e9));
+			} finally {
+				driver.dispose();
+			}
+		}
+		Reporter.log(String.format("Windowing gain: %.2fx", (double)nanos[0] / nanos[1]));
+	}
+}
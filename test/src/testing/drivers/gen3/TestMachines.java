@@ -0,0 +1,142 @@
+package testing.drivers.gen3;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.testng.Assert;
+import org.w3c.dom.Document;
+
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.Driver;
+import replicatorg.drivers.DriverFactory;
+import replicatorg.drivers.gen3.Sanguino3GDriver;
+import replicatorg.drivers.gen3.Sanguino3GEmulator;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * Sets up gen3 drivers for a small extruding machine, made from a machine
+ * description as the application makes them.
+ * <p>
+ * The drivers look for newer firmware when they connect, which reads the
+ * user's firmware.xml and, with a display, offers the upload in a dialog.
+ * So the tests get a home directory of their own, whose firmware.xml lists
+ * nothing newer than the emulator's.
+ */
+class TestMachines {
+	// The newest firmware the fixture lists; the emulator's version
+	private static final String FIRMWARE = "<firmware major=\"3\" minor=\"0\"/>";
+	private static final String FIRMWARE_XML = "<firmware>"
+		+ "<board name=\"RepRap Motherboard v1.X\">" + FIRMWARE + "</board>"
+		+ "<board name=\"Extruder Controller v2.2\">" + FIRMWARE + "</board>"
+		+ "</firmware>";
+
+	private static boolean homeMade = false;
+
+	private static final String MACHINE = "<machine>"
+		+ "<geometry type=\"cartesian\">"
+		+ "<axis id=\"x\" length=\"100\" maxfeedrate=\"5000\" stepspermm=\"47.069852\"/>"
+		+ "<axis id=\"y\" length=\"100\" maxfeedrate=\"5000\" stepspermm=\"47.069852\"/>"
+		+ "<axis id=\"z\" length=\"100\" maxfeedrate=\"1000\" stepspermm=\"200\"/>"
+		+ "<axis id=\"a\" length=\"100\" maxfeedrate=\"5000\" stepspermm=\"100\"/>"
+		+ "</geometry>"
+		+ "<tools><tool name=\"extruder\" type=\"extruder\" motor=\"true\" stepper_axis=\"a\" heater=\"true\"/></tools>"
+		+ "<driver name=\"%s\"><rate>115200</rate>%s</driver>"
+		+ "</machine>";
+
+	/**
+	 * Make the named driver for the machine.
+	 * @param driverName the name a machine description gives the driver,
+	 * such as "makerbot4g"
+	 */
+	static Sanguino3GDriver create(String driverName) throws Exception {
+		return create(driverName, "");
+	}
+
+	/**
+	 * Make the named driver for the machine, with the given settings.
+	 * @param driverSettings the driver's settings, as child nodes of its
+	 * driver node
+	 */
+	static Sanguino3GDriver create(String driverName, String driverSettings) throws Exception {
+		makeHome();
+		Document doc = machine(driverName, driverSettings);
+		Sanguino3GDriver driver = (Sanguino3GDriver)DriverFactory.factory(doc.getElementsByTagName("driver").item(0));
+		driver.setMachine(model(doc));
+		return driver;
+	}
+
+	/**
+	 * Set up a driver made outside DriverFactory for the machine, as a
+	 * "makerbot4g" driver would be.
+	 */
+	static <T extends Driver> T setUp(T driver) throws Exception {
+		return setUp(driver, "");
+	}
+
+	/**
+	 * Set up a driver with the makerbot4g machine's settings and the given
+	 * extra driver settings.
+	 */
+	static <T extends Driver> T setUp(T driver, String settings) throws Exception {
+		makeHome();
+		Document doc = machine("makerbot4g", settings);
+		driver.loadXML(doc.getElementsByTagName("driver").item(0));
+		driver.setMachine(model(doc));
+		return driver;
+	}
+
+	/**
+	 * Connect a driver to the emulator, and initialize it. The emulator is
+	 * sped up so that moves take next to no time.
+	 */
+	static <T extends Sanguino3GDriver> T connect(T driver, Sanguino3GEmulator emulator) throws Exception {
+		emulator.setSpeedup(1000);
+		driver.openSerial(new Serial(emulator));
+		driver.initialize();
+		Assert.assertTrue(driver.isInitialized());
+		return driver;
+	}
+
+	/**
+	 * Point user.home at a fresh directory holding the fixture firmware.xml,
+	 * once per run.
+	 */
+	private static synchronized void makeHome() throws IOException {
+		if (homeMade) {
+			return;
+		}
+		File home = File.createTempFile("replicatorg-test", "");
+		home.delete();
+		File dir = new File(home, ".replicatorg");
+		if (!dir.mkdirs()) {
+			throw new IOException("Couldn't make " + dir);
+		}
+		File firmware = new File(dir, "firmware.xml");
+		FileOutputStream out = new FileOutputStream(firmware);
+		try {
+			out.write(FIRMWARE_XML.getBytes("UTF-8"));
+		} finally {
+			out.close();
+		}
+		firmware.deleteOnExit();
+		dir.deleteOnExit();
+		home.deleteOnExit();
+		System.setProperty("user.home", home.getPath());
+		homeMade = true;
+	}
+
+	private static MachineModel model(Document doc) {
+		MachineModel model = new MachineModel();
+		model.loadXML(doc.getDocumentElement());
+		return model;
+	}
+
+	private static Document machine(String driverName, String driverSettings) throws Exception {
+		return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(String.format(MACHINE, driverName, driverSettings).getBytes("UTF-8")));
+	}
+}
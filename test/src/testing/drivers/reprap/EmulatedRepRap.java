@@ -0,0 +1,89 @@
+package testing.drivers.reprap;
+
+import java.io.ByteArrayInputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+import replicatorg.app.util.serial.Serial;
+import replicatorg.drivers.reprap.RepRap5DDriver;
+import replicatorg.drivers.reprap.RepRapEmulator;
+import replicatorg.machine.model.MachineModel;
+
+/**
+ * A RepRap5DDriver talking to a RepRapEmulator, for tests that run a job
+ * without a machine attached.
+ */
+class EmulatedRepRap {
+	/** How long a test waits for the emulator to run what it was sent, in ms */
+	static final long TIMEOUT = 30000;
+	/** How long the emulator's "start" takes to reach the driver, at most, in ms */
+	static final long START_MILLIS = 200;
+
+	final RepRapEmulator emulator;
+	final RepRap5DDriver driver = new RepRap5DDriver();
+
+	/**
+	 * @param driverSettings the driver's settings, as child nodes of its
+	 * driver node
+	 */
+	EmulatedRepRap(RepRapEmulator emulator, String driverSettings) throws Exception {
+		this.emulator = emulator;
+		setUp(driver, driverSettings);
+	}
+
+	/**
+	 * Set a driver up for the test machine, as the machine's description
+	 * would.
+	 * @param driverSettings the driver's settings, as child nodes of its
+	 * driver node
+	 */
+	static void setUp(RepRap5DDriver driver, String driverSettings) throws Exception {
+		String xml = "<machine>"
+			+ "<geometry type=\"cartesian\">"
+			+ "<axis id=\"x\" length=\"200\" maxfeedrate=\"5000\" stepspermm=\"80\"/>"
+			+ "<axis id=\"y\" length=\"200\" maxfeedrate=\"5000\" stepspermm=\"80\"/>"
+			+ "<axis id=\"z\" length=\"200\" maxfeedrate=\"500\" stepspermm=\"80\"/>"
+			+ "</geometry>"
+			+ "<tools><tool name=\"extruder\" type=\"extruder\" motor=\"true\"/></tools>"
+			+ "<driver name=\"RepRap5D\"><rate>115200</rate>" + driverSettings + "</driver>"
+			+ "</machine>";
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+			.parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		MachineModel model = new MachineModel();
+		model.loadXML(doc.getDocumentElement());
+		driver.loadXML(doc.getElementsByTagName("driver").item(0));
+		driver.setMachine(model);
+	}
+
+	/**
+	 * Connect as a board that resets when its port is opened: the emulator
+	 * announces itself with "start" when opened, and the driver is only
+	 * initialized once that has reached it, so that the "start" isn't taken
+	 * for a reset during the handshake.
+	 */
+	void connect() throws Exception {
+		driver.openSerial(new Serial(emulator));
+		Thread.sleep(START_MILLIS);
+		driver.initialize();
+	}
+
+	/**
+	 * Wait until the driver has had every line it sent acknowledged, and the
+	 * emulator has run them all.
+	 * @return false if that took longer than TIMEOUT
+	 */
+	boolean waitUntilIdle() throws InterruptedException {
+		long end = System.currentTimeMillis() + TIMEOUT;
+		while (!driver.isFinished() || !emulator.isIdle()) {
+			if (System.currentTimeMillis() > end) return false;
+			Thread.sleep(1);
+		}
+		return true;
+	}
+
+	void dispose() {
+		driver.dispose();
+	}
+}
@@ -0,0 +1,93 @@
+package testing.drivers.reprap;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import replicatorg.app.util.serial.Serial;
+import replicatorg.app.util.serial.Transport;
+import replicatorg.drivers.reprap.RepRap5DDriver;
+
+import testing.AllocationMeter;
+
+/**
+ * Checks how much sending a line to RepRap firmware, and reading its
+ * answer, allocates: the rewriting, numbering and checksumming of the line,
+ * and the scanning of the response.
+ */
+public class LineAllocationTest {
+	private static final int LINES = 100000;
+
+	// Each line is still handed on as a String, each response line is
+	// dequeued as an array, and the temperature is kept boxed; between them
+	// they take under 200 bytes. Compiling a single regular expression takes
+	// several times that.
+	private static final double MAX_BYTES = 256;
+
+	private static final String[] JOB = {
+		"G1 X10.5 Y20.25 F3000 E1.5 ; to the corner",
+		"G1 X60 Y20.25 E2.75 (along the edge)",
+		"M105",
+		"G1 F1500 X60 Y70.5 E4.125",
+	};
+
+	// Lets the test send lines, as the driver sends a job's.
+	static class LineSender extends RepRap5DDriver {
+		void send(String line) {
+			sendCommand(line);
+		}
+	}
+
+	/**
+	 * Firmware that answers every line the moment it is written, on the
+	 * writing thread, with a temperature report.
+	 */
+	static class InstantFirmware implements Transport {
+		private final byte[] answer = "ok T:201.5 /210.0 B:59.5 /60.0\n".getBytes();
+		private Receiver receiver = null;
+		int lineCount = 0;
+
+		public void open(Receiver receiver) {
+			this.receiver = receiver;
+		}
+
+		public void close() {
+			receiver = null;
+		}
+
+		public void write(byte[] bytes, int offset, int length) {
+			lineCount++;
+			receiver.received(answer, 0, answer.length);
+		}
+
+		public void pulseRTSLow() {
+		}
+
+		public String getName() {
+			return "instant";
+		}
+	}
+
+	@Test
+	public void sendsLinesWithoutRegularExpressions() throws Exception {
+		AllocationMeter meter = new AllocationMeter();
+		InstantFirmware firmware = new InstantFirmware();
+		final LineSender driver = new LineSender();
+		EmulatedRepRap.setUp(driver,
+				"<checksums>true</checksums><streaming>true</streaming><pulserts>false</pulserts>");
+		driver.openSerial(new Serial(firmware));
+		try {
+			double bytes = meter.bytesPerOperation(new AllocationMeter.Operation() {
+				public void run(int i) throws Exception {
+					driver.send(JOB[i % JOB.length]);
+				}
+			}, LINES);
+			Reporter.log("Sending a line: " + bytes + " bytes per line");
+			Assert.assertTrue(firmware.lineCount >= LINES);
+			Assert.assertEquals(driver.getMachine().currentTool().getCurrentTemperature(), 201.5, 1e-9);
+			Assert.assertTrue(bytes < MAX_BYTES, bytes + " bytes allocated per line");
+		} finally {
+			driver.dispose();
+		}
+	}
+}
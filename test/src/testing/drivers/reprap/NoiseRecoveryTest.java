@@ -0,0 +1,63 @@
+package testing.drivers.reprap;
+
+import org.testng.Assert;
+import org.testng.Reporter;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.reprap.RepRapEmulator;
+
+/**
+ * Corrupts lines on their way to the machine with the driver's
+ * introduceNoise setting, and checks that every line is resent and run
+ * exactly once. The throughput the driver keeps up through the resends is
+ * logged to the report.
+ */
+public class NoiseRecoveryTest {
+	// Lines sent, each moving X and E a fixed distance further
+	private static final int MOVES = 400;
+
+	private void runJob(boolean streaming) throws Exception {
+		RepRapEmulator emulator = new RepRapEmulator(115200);
+		emulator.setSpeedup(1000);
+		EmulatedRepRap machine = new EmulatedRepRap(emulator,
+				"<pulserts>false</pulserts>"
+				+ "<streaming>" + streaming + "</streaming>"
+				+ "<introduceNoise>0.05</introduceNoise>");
+		try {
+			machine.connect();
+			Assert.assertTrue(machine.driver.isInitialized());
+
+			// Relative moves, so that a line lost or run twice shows in where
+			// the machine ends up.
+			long started = System.nanoTime();
+			machine.driver.executeGCodeLine("G91");
+			for (int i = 0; i < MOVES; i++) {
+				machine.driver.executeGCodeLine("G1 X0.25 E0.5 F6000");
+			}
+			Assert.assertTrue(machine.waitUntilIdle(), "The job didn't finish");
+			double seconds = (System.nanoTime() - started) / 1e9;
+			Reporter.log(String.format("%s: %d lines in %.3fs (%.0f/s) with %d resends",
+					streaming ? "Streaming" : "Waiting for each line", MOVES + 1, seconds,
+					(MOVES + 1) / seconds, emulator.getResendCount()));
+
+			Assert.assertFalse(machine.driver.hasError(), "The driver gave up");
+			Assert.assertTrue(emulator.getChecksumErrorCount() > 0, "No lines were corrupted");
+			Assert.assertTrue(emulator.getResendCount() >= emulator.getChecksumErrorCount());
+			double[] position = emulator.getPosition();
+			Assert.assertEquals(position[0], MOVES * 0.25, 1e-9);
+			Assert.assertEquals(position[3], MOVES * 0.5, 1e-9);
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	@Test
+	public void recoversWaitingForEachLine() throws Exception {
+		runJob(false);
+	}
+
+	@Test
+	public void recoversStreaming() throws Exception {
+		runJob(true);
+	}
+}
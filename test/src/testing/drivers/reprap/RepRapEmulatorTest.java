@@ -0,0 +1,123 @@
+package testing.drivers.reprap;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import replicatorg.drivers.reprap.RepRapEmulator;
+import replicatorg.util.Point5d;
+
+/**
+ * Streams jobs from RepRap5DDriver to the RepRapEmulator, and checks what
+ * the emulator ran and what the driver heard back from it.
+ */
+public class RepRapEmulatorTest {
+	// Points on the square the test job goes round
+	private static final double[][] SQUARE = { {10, 10}, {60, 10}, {60, 60}, {10, 60} };
+	private static final int LAPS = 50;
+
+	private EmulatedRepRap connect(RepRapEmulator emulator, boolean streaming) throws Exception {
+		emulator.setSpeedup(1000);
+		EmulatedRepRap machine = new EmulatedRepRap(emulator,
+				"<pulserts>false</pulserts><streaming>" + streaming + "</streaming>");
+		machine.connect();
+		Assert.assertTrue(machine.driver.isInitialized());
+		return machine;
+	}
+
+	// Go round the square, extruding 1mm an edge, and end at the first corner.
+	private void sendJob(EmulatedRepRap machine) {
+		machine.driver.executeGCodeLine("G21");
+		machine.driver.executeGCodeLine("G90");
+		machine.driver.executeGCodeLine("G92 X0 Y0 Z0 E0");
+		machine.driver.executeGCodeLine("M104 S210");
+		machine.driver.executeGCodeLine("G1 Z0.3 F600");
+		int edge = 0;
+		for (int lap = 0; lap < LAPS; lap++) {
+			for (double[] p : SQUARE) {
+				edge++;
+				machine.driver.executeGCodeLine("G1 X" + p[0] + " Y" + p[1] + " E" + edge + " F3000 ; edge " + edge);
+			}
+		}
+		machine.driver.executeGCodeLine("G1 X10 Y10 E" + (edge + 1));
+	}
+
+	private void checkJob(EmulatedRepRap machine) throws Exception {
+		Assert.assertTrue(machine.waitUntilIdle(), "The job didn't finish");
+		double[] position = machine.emulator.getPosition();
+		Assert.assertEquals(position[0], 10.0, 1e-9);
+		Assert.assertEquals(position[1], 10.0, 1e-9);
+		Assert.assertEquals(position[2], 0.3, 1e-9);
+		Assert.assertEquals(position[3], LAPS * SQUARE.length + 1.0, 1e-9);
+	}
+
+	@Test
+	public void runsJob() throws Exception {
+		EmulatedRepRap machine = connect(new RepRapEmulator(115200), false);
+		try {
+			sendJob(machine);
+			checkJob(machine);
+			Assert.assertEquals(machine.emulator.getResendCount(), 0);
+			Assert.assertEquals(machine.emulator.getOverflowCount(), 0);
+
+			// The driver reads temperature and position reports.
+			machine.driver.executeGCodeLine("M105");
+			machine.driver.executeGCodeLine("M114");
+			Assert.assertTrue(machine.waitUntilIdle());
+			Assert.assertEquals(machine.driver.getMachine().currentTool().getCurrentTemperature(), 210.0, 1e-9);
+			Point5d p = machine.driver.getCurrentPosition(false);
+			Assert.assertEquals(p.x(), 10.0, 1e-9);
+			Assert.assertEquals(p.y(), 10.0, 1e-9);
+			Assert.assertEquals(p.z(), 0.3, 1e-9);
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	@Test
+	public void streamsJobWithoutOverflowing() throws Exception {
+		EmulatedRepRap machine = connect(new RepRapEmulator(115200), true);
+		try {
+			sendJob(machine);
+			checkJob(machine);
+			Assert.assertEquals(machine.emulator.getResendCount(), 0);
+			Assert.assertEquals(machine.emulator.getOverflowCount(), 0);
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	private void recoversFromChecksumErrors(boolean shortResend, boolean streaming) throws Exception {
+		RepRapEmulator emulator = new RepRapEmulator(115200);
+		emulator.setChecksumErrorEvery(17);
+		emulator.setShortResend(shortResend);
+		EmulatedRepRap machine = connect(emulator, streaming);
+		try {
+			sendJob(machine);
+			checkJob(machine);
+			Assert.assertTrue(emulator.getChecksumErrorCount() > 0);
+			Assert.assertTrue(emulator.getResendCount() >= emulator.getChecksumErrorCount());
+			Assert.assertFalse(machine.driver.hasError());
+			if (streaming) {
+				// The bytes counted as in the firmware's buffer stay right through resends.
+				Assert.assertEquals(emulator.getOverflowCount(), 0);
+			}
+		} finally {
+			machine.dispose();
+		}
+	}
+
+	@Test
+	public void recoversFromResendRequests() throws Exception {
+		recoversFromChecksumErrors(false, false);
+	}
+
+	@Test
+	public void recoversFromShortResendRequests() throws Exception {
+		recoversFromChecksumErrors(true, false);
+	}
+
+	@Test
+	public void recoversFromResendRequestsStreaming() throws Exception {
+		recoversFromChecksumErrors(false, true);
+	}
+}